@@ -0,0 +1,65 @@
+//
+// Nexus Core - a framework for developing distributed applications
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.distrib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bundles a sequence of events targeted to a single object, so that they may be dispatched (and
+ * delivered to subscribers) as a unit. The server bundles all of the events posted to an object
+ * during a single execution of the object's context.
+ */
+public class CompoundEvent extends NexusEvent
+{
+    /** The bundled events, in the order in which they were posted. */
+    public final List<NexusEvent> events;
+
+    /**
+     * Creates a compound event targeted to the specified object, containing the supplied events
+     * (all of which must target the same object).
+     */
+    public CompoundEvent (int targetId, List<NexusEvent> events) {
+        super(targetId);
+        this.events = events;
+    }
+
+    @Override public void applyTo (NexusObject target) {
+        for (NexusEvent event : events) event.applyTo(target);
+    }
+
+    /**
+     * Returns the event to be sent to subscribers in place of this event: this event less any
+     * events superseded by a later event with the same {@link DAttribute.Event#coalesceKey}, or
+     * this event if no events are superseded.
+     */
+    public NexusEvent coalesce () {
+        Set<Object> seen = null;
+        boolean[] superseded = null;
+        int dropped = 0;
+        for (int ii = events.size()-1; ii >= 0; ii--) {
+            NexusEvent event = events.get(ii);
+            Object key = (event instanceof DAttribute.Event) ?
+                ((DAttribute.Event)event).coalesceKey() : null;
+            if (key == null) continue;
+            if (seen == null) seen = new HashSet<Object>();
+            if (seen.add(key)) continue;
+            if (superseded == null) superseded = new boolean[events.size()];
+            superseded[ii] = true;
+            dropped++;
+        }
+        if (dropped == 0) return this;
+        List<NexusEvent> kept = new ArrayList<NexusEvent>(events.size() - dropped);
+        for (int ii = 0; ii < events.size(); ii++) if (!superseded[ii]) kept.add(events.get(ii));
+        return (kept.size() == 1) ? kept.get(0) : new CompoundEvent(targetId, kept);
+    }
+
+    @Override protected void toString (StringBuilder buf) {
+        super.toString(buf);
+        buf.append(", events=").append(events);
+    }
+}
@@ -21,10 +21,33 @@ public interface DAttribute
             this.index = index;
         }
 
+        /**
+         * Returns a key identifying the state (of the target attribute) changed by this event if a
+         * later event with the same key would wholly supersede it, or null.
+         */
+        protected Object stateKey () {
+            return null;
+        }
+
+        /**
+         * Returns this event's {@link #stateKey} if it was posted by an attribute that coalesces
+         * its changes (in which case, when a later event with the same key is posted during a
+         * single execution of the target's context, this event is not sent to subscribers), or
+         * null.
+         */
+        protected Object coalesceKey () {
+            return (_coalesce || _ticked) ? stateKey() : null;
+        }
+
         @Override protected void toString (StringBuilder buf) {
             super.toString(buf);
             buf.append(", idx=").append(index);
         }
+
+        /** Whether this event was posted by an attribute that coalesces its changes, or that
+         * publishes them on ticks. These are only known (and only matter) on the server that
+         * posted the event. */
+        protected boolean _coalesce, _ticked;
     }
 
     /**
@@ -4,6 +4,7 @@
 
 package com.threerings.nexus.distrib;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,6 +30,43 @@ public class DMap<K,V> extends react.RMap<K,V>
         return new DMap<K,V>(owner, impl);
     }
 
+    /**
+     * Configures whether this map coalesces its changes. When a put or remove of a key is
+     * superseded by a later put or remove of the same key made during the same execution of the
+     * owning object's context, only the later change is sent to subscribers (local listeners are
+     * notified of every change).
+     *
+     * @return this map, for chaining.
+     */
+    public DMap<K,V> setCoalesced (boolean coalesced) {
+        _coalesced = coalesced;
+        return this;
+    }
+
+    /** Returns whether this map coalesces its changes. See {@link #setCoalesced}. */
+    public boolean isCoalesced () {
+        return _coalesced;
+    }
+
+    /**
+     * Configures whether this map publishes its changes on ticks. Changes to a ticked attribute
+     * are not sent to subscribers as they occur; instead the attribute is marked dirty, and its
+     * latest state is sent when the owning object next publishes, which it does at most at the
+     * publish rate configured for its class (see {@code Nexus.setPublishRate}). Local listeners
+     * are notified of every change. Suited to rapidly changing state, such as positions.
+     *
+     * @return this map, for chaining.
+     */
+    public DMap<K,V> setTicked (boolean ticked) {
+        _ticked = ticked;
+        return this;
+    }
+
+    /** Returns whether this map publishes its changes on ticks. See {@link #setTicked}. */
+    public boolean isTicked () {
+        return _ticked;
+    }
+
     @Override public void readContents (Streamable.Input in) {
         _impl = in.<Map<K,V>>readValue();
     }
@@ -47,6 +85,8 @@ public class DMap<K,V> extends react.RMap<K,V>
         // we don't call super as we defer notification until the event is dispatched
         PutEvent<K,V> event = new PutEvent<K,V>(_owner.getId(), _index, key, value);
         event.oldValue = oldValue;
+        event._coalesce = _coalesced;
+        event._ticked = _ticked;
         _owner.postEvent(event);
     }
 
@@ -62,6 +102,8 @@ public class DMap<K,V> extends react.RMap<K,V>
         // we don't call super as we defer notification until the event is dispatched
         RemoveEvent<K,V> event = new RemoveEvent<K,V>(_owner.getId(), _index, key);
         event.oldValue = oldValue;
+        event._coalesce = _coalesced;
+        event._ticked = _ticked;
         _owner.postEvent(event);
     }
 
@@ -87,6 +129,10 @@ public class DMap<K,V> extends react.RMap<K,V>
             target.<DMap<K,V>>getAttribute(this.index).applyPut(_key, _value, oldValue);
         }
 
+        @Override protected Object stateKey () {
+            return mapKey(index, _key);
+        }
+
         @Override protected void toString (StringBuilder buf) {
             super.toString(buf);
             buf.append(", key=").append(_key);
@@ -110,6 +156,10 @@ public class DMap<K,V> extends react.RMap<K,V>
             target.<DMap<K,V>>getAttribute(this.index).applyRemove(_key, oldValue);
         }
 
+        @Override protected Object stateKey () {
+            return mapKey(index, _key);
+        }
+
         @Override protected void toString (StringBuilder buf) {
             super.toString(buf);
             buf.append(", key=").append(_key);
@@ -118,9 +168,17 @@ public class DMap<K,V> extends react.RMap<K,V>
         protected final K _key;
     }
 
+    /** Puts and removes of the same key (in the same map) share a state key. */
+    protected static Object mapKey (short index, Object key) {
+        return Arrays.asList(index, key);
+    }
+
     /** The object that owns this attribute. */
     protected final NexusObject _owner;
 
     /** The index of this attribute in its containing object. */
     protected final short _index;
+
+    /** Whether we coalesce our changes, and whether we publish them on ticks. */
+    protected boolean _coalesced, _ticked;
 }
@@ -18,6 +18,43 @@ public class DValue<T> extends react.Value<T> implements DAttribute
         return new DValue<T>(owner, value);
     }
 
+    /**
+     * Configures whether this value coalesces its changes. When an update is superseded by a
+     * later update made during the same execution of the owning object's context, only the later
+     * update is sent to subscribers (local listeners are notified of every change). This saves
+     * bandwidth for attributes that are updated many times per action.
+     *
+     * @return this value, for chaining.
+     */
+    public DValue<T> setCoalesced (boolean coalesced) {
+        _coalesced = coalesced;
+        return this;
+    }
+
+    /** Returns whether this value coalesces its changes. See {@link #setCoalesced}. */
+    public boolean isCoalesced () {
+        return _coalesced;
+    }
+
+    /**
+     * Configures whether this value publishes its changes on ticks. Changes to a ticked attribute
+     * are not sent to subscribers as they occur; instead the attribute is marked dirty, and its
+     * latest state is sent when the owning object next publishes, which it does at most at the
+     * publish rate configured for its class (see {@code Nexus.setPublishRate}). Local listeners
+     * are notified of every change. Suited to rapidly changing state, such as positions.
+     *
+     * @return this value, for chaining.
+     */
+    public DValue<T> setTicked (boolean ticked) {
+        _ticked = ticked;
+        return this;
+    }
+
+    /** Returns whether this value publishes its changes on ticks. See {@link #setTicked}. */
+    public boolean isTicked () {
+        return _ticked;
+    }
+
     @Override public void readContents (Streamable.Input in) {
         _value = in.<T>readValue();
     }
@@ -36,6 +73,8 @@ public class DValue<T> extends react.Value<T> implements DAttribute
         // we don't call super as we defer notification until the event is dispatched
         ChangeEvent<T> event = new ChangeEvent<T>(_owner.getId(), _index, value);
         event.oldValue = oldValue;
+        event._coalesce = _coalesced;
+        event._ticked = _ticked;
         _owner.postEvent(event);
     }
 
@@ -60,6 +99,10 @@ public class DValue<T> extends react.Value<T> implements DAttribute
             target.<DValue<T>>getAttribute(this.index).applyChange(_value, oldValue);
         }
 
+        @Override protected Object stateKey () {
+            return Short.valueOf(index);
+        }
+
         @Override protected void toString (StringBuilder buf) {
             super.toString(buf);
             buf.append(", value=").append(_value);
@@ -73,4 +116,7 @@ public class DValue<T> extends react.Value<T> implements DAttribute
 
     /** The index of this attribute in its containing object. */
     protected final short _index;
+
+    /** Whether we coalesce our changes, and whether we publish them on ticks. */
+    protected boolean _coalesced, _ticked;
 }
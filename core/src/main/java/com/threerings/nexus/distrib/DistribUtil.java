@@ -4,6 +4,9 @@
 
 package com.threerings.nexus.distrib;
 
+import java.util.Arrays;
+import java.util.List;
+
 import react.RFuture;
 import react.Slot;
 import react.Try;
@@ -43,6 +46,42 @@ public class DistribUtil
         }
     }
 
+    /**
+     * Returns true if the supplied event was posted by an attribute that publishes its changes on
+     * ticks. See {@link DValue#setTicked}.
+     */
+    public static boolean isTicked (NexusEvent event) {
+        return (event instanceof DAttribute.Event) && ((DAttribute.Event)event)._ticked;
+    }
+
+    /**
+     * Returns the key that identifies the state changed by the supplied event, if it may be
+     * superseded by a later event, or null.
+     */
+    public static Object coalesceKey (NexusEvent event) {
+        return (event instanceof DAttribute.Event) ? ((DAttribute.Event)event).coalesceKey() : null;
+    }
+
+    /**
+     * Returns a key identifying the object state changed by the supplied event (its target object
+     * id, attribute index and, for maps, the key), if a later event with the same key would wholly
+     * supersede it, or null. Unlike {@link #coalesceKey}, this does not depend on the attribute's
+     * configuration, as it is used to conflate the events queued for a lagging client.
+     */
+    public static Object conflationKey (NexusEvent event) {
+        if (!(event instanceof DAttribute.Event)) return null;
+        Object key = ((DAttribute.Event)event).stateKey();
+        return (key == null) ? null : Arrays.asList(event.targetId, key);
+    }
+
+    /**
+     * Returns the id of the object whose state is identified by the supplied key, which must have
+     * been obtained from {@link #conflationKey}.
+     */
+    public static int conflationTarget (Object key) {
+        return (Integer)((List<?>)key).get(0);
+    }
+
     /**
      * Returns a sentinel value for use by events in tracking unset values.
      */
@@ -19,7 +19,11 @@ public interface EventSink
 
     /**
      * Posts an event originating from the specified object, to be dispatched to local and
-     * distributed listeners.
+     * distributed listeners. Events posted to objects that share an execution context are
+     * dispatched in the order in which they were posted (on the server, consecutive events
+     * posted to one object by an action may be dispatched as a single {@link CompoundEvent}).
+     * Events posted to objects in different execution contexts are dispatched by those contexts
+     * independently, and thus in no particular order relative to one another.
      */
     void postEvent (NexusObject source, NexusEvent event);
 
@@ -0,0 +1,40 @@
+//
+// Nexus Core - a framework for developing distributed applications
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.distrib;
+
+import java.util.List;
+
+import com.threerings.nexus.io.Streamable;
+import com.threerings.nexus.io.Streamer;
+
+/**
+ * Handles the streaming of {@link CompoundEvent} and/or nested classes.
+ */
+public class Streamer_CompoundEvent
+    implements Streamer<CompoundEvent>
+{
+    @Override
+    public Class<?> getObjectClass () {
+        return CompoundEvent.class;
+    }
+
+    @Override
+    public void writeObject (Streamable.Output out, CompoundEvent obj) {
+        writeObjectImpl(out, obj);
+    }
+
+    @Override
+    public CompoundEvent readObject (Streamable.Input in) {
+        return new CompoundEvent(
+            in.readInt(),
+            in.<List<NexusEvent>>readValue()
+        );
+    }
+
+    public static  void writeObjectImpl (Streamable.Output out, CompoundEvent obj) {
+        Streamer_NexusEvent.writeObjectImpl(out, obj);
+        out.writeValue(obj.events);
+    }
+}
@@ -127,6 +127,10 @@ public abstract class AbstractSerializer implements Serializer
         mapStreamer(new Streamers.Streamer_List());
         mapStreamer(new Streamers.Streamer_Set());
         mapStreamer(new Streamers.Streamer_Map());
+        // map the streamers for other special types
+        mapStreamer(new Streamers.Streamer_ByteSlice());
+        mapStreamer(new Streamers.Streamer_RefScope());
+        mapStreamer(new Streamers.Streamer_BackRef());
 
         // TEMP: map the core streamables manually while we lack a code generator
         mapStreamer(new com.threerings.nexus.distrib.Streamer_Address.OfKeyed());
@@ -138,6 +142,7 @@ public abstract class AbstractSerializer implements Serializer
         mapStreamer(new com.threerings.nexus.distrib.Streamer_DSet.RemoveEvent());
         mapStreamer(new com.threerings.nexus.distrib.Streamer_DValue.ChangeEvent());
         mapStreamer(new com.threerings.nexus.distrib.Streamer_DSignal.EmitEvent());
+        mapStreamer(new com.threerings.nexus.distrib.Streamer_CompoundEvent());
         mapStreamer(new com.threerings.nexus.net.Streamer_Downstream.Subscribe());
         mapStreamer(new com.threerings.nexus.net.Streamer_Downstream.SubscribeFailure());
         mapStreamer(new com.threerings.nexus.net.Streamer_Downstream.DispatchEvent());
@@ -0,0 +1,156 @@
+//
+// Nexus Core - a framework for developing distributed applications
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+/**
+ * A read-only view of a range of bytes. Slices are streamed like {@code byte[]}, but where the
+ * I/O layer supports it, they are not copied: a decoded slice is a view into the frame from which
+ * it was read, and an encoded slice is written directly from its backing array rather than being
+ * copied into the output buffer. This makes slices well suited to large binary blobs (replay data,
+ * voice chunks, map tiles, etc.).
+ *
+ * <p>A decoded slice may hold a reference on the buffer from which it was read, which prevents
+ * that buffer from being reused for subsequent network data. Holding on to a slice is always safe,
+ * but code that is finished with a slice may {@link #release} it, which allows the buffer to be
+ * reused. Code that hands a slice on to other code, which will release it independently, should
+ * first {@link #retain} it.</p>
+ */
+public final class ByteSlice
+{
+    /**
+     * Tracks outstanding references to a buffer that is shared by one or more slices.
+     */
+    public static class Lease {
+        /** Adds a reference to our buffer. */
+        public synchronized void retain () {
+            _refs++;
+        }
+
+        /** Removes a reference to our buffer. */
+        public synchronized void release () {
+            if (_refs <= 0) throw new IllegalStateException("Lease released too many times");
+            _refs--;
+        }
+
+        /** Returns true if any references to our buffer remain outstanding. */
+        public synchronized boolean isRetained () {
+            return _refs > 0;
+        }
+
+        protected int _refs;
+    }
+
+    /**
+     * Creates a slice that views the entirety of the supplied array. The caller must not modify
+     * the array after creating the slice.
+     */
+    public static ByteSlice wrap (byte[] data) {
+        return wrap(data, 0, data.length);
+    }
+
+    /**
+     * Creates a slice that views {@code length} bytes of the supplied array, starting at {@code
+     * offset}. The caller must not modify that region of the array after creating the slice.
+     */
+    public static ByteSlice wrap (byte[] data, int offset, int length) {
+        return new ByteSlice(data, offset, length, null);
+    }
+
+    /**
+     * Returns the number of bytes in this slice.
+     */
+    public int length () {
+        return _length;
+    }
+
+    /**
+     * Returns the byte at the specified index in this slice.
+     */
+    public byte get (int index) {
+        if (index < 0 || index >= _length) {
+            throw new IndexOutOfBoundsException("Index " + index + " not in [0," + _length + ")");
+        }
+        return _data[_offset + index];
+    }
+
+    /**
+     * Copies the contents of this slice into {@code dest}, starting at {@code destOffset}.
+     */
+    public void copyTo (byte[] dest, int destOffset) {
+        System.arraycopy(_data, _offset, dest, destOffset, _length);
+    }
+
+    /**
+     * Returns a copy of the contents of this slice.
+     */
+    public byte[] toByteArray () {
+        byte[] data = new byte[_length];
+        copyTo(data, 0);
+        return data;
+    }
+
+    /**
+     * Adds a reference to the buffer underlying this slice. Each call must be balanced by a call
+     * to {@link #release}.
+     * @return this slice, for call chaining.
+     */
+    public ByteSlice retain () {
+        if (_lease != null) _lease.retain();
+        return this;
+    }
+
+    /**
+     * Removes a reference to the buffer underlying this slice. The slice must not be accessed
+     * after its last reference is released.
+     */
+    public void release () {
+        if (_lease != null) _lease.release();
+    }
+
+    @Override public boolean equals (Object other) {
+        if (other == this) return true;
+        if (!(other instanceof ByteSlice)) return false;
+        ByteSlice oslice = (ByteSlice)other;
+        if (oslice._length != _length) return false;
+        for (int ii = 0; ii < _length; ii++) {
+            if (_data[_offset+ii] != oslice._data[oslice._offset+ii]) return false;
+        }
+        return true;
+    }
+
+    @Override public int hashCode () {
+        int code = 1;
+        for (int ii = 0; ii < _length; ii++) {
+            code = 31*code + _data[_offset+ii];
+        }
+        return code;
+    }
+
+    @Override public String toString () {
+        return "ByteSlice[" + _length + "]";
+    }
+
+    /**
+     * Creates a slice which views the specified region of {@code data}, and which holds a
+     * reference on {@code lease} (if non-null). This is used by the I/O layer to create slices
+     * that view received frames.
+     */
+    ByteSlice (byte[] data, int offset, int length, Lease lease) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(
+                "Invalid slice [" + offset + "," + length + "] of " + data.length + " bytes");
+        }
+        _data = data;
+        _offset = offset;
+        _length = length;
+        _lease = lease;
+        if (lease != null) lease.retain();
+    }
+
+    // these are accessed directly by the I/O layer to avoid copying
+    final byte[] _data;
+    final int _offset, _length;
+    final Lease _lease;
+}
@@ -4,8 +4,12 @@
 
 package com.threerings.nexus.io;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import com.threerings.nexus.distrib.DService;
 import com.threerings.nexus.distrib.NexusService;
@@ -15,6 +19,16 @@ import com.threerings.nexus.distrib.NexusService;
  */
 public interface Streamable
 {
+    /**
+     * A marker interface for streamables whose instances should be written with reference
+     * deduplication: within the instance's contents, each distinct {@link Streamable} or {@link
+     * String} instance is written in full only once, and subsequent references to the same
+     * instance are written as a small back reference. This is worthwhile for objects whose
+     * contents share many references (for example, a map whose many values refer to a handful of
+     * team records). See {@link Output#writeDeduplicatedValue}.
+     */
+    public interface Deduplicated extends Streamable {}
+
     /**
      * The means by which {@link Streamable} instances read their data from a remote source.
      */
@@ -61,6 +75,15 @@ public interface Streamable
             return data;
         }
 
+        /**
+         * Reads a byte slice from the stream. The result will not be null. The default
+         * implementation copies the data into a new array; I/O implementations that are able to do
+         * so will instead return a view into the underlying data.
+         */
+        public ByteSlice readByteSlice () {
+            return ByteSlice.wrap(readBytes());
+        }
+
         /**
          * Reads an array of short values from the stream. The result will not be null.
          */
@@ -143,22 +166,33 @@ public interface Streamable
          * Output#writeValue}).
          */
         public <T> T readValue () {
-            return this.<T>readStreamer().readObject(this);
+            Streamer<T> s = this.<T>readStreamer();
+            T value = s.readObject(this);
+            if (_refs != null && !(s instanceof Streamers.Streamer_BackRef)) {
+                noteRef(value);
+            }
+            return value;
         }
 
         /**
          * Reads a series of same-typed values from the input, storing them into {@code into} using
          * the {@link Collection#add} method. The values must have been written via a call to
          * {@link Output#writeValues}.
+         *
+         * @return the number of values read.
          */
-        public <T> void readValues (Collection<T> into) {
+        public <T> int readValues (Collection<T> into) {
             int count = readShort();
             if (count > 0) {
                 Streamer<T> s = this.<T>readStreamer();
-                for (; count > 0; --count) {
-                    into.add(s.readObject(this));
+                boolean note = (_refs != null && !(s instanceof Streamers.Streamer_BackRef));
+                for (int ii = 0; ii < count; ii++) {
+                    T value = s.readObject(this);
+                    into.add(value);
+                    if (note) noteRef(value);
                 }
             }
+            return count;
         }
 
         /**
@@ -171,6 +205,36 @@ public interface Streamable
          * instances of that class.
          */
         protected abstract <T> Streamer<T> readStreamer ();
+
+        /**
+         * Reads a value written with reference deduplication. See {@link
+         * Output#writeDeduplicatedValue}.
+         */
+        protected <T> T readDeduplicatedValue () {
+            if (_refs != null) throw new StreamException("Nested deduplication scope");
+            _refs = new ArrayList<Object>();
+            try {
+                return this.<T>readValue();
+            } finally {
+                _refs = null;
+            }
+        }
+
+        /**
+         * Reads a back reference to a value previously read in the current deduplication scope.
+         */
+        protected <T> T readBackRef () {
+            if (_refs == null) throw new StreamException("Back reference outside dedup scope");
+            @SuppressWarnings("unchecked") T value = (T)_refs.get(readInt());
+            return value;
+        }
+
+        protected final void noteRef (Object value) {
+            if (Streamers.isReferenceable(value)) _refs.add(value);
+        }
+
+        /** The values read in the current deduplication scope, or null. */
+        protected List<Object> _refs;
     }
 
     /**
@@ -219,6 +283,19 @@ public interface Streamable
             }
         }
 
+        /**
+         * Writes a byte slice to the stream, in the same format as {@link #writeBytes}. The
+         * default implementation writes the bytes individually; I/O implementations that are able
+         * to do so will instead write the slice's data directly from its backing array.
+         * @throws NullPointerException if the supplied slice is null.
+         */
+        public void writeByteSlice (ByteSlice slice) {
+            writeInt(slice._length);
+            for (int ii = slice._offset, ll = ii + slice._length; ii < ll; ii++) {
+                writeByte(slice._data[ii]);
+            }
+        }
+
         /**
          * Writes an array of short values to the stream.
          * @throws NullPointerException if the supplied array is null.
@@ -301,15 +378,56 @@ public interface Streamable
          * List, Set or Map collection, a class which implements {@link Streamable}, or null.
          */
         public <T> void writeValue (T value) {
+            if (_refs == null) {
+                if (value instanceof Deduplicated) {
+                    writeDeduplicatedValue(value);
+                    return;
+                }
+            } else {
+                Integer ref = _refs.get(value);
+                if (ref != null) {
+                    writeStreamer(Streamers.BACK_REF);
+                    writeInt(ref);
+                    return;
+                }
+            }
+
             Streamer<T> s = writeStreamer(value);
             if (s != null) {
                 s.writeObject(this, value);
             }
+            if (_refs != null) {
+                noteRef(value);
+            }
+        }
+
+        /**
+         * Writes a value like {@link #writeValue}, but with reference deduplication: within the
+         * value (and its contents), each distinct {@link Streamable} or {@link String} instance is
+         * written in full only once, and subsequent references to the same instance are written
+         * as back references. The value is read via {@link Input#readValue} as usual. Instances of
+         * {@link Deduplicated} classes are always written in this way.
+         */
+        public <T> void writeDeduplicatedValue (T value) {
+            if (_refs != null) {
+                writeValue(value); // we're already deduplicating
+                return;
+            }
+            writeStreamer(Streamers.REF_SCOPE);
+            _refs = new IdentityHashMap<Object,Integer>();
+            _nextRef = 0;
+            try {
+                writeValue(value);
+            } finally {
+                _refs = null;
+            }
         }
 
         /**
          * Writes a series of same-typed values to the output. The values must be of exactly the
-         * same type and of a type supported by {@link #writeValue}.
+         * same type and of a type supported by {@link #writeValue}. At most {@link
+         * Short#MAX_VALUE} values may be written in a single call; larger sequences must be split
+         * into multiple runs (as is done when streaming collections).
          */
         public <T> void writeValues (int count, Iterator<T> from) {
             assert(count >= 0);
@@ -322,8 +440,11 @@ public interface Streamable
                 T first = from.next();
                 Streamer<T> s = writeStreamer(first);
                 s.writeObject(this, first);
+                if (_refs != null) noteRef(first);
                 while (--count > 0) {
-                    s.writeObject(this, from.next());
+                    T next = from.next();
+                    s.writeObject(this, next);
+                    if (_refs != null) noteRef(next);
                 }
             }
         }
@@ -333,5 +454,40 @@ public interface Streamable
          * stream the value's data.
          */
         protected abstract <T> Streamer<T> writeStreamer (T value);
+
+        /**
+         * Returns true if we're currently writing a value with reference deduplication.
+         */
+        protected final boolean isDeduplicating () {
+            return _refs != null;
+        }
+
+        /**
+         * Returns true if the supplied value has already been written in the current
+         * deduplication scope.
+         */
+        protected final boolean hasRef (Object value) {
+            return _refs != null && _refs.containsKey(value);
+        }
+
+        /**
+         * Writes a run of values, all of which have already been written in the current
+         * deduplication scope, as back references. The run is read via {@link Input#readValues}.
+         */
+        protected <T> void writeBackRefs (int count, Iterator<T> from) {
+            writeShort((short)count);
+            writeStreamer(Streamers.BACK_REF);
+            for (; count > 0; --count) {
+                writeInt(_refs.get(from.next()));
+            }
+        }
+
+        protected final void noteRef (Object value) {
+            if (Streamers.isReferenceable(value)) _refs.put(value, _nextRef++);
+        }
+
+        /** Maps the values written in the current deduplication scope to their index, or null. */
+        protected Map<Object,Integer> _refs;
+        protected int _nextRef;
     }
 }
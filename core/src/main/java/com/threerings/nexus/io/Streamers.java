@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -189,6 +190,61 @@ public class Streamers
         }
     }
 
+    /** A streamer for {@link ByteSlice}. */
+    public static class Streamer_ByteSlice implements Streamer<ByteSlice> {
+        public Class<?> getObjectClass () {
+            return ByteSlice.class;
+        }
+        public void writeObject (Streamable.Output out, ByteSlice value) {
+            out.writeByteSlice(value);
+        }
+        public ByteSlice readObject (Streamable.Input in) {
+            return in.readByteSlice();
+        }
+    }
+
+    /** A marker class whose code introduces a value written with reference deduplication. */
+    public static final class RefScope {
+        private RefScope () {}
+    }
+
+    /** A marker class whose code identifies back references to previously written values. */
+    public static final class BackRef {
+        private BackRef () {}
+    }
+
+    /** The marker value used to write the {@link RefScope} code. */
+    public static final RefScope REF_SCOPE = new RefScope();
+
+    /** The marker value used to write the {@link BackRef} code. */
+    public static final BackRef BACK_REF = new BackRef();
+
+    /** A streamer for values written with reference deduplication. */
+    public static class Streamer_RefScope implements Streamer<Object> {
+        public Class<?> getObjectClass () {
+            return RefScope.class;
+        }
+        public void writeObject (Streamable.Output out, Object value) {
+            // nothing to write, Output.writeDeduplicatedValue writes the scoped value
+        }
+        public Object readObject (Streamable.Input in) {
+            return in.readDeduplicatedValue();
+        }
+    }
+
+    /** A streamer for back references to previously written values. */
+    public static class Streamer_BackRef implements Streamer<Object> {
+        public Class<?> getObjectClass () {
+            return BackRef.class;
+        }
+        public void writeObject (Streamable.Output out, Object value) {
+            // nothing to write, Output writes the index of the referenced value
+        }
+        public Object readObject (Streamable.Input in) {
+            return in.readBackRef();
+        }
+    }
+
     /** A streamer for {@code char[]}. */
     public static class Streamer_Characters implements Streamer<char[]> {
         public static final Class<?> TYPE = (new char[0]).getClass();
@@ -369,14 +425,24 @@ public class Streamers
     protected static <T> void writeSequence (Streamable.Output out, Iterable<T> values) {
         Iterator<T> seeker = values.iterator();
         Iterator<T> writer = values.iterator();
+        // if we're deduplicating, values that will already have been written by the time the
+        // writer reaches them are written in runs of back references
+        Map<Object,Boolean> seen = out.isDeduplicating() ?
+            new IdentityHashMap<Object,Boolean>() : null;
         int count = 0;
         Class<?> clazz = Streamers.class; // non-matching sentinel
         while (seeker.hasNext()) {
             T item = seeker.next();
             Class<?> iclazz = (item == null) ? null : item.getClass();
-            if (iclazz != clazz) {
+            if (seen != null && isReferenceable(item) &&
+                (out.hasRef(item) || seen.put(item, Boolean.TRUE) != null)) {
+                iclazz = BackRef.class;
+            }
+            // start a new run when the class changes, or when the current run is full; a run's
+            // length is encoded as a short, so large collections are written as multiple runs
+            if (iclazz != clazz || count == MAX_RUN_LENGTH) {
                 if (count > 0) {
-                    out.writeValues(count, writer);
+                    writeRun(out, clazz, count, writer);
                     count = 0;
                 }
                 clazz = iclazz;
@@ -384,19 +450,32 @@ public class Streamers
             count += 1;
         }
         if (count > 0) {
-            out.writeValues(count, writer);
+            writeRun(out, clazz, count, writer);
         }
         out.writeValues(0, null); // terminator
     }
 
+    protected static <T> void writeRun (Streamable.Output out, Class<?> clazz, int count,
+                                        Iterator<T> writer) {
+        if (clazz == BackRef.class) out.writeBackRefs(count, writer);
+        else out.writeValues(count, writer);
+    }
+
+    /**
+     * Returns true if the supplied value is of a type that is subject to reference
+     * deduplication.
+     */
+    protected static boolean isReferenceable (Object value) {
+        return (value instanceof Streamable) || (value instanceof String);
+    }
+
     protected static <T> void readSequence (Streamable.Input in, Collection<T> into) {
-        int size = into.size(), added;
-        do {
-            in.readValues(into);
-            added = into.size() - size;
-            size = into.size();
-        } while (added > 0);
+        // read runs until we hit the zero-length terminator
+        while (in.readValues(into) > 0) {}
     }
 
+    /** The maximum number of values written in a single run by {@link #writeSequence}. */
+    protected static final int MAX_RUN_LENGTH = Short.MAX_VALUE;
+
     private Streamers () {} // no constructsky
 }
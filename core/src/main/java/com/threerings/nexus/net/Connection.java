@@ -6,9 +6,7 @@ package com.threerings.nexus.net;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import react.RFuture;
 import react.RPromise;
@@ -20,6 +18,8 @@ import com.threerings.nexus.distrib.EventSink;
 import com.threerings.nexus.distrib.NexusEvent;
 import com.threerings.nexus.distrib.NexusException;
 import com.threerings.nexus.distrib.NexusObject;
+import com.threerings.nexus.util.IntMap;
+import com.threerings.nexus.util.IntSet;
 import com.threerings.nexus.util.Log;
 import com.threerings.nexus.util.Util;
 
@@ -85,7 +85,7 @@ public abstract class Connection
         if (result == null) callId = 0;
         else {
             callId = 1;
-            for (Integer key : _calls.keySet()) {
+            for (int key : _calls.keys()) {
                 callId = Math.max(callId, key+1);
             }
             _calls.put(callId, result);
@@ -242,11 +242,11 @@ public abstract class Connection
     protected final Map<Address<?>, RPromise<?>> _penders = new HashMap<Address<?>, RPromise<?>>();
 
     /** Tracks pending service calls. */
-    protected final Map<Integer, RPromise<?>> _calls = new HashMap<Integer, RPromise<?>>();
+    protected final IntMap<RPromise<?>> _calls = new IntMap<RPromise<?>>();
 
     /** Tracks currently subscribed objects. */
-    protected final Map<Integer, NexusObject> _objects = new HashMap<Integer, NexusObject>();
+    protected final IntMap<NexusObject> _objects = new IntMap<NexusObject>();
 
     /** Tracks objects that are in the process of being unsubscribed. */
-    protected final Set<Integer> _dying = new HashSet<Integer>();
+    protected final IntSet _dying = new IntSet();
 }
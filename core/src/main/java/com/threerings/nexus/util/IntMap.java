@@ -0,0 +1,170 @@
+//
+// Nexus Core - a framework for developing distributed applications
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from (non-zero) {@code int} keys to values, which stores its keys unboxed in an open
+ * addressed table, rather than allocating an {@code Integer} and an entry per mapping as does a
+ * {@code HashMap<Integer,V>}. Used for tables keyed on object and call ids, which are never zero.
+ * Not thread safe.
+ */
+public class IntMap<V>
+{
+    /** Creates an empty map. */
+    public IntMap () {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates an empty map with room for {@code expected} mappings. */
+    public IntMap (int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expected) capacity <<= 1;
+        _keys = new int[capacity];
+        _values = new Object[capacity];
+    }
+
+    /** Returns the number of mappings in this map. */
+    public int size () {
+        return _size;
+    }
+
+    /** Returns true if this map contains no mappings. */
+    public boolean isEmpty () {
+        return _size == 0;
+    }
+
+    /** Returns true if this map contains a mapping for {@code key}. */
+    public boolean containsKey (int key) {
+        return _keys[indexOf(key)] != 0;
+    }
+
+    /** Returns the value mapped to {@code key}, or null. */
+    public V get (int key) {
+        @SuppressWarnings("unchecked") V value = (V)_values[indexOf(key)];
+        return value;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}.
+     * @return the value previously mapped to {@code key}, or null.
+     * @throws IllegalArgumentException if {@code key} is zero.
+     */
+    public V put (int key, V value) {
+        if (key == 0) throw new IllegalArgumentException("IntMap keys must be non-zero");
+        int idx = indexOf(key);
+        if (_keys[idx] != 0) {
+            @SuppressWarnings("unchecked") V ovalue = (V)_values[idx];
+            _values[idx] = value;
+            return ovalue;
+        }
+        _keys[idx] = key;
+        _values[idx] = value;
+        if (++_size > _keys.length * LOAD_FACTOR) resize(_keys.length << 1);
+        return null;
+    }
+
+    /**
+     * Removes the mapping for {@code key}.
+     * @return the value that was mapped to {@code key}, or null.
+     */
+    public V remove (int key) {
+        int idx = indexOf(key);
+        if (_keys[idx] == 0) return null;
+        @SuppressWarnings("unchecked") V ovalue = (V)_values[idx];
+        // shift subsequent colliding entries back, so that no probe sequence contains a hole
+        int mask = _keys.length - 1;
+        for (int next = (idx + 1) & mask; _keys[next] != 0; next = (next + 1) & mask) {
+            int home = hash(_keys[next]) & mask;
+            // move the entry at next into the hole unless its home lies cyclically in (idx, next]
+            if (((next - home) & mask) >= ((next - idx) & mask)) {
+                _keys[idx] = _keys[next];
+                _values[idx] = _values[next];
+                idx = next;
+            }
+        }
+        _keys[idx] = 0;
+        _values[idx] = null;
+        _size--;
+        return ovalue;
+    }
+
+    /** Removes all mappings from this map. */
+    public void clear () {
+        if (_size == 0) return;
+        for (int ii = 0; ii < _keys.length; ii++) {
+            _keys[ii] = 0;
+            _values[ii] = null;
+        }
+        _size = 0;
+    }
+
+    /** Returns a snapshot of the keys in this map, in no particular order. */
+    public int[] keys () {
+        int[] keys = new int[_size];
+        int kk = 0;
+        for (int key : _keys) if (key != 0) keys[kk++] = key;
+        return keys;
+    }
+
+    /** Returns a snapshot of the values in this map, in no particular order. */
+    public List<V> values () {
+        List<V> values = new ArrayList<V>(_size);
+        for (int ii = 0; ii < _keys.length; ii++) {
+            if (_keys[ii] != 0) {
+                @SuppressWarnings("unchecked") V value = (V)_values[ii];
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    @Override public String toString () {
+        StringBuilder buf = new StringBuilder("{");
+        for (int ii = 0; ii < _keys.length; ii++) {
+            if (_keys[ii] == 0) continue;
+            if (buf.length() > 1) buf.append(", ");
+            buf.append(_keys[ii]).append("=").append(_values[ii]);
+        }
+        return buf.append("}").toString();
+    }
+
+    /** Returns the index of the slot containing {@code key}, or of the empty slot at which its
+     * probe sequence ends. */
+    protected int indexOf (int key) {
+        int mask = _keys.length - 1;
+        int idx = hash(key) & mask;
+        while (_keys[idx] != key && _keys[idx] != 0) idx = (idx + 1) & mask;
+        return idx;
+    }
+
+    protected void resize (int capacity) {
+        int[] okeys = _keys;
+        Object[] ovalues = _values;
+        _keys = new int[capacity];
+        _values = new Object[capacity];
+        for (int ii = 0; ii < okeys.length; ii++) {
+            if (okeys[ii] == 0) continue;
+            int idx = indexOf(okeys[ii]);
+            _keys[idx] = okeys[ii];
+            _values[idx] = ovalues[ii];
+        }
+    }
+
+    /** Spreads the high bits of a key into its low bits. Ids are mostly sequential, so this
+     * needn't be any fancier. */
+    protected static int hash (int key) {
+        return key ^ (key >>> 16);
+    }
+
+    protected int[] _keys;
+    protected Object[] _values;
+    protected int _size;
+
+    protected static final int MIN_CAPACITY = 16;
+    protected static final float LOAD_FACTOR = 0.5f;
+}
@@ -0,0 +1,83 @@
+//
+// Nexus Core - a framework for developing distributed applications
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link IntMap} and {@link IntSet}.
+ */
+public class IntMapTest
+{
+    @Test
+    public void testBasics () {
+        IntMap<String> map = new IntMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(17, "seventeen")); // collides with 1 in the initial table
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.get(1));
+        assertEquals("seventeen", map.get(17));
+        assertNull(map.get(0));
+        assertFalse(map.containsKey(2));
+        assertEquals(2, map.size());
+
+        // removing the first of a colliding pair must not hide the second
+        assertEquals("uno", map.remove(1));
+        assertEquals("seventeen", map.get(17));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(17));
+
+        try {
+            map.put(0, "zero");
+            fail("Zero key should be rejected");
+        } catch (IllegalArgumentException iae) {} // expected
+
+        IntSet set = new IntSet();
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.contains(5));
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testAgainstHashMap () {
+        Random rando = new Random(42);
+        IntMap<Integer> map = new IntMap<Integer>();
+        Map<Integer,Integer> expect = new HashMap<Integer,Integer>();
+        for (int ii = 0; ii < 100000; ii++) {
+            // draw keys from a small range (and occasionally a large one) to exercise collisions
+            int key = (rando.nextInt(10) == 0) ? rando.nextInt() : 1 + rando.nextInt(2000);
+            if (key == 0) continue;
+            if (rando.nextInt(3) == 0) assertEquals(expect.remove(key), map.remove(key));
+            else assertEquals(expect.put(key, ii), map.put(key, ii));
+            assertEquals(expect.get(key), map.get(key));
+        }
+        assertEquals(expect.size(), map.size());
+        for (Map.Entry<Integer,Integer> entry : expect.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int key : map.keys()) keys.add(key);
+        List<Integer> ekeys = new ArrayList<Integer>(expect.keySet());
+        Collections.sort(keys);
+        Collections.sort(ekeys);
+        assertEquals(ekeys, keys);
+        assertEquals(expect.size(), map.values().size());
+    }
+}
@@ -28,9 +28,21 @@ public class GWTClient extends NexusClient
      * @param szer the serializer that knows about all types that will cross the wire.
      */
     public static NexusClient create (int port, String path, Serializer szer) {
+        return create(port, path, szer, false);
+    }
+
+    /**
+     * Creates a Nexus client which will use WebSockets to connect to hosts.
+     * @param port the port on which to make WebSocket connections.
+     * @param path the path to the GWTIO WebSockets servlet. Must start with '/'.
+     * @param szer the serializer that knows about all types that will cross the wire.
+     * @param binary whether to request the binary protocol, which uses binary frames rather than
+     * text. It is used only if the browser supports typed arrays, and the server agrees to it.
+     */
+    public static NexusClient create (int port, String path, Serializer szer, boolean binary) {
         if (!path.startsWith("/")) throw new IllegalArgumentException("Path must start with '/'.");
         Log.log = GWT_LOGGER; // configure the logger to use GWT
-        return new GWTClient(port, path, szer);
+        return new GWTClient(port, path, szer, binary);
     }
 
     /**
@@ -43,10 +55,11 @@ public class GWTClient extends NexusClient
         return create(port, DEFAULT_WS_PATH, szer);
     }
 
-    protected GWTClient (int port, String path, Serializer szer) {
+    protected GWTClient (int port, String path, Serializer szer, boolean binary) {
         _port = port;
         _path = path;
         _szer = szer;
+        _binary = binary;
     }
 
     @Override protected int port () {
@@ -54,12 +67,13 @@ public class GWTClient extends NexusClient
     }
 
     @Override protected void connect (String host, RPromise<Connection> callback) {
-        new GWTConnection(host, _port, _path, _szer, callback);
+        new GWTConnection(host, _port, _path, _szer, _binary, callback);
     }
 
     protected final int _port;
     protected final String _path;
     protected final Serializer _szer;
+    protected final boolean _binary;
 
     protected static final Log.Logger GWT_LOGGER = new Log.Logger() {
         @Override public void temp (String message, Object... args) {
@@ -0,0 +1,176 @@
+//
+// Nexus GWTIO - I/O and network services for Nexus built on GWT and WebSockets
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+import com.threerings.nexus.distrib.DService;
+import com.threerings.nexus.distrib.NexusService;
+
+/**
+ * Handles the decoding of a binary input payload (from the server) into proper values. The
+ * payload is read directly from the received {@code ArrayBuffer} via a {@code DataView}.
+ */
+class BinaryClientInput extends Streamable.Input
+{
+    public BinaryClientInput (Serializer szer, JavaScriptObject data) {
+        _szer = szer;
+        _view = newDataView(data);
+    }
+
+    /** Creates an input that reads {@code length} bytes of {@code data} starting at {@code
+     * offset}. */
+    public BinaryClientInput (Serializer szer, JavaScriptObject data, int offset, int length) {
+        _szer = szer;
+        _view = newDataView(data, offset, length);
+    }
+
+    /** Returns the number of bytes in our payload. */
+    public int length () {
+        return getByteLength(_view);
+    }
+
+    /** Returns the position from which the next value will be read. */
+    public int position () {
+        return _pos;
+    }
+
+    /** Skips over {@code bytes} bytes of our payload. */
+    public void skip (int bytes) {
+        _pos += bytes;
+    }
+
+    @Override public boolean readBoolean () {
+        return readByte() != 0;
+    }
+
+    @Override public byte readByte () {
+        byte value = getInt8(_view, _pos);
+        _pos += 1;
+        return value;
+    }
+
+    @Override public short readShort () {
+        short value = getInt16(_view, _pos);
+        _pos += 2;
+        return value;
+    }
+
+    @Override public char readChar () {
+        char value = getUint16(_view, _pos);
+        _pos += 2;
+        return value;
+    }
+
+    @Override public int readInt () {
+        int value = getInt32(_view, _pos);
+        _pos += 4;
+        return value;
+    }
+
+    @Override public long readLong () {
+        int high = readInt(), low = readInt();
+        return ((long)high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    @Override public float readFloat () {
+        float value = getFloat32(_view, _pos);
+        _pos += 4;
+        return value;
+    }
+
+    @Override public double readDouble () {
+        double value = getFloat64(_view, _pos);
+        _pos += 8;
+        return value;
+    }
+
+    @Override public String readString () {
+        if (!readBoolean()) return null;
+        int length = readChar();
+        String value = decodeUTF(_view, _pos, length);
+        _pos += length;
+        return value;
+    }
+
+    @Override public <T extends Streamable> Class<T> readClass () {
+        @SuppressWarnings("unchecked") Class<T> clazz = (Class<T>)_szer.getClass(readShort());
+        return clazz;
+    }
+
+    @Override public <T extends NexusService> DService.Factory<T> readService () {
+        @SuppressWarnings("unchecked") DService.Factory<T> factory =
+            (DService.Factory<T>)_szer.getServiceFactory(readShort());
+        return factory;
+    }
+
+    @Override protected <T> Streamer<T> readStreamer () {
+        @SuppressWarnings("unchecked") Streamer<T> ts = (Streamer<T>)_szer.getStreamer(readShort());
+        return ts;
+    }
+
+    private static native JavaScriptObject newDataView (JavaScriptObject buffer) /*-{
+        return new $wnd.DataView(buffer);
+    }-*/;
+
+    private static native JavaScriptObject newDataView (
+        JavaScriptObject buffer, int offset, int length) /*-{
+        return new $wnd.DataView(buffer, offset, length);
+    }-*/;
+
+    private static native int getByteLength (JavaScriptObject view) /*-{
+        return view.byteLength;
+    }-*/;
+
+    private static native byte getInt8 (JavaScriptObject view, int pos) /*-{
+        return view.getInt8(pos);
+    }-*/;
+
+    private static native short getInt16 (JavaScriptObject view, int pos) /*-{
+        return view.getInt16(pos);
+    }-*/;
+
+    private static native char getUint16 (JavaScriptObject view, int pos) /*-{
+        return view.getUint16(pos);
+    }-*/;
+
+    private static native int getInt32 (JavaScriptObject view, int pos) /*-{
+        return view.getInt32(pos);
+    }-*/;
+
+    private static native float getFloat32 (JavaScriptObject view, int pos) /*-{
+        return view.getFloat32(pos);
+    }-*/;
+
+    private static native double getFloat64 (JavaScriptObject view, int pos) /*-{
+        return view.getFloat64(pos);
+    }-*/;
+
+    /** Decodes {@code length} bytes of modified UTF-8 (as written by {@code DataOutput}). */
+    private static native String decodeUTF (JavaScriptObject view, int pos, int length) /*-{
+        var end = pos + length, chars = [], result = "";
+        while (pos < end) {
+            var b = view.getUint8(pos++);
+            if (b < 0x80) {
+                chars.push(b);
+            } else if ((b & 0xE0) == 0xC0) {
+                chars.push(((b & 0x1F) << 6) | (view.getUint8(pos++) & 0x3F));
+            } else {
+                var b2 = view.getUint8(pos++) & 0x3F, b3 = view.getUint8(pos++) & 0x3F;
+                chars.push(((b & 0x0F) << 12) | (b2 << 6) | b3);
+            }
+            // avoid passing too many arguments to fromCharCode
+            if (chars.length >= 4096) {
+                result += String.fromCharCode.apply(null, chars);
+                chars = [];
+            }
+        }
+        return result + String.fromCharCode.apply(null, chars);
+    }-*/;
+
+    protected final Serializer _szer;
+    protected final JavaScriptObject _view;
+    protected int _pos;
+}
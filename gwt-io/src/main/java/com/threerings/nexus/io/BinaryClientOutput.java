@@ -0,0 +1,105 @@
+//
+// Nexus GWTIO - I/O and network services for Nexus built on GWT and WebSockets
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import com.threerings.nexus.distrib.DService;
+
+/**
+ * Handles the encoding of streamable data into a binary payload (for delivery to the server).
+ * Values are written big-endian via a {@code DataView}, in the format read by the server's {@code
+ * BinaryServerInput}.
+ */
+class BinaryClientOutput extends Streamable.Output
+{
+    public BinaryClientOutput (Serializer szer, GWTIO.BinaryBuffer output) {
+        _szer = szer;
+        _output = output;
+        _output.prepare();
+    }
+
+    @Override public void writeBoolean (boolean value) {
+        writeByte(value ? (byte)1 : (byte)0);
+    }
+
+    @Override public void writeByte (byte value) {
+        GWTIO.BinaryBuffer.setInt8(_output.view(), _output.reserve(1), value);
+    }
+
+    @Override public void writeShort (short value) {
+        GWTIO.BinaryBuffer.setInt16(_output.view(), _output.reserve(2), value);
+    }
+
+    @Override public void writeChar (char value) {
+        GWTIO.BinaryBuffer.setInt16(_output.view(), _output.reserve(2), value);
+    }
+
+    @Override public void writeInt (int value) {
+        GWTIO.BinaryBuffer.setInt32(_output.view(), _output.reserve(4), value);
+    }
+
+    @Override public void writeLong (long value) {
+        writeInt((int)(value >> 32));
+        writeInt((int)value);
+    }
+
+    @Override public void writeFloat (float value) {
+        GWTIO.BinaryBuffer.setFloat32(_output.view(), _output.reserve(4), value);
+    }
+
+    @Override public void writeDouble (double value) {
+        GWTIO.BinaryBuffer.setFloat64(_output.view(), _output.reserve(8), value);
+    }
+
+    @Override public void writeString (String value) {
+        if (value == null) {
+            writeBoolean(false);
+        } else {
+            writeBoolean(true);
+            writeUTF(value);
+        }
+    }
+
+    @Override public void writeClass (Class<? extends Streamable> clazz) {
+        writeShort(_szer.getCode(clazz));
+    }
+
+    @Override public void writeService (DService<?> service) {
+        writeShort(_szer.getServiceCode(service.getServiceClass()));
+    }
+
+    @Override protected <T> Streamer<T> writeStreamer (T value) {
+        return _szer.<T>writeStreamer(this, value);
+    }
+
+    /** Encodes a length prefixed, modified UTF-8 string (as read by {@code DataInput}). */
+    protected void writeUTF (String value) {
+        int length = 0;
+        for (int ii = 0, ll = value.length(); ii < ll; ii++) {
+            char c = value.charAt(ii);
+            length += (c >= 0x0001 && c < 0x0080) ? 1 : (c < 0x0800 ? 2 : 3);
+        }
+        if (length > 0xFFFF) throw new IllegalArgumentException(
+            "String too long to encode (" + length + " bytes)");
+        writeChar((char)length);
+
+        int pos = _output.reserve(length);
+        for (int ii = 0, ll = value.length(); ii < ll; ii++) {
+            char c = value.charAt(ii);
+            if (c >= 0x0001 && c < 0x0080) {
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, c);
+            } else if (c < 0x0800) {
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, 0xC0 | (c >> 6));
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, 0x80 | (c & 0x3F));
+            } else {
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, 0xE0 | (c >> 12));
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, 0x80 | ((c >> 6) & 0x3F));
+                GWTIO.BinaryBuffer.setInt8(_output.view(), pos++, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    protected final Serializer _szer;
+    protected final GWTIO.BinaryBuffer _output;
+}
@@ -16,8 +16,12 @@ import com.threerings.nexus.distrib.NexusService;
 class ClientInput extends Streamable.Input
 {
     public ClientInput (Serializer szer, String data) {
+        this(szer, decode(data));
+    }
+
+    public ClientInput (Serializer szer, JavaScriptObject values) {
         _szer = szer;
-        _values = decode(data);
+        _values = values;
     }
 
     @Override public native boolean readBoolean ()
@@ -93,17 +97,31 @@ class ClientInput extends Streamable.Input
 
     /** Decodes an encoded payload into a JavaScript array. As the payload is formatted as a
      * JavaScript array, this is done using {@code eval()} for efficiency. */
-    private static native JavaScriptObject decode (String encoded)
+    static native JavaScriptObject decode (String encoded)
     /*-{
         return eval(encoded);
     }-*/;
 
     /** Returns the length of the supplied JavaScript array. */
-    private static native int getLength (JavaScriptObject array)
+    static native int getLength (JavaScriptObject array)
     /*-{
         return array.length;
     }-*/;
 
+    /** Returns the specified element of the supplied JavaScript array. */
+    static native JavaScriptObject getElement (JavaScriptObject array, int index)
+    /*-{
+        return array[index];
+    }-*/;
+
+    /** Returns true if the supplied decoded payload is a batch of payloads (i.e. an array of
+     * arrays) rather than a single payload (which starts with a class code). */
+    static native boolean isBatch (JavaScriptObject values)
+    /*-{
+        return values.length > 0 &&
+            Object.prototype.toString.call(values[0]) == "[object Array]";
+    }-*/;
+
     protected final Serializer _szer;
     protected final JavaScriptObject _values;
     protected int _nextValIdx;
@@ -4,14 +4,113 @@
 
 package com.threerings.nexus.io;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
 /**
  * Provides {@link Streamable#Input} and {@link Streamable#Output} using precomputed class
  * mappings, and writes data to and from UTF8 strings. Note that this protocol is assymetric and
  * the corresponding server reader and writer are in the gwt-server project (to allow the server
  * code to make use of the full range of JDK libraries).
+ *
+ * <p>Clients on browsers that support typed arrays may instead negotiate (via WebSocket
+ * subprotocol) a binary protocol, in which values travel in binary frames and are read and
+ * written via {@code DataView}s.</p>
  */
 public class GWTIO
 {
+    /** The WebSocket subprotocol that identifies the text protocol. */
+    public static final String TEXT_PROTOCOL = "nexus-text";
+
+    /** The WebSocket subprotocol that identifies the binary protocol. */
+    public static final String BINARY_PROTOCOL = "nexus-binary";
+
+    /** Starts a binary frame that contains a batch of (length prefixed) payloads. Single payloads
+     * start with a (non-negative) class code, so cannot be mistaken for a batch. */
+    public static final short BATCH_MARKER = -1;
+
+    /** Used to accumulate binary output. Can be used on successive calls to {@link
+     * #newBinaryOutput}. */
+    public static class BinaryBuffer {
+        /** Returns the binary payload (an {@code ArrayBuffer}), ready for delivery to the
+         * server. */
+        public JavaScriptObject getPayload () {
+            return slice(_buffer, _pos);
+        }
+
+        void prepare () {
+            _pos = 0;
+        }
+
+        JavaScriptObject view () {
+            return _view;
+        }
+
+        /** Reserves space for {@code bytes} bytes, and returns the position at which to write
+         * them. */
+        int reserve (int bytes) {
+            int pos = _pos;
+            if (pos + bytes > _capacity) {
+                _capacity = Math.max(_capacity*2, pos + bytes);
+                _buffer = grow(_buffer, _capacity);
+                _view = newDataView(_buffer);
+            }
+            _pos = pos + bytes;
+            return pos;
+        }
+
+        static native void setInt8 (JavaScriptObject view, int pos, int value) /*-{
+            view.setInt8(pos, value);
+        }-*/;
+
+        static native void setInt16 (JavaScriptObject view, int pos, int value) /*-{
+            view.setInt16(pos, value);
+        }-*/;
+
+        static native void setInt32 (JavaScriptObject view, int pos, int value) /*-{
+            view.setInt32(pos, value);
+        }-*/;
+
+        static native void setFloat32 (JavaScriptObject view, int pos, float value) /*-{
+            view.setFloat32(pos, value);
+        }-*/;
+
+        static native void setFloat64 (JavaScriptObject view, int pos, double value) /*-{
+            view.setFloat64(pos, value);
+        }-*/;
+
+        private static native JavaScriptObject newArrayBuffer (int size) /*-{
+            return new $wnd.ArrayBuffer(size);
+        }-*/;
+
+        private static native JavaScriptObject newDataView (JavaScriptObject buffer) /*-{
+            return new $wnd.DataView(buffer);
+        }-*/;
+
+        private static native JavaScriptObject grow (JavaScriptObject buffer, int size) /*-{
+            var nbuffer = new $wnd.ArrayBuffer(size);
+            new $wnd.Uint8Array(nbuffer).set(new $wnd.Uint8Array(buffer));
+            return nbuffer;
+        }-*/;
+
+        private static native JavaScriptObject slice (JavaScriptObject buffer, int length) /*-{
+            return buffer.slice(0, length);
+        }-*/;
+
+        protected int _capacity = 256, _pos;
+        protected JavaScriptObject _buffer = newArrayBuffer(_capacity);
+        protected JavaScriptObject _view = newDataView(_buffer);
+    }
+
+    /**
+     * Returns true if this browser supports the typed arrays needed by the binary protocol.
+     */
+    public static native boolean isBinarySupported () /*-{
+        return !!($wnd.ArrayBuffer && $wnd.DataView && $wnd.Uint8Array);
+    }-*/;
+
     /**
      * Returns a {@link Streamable#Input} that obtains its underlying data from the supplied string
      * payload.
@@ -20,6 +119,23 @@ public class GWTIO
         return new ClientInput(szer, data);
     }
 
+    /**
+     * Returns a {@link Streamable#Input} for each payload in the supplied frame. The server may
+     * batch multiple payloads into a single frame, in which case the payloads are nested in an
+     * outer array.
+     */
+    public static Streamable.Input[] newInputs (Serializer szer, String data) {
+        JavaScriptObject values = ClientInput.decode(data);
+        if (!ClientInput.isBatch(values)) {
+            return new Streamable.Input[] { new ClientInput(szer, values) };
+        }
+        Streamable.Input[] ins = new Streamable.Input[ClientInput.getLength(values)];
+        for (int ii = 0; ii < ins.length; ii++) {
+            ins[ii] = new ClientInput(szer, ClientInput.getElement(values, ii));
+        }
+        return ins;
+    }
+
     /**
      * Returns a {@link Streamable#Output} that obtains its underlying data from the supplied output
      * stream.
@@ -28,5 +144,38 @@ public class GWTIO
         return new ClientOutput(szer, output);
     }
 
+    /**
+     * Returns a {@link Streamable#Input} that decodes the supplied binary payload (an {@code
+     * ArrayBuffer}).
+     */
+    public static Streamable.Input newBinaryInput (Serializer szer, JavaScriptObject data) {
+        return new BinaryClientInput(szer, data);
+    }
+
+    /**
+     * Returns a {@link Streamable#Input} for each payload in the supplied binary frame (an {@code
+     * ArrayBuffer}), which may contain a single payload, or a batch of payloads.
+     */
+    public static Streamable.Input[] newBinaryInputs (Serializer szer, JavaScriptObject data) {
+        BinaryClientInput in = new BinaryClientInput(szer, data);
+        if (in.length() < 2 || in.readShort() != BATCH_MARKER) {
+            return new Streamable.Input[] { new BinaryClientInput(szer, data) };
+        }
+        List<Streamable.Input> ins = new ArrayList<Streamable.Input>();
+        while (in.position() < in.length()) {
+            int length = in.readInt();
+            ins.add(new BinaryClientInput(szer, data, in.position(), length));
+            in.skip(length);
+        }
+        return ins.toArray(new Streamable.Input[ins.size()]);
+    }
+
+    /**
+     * Returns a {@link Streamable#Output} that encodes binary data into the supplied buffer.
+     */
+    public static Streamable.Output newBinaryOutput (Serializer szer, BinaryBuffer output) {
+        return new BinaryClientOutput(szer, output);
+    }
+
     private GWTIO () {} // no constructsky
 }
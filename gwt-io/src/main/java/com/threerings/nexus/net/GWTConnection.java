@@ -11,6 +11,7 @@ import react.RPromise;
 import com.threerings.nexus.distrib.NexusException;
 import com.threerings.nexus.io.GWTIO;
 import com.threerings.nexus.io.Serializer;
+import com.threerings.nexus.io.Streamable;
 import com.threerings.nexus.util.Log;
 
 /**
@@ -24,10 +25,21 @@ public class GWTConnection extends Connection
      */
     public GWTConnection (String host, int port, String path, Serializer szer,
                           RPromise<Connection> callback) {
+        this(host, port, path, szer, false, callback);
+    }
+
+    /**
+     * Creates an instance which will initiate a Nexus protocol connection with the specified host.
+     * @param binary if true, and the browser supports typed arrays, the binary protocol will be
+     * requested. If the server does not agree to it, the text protocol will be used.
+     * @param callback will be notified on connection completion, or failure.
+     */
+    public GWTConnection (String host, int port, String path, Serializer szer, boolean binary,
+                          RPromise<Connection> callback) {
         super(Log.log, host);
         _szer = szer;
         _callback = callback;
-        wsConnect("ws://" + host + ":" + port + path);
+        wsConnect("ws://" + host + ":" + port + path, binary && GWTIO.isBinarySupported());
     }
 
     @Override // from Connection
@@ -37,9 +49,14 @@ public class GWTConnection extends Connection
 
     @Override // from Connection
     protected void send (Upstream request) {
-        StringBuffer payload = new StringBuffer();
-        GWTIO.newOutput(_szer, payload).writeValue(request);
-        wsSend(_ws, payload.toString());
+        if (_binary != null) {
+            GWTIO.newBinaryOutput(_szer, _binary).writeValue(request);
+            wsSend(_ws, _binary.getPayload());
+        } else {
+            StringBuffer payload = new StringBuffer();
+            GWTIO.newOutput(_szer, payload).writeValue(request);
+            wsSend(_ws, payload.toString());
+        }
     }
 
     @Override // from Connection
@@ -48,14 +65,24 @@ public class GWTConnection extends Connection
         run.run();
     }
 
-    protected void onOpen (JavaScriptObject ws) {
+    protected void onOpen (JavaScriptObject ws, String protocol) {
         _ws = ws;
+        if (GWTIO.BINARY_PROTOCOL.equals(protocol)) _binary = new GWTIO.BinaryBuffer();
         _callback.succeed(this);
         _callback = null; // note that we successfully connected
     }
 
     protected void onMessage (String data) {
-        onReceive(GWTIO.newInput(_szer, data).<Downstream>readValue());
+        // the server may batch multiple messages into a single frame
+        for (Streamable.Input in : GWTIO.newInputs(_szer, data)) {
+            onReceive(in.<Downstream>readValue());
+        }
+    }
+
+    protected void onBinaryMessage (JavaScriptObject data) {
+        for (Streamable.Input in : GWTIO.newBinaryInputs(_szer, data)) {
+            onReceive(in.<Downstream>readValue());
+        }
     }
 
     protected void onError (String reason) {
@@ -76,7 +103,7 @@ public class GWTConnection extends Connection
         }
     }
 
-    protected native void wsConnect (String url) /*-{
+    protected native void wsConnect (String url, boolean binary) /*-{
         if (!$wnd.WebSocket) {
              this.@com.threerings.nexus.net.GWTConnection::onError(Ljava/lang/String;)(
                  "WebSocket not supported by this browser.");
@@ -84,13 +111,26 @@ public class GWTConnection extends Connection
         }
 
         var conn = this;
-        var ws = new $wnd.WebSocket(url);
+        var ws;
+        if (binary) {
+            ws = new $wnd.WebSocket(url, [@com.threerings.nexus.io.GWTIO::BINARY_PROTOCOL,
+                                          @com.threerings.nexus.io.GWTIO::TEXT_PROTOCOL]);
+            ws.binaryType = "arraybuffer";
+        } else {
+            ws = new $wnd.WebSocket(url);
+        }
         ws.onopen = function (event) {
-            conn.@com.threerings.nexus.net.GWTConnection::onOpen(Lcom/google/gwt/core/client/JavaScriptObject;)(ws);
+            conn.@com.threerings.nexus.net.GWTConnection::onOpen(Lcom/google/gwt/core/client/JavaScriptObject;Ljava/lang/String;)(
+                ws, ws.protocol || null);
         };
         ws.onmessage = function (event) {
-            if (event.data) {
-                conn.@com.threerings.nexus.net.GWTConnection::onMessage(Ljava/lang/String;)(
+            if (typeof event.data == "string") {
+                if (event.data) {
+                    conn.@com.threerings.nexus.net.GWTConnection::onMessage(Ljava/lang/String;)(
+                        event.data);
+                }
+            } else if (event.data) {
+                conn.@com.threerings.nexus.net.GWTConnection::onBinaryMessage(Lcom/google/gwt/core/client/JavaScriptObject;)(
                     event.data);
             }
         };
@@ -107,6 +147,10 @@ public class GWTConnection extends Connection
         ws.send(message);
     }-*/;
 
+    protected native void wsSend (JavaScriptObject ws, JavaScriptObject message) /*-{
+        ws.send(message);
+    }-*/;
+
     protected native void wsClose (JavaScriptObject ws) /*-{
         ws.close();
     }-*/;
@@ -114,4 +158,7 @@ public class GWTConnection extends Connection
     protected final Serializer _szer;
     protected RPromise<Connection> _callback;
     protected JavaScriptObject _ws;
+
+    /** Our binary output buffer, if we negotiated the binary protocol; null otherwise. */
+    protected GWTIO.BinaryBuffer _binary;
 }
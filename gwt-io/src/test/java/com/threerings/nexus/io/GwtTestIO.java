@@ -6,6 +6,7 @@ package com.threerings.nexus.io;
 
 import org.junit.Test;
 
+import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.junit.client.GWTTestCase;
 
 /**
@@ -62,6 +63,65 @@ public class GwtTestIO extends GWTTestCase
         assertEquals(IOTester.VALUES_OUT_PAYLOAD, buf.toString());
     }
 
+    @Test
+    public void testBinaryBasicTypes () {
+        IOTester.checkBasicTypes(GWTIO.newBinaryInput(
+            new TestSerializer(), toArrayBuffer(IOTester.BT_BINARY_PAYLOAD)), CHECKER);
+        GWTIO.BinaryBuffer buf = new GWTIO.BinaryBuffer();
+        IOTester.writeBasicTypes(GWTIO.newBinaryOutput(new TestSerializer(), buf));
+        assertEquals(IOTester.BT_BINARY_PAYLOAD, toHex(buf.getPayload()));
+    }
+
+    @Test
+    public void testBinaryValues () {
+        IOTester.checkValue(GWTIO.newBinaryInput(
+            new TestSerializer(), toArrayBuffer(IOTester.VALUE_BINARY_PAYLOAD)), CHECKER);
+        IOTester.checkValues(GWTIO.newBinaryInput(
+            new TestSerializer(), toArrayBuffer(IOTester.VALUES_BINARY_PAYLOAD)), CHECKER);
+        GWTIO.BinaryBuffer buf = new GWTIO.BinaryBuffer();
+        IOTester.writeValues(GWTIO.newBinaryOutput(new TestSerializer(), buf));
+        assertEquals(IOTester.VALUES_BINARY_PAYLOAD, toHex(buf.getPayload()));
+    }
+
+    @Test
+    public void testBatchInput () {
+        Streamable.Input[] ins = GWTIO.newInputs(new TestSerializer(), IOTester.BATCH_IN_PAYLOAD);
+        assertEquals(2, ins.length);
+        IOTester.checkValue(ins[0], CHECKER);
+        IOTester.checkBasicTypes(ins[1], CHECKER);
+        assertEquals(1, GWTIO.newInputs(new TestSerializer(), IOTester.BT_IN_PAYLOAD).length);
+    }
+
+    @Test
+    public void testBinaryBatchInput () {
+        Streamable.Input[] ins = GWTIO.newBinaryInputs(
+            new TestSerializer(), toArrayBuffer(IOTester.BATCH_BINARY_PAYLOAD));
+        assertEquals(2, ins.length);
+        IOTester.checkValue(ins[0], CHECKER);
+        IOTester.checkBasicTypes(ins[1], CHECKER);
+        assertEquals(1, GWTIO.newBinaryInputs(
+                         new TestSerializer(), toArrayBuffer(IOTester.BT_BINARY_PAYLOAD)).length);
+    }
+
+    protected static JavaScriptObject toArrayBuffer (String hex) {
+        byte[] data = IOTester.fromHex(hex);
+        GWTIO.BinaryBuffer buf = new GWTIO.BinaryBuffer();
+        buf.prepare();
+        int pos = buf.reserve(data.length);
+        for (int ii = 0; ii < data.length; ii++) {
+            GWTIO.BinaryBuffer.setInt8(buf.view(), pos+ii, data[ii]);
+        }
+        return buf.getPayload();
+    }
+
+    protected static native String toHex (JavaScriptObject buffer) /*-{
+        var bytes = new $wnd.Uint8Array(buffer), hex = "";
+        for (var ii = 0; ii < bytes.length; ii++) {
+            hex += (bytes[ii] < 16 ? "0" : "") + bytes[ii].toString(16);
+        }
+        return hex;
+    }-*/;
+
     protected final IOTester.Checker CHECKER = new IOTester.Checker() {
         public void assertEquals (Object expected, Object got) {
             GwtTestIO.assertEquals(expected, got);
@@ -0,0 +1,99 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.nio.ByteBuffer;
+
+import com.threerings.nexus.distrib.DService;
+import com.threerings.nexus.distrib.NexusService;
+
+/**
+ * Handles the decoding of a binary input payload (from the client) into proper values. See {@link
+ * BinaryServerOutput} for a description of the format.
+ */
+public class BinaryServerInput extends Streamable.Input
+{
+    public BinaryServerInput (Serializer szer, ByteBuffer data) {
+        _szer = szer;
+        _data = data;
+    }
+
+    @Override public boolean readBoolean () {
+        return _data.get() != 0;
+    }
+
+    @Override public byte readByte () {
+        return _data.get();
+    }
+
+    @Override public short readShort () {
+        return _data.getShort();
+    }
+
+    @Override public char readChar () {
+        return _data.getChar();
+    }
+
+    @Override public int readInt () {
+        return _data.getInt();
+    }
+
+    @Override public long readLong () {
+        return _data.getLong();
+    }
+
+    @Override public float readFloat () {
+        return _data.getFloat();
+    }
+
+    @Override public double readDouble () {
+        return _data.getDouble();
+    }
+
+    @Override public String readString () {
+        return readBoolean() ? readUTF() : null;
+    }
+
+    @Override public <T extends Streamable> Class<T> readClass () {
+        @SuppressWarnings("unchecked") Class<T> c = (Class<T>)_szer.getClass(readShort());
+        return c;
+    }
+
+    @Override public <T extends NexusService> DService.Factory<T> readService () {
+        @SuppressWarnings("unchecked") DService.Factory<T> sf =
+            (DService.Factory<T>)_szer.getServiceFactory(readShort());
+        return sf;
+    }
+
+    @Override protected <T> Streamer<T> readStreamer () {
+        @SuppressWarnings("unchecked") Streamer<T> s = (Streamer<T>)_szer.getStreamer(readShort());
+        return s;
+    }
+
+    /**
+     * Decodes a length prefixed, modified UTF-8 string (per {@link java.io.DataInput#readUTF}).
+     */
+    protected String readUTF () {
+        int length = _data.getShort() & 0xFFFF, end = _data.position() + length;
+        char[] chars = new char[length];
+        int count = 0;
+        while (_data.position() < end) {
+            int b = _data.get() & 0xFF;
+            if (b < 0x80) chars[count++] = (char)b;
+            else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char)(((b & 0x1F) << 6) | (_data.get() & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = _data.get() & 0x3F, b3 = _data.get() & 0x3F;
+                chars[count++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | b3);
+            } else {
+                throw new IllegalArgumentException("Malformed UTF-8 string: " + b);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    protected final Serializer _szer;
+    protected final ByteBuffer _data;
+}
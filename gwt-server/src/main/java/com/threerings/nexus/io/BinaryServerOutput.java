@@ -0,0 +1,110 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.nio.ByteBuffer;
+
+import com.threerings.nexus.distrib.DService;
+
+/**
+ * Handles the encoding of streamable data into a binary payload (for delivery to a client that
+ * negotiated the binary protocol). Values are encoded big-endian, as by {@link
+ * java.io.DataOutput}, so that the client can read them directly via a {@code DataView}: longs as
+ * eight bytes, strings as a boolean non-null flag followed by a length prefixed modified UTF-8
+ * string, and classes, services and streamers via their {@link Serializer} codes.
+ */
+public class BinaryServerOutput extends Streamable.Output
+{
+    public BinaryServerOutput (Serializer szer, GWTServerIO.BinaryPayloadBuffer output) {
+        _szer = szer;
+        _output = output;
+        _output.prepare();
+    }
+
+    @Override public void writeBoolean (boolean value) {
+        _output.reserve(1).put(value ? (byte)1 : (byte)0);
+    }
+
+    @Override public void writeByte (byte value) {
+        _output.reserve(1).put(value);
+    }
+
+    @Override public void writeShort (short value) {
+        _output.reserve(2).putShort(value);
+    }
+
+    @Override public void writeChar (char value) {
+        _output.reserve(2).putChar(value);
+    }
+
+    @Override public void writeInt (int value) {
+        _output.reserve(4).putInt(value);
+    }
+
+    @Override public void writeLong (long value) {
+        _output.reserve(8).putLong(value);
+    }
+
+    @Override public void writeFloat (float value) {
+        _output.reserve(4).putFloat(value);
+    }
+
+    @Override public void writeDouble (double value) {
+        _output.reserve(8).putDouble(value);
+    }
+
+    @Override public void writeString (String value) {
+        if (value == null) {
+            writeBoolean(false);
+        } else {
+            writeBoolean(true);
+            writeUTF(value);
+        }
+    }
+
+    @Override public void writeClass (Class<? extends Streamable> clazz) {
+        writeShort(_szer.getCode(clazz));
+    }
+
+    @Override public void writeService (DService<?> service) {
+        writeShort(_szer.getServiceCode(service.getServiceClass()));
+    }
+
+    @Override protected <T> Streamer<T> writeStreamer (T value) {
+        return _szer.<T>writeStreamer(this, value);
+    }
+
+    /**
+     * Encodes a length prefixed, modified UTF-8 string (per {@link java.io.DataOutput#writeUTF}).
+     */
+    protected void writeUTF (String value) {
+        int length = 0;
+        for (int ii = 0, ll = value.length(); ii < ll; ii++) {
+            char c = value.charAt(ii);
+            length += (c >= 0x0001 && c < 0x0080) ? 1 : (c < 0x0800 ? 2 : 3);
+        }
+        if (length > 0xFFFF) throw new IllegalArgumentException(
+            "String too long to encode (" + length + " bytes)");
+
+        ByteBuffer buf = _output.reserve(2 + length);
+        buf.putShort((short)length);
+        for (int ii = 0, ll = value.length(); ii < ll; ii++) {
+            char c = value.charAt(ii);
+            if (c >= 0x0001 && c < 0x0080) {
+                buf.put((byte)c);
+            } else if (c < 0x0800) {
+                buf.put((byte)(0xC0 | (c >> 6)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte)(0xE0 | (c >> 12)));
+                buf.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    protected final Serializer _szer;
+    protected final GWTServerIO.BinaryPayloadBuffer _output;
+}
@@ -4,45 +4,162 @@
 
 package com.threerings.nexus.io;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 /**
  * Provides {@link Streamable#Input} and {@link Streamable#Output} using precomputed class
- * mappings, and writes data to and from UTF8 strings. Note that this protocol is assymetric and
+ * mappings, and writes data to and from UTF8 strings (or binary payloads, for clients that
+ * negotiate the binary protocol). Note that this protocol is assymetric and
  * the corresponding client reader and writer are in the nexus-gwt-io project.
  */
 public class GWTServerIO
 {
-    /** Used to accumulate output. Can be used on successive calls to {@link #newOutput}.
-     */
+    /** Used to accumulate output. Can be used on successive calls to {@link #newOutput}. Numbers
+     * are appended directly to a reusable buffer (without creating intermediate strings), and the
+     * payload may be obtained either as a string, or encoded as UTF-8 into a caller supplied byte
+     * buffer. */
     public static class PayloadBuffer {
         /** Returns the string payload, ready for delivery to the client. */
         public String getPayload () {
+            finish();
+            return _buffer.toString();
+        }
+
+        /** Completes the payload and returns the number of bytes in its UTF-8 encoding. The
+         * payload can then be obtained via {@link #encodePayload}. */
+        public int finishPayload () {
+            finish();
+            int bytes = 0;
+            for (int ii = 0, ll = _buffer.length(); ii < ll; ii++) {
+                char c = _buffer.charAt(ii);
+                if (c < 0x80) bytes += 1;
+                else if (c < 0x800) bytes += 2;
+                else if (Character.isHighSurrogate(c) && ii+1 < ll &&
+                         Character.isLowSurrogate(_buffer.charAt(ii+1))) {
+                    bytes += 4;
+                    ii++;
+                }
+                else bytes += 3;
+            }
+            return bytes;
+        }
+
+        /** Encodes the payload, which must have been completed via {@link #finishPayload}, as
+         * UTF-8 into {@code into}, which must have sufficient space remaining. */
+        public void encodePayload (ByteBuffer into) {
+            for (int ii = 0, ll = _buffer.length(); ii < ll; ii++) {
+                char c = _buffer.charAt(ii);
+                if (c < 0x80) {
+                    into.put((byte)c);
+                } else if (c < 0x800) {
+                    into.put((byte)(0xC0 | (c >> 6)));
+                    into.put((byte)(0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && ii+1 < ll &&
+                           Character.isLowSurrogate(_buffer.charAt(ii+1))) {
+                    int cp = Character.toCodePoint(c, _buffer.charAt(++ii));
+                    into.put((byte)(0xF0 | (cp >> 18)));
+                    into.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                    into.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                    into.put((byte)(0x80 | (cp & 0x3F)));
+                } else {
+                    if (Character.isSurrogate(c)) c = '?'; // unpaired surrogate
+                    into.put((byte)(0xE0 | (c >> 12)));
+                    into.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                    into.put((byte)(0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        protected void prepare () {
+            _buffer.setLength(0);
+            _buffer.append('[');
+            _finished = false;
+        }
+
+        protected void finish () {
+            if (_finished) return;
             if (_buffer.length() == 1) {
                 _buffer.append(']');
             } else {
                 // if we have at least one value, we'll have a trailing separator to overwrite
                 _buffer.setCharAt(_buffer.length()-1, ']');
             }
-            return _buffer.toString();
+            _finished = true;
+        }
+
+        protected void appendSeparator () {
+            _buffer.append(',');
+        }
+
+        /** Appends {@code value} in the base64 format used by GWT for longs (which is decoded
+         * by {@code Base64Utils.longFromBase64} on the client). */
+        protected void appendBase64 (long value) {
+            // convert to ints early to avoid need for long ops
+            int low = (int)(value & 0xffffffff), high = (int)(value >> 32);
+            boolean nonZero = appendBase64Digit((high >> 28) & 0xf, false);
+            nonZero = appendBase64Digit((high >> 22) & 0x3f, nonZero);
+            nonZero = appendBase64Digit((high >> 16) & 0x3f, nonZero);
+            nonZero = appendBase64Digit((high >> 10) & 0x3f, nonZero);
+            nonZero = appendBase64Digit((high >> 4) & 0x3f, nonZero);
+            int v = ((high & 0xf) << 2) | ((low >> 30) & 0x3);
+            nonZero = appendBase64Digit(v, nonZero);
+            nonZero = appendBase64Digit((low >> 24) & 0x3f, nonZero);
+            nonZero = appendBase64Digit((low >> 18) & 0x3f, nonZero);
+            nonZero = appendBase64Digit((low >> 12) & 0x3f, nonZero);
+            appendBase64Digit((low >> 6) & 0x3f, nonZero);
+            appendBase64Digit(low & 0x3f, true);
+        }
+
+        protected boolean appendBase64Digit (int digit, boolean nonZero) {
+            if (digit > 0) nonZero = true;
+            if (nonZero) _buffer.append(BASE64_CHARS[digit]);
+            return nonZero;
+        }
+
+        /** The buffer to which this payload accumulates. */
+        protected final StringBuilder _buffer = new StringBuilder();
+
+        /** Whether the payload in {@link #_buffer} has been completed. */
+        protected boolean _finished;
+    }
+
+    /** Used to accumulate binary output. Can be used on successive calls to {@link
+     * #newBinaryOutput}. */
+    public static class BinaryPayloadBuffer {
+        /** Returns the binary payload, ready for delivery to the client. The returned buffer is a
+         * view of this buffer's storage, and is only valid until this buffer is next used. */
+        public ByteBuffer getPayload () {
+            ByteBuffer payload = _buffer.duplicate();
+            payload.flip();
+            return payload;
         }
 
         protected void prepare () {
-            _buffer.setLength(0);
-            _buffer.append('[');
+            _buffer.clear();
         }
 
-        protected void appendSeparator () {
-            _buffer.append(',');
+        /** Ensures that {@code bytes} bytes may be written to our buffer, and returns it. */
+        protected ByteBuffer reserve (int bytes) {
+            if (_buffer.remaining() < bytes) {
+                int size = Math.max(_buffer.capacity()*2, _buffer.position() + bytes);
+                ByteBuffer nbuffer = ByteBuffer.allocate(size);
+                _buffer.flip();
+                nbuffer.put(_buffer);
+                _buffer = nbuffer;
+            }
+            return _buffer;
         }
 
         /** The buffer to which this payload accumulates. */
-        protected final StringBuffer _buffer = new StringBuffer();
+        protected ByteBuffer _buffer = ByteBuffer.allocate(256);
     }
 
     /**
      * Returns a {@link Streamable#Input} that obtains its underlying data from the supplied string
      * payload.
      */
-    public static Streamable.Input newInput (Serializer szer, String data) {
+    public static Streamable.Input newInput (Serializer szer, CharSequence data) {
         return new ServerInput(szer, data);
     }
 
@@ -54,5 +171,60 @@ public class GWTServerIO
         return new ServerOutput(szer, buffer);
     }
 
+    /**
+     * Returns a {@link Streamable#Input} that decodes the supplied binary payload.
+     */
+    public static Streamable.Input newBinaryInput (Serializer szer, ByteBuffer data) {
+        return new BinaryServerInput(szer, data);
+    }
+
+    /**
+     * Returns a {@link Streamable#Output} that encodes binary data into the supplied buffer.
+     */
+    public static Streamable.Output newBinaryOutput (Serializer szer, BinaryPayloadBuffer buffer) {
+        return new BinaryServerOutput(szer, buffer);
+    }
+
+    /**
+     * Returns the size of the frame that will result from batching the supplied payloads (via
+     * {@link #encodeBatch}).
+     * @param binary whether the payloads are binary, or UTF-8 encoded text payloads.
+     */
+    public static int batchSize (List<ByteBuffer> payloads, boolean binary) {
+        int size = binary ? 2 : 1;
+        for (ByteBuffer payload : payloads) size += payload.remaining() + (binary ? 4 : 1);
+        return size;
+    }
+
+    /**
+     * Encodes the supplied payloads into a single frame, which the client will decode into its
+     * constituent messages. Text payloads are combined into an array of payloads; binary payloads
+     * are written (length prefixed) following {@link GWTIO#BATCH_MARKER}.
+     * @param binary whether the payloads are binary, or UTF-8 encoded text payloads.
+     */
+    public static void encodeBatch (List<ByteBuffer> payloads, boolean binary, ByteBuffer into) {
+        if (binary) {
+            into.putShort(GWTIO.BATCH_MARKER);
+            for (ByteBuffer payload : payloads) {
+                into.putInt(payload.remaining());
+                into.put(payload.duplicate());
+            }
+        } else {
+            into.put((byte)'[');
+            for (int ii = 0, ll = payloads.size(); ii < ll; ii++) {
+                if (ii > 0) into.put((byte)',');
+                into.put(payloads.get(ii).duplicate());
+            }
+            into.put((byte)']');
+        }
+    }
+
     private GWTServerIO () {} // no constructsky
+
+    /** The characters used to encode longs in base64 (the same set used by GWT-RPC). */
+    protected static final char[] BASE64_CHARS = {
+        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+        'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+        'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+        'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '$', '_' };
 }
@@ -4,54 +4,36 @@
 
 package com.threerings.nexus.io;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
-import com.google.gwt.user.server.Base64Utils;
-
 import com.threerings.nexus.distrib.DService;
 import com.threerings.nexus.distrib.NexusService;
 
 /**
- * Handles the decoding of an input payload (from the client) into proper values.
+ * Handles the decoding of an input payload (from the client) into proper values. Values are
+ * decoded in place from the payload, without extracting each delimited token into a string.
  */
 public class ServerInput extends Streamable.Input
 {
-    public ServerInput (Serializer szer, final String data) {
+    public ServerInput (Serializer szer, CharSequence data) {
         _szer = szer;
-
-        // create an iterator that will extract delimited values
-        _valiter = new Iterator<String>() {
-            public boolean hasNext () {
-                return (_nextIdx != -1);
-            }
-            public String next () {
-                if (_nextIdx == -1) {
-                    throw new NoSuchElementException();
-                }
-                String value = data.substring(_curIdx, _nextIdx);
-                _curIdx = _nextIdx+1;
-                _nextIdx = data.indexOf(ClientOutput.SEPARATOR, _curIdx);
-                return value;
-            }
-            public void remove () {
-                throw new UnsupportedOperationException();
-            }
-            protected int _curIdx = 0;
-            protected int _nextIdx = data.indexOf(ClientOutput.SEPARATOR);
-        };
+        _data = data;
     }
 
     @Override public boolean readBoolean () {
-        return _valiter.next().equals("1");
+        int end = nextToken();
+        boolean value = (end - _pos == 1) && _data.charAt(_pos) == '1';
+        _pos = end+1;
+        return value;
     }
 
     @Override public byte readByte () {
-        return Byte.parseByte(_valiter.next());
+        return (byte)readInt(Byte.MIN_VALUE, Byte.MAX_VALUE);
     }
 
     @Override public short readShort () {
-        return Short.parseShort(_valiter.next());
+        return (short)readInt(Short.MIN_VALUE, Short.MAX_VALUE);
     }
 
     @Override public char readChar () {
@@ -59,11 +41,23 @@ public class ServerInput extends Streamable.Input
     }
 
     @Override public int readInt () {
-        return Integer.parseInt(_valiter.next());
+        return readInt(Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
     @Override public long readLong () {
-        return Base64Utils.longFromBase64(_valiter.next());
+        // longs are encoded in base64 by the client, most significant digit first
+        int end = nextToken();
+        if (end == _pos) throw new NumberFormatException("Empty long value");
+        long value = 0;
+        for (int ii = _pos; ii < end; ii++) {
+            char c = _data.charAt(ii);
+            int digit = (c < BASE64_VALUES.length) ? BASE64_VALUES[c] : -1;
+            if (digit < 0) throw new NumberFormatException(
+                "Invalid base64 long: " + _data.subSequence(_pos, end));
+            value = (value << 6) | digit;
+        }
+        _pos = end+1;
+        return value;
     }
 
     @Override public float readFloat () {
@@ -71,11 +65,19 @@ public class ServerInput extends Streamable.Input
     }
 
     @Override public double readDouble () {
-        return Double.parseDouble(_valiter.next());
+        // correctly rounding decimal to double conversion is best left to the JDK
+        int end = nextToken();
+        double value = Double.parseDouble(_data.subSequence(_pos, end).toString());
+        _pos = end+1;
+        return value;
     }
 
     @Override public String readString () {
-        return readBoolean() ? _valiter.next() : null; // TODO: is wrong?
+        if (!readBoolean()) return null;
+        int end = nextToken();
+        String value = _data.subSequence(_pos, end).toString();
+        _pos = end+1;
+        return value;
     }
 
     @Override public <T extends Streamable> Class<T> readClass () {
@@ -94,6 +96,61 @@ public class ServerInput extends Streamable.Input
         return s;
     }
 
+    /**
+     * Returns the index of the separator that terminates the token at {@link #_pos}.
+     * @throws NoSuchElementException if no tokens remain in the payload.
+     */
+    protected int nextToken () {
+        for (int ii = _pos, ll = _data.length(); ii < ll; ii++) {
+            if (_data.charAt(ii) == ClientOutput.SEPARATOR) return ii;
+        }
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Decodes a (decimal) integer token, which must lie in the range {@code [min, max]}.
+     */
+    protected int readInt (int min, int max) {
+        int end = nextToken(), ii = _pos;
+        boolean negative = false;
+        if (ii < end) {
+            char c = _data.charAt(ii);
+            if (c == '-' || c == '+') {
+                negative = (c == '-');
+                ii++;
+            }
+        }
+        if (ii == end) throw badInt(end);
+        // accumulate negatively, as the negative range is the larger of the two
+        long value = 0;
+        for (; ii < end; ii++) {
+            int digit = _data.charAt(ii) - '0';
+            if (digit < 0 || digit > 9) throw badInt(end);
+            value = value*10 - digit;
+            if (value < Integer.MIN_VALUE) throw badInt(end);
+        }
+        if (!negative) value = -value;
+        if (value < min || value > max) throw badInt(end);
+        _pos = end+1;
+        return (int)value;
+    }
+
+    protected NumberFormatException badInt (int end) {
+        return new NumberFormatException("Invalid integer: " + _data.subSequence(_pos, end));
+    }
+
     protected final Serializer _szer;
-    protected final Iterator<String> _valiter;
+    protected final CharSequence _data;
+
+    /** The index of the start of the next token in {@link #_data}. */
+    protected int _pos;
+
+    /** Maps characters to their value in the base64 encoding used for longs, or -1. */
+    protected static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        for (int ii = 0; ii < GWTServerIO.BASE64_CHARS.length; ii++) {
+            BASE64_VALUES[GWTServerIO.BASE64_CHARS[ii]] = (byte)ii;
+        }
+    }
 }
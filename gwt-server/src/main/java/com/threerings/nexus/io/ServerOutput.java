@@ -6,10 +6,9 @@ package com.threerings.nexus.io;
 
 import com.threerings.nexus.distrib.DService;
 
-import com.google.gwt.user.server.Base64Utils;
-
 /**
  * Handles the encoding of streamable data into a string payload (for delivery to the client).
+ * Values are appended directly to the payload buffer, without creating intermediate strings.
  */
 public class ServerOutput extends Streamable.Output
 {
@@ -20,17 +19,17 @@ public class ServerOutput extends Streamable.Output
     }
 
     @Override public void writeBoolean (boolean value) {
-        _output._buffer.append(value ? "1" : "0");
+        _output._buffer.append(value ? '1' : '0');
         _output.appendSeparator();
     }
 
     @Override public void writeByte (byte value) {
-        _output._buffer.append(String.valueOf(value));
+        _output._buffer.append((int)value);
         _output.appendSeparator();
     }
 
     @Override public void writeShort (short value) {
-        _output._buffer.append(String.valueOf(value));
+        _output._buffer.append((int)value);
         _output.appendSeparator();
     }
 
@@ -40,12 +39,14 @@ public class ServerOutput extends Streamable.Output
     }
 
     @Override public void writeInt (int value) {
-        _output._buffer.append(String.valueOf(value));
+        _output._buffer.append(value);
         _output.appendSeparator();
     }
 
     @Override public void writeLong (long value) {
-        _output._buffer.append('\'').append(Base64Utils.toBase64(value)).append('\'');
+        _output._buffer.append('\'');
+        _output.appendBase64(value);
+        _output._buffer.append('\'');
         _output.appendSeparator();
     }
 
@@ -54,7 +55,7 @@ public class ServerOutput extends Streamable.Output
     }
 
     @Override public void writeDouble (double value) {
-        _output._buffer.append(String.valueOf(value));
+        _output._buffer.append(value);
         _output.appendSeparator();
     }
 
@@ -7,11 +7,15 @@ package com.threerings.nexus.server;
 import java.io.File;
 
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.threerings.nexus.client.GWTClient;
 import com.threerings.nexus.distrib.NexusException;
@@ -21,6 +25,16 @@ import com.threerings.nexus.io.Serializer;
  * Handles starting a Jetty server and configuring it to listen for GWTIO WebSocket requests on a
  * specified port. For systems that don't otherwise make use of Jetty, this simplifies things.
  * Systems that do make use of Jetty can simply wire up the {@link GWTIOJettyServlet} themselves.
+ *
+ * <p>When created with a {@link NexusConfig}, the server may be tuned via the following
+ * properties (in addition to those described in {@link GWTIOJettyServlet}):</p>
+ * <ul>
+ * <li>{@code nexus.gwt.min_threads}, {@code nexus.gwt.max_threads} - the bounds on the size of
+ * Jetty's thread pool.</li>
+ * <li>{@code nexus.gwt.acceptors} - the number of threads that accept connections.</li>
+ * <li>{@code nexus.gwt.selectors} - the number of threads that select on connections.</li>
+ * <li>{@code nexus.gwt.output_buffer} - the size of the buffer used to write HTTP responses.</li>
+ * </ul>
  */
 public class GWTConnectionManager
 {
@@ -38,11 +52,43 @@ public class GWTConnectionManager
      */
     public GWTConnectionManager (SessionManager smgr, Serializer szer,
                                  String hostname, int port, String path) {
-        _jetty = new Server(port);
+        this(smgr, szer, hostname, port, path, null);
+    }
+
+    /**
+     * Creates a Jetty server that listens on the specified hostname and port and binds the
+     * WebSocket servlet to the specified path. The server is tuned per the {@code nexus.gwt.*}
+     * properties in {@code config} (see the class documentation).
+     * @param hostname the address on which to listen, or null to listen on all addresses.
+     * @param config the tuning configuration, or null to use Jetty's defaults.
+     */
+    public GWTConnectionManager (SessionManager smgr, Serializer szer, String hostname, int port,
+                                 String path, NexusConfig config) {
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setName("GWTIO");
+        HttpConfiguration hconfig = new HttpConfiguration();
+        int acceptors = -1, selectors = -1;
+        if (config != null) {
+            pool.setMinThreads(config.getInt("nexus.gwt.min_threads", pool.getMinThreads()));
+            pool.setMaxThreads(config.getInt("nexus.gwt.max_threads", pool.getMaxThreads()));
+            acceptors = config.getInt("nexus.gwt.acceptors", acceptors);
+            selectors = config.getInt("nexus.gwt.selectors", selectors);
+            hconfig.setOutputBufferSize(
+                config.getInt("nexus.gwt.output_buffer", hconfig.getOutputBufferSize()));
+        }
+
+        _jetty = new Server(pool);
+        ServerConnector connector = new ServerConnector(
+            _jetty, null, null, null, acceptors, selectors, new HttpConnectionFactory(hconfig));
+        connector.setHost(hostname);
+        connector.setPort(port);
+        _jetty.addConnector(connector);
 
         ServletContextHandler shandler = new ServletContextHandler();
         shandler.setContextPath("/");
-        shandler.addServlet(new ServletHolder(new GWTIOJettyServlet(smgr, szer)), path);
+        _servlet = new GWTIOJettyServlet(smgr, szer);
+        if (config != null) _servlet.configure(config);
+        shandler.addServlet(new ServletHolder(_servlet), path);
 
         _rhandler = new ResourceHandler();
         _rhandler.setResourceBase("disabled");
@@ -53,6 +99,29 @@ public class GWTConnectionManager
         _jetty.setHandler(handlers);
     }
 
+    /**
+     * Configures the window during which outbound messages are batched into a single frame. See
+     * {@link GWTIOJettyServlet#setFlushWindow}.
+     */
+    public void setFlushWindow (long millis) {
+        _servlet.setFlushWindow(millis);
+    }
+
+    /**
+     * Configures whether outbound messages are compressed for clients that support it. See
+     * {@link GWTIOJettyServlet#setCompression}.
+     */
+    public void setCompression (boolean enabled, int level) {
+        _servlet.setCompression(enabled, level);
+    }
+
+    /**
+     * Returns the outbound message statistics for our web sockets.
+     */
+    public SendStats sendStats () {
+        return _servlet.sendStats();
+    }
+
     public void setDocRoot (File docroot) {
         _rhandler.setResourceBase(docroot.getAbsolutePath());
     }
@@ -74,5 +143,6 @@ public class GWTConnectionManager
     }
 
     protected Server _jetty;
+    protected GWTIOJettyServlet _servlet;
     protected ResourceHandler _rhandler;
 }
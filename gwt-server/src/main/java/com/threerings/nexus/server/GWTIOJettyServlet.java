@@ -4,16 +4,33 @@
 
 package com.threerings.nexus.server;
 
+import java.util.Timer;
+import java.util.zip.Deflater;
+
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.UpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
+import com.threerings.nexus.io.GWTIO;
 import com.threerings.nexus.io.Serializer;
 
 /**
- * Wires our GWT/IO into Jetty WebSockets.
+ * Wires our GWT/IO into Jetty WebSockets. Clients that request the {@link GWTIO#BINARY_PROTOCOL}
+ * subprotocol are served via binary frames, all others via text frames.
+ *
+ * <p>The servlet may be tuned via the following properties (see {@link #configure(NexusConfig)}),
+ * or via the corresponding setters:</p>
+ * <ul>
+ * <li>{@code nexus.gwt.idle_timeout} - milliseconds after which an idle socket is closed.</li>
+ * <li>{@code nexus.gwt.input_buffer} - the size of the buffer used to read from each socket.</li>
+ * <li>{@code nexus.gwt.max_message} - the maximum size of a message received from a client.</li>
+ * <li>{@code nexus.gwt.flush_window} - see {@link #setFlushWindow}.</li>
+ * <li>{@code nexus.gwt.max_queued} - see {@link GWTIOWebSocket#setMaxQueuedBytes}.</li>
+ * <li>{@code nexus.gwt.compression} - whether to negotiate {@code permessage-deflate}.</li>
+ * <li>{@code nexus.gwt.compression_level} - the deflate compression level (0-9).</li>
+ * </ul>
  */
 public class GWTIOJettyServlet extends WebSocketServlet
 {
@@ -22,16 +39,132 @@ public class GWTIOJettyServlet extends WebSocketServlet
         _szer = szer;
     }
 
+    /**
+     * Configures this servlet from the {@code nexus.gwt.*} properties in {@code config} (see the
+     * class documentation). Properties that are not set retain their current values. Must be
+     * called before the servlet is initialized.
+     */
+    public void configure (NexusConfig config) {
+        setIdleTimeout(config.getLong("nexus.gwt.idle_timeout", _idleTimeout));
+        setInputBufferSize(config.getInt("nexus.gwt.input_buffer", _inputBufferSize));
+        setMaxMessageSize(config.getInt("nexus.gwt.max_message", _maxMessageSize));
+        setFlushWindow(config.getLong("nexus.gwt.flush_window", _flushWindow));
+        setMaxQueuedBytes(config.getInt("nexus.gwt.max_queued", _maxQueuedBytes));
+        setCompression(config.getBoolean("nexus.gwt.compression", _compression),
+                       config.getInt("nexus.gwt.compression_level", _compressionLevel));
+    }
+
     @Override
     public void configure (WebSocketServletFactory factory) {
-        factory.getPolicy().setIdleTimeout(10000);
+        factory.getPolicy().setIdleTimeout(_idleTimeout);
+        if (_inputBufferSize > 0) factory.getPolicy().setInputBufferSize(_inputBufferSize);
+        if (_maxMessageSize > 0) factory.getPolicy().setMaxMessageSize(_maxMessageSize);
+        factory.getExtensionFactory().register(
+            PerMessageDeflateExtension.NAME, PerMessageDeflateExtension.class);
         factory.setCreator(new WebSocketCreator() {
             @Override public Object createWebSocket (UpgradeRequest req, UpgradeResponse resp) {
-                return new GWTIOWebSocket(_smgr, _szer);
+                PerMessageDeflateExtension.filterOffers(req, _compression, _compressionLevel);
+                // clients that request subprotocols require that we accept one of them
+                boolean binary = req.hasSubProtocol(GWTIO.BINARY_PROTOCOL);
+                if (binary) resp.setAcceptedSubProtocol(GWTIO.BINARY_PROTOCOL);
+                else if (req.hasSubProtocol(GWTIO.TEXT_PROTOCOL)) {
+                    resp.setAcceptedSubProtocol(GWTIO.TEXT_PROTOCOL);
+                }
+                GWTIOWebSocket socket = new GWTIOWebSocket(_smgr, _szer, binary, _stats);
+                if (_flushWindow > 0) socket.setFlushWindow(_flushWindow, flushTimer());
+                socket.setMaxQueuedBytes(_maxQueuedBytes);
+                return socket;
             }
         });
     }
 
+    /**
+     * Configures the time (in milliseconds) after which a socket on which no traffic has been
+     * seen is closed. Must be called before the servlet is initialized.
+     */
+    public void setIdleTimeout (long millis) {
+        _idleTimeout = millis;
+    }
+
+    /**
+     * Configures the size of the buffer used to read from each socket. Zero retains Jetty's
+     * default. Must be called before the servlet is initialized.
+     */
+    public void setInputBufferSize (int bytes) {
+        _inputBufferSize = bytes;
+    }
+
+    /**
+     * Configures the maximum size of a message received from a client; clients that send larger
+     * messages are disconnected. Zero retains Jetty's default. Must be called before the servlet
+     * is initialized.
+     */
+    public void setMaxMessageSize (int bytes) {
+        _maxMessageSize = bytes;
+    }
+
+    /**
+     * Configures the maximum number of bytes that may be queued for delivery to a client before
+     * it is deemed hopelessly behind and disconnected. Affects only sockets created after the
+     * call.
+     */
+    public void setMaxQueuedBytes (int bytes) {
+        _maxQueuedBytes = bytes;
+    }
+
+    /**
+     * Configures whether we negotiate the {@code permessage-deflate} extension with clients that
+     * support it, and if so, the compression level used for outbound messages. Compression trades
+     * server CPU for bandwidth, which is usually a good trade for clients on slow networks.
+     * Affects only sockets created after the call.
+     * @param level a compression level from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public void setCompression (boolean enabled, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        _compressionLevel = level;
+        _compression = enabled;
+    }
+
+    /**
+     * Configures the window (in milliseconds) during which outbound messages for a client are
+     * collected before being written to the client in a single frame. Batching messages reduces
+     * framing and dispatch overhead for clients that receive many messages (at the cost of up to
+     * {@code millis} of added latency). Zero (the default) writes messages as soon as possible.
+     * Affects only sockets created after the call.
+     */
+    public void setFlushWindow (long millis) {
+        _flushWindow = millis;
+    }
+
+    @Override public void destroy () {
+        synchronized (this) {
+            if (_flushTimer != null) _flushTimer.cancel();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Returns the outbound message statistics for all web sockets served by this servlet.
+     */
+    public SendStats sendStats () {
+        return _stats;
+    }
+
+    protected synchronized Timer flushTimer () {
+        if (_flushTimer == null) _flushTimer = new Timer("GWTIO flusher", true);
+        return _flushTimer;
+    }
+
     protected SessionManager _smgr;
     protected Serializer _szer;
+    protected final SendStats _stats = new SendStats();
+    protected volatile long _flushWindow;
+    protected volatile int _maxQueuedBytes = GWTIOWebSocket.DEFAULT_MAX_QUEUED_BYTES;
+    protected volatile boolean _compression;
+    protected volatile int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    protected long _idleTimeout = 5*60*1000L;
+    protected int _inputBufferSize, _maxMessageSize;
+    protected Timer _flushTimer;
 }
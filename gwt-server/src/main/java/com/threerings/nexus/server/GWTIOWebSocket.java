@@ -5,6 +5,18 @@
 package com.threerings.nexus.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.threerings.nexus.io.GWTServerIO;
 import com.threerings.nexus.io.Serializer;
@@ -13,31 +25,81 @@ import com.threerings.nexus.net.Upstream;
 
 import static com.threerings.nexus.util.Log.log;
 
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
 
 /**
- * Handles a web socket client.
+ * Handles a web socket client. Outbound messages are queued and written asynchronously, so that
+ * a slow client does not block the thread that sent it a message. Messages that queue up while a
+ * write is in progress are coalesced into a single frame. If a flush window is configured, the
+ * first message queued on an idle socket is held for that window, and all messages queued during
+ * the window are written in a single frame.
  */
 public class GWTIOWebSocket implements WebSocketListener, SessionManager.Output
 {
     public GWTIOWebSocket (SessionManager smgr, Serializer szer) {
+        this(smgr, szer, false, new SendStats());
+    }
+
+    /**
+     * Creates a web socket handler.
+     * @param binary whether the client negotiated the binary protocol (in which case messages are
+     * exchanged in binary frames), or the text protocol.
+     * @param stats the stats to which this socket reports its outbound messages.
+     */
+    public GWTIOWebSocket (SessionManager smgr, Serializer szer, boolean binary,
+                           SendStats stats) {
         _smgr = smgr;
         _szer = szer;
+        _binbuffer = binary ? new GWTServerIO.BinaryPayloadBuffer() : null;
+        _stats = stats;
+    }
+
+    /**
+     * Configures this socket to collect outbound messages for {@code millis} milliseconds before
+     * writing them (in a single frame), rather than writing them as soon as possible.
+     * @param timer the timer used to schedule flushes.
+     */
+    public void setFlushWindow (long millis, Timer timer) {
+        _flushWindow = millis;
+        _flushTimer = timer;
+    }
+
+    /**
+     * Configures the maximum number of bytes that may be queued for delivery to this socket
+     * before it is deemed to be hopelessly behind, and is closed.
+     */
+    public void setMaxQueuedBytes (int bytes) {
+        _maxQueuedBytes = bytes;
     }
 
     // from interface WebSocketListener
     @Override public void onWebSocketConnect (Session session) {
         _sess = session;
-        _sess.setIdleTimeout(5*60*1000L); // TODO: make configurable
         _conn = session.getRemote();
+        // if we can, we send our frames directly, which allows us to encode our payloads straight
+        // into a pooled buffer rather than creating a string which Jetty then encodes again
+        if (_conn instanceof WebSocketRemoteEndpoint) {
+            _outgoing = ((WebSocketRemoteEndpoint)_conn).outgoing;
+        }
         _ipaddr = session.getRemoteAddress().toString();
         _input = _smgr.createSession(_ipaddr, this);
     }
 
     // from interface WebSocketListener
     @Override public void onWebSocketClose (int statusCode, String reason) {
+        synchronized (_outq) {
+            _closed = true;
+            _outq.clear();
+        }
         // TODO: interpret statusCode?
         _input.onDisconnect();
     }
@@ -58,7 +120,16 @@ public class GWTIOWebSocket implements WebSocketListener, SessionManager.Output
 
     // from interface WebSocketListener
     @Override public void onWebSocketBinary (byte[] payload, int offset, int len) {
-        log.warning("Got binary message", "addr", _ipaddr, "bytes", len);
+        if (_binbuffer == null) {
+            log.warning("Got binary message on text socket", "addr", _ipaddr, "bytes", len);
+            return;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(payload, offset, len);
+            _input.onMessage(GWTServerIO.newBinaryInput(_szer, data).<Upstream>readValue());
+        } catch (Throwable t) {
+            log.warning("WebSocket decode failure", "addr", _ipaddr, "bytes", len, t);
+        }
     }
 
     // from interface SessionManager.Input
@@ -68,19 +139,40 @@ public class GWTIOWebSocket implements WebSocketListener, SessionManager.Output
             return;
         }
 
-        String data;
         // send may be called from multiple threads, so synchronize access to our payload buffer
+        ByteBuffer payload;
         synchronized (_buffer) {
-            GWTServerIO.newOutput(_szer, _buffer).writeValue(msg);
-            data = _buffer.getPayload();
+            payload = encode(msg);
         }
 
-        try {
-            _conn.sendString(data);
-        } catch (IOException ioe) {
-            log.warning("WebSocket send failure", "addr", _ipaddr, "data", data, ioe);
-            _input.onSendError(ioe);
+        boolean overflow = false, start = false;
+        int queued;
+        synchronized (_outq) {
+            if (_closed) return;
+            queued = _queuedBytes;
+            if (queued + payload.remaining() > maxQueuedBytes()) overflow = _closed = true;
+            else {
+                _outq.add(new Pending(payload, System.nanoTime()));
+                _queuedBytes += payload.remaining();
+                if (!_writing) start = _writing = true;
+            }
+        }
+
+        if (overflow) {
+            // the client is not keeping up with its messages, so we cut it loose rather than
+            // buffer without bound
+            _stats.noteOverflow();
+            log.warning("WebSocket outbound queue overflow", "addr", _ipaddr,
+                        "queued", queued, "msg", msg);
+            _input.onSendError(new IOException("Outbound queue overflow"));
             disconnect();
+        } else if (start) {
+            if (_flushWindow > 0) _flushTimer.schedule(new TimerTask() {
+                public void run () {
+                    writeNext();
+                }
+            }, _flushWindow);
+            else writeNext();
         }
     }
 
@@ -93,12 +185,244 @@ public class GWTIOWebSocket implements WebSocketListener, SessionManager.Output
         }
     }
 
+    /**
+     * Returns the maximum number of bytes that may be queued for delivery (including those being
+     * written) before the socket is deemed to be hopelessly behind, and is closed.
+     */
+    protected int maxQueuedBytes () {
+        return _maxQueuedBytes;
+    }
+
+    /**
+     * Encodes {@code msg} into a pooled buffer (as UTF-8 text or binary, per our protocol). Must
+     * be called with {@link #_buffer} locked.
+     */
+    protected ByteBuffer encode (Downstream msg) {
+        ByteBuffer bytes;
+        if (_binbuffer != null) {
+            GWTServerIO.newBinaryOutput(_szer, _binbuffer).writeValue(msg);
+            ByteBuffer payload = _binbuffer.getPayload();
+            bytes = _bufpool.acquire(payload.remaining(), false);
+            int pos = BufferUtil.flipToFill(bytes);
+            bytes.put(payload);
+            BufferUtil.flipToFlush(bytes, pos);
+        } else {
+            GWTServerIO.newOutput(_szer, _buffer).writeValue(msg);
+            bytes = _bufpool.acquire(_buffer.finishPayload(), false);
+            int pos = BufferUtil.flipToFill(bytes);
+            _buffer.encodePayload(bytes);
+            BufferUtil.flipToFlush(bytes, pos);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes all queued messages (up to {@link #MAX_FRAME_BYTES}), coalesced into a single frame
+     * if there is more than one, or clears the writing flag if there's nothing queued. Writes that
+     * complete synchronously are followed by the next write in this same loop (rather than via a
+     * recursive call from the completion callback), so a client that keeps up with a steady
+     * stream of messages does not grow our stack without bound.
+     */
+    protected void writeNext () {
+        while (true) {
+            final List<Pending> batch = new ArrayList<Pending>();
+            synchronized (_outq) {
+                int bytes = 0;
+                for (Pending p; (p = _outq.peek()) != null; ) {
+                    if (!batch.isEmpty() && bytes + p.size > MAX_FRAME_BYTES) break;
+                    batch.add(_outq.poll());
+                    bytes += p.size;
+                }
+                if (batch.isEmpty()) {
+                    _writing = false;
+                    return;
+                }
+            }
+
+            final boolean binary = (_binbuffer != null);
+            final ByteBuffer frame;
+            if (batch.size() == 1) frame = batch.get(0).payload;
+            else {
+                List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(batch.size());
+                for (Pending p : batch) payloads.add(p.payload);
+                frame = _bufpool.acquire(GWTServerIO.batchSize(payloads, binary), false);
+                int pos = BufferUtil.flipToFill(frame);
+                GWTServerIO.encodeBatch(payloads, binary, frame);
+                BufferUtil.flipToFlush(frame, pos);
+            }
+
+            BatchCallback callback = new BatchCallback(batch, frame);
+            write(frame, binary, callback);
+            // if the write has not yet succeeded, its callback will resume writing when it does
+            if (!callback.continueInline()) return;
+        }
+    }
+
+    /**
+     * Writes {@code frame} to the client, notifying {@code callback} on completion. This must not
+     * block: the callback may be notified before this method returns, or later on another thread.
+     */
+    protected void write (ByteBuffer frame, boolean binary, final WriteCallback callback) {
+        if (_outgoing != null) {
+            try {
+                _outgoing.outgoingFrame(binary ? WebSocketFrame.binary().setPayload(frame) :
+                                        WebSocketFrame.text().setPayload(frame), callback);
+            } catch (RuntimeException re) {
+                callback.writeFailed(re);
+            }
+            return;
+        }
+
+        // if we lack direct access to Jetty's outgoing frames, we can only obtain a future for the
+        // write, so we wait for it on a completion thread rather than on the sending thread
+        final Future<Void> result;
+        try {
+            result = binary ? _conn.sendBytesByFuture(frame) :
+                _conn.sendStringByFuture(BufferUtil.toUTF8String(frame));
+        } catch (RuntimeException re) {
+            callback.writeFailed(re);
+            return;
+        }
+        _completer.execute(new Runnable() {
+            public void run () {
+                try {
+                    result.get();
+                } catch (ExecutionException ee) {
+                    callback.writeFailed(ee.getCause());
+                    return;
+                } catch (Throwable t) {
+                    callback.writeFailed(t);
+                    return;
+                }
+                callback.writeSuccess();
+            }
+        });
+    }
+
+    /** Completes the write of a batch of messages, and resumes writing when appropriate. */
+    protected class BatchCallback implements WriteCallback {
+        public BatchCallback (List<Pending> batch, ByteBuffer frame) {
+            _batch = batch;
+            _frame = frame;
+        }
+
+        /**
+         * Called by {@link #writeNext} after initiating the write. Returns true if the write has
+         * already succeeded, in which case the caller should write the next batch itself.
+         * Otherwise notes that the caller has moved on, so that {@link #writeSuccess} resumes
+         * writing when it is eventually called.
+         */
+        public synchronized boolean continueInline () {
+            if (_succeeded) return true;
+            _returned = true;
+            return false;
+        }
+
+        public void writeSuccess () {
+            long now = System.nanoTime(), total = 0, max = 0;
+            int bytes = 0;
+            for (Pending p : _batch) {
+                long latency = now - p.queued;
+                total += latency;
+                max = Math.max(max, latency);
+                bytes += p.size;
+                if (p.payload != _frame) _bufpool.release(p.payload);
+            }
+            // the frame has been written, so it's safe to return its buffer to the pool
+            _bufpool.release(_frame);
+            _stats.noteFrame(_batch.size(), total, max);
+            synchronized (_outq) {
+                _queuedBytes -= bytes;
+            }
+
+            boolean resume;
+            synchronized (this) {
+                _succeeded = true;
+                resume = _returned;
+            }
+            // if writeNext is still on the stack, it will continue with the next batch
+            if (resume) writeNext();
+        }
+
+        public void writeFailed (Throwable cause) {
+            // we don't return our buffers to the pool, as Jetty may still reference them
+            synchronized (_outq) {
+                _closed = true;
+                _outq.clear();
+            }
+            log.warning("WebSocket send failure", "addr", _ipaddr, "msgs", _batch.size(), cause);
+            _input.onSendError(cause);
+            disconnect();
+        }
+
+        protected final List<Pending> _batch;
+        protected final ByteBuffer _frame;
+        protected boolean _succeeded, _returned;
+    }
+
+    /** A message awaiting delivery. */
+    protected static class Pending {
+        public final ByteBuffer payload;
+        public final int size;
+        public final long queued;
+
+        public Pending (ByteBuffer payload, long queued) {
+            this.payload = payload;
+            this.size = payload.remaining();
+            this.queued = queued;
+        }
+    }
+
     protected final SessionManager _smgr;
     protected final Serializer _szer;
+    protected final SendStats _stats;
 
     protected String _ipaddr;
     protected Session _sess;
     protected RemoteEndpoint _conn;
+    protected OutgoingFrames _outgoing;
     protected SessionManager.Input _input;
     protected GWTServerIO.PayloadBuffer _buffer = new GWTServerIO.PayloadBuffer();
+
+    /** Our binary payload buffer, if we're using the binary protocol; null otherwise. Accesses
+     * to this buffer are also synchronized on {@link #_buffer}. */
+    protected final GWTServerIO.BinaryPayloadBuffer _binbuffer;
+
+    /** Messages awaiting delivery. Also used to synchronize {@link #_queuedBytes}, {@link
+     * #_writing} and {@link #_closed}. */
+    protected final Queue<Pending> _outq = new ArrayDeque<Pending>();
+
+    /** The number of bytes queued for delivery, including those currently being written. */
+    protected int _queuedBytes;
+
+    /** Whether a write is in progress. */
+    protected boolean _writing;
+
+    /** The time (in millis) for which messages are collected before being written, or zero. */
+    protected long _flushWindow;
+    protected Timer _flushTimer;
+
+    /** The maximum number of bytes that may be queued for delivery. */
+    protected int _maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+    /** Whether this socket has been closed (or has failed), and should send nothing further. */
+    protected boolean _closed;
+
+    /** The maximum number of bytes that we will coalesce into a single frame. */
+    protected static final int MAX_FRAME_BYTES = 64*1024;
+
+    /** The default maximum number of bytes that may be queued for delivery to a socket. */
+    protected static final int DEFAULT_MAX_QUEUED_BYTES = 4*1024*1024;
+
+    /** A pool of buffers into which outgoing payloads are encoded, shared by all sockets. */
+    protected static final ByteBufferPool _bufpool = new ArrayByteBufferPool();
+
+    /** Waits for the completion of writes that Jetty reports only via a future. */
+    protected static final Executor _completer = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread (Runnable r) {
+            Thread thread = new Thread(r, "GWTIOWebSocket completer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 }
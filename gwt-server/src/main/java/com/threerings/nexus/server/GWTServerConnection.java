@@ -0,0 +1,438 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.io.BaseEncoding;
+
+import com.threerings.nexus.client.GWTClient;
+import com.threerings.nexus.io.GWTIO;
+import com.threerings.nexus.io.GWTServerIO;
+import com.threerings.nexus.io.Serializer;
+import com.threerings.nexus.io.Streamable;
+import com.threerings.nexus.net.Downstream;
+import com.threerings.nexus.net.Upstream;
+
+import static com.threerings.nexus.util.Log.log;
+
+/**
+ * Handles a GWT client that connects via a WebSocket directly to a {@link JVMConnectionManager},
+ * which allows GWT clients to be served by the same I/O threads as JVM clients, without the need
+ * for a separate Jetty server (see {@link GWTConnectionManager}). Implements the WebSocket
+ * handshake and framing (RFC 6455), sans extensions. As with {@link GWTIOJettyServlet}, clients
+ * that request the {@link GWTIO#BINARY_PROTOCOL} subprotocol are served via binary frames, all
+ * others via text frames. For example:
+ *
+ * <pre>{@code
+ * JVMConnectionManager cmgr = new JVMConnectionManager(server.getSessionManager());
+ * cmgr.listen(hostname, jvmPort);
+ * cmgr.listen(hostname, gwtPort, GWTServerConnection.factory(serializer));
+ * cmgr.start();
+ * }</pre>
+ */
+public class GWTServerConnection extends JVMServerConnection
+{
+    /**
+     * Returns a factory that creates GWT connections that accept WebSockets on the {@link
+     * GWTClient#DEFAULT_WS_PATH}.
+     */
+    public static JVMConnectionManager.ConnectionFactory factory (Serializer szer) {
+        return factory(szer, GWTClient.DEFAULT_WS_PATH);
+    }
+
+    /**
+     * Returns a factory that creates GWT connections that accept WebSockets on {@code path}.
+     */
+    public static JVMConnectionManager.ConnectionFactory factory (final Serializer szer,
+                                                                  final String path) {
+        return new JVMConnectionManager.ConnectionFactory() {
+            public JVMServerConnection createConnection (JVMConnectionManager cmgr,
+                                                         SocketChannel chan) {
+                return new GWTServerConnection(cmgr, chan, szer, path);
+            }
+        };
+    }
+
+    public GWTServerConnection (JVMConnectionManager cmgr, SocketChannel chan,
+                                Serializer szer, String path) {
+        super(cmgr, chan);
+        _szer = szer;
+        _path = path;
+        _maxMessageSize = cmgr.maxMessageSize();
+    }
+
+    /**
+     * Configures the maximum size of a message received from the client. Clients that send larger
+     * messages are disconnected. Defaults to the connection manager's {@link
+     * JVMConnectionManager#maxMessageSize}.
+     */
+    public void setMaxMessageSize (int bytes) {
+        _maxMessageSize = bytes;
+    }
+
+    @Override public void accepted (SessionManager smgr, String ipaddr) {
+        // we establish our session once the client has completed the WebSocket handshake
+        _smgr = smgr;
+        _ipaddr = ipaddr;
+    }
+
+    @Override public synchronized void send (Downstream msg) {
+        // we may be called from many threads, this method is serialized to avoid conflicting
+        // accesses to the payload buffers
+        ByteBuffer frame;
+        if (_binary) {
+            GWTServerIO.newBinaryOutput(_szer, _binbuf).writeValue(msg);
+            ByteBuffer payload = _binbuf.getPayload();
+            frame = frame(OP_BINARY, payload.remaining()).put(payload);
+        } else {
+            GWTServerIO.newOutput(_szer, _textbuf).writeValue(msg);
+            frame = frame(OP_TEXT, _textbuf.finishPayload());
+            _textbuf.encodePayload(frame);
+        }
+        frame.flip();
+        enqueueOwned(new ByteBuffer[] { frame }, conflationKey(msg));
+    }
+
+    @Override public void handleIO () {
+        try {
+            int read;
+            do {
+                if (!_rbuf.hasRemaining()) growReadBuffer();
+                read = _chan.read(_rbuf);
+                if (read < 0) throw new EOFException();
+                _rbuf.flip();
+                if (_input == null && !_closing) readHandshake();
+                if (_input != null) readFrames();
+                // once we're closing, we discard anything further sent by the client
+                if (_closing) _rbuf.clear();
+                else _rbuf.compact();
+            } while (read > 0);
+
+        } catch (EOFException eofe) {
+            if (_input != null && !_closing) _input.onDisconnect();
+            onClose(null);
+
+        } catch (IOException ioe) {
+            if (_input != null && !_closing) _input.onReceiveError(ioe);
+            onClose(ioe);
+        }
+    }
+
+    /**
+     * Reads the client's handshake request from our read buffer, and responds to it, if it has
+     * been fully received.
+     */
+    protected void readHandshake () throws IOException {
+        int end = -1;
+        for (int ii = _rbuf.position(), ll = _rbuf.limit() - 3; ii < ll; ii++) {
+            if (_rbuf.get(ii) == '\r' && _rbuf.get(ii+1) == '\n' &&
+                _rbuf.get(ii+2) == '\r' && _rbuf.get(ii+3) == '\n') {
+                end = ii;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (_rbuf.position() + _rbuf.remaining() >= MAX_HANDSHAKE_BYTES) {
+                reject("431 Request Header Fields Too Large", "");
+            }
+            return;
+        }
+
+        byte[] data = new byte[end - _rbuf.position()];
+        _rbuf.get(data);
+        _rbuf.position(end + 4);
+        String[] lines = new String(data, LATIN1).split("\r\n");
+        String[] request = lines[0].split(" ");
+        Map<String,String> headers = new HashMap<String,String>();
+        for (int ii = 1; ii < lines.length; ii++) {
+            int colon = lines[ii].indexOf(':');
+            if (colon < 0) continue;
+            String name = lines[ii].substring(0, colon).trim().toLowerCase();
+            String value = lines[ii].substring(colon+1).trim();
+            String ovalue = headers.get(name);
+            headers.put(name, (ovalue == null) ? value : (ovalue + "," + value));
+        }
+
+        String path = (request.length < 3) ? null : request[1];
+        if (path != null && path.indexOf('?') >= 0) path = path.substring(0, path.indexOf('?'));
+        String key = headers.get("sec-websocket-key");
+        if (request.length < 3 || !request[0].equals("GET")) {
+            reject("400 Bad Request", "");
+        } else if (!_path.equals(path)) {
+            reject("404 Not Found", "");
+        } else if (!hasToken(headers.get("upgrade"), "websocket") ||
+                   !hasToken(headers.get("connection"), "upgrade") || key == null) {
+            reject("400 Bad Request", "");
+        } else if (!"13".equals(headers.get("sec-websocket-version"))) {
+            reject("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+        } else {
+            // clients that request subprotocols require that we accept one of them
+            String protocols = headers.get("sec-websocket-protocol"), accepted = null;
+            _binary = hasToken(protocols, GWTIO.BINARY_PROTOCOL);
+            if (_binary) accepted = GWTIO.BINARY_PROTOCOL;
+            else if (hasToken(protocols, GWTIO.TEXT_PROTOCOL)) accepted = GWTIO.TEXT_PROTOCOL;
+
+            StringBuilder resp = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n");
+            resp.append("Upgrade: websocket\r\n").append("Connection: Upgrade\r\n");
+            resp.append("Sec-WebSocket-Accept: ").append(acceptKey(key)).append("\r\n");
+            if (accepted != null) resp.append("Sec-WebSocket-Protocol: ").append(accepted).
+                                      append("\r\n");
+            enqueueOwned(new ByteBuffer[] { LATIN1.encode(resp.append("\r\n").toString()) });
+
+            setSession(_smgr.createSession(_ipaddr, this));
+            log.info("Started new WebSocket session " + _input, "binary", _binary);
+        }
+    }
+
+    /**
+     * Reads and processes all complete frames in our read buffer.
+     */
+    protected void readFrames () throws IOException {
+        while (!_closing && _rbuf.remaining() >= 2) {
+            int pos = _rbuf.position();
+            int b0 = _rbuf.get(pos) & 0xFF, b1 = _rbuf.get(pos+1) & 0xFF;
+            if ((b0 & 0x70) != 0) {
+                fail(CLOSE_PROTOCOL_ERROR, "Unnegotiated reserved bits");
+                return;
+            }
+            if ((b1 & 0x80) == 0) {
+                fail(CLOSE_PROTOCOL_ERROR, "Unmasked client frame");
+                return;
+            }
+
+            long length = b1 & 0x7F;
+            int header = 2;
+            if (length == 126) {
+                if (_rbuf.remaining() < 4) return;
+                length = _rbuf.getShort(pos+2) & 0xFFFF;
+                header = 4;
+            } else if (length == 127) {
+                if (_rbuf.remaining() < 10) return;
+                length = _rbuf.getLong(pos+2);
+                header = 10;
+            }
+            header += 4; // the mask
+            if (length < 0 || length + (_message == null ? 0 : _message.position()) >
+                _maxMessageSize) {
+                fail(CLOSE_TOO_LARGE, "Message too large");
+                return;
+            }
+            if (_rbuf.remaining() < header + length) return; // wait for the rest of the frame
+
+            // unmask the payload in place
+            int start = pos + header, end = start + (int)length;
+            for (int ii = start, mm = start-4; ii < end; ii++) {
+                _rbuf.put(ii, (byte)(_rbuf.get(ii) ^ _rbuf.get(mm + ((ii-start) & 3))));
+            }
+            ByteBuffer payload = _rbuf.duplicate();
+            payload.limit(end).position(start);
+            _rbuf.position(end);
+            handleFrame((b0 & 0x80) != 0, b0 & 0x0F, payload);
+        }
+    }
+
+    /**
+     * Processes a single (unmasked) frame received from the client.
+     */
+    protected void handleFrame (boolean fin, int opcode, ByteBuffer payload) throws IOException {
+        if (opcode >= OP_CLOSE && (!fin || payload.remaining() > 125)) {
+            fail(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            return;
+        }
+
+        switch (opcode) {
+        case OP_CONTINUATION:
+            if (_message == null) {
+                fail(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                return;
+            }
+            if (_message.remaining() < payload.remaining()) {
+                ByteBuffer nmessage = ByteBuffer.allocate(
+                    Math.max(_message.capacity()*2, _message.position() + payload.remaining()));
+                _message.flip();
+                _message = nmessage.put(_message);
+            }
+            _message.put(payload);
+            if (fin) {
+                _message.flip();
+                deliver(_messageOpcode, _message);
+                _message = null;
+            }
+            break;
+
+        case OP_TEXT:
+        case OP_BINARY:
+            if (_message != null) {
+                fail(CLOSE_PROTOCOL_ERROR, "Expected continuation frame");
+                return;
+            }
+            if (fin) deliver(opcode, payload);
+            else {
+                // the payload is a view of our read buffer, so we must copy it
+                _message = ByteBuffer.allocate(Math.max(payload.remaining()*2, 256));
+                _message.put(payload);
+                _messageOpcode = opcode;
+            }
+            break;
+
+        case OP_CLOSE:
+            // echo the client's status code (if any) and close the socket
+            ByteBuffer frame = frame(OP_CLOSE, Math.min(payload.remaining(), 2));
+            while (frame.hasRemaining()) frame.put(payload.get());
+            frame.flip();
+            close(frame);
+            _input.onDisconnect();
+            break;
+
+        case OP_PING:
+            ByteBuffer pong = frame(OP_PONG, payload.remaining()).put(payload);
+            pong.flip();
+            enqueueOwned(new ByteBuffer[] { pong });
+            break;
+
+        case OP_PONG:
+            break; // we don't send pings, but unsolicited pongs are allowed
+
+        default:
+            fail(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            break;
+        }
+    }
+
+    /**
+     * Decodes a complete message and passes it to our session.
+     */
+    protected void deliver (int opcode, ByteBuffer payload) {
+        if (opcode == OP_BINARY && !_binary) {
+            log.warning("Got binary message on text socket", "addr", _ipaddr,
+                        "bytes", payload.remaining());
+            return;
+        }
+        try {
+            Streamable.Input in = (opcode == OP_BINARY) ?
+                GWTServerIO.newBinaryInput(_szer, payload) :
+                GWTServerIO.newInput(_szer, UTF8.decode(payload));
+            _input.onMessage(in.<Upstream>readValue());
+        } catch (Throwable t) {
+            log.warning("WebSocket decode failure", "addr", _ipaddr,
+                        "bytes", payload.limit(), t);
+        }
+    }
+
+    /**
+     * Sends a close frame with the specified status code to the client, reports the failure to
+     * our session, and closes our socket.
+     */
+    protected void fail (int code, String reason) {
+        ByteBuffer frame = frame(OP_CLOSE, 2).putShort((short)code);
+        frame.flip();
+        close(frame);
+        _input.onReceiveError(new IOException(reason));
+    }
+
+    /**
+     * Responds to a failed handshake with the specified HTTP status, and closes our socket.
+     */
+    protected void reject (String status, String headers) {
+        log.info("Rejecting WebSocket handshake", "addr", _ipaddr, "status", status);
+        String resp = "HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n";
+        close(LATIN1.encode(resp));
+    }
+
+    /**
+     * Writes {@code last} to the client (after any already queued frames) and then closes our
+     * socket. Any further input from the client is ignored.
+     */
+    protected void close (ByteBuffer last) {
+        _closing = true;
+        enqueueOwned(new ByteBuffer[] { last });
+        closeWhenFlushed();
+    }
+
+    protected void growReadBuffer () throws IOException {
+        // the largest frame is a maximal message with a maximal header
+        int max = (_input == null) ? MAX_HANDSHAKE_BYTES : _maxMessageSize + 14;
+        if (_rbuf.capacity() >= max) throw new IOException("Read buffer overflow");
+        ByteBuffer nbuf = ByteBuffer.allocate(Math.min(_rbuf.capacity()*2, max));
+        _rbuf.flip();
+        _rbuf = nbuf.put(_rbuf);
+    }
+
+    /**
+     * Creates a buffer for an unmasked, unfragmented frame with a payload of {@code length}
+     * bytes, into which the frame header has been written.
+     */
+    protected static ByteBuffer frame (int opcode, int length) {
+        int header = (length < 126) ? 2 : (length < 65536 ? 4 : 10);
+        ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte)(0x80 | opcode));
+        if (length < 126) frame.put((byte)length);
+        else if (length < 65536) frame.put((byte)126).putShort((short)length);
+        else frame.put((byte)127).putLong(length);
+        return frame;
+    }
+
+    protected static String acceptKey (String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return BaseEncoding.base64().encode(sha1.digest((key + WS_GUID).getBytes(LATIN1)));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae); // every JVM is required to support SHA-1
+        }
+    }
+
+    protected static boolean hasToken (String header, String token) {
+        if (header == null) return false;
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    protected final Serializer _szer;
+    protected final String _path;
+    protected SessionManager _smgr;
+    protected String _ipaddr;
+    protected int _maxMessageSize;
+
+    /** Whether the client negotiated the binary protocol. */
+    protected boolean _binary;
+
+    /** Set once we've sent (or are sending) our final frame; all further input is ignored. */
+    protected boolean _closing;
+
+    /** Data read from our socket, awaiting processing. */
+    protected ByteBuffer _rbuf = ByteBuffer.allocate(1024);
+
+    /** The fragments received thus far of an incomplete message, or null. */
+    protected ByteBuffer _message;
+    protected int _messageOpcode;
+
+    protected final GWTServerIO.PayloadBuffer _textbuf = new GWTServerIO.PayloadBuffer();
+    protected final GWTServerIO.BinaryPayloadBuffer _binbuf =
+        new GWTServerIO.BinaryPayloadBuffer();
+
+    protected static final int OP_CONTINUATION = 0x0, OP_TEXT = 0x1, OP_BINARY = 0x2;
+    protected static final int OP_CLOSE = 0x8, OP_PING = 0x9, OP_PONG = 0xA;
+
+    protected static final int CLOSE_PROTOCOL_ERROR = 1002;
+    protected static final int CLOSE_TOO_LARGE = 1009;
+
+    /** The maximum size of the client's handshake request. */
+    protected static final int MAX_HANDSHAKE_BYTES = 8*1024;
+
+    protected static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    protected static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,287 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.websocket.api.BadPayloadException;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.extensions.AbstractExtension;
+
+/**
+ * Implements the {@code permessage-deflate} WebSocket extension (RFC 7692), which is supported by
+ * all modern browsers. Our version of Jetty predates the RFC (it supports only a draft
+ * precursor), hence this implementation.
+ *
+ * <p>We always negotiate {@code server_no_context_takeover} and {@code
+ * client_no_context_takeover}, which means that each message is compressed independently. This
+ * costs some compression ratio, but spares us from keeping a deflater and inflater (a few hundred
+ * kilobytes of native memory) alive for every connected client: instead we borrow them from a
+ * shared pool for the duration of a single message.</p>
+ */
+public class PerMessageDeflateExtension extends AbstractExtension
+{
+    /** The name of this extension, as used in the WebSocket handshake. */
+    public static final String NAME = "permessage-deflate";
+
+    /**
+     * Rewrites the extensions offered by a client such that compression is negotiated only via
+     * this extension (if {@code enabled}) with the specified compression level, or not at all.
+     * Must be called before the extensions are negotiated (i.e. from a {@code WebSocketCreator}).
+     */
+    public static void filterOffers (UpgradeRequest req, boolean enabled, int level) {
+        boolean offered = false;
+        for (Iterator<ExtensionConfig> iter = req.getExtensions().iterator(); iter.hasNext(); ) {
+            ExtensionConfig offer = iter.next();
+            if (offer.getName().equals(NAME)) {
+                // we accept only the client's first (preferred) offer
+                if (!enabled || offered) iter.remove();
+                else {
+                    offer.setParameter(LEVEL_PARAM, level);
+                    offered = true;
+                }
+            } else if (RSV1_EXTENSIONS.contains(offer.getName())) {
+                // Jetty's older compression extensions would contend with us for the RSV1 bit
+                iter.remove();
+            }
+        }
+    }
+
+    @Override public void setConfig (ExtensionConfig offer) {
+        _level = offer.getParameter(LEVEL_PARAM, Deflater.DEFAULT_COMPRESSION);
+        ExtensionConfig config = new Config();
+        config.setParameter(SERVER_NO_CONTEXT_TAKEOVER, "");
+        config.setParameter(CLIENT_NO_CONTEXT_TAKEOVER, "");
+        // java.util.zip always uses a 32K window; if the client wants a smaller window, we accept
+        // (as required by the RFC) but we send our messages uncompressed
+        int maxWindowBits = offer.getParameter(SERVER_MAX_WINDOW_BITS, MAX_WINDOW_BITS);
+        if (maxWindowBits < MAX_WINDOW_BITS) {
+            config.setParameter(SERVER_MAX_WINDOW_BITS, maxWindowBits);
+            _deflate = false;
+        }
+        super.setConfig(config);
+    }
+
+    @Override public boolean isRsv1User () {
+        return true;
+    }
+
+    @Override public boolean isTextDataDecoder () {
+        return true;
+    }
+
+    // from interface IncomingFrames
+    @Override public void incomingFrame (Frame frame) {
+        if (OpCode.isControlFrame(frame.getOpCode()) ||
+            (_inflater == null && !(frame.isRsv1() && !frame.isContinuation()))) {
+            nextIncomingFrame(frame);
+            return;
+        }
+
+        if (_inflater == null) {
+            _inflater = _inflaters.poll();
+            if (_inflater == null) _inflater = new Inflater(true);
+            _inflated = 0;
+        }
+
+        byte[] output;
+        int length = 0;
+        try {
+            ByteBuffer payload = frame.getPayload();
+            int size = (payload == null) ? 0 : payload.remaining();
+            byte[] input = new byte[size + (frame.isFin() ? TAIL.length : 0)];
+            if (size > 0) payload.slice().get(input, 0, size);
+            // the sender strips the empty block that terminates each message; we restore it
+            if (frame.isFin()) System.arraycopy(TAIL, 0, input, size, TAIL.length);
+            _inflater.setInput(input);
+
+            output = new byte[Math.max(size*4, 256)];
+            while (true) {
+                int read = _inflater.inflate(output, length, output.length - length);
+                if (read == 0) break; // we always have space, so the inflater needs input
+                length += read;
+                // guard against messages that inflate beyond the permitted size
+                getPolicy().assertValidMessageSize(_inflated + length);
+                if (length == output.length) output = Arrays.copyOf(output, output.length*2);
+            }
+        } catch (DataFormatException dfe) {
+            releaseInflater();
+            throw new BadPayloadException(dfe);
+        } catch (RuntimeException re) {
+            releaseInflater();
+            throw re;
+        }
+        _inflated += length;
+        if (frame.isFin()) releaseInflater();
+
+        WebSocketFrame inflated = new WebSocketFrame(frame);
+        inflated.setRsv1(false);
+        inflated.setPayload(ByteBuffer.wrap(output, 0, length));
+        nextIncomingFrame(inflated);
+    }
+
+    // from interface OutgoingFrames
+    @Override public void outgoingFrame (Frame frame, WriteCallback callback) {
+        // we compress only complete data messages; fragmented messages are sent as is, as are
+        // messages that are too small to benefit
+        if (!_deflate || !frame.isFin() || frame.isContinuation() ||
+            !OpCode.isDataFrame(frame.getOpCode()) || frame.getPayloadLength() < MIN_DEFLATE_BYTES) {
+            nextOutgoingFrame(frame, callback);
+            return;
+        }
+
+        ByteBuffer payload = frame.getPayload();
+        int size = payload.remaining();
+        byte[] input;
+        int offset;
+        if (payload.hasArray()) {
+            input = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            input = new byte[size];
+            payload.slice().get(input);
+            offset = 0;
+        }
+
+        final ByteBufferPool pool = getBufferPool();
+        ByteBuffer buffer = pool.acquire(size + size/8 + 64, false);
+        int length = 0;
+        Deflater deflater = deflater(_level);
+        try {
+            deflater.setInput(input, offset, size);
+            while (true) {
+                int space = buffer.capacity() - length;
+                length += deflater.deflate(buffer.array(), buffer.arrayOffset() + length, space,
+                                           Deflater.SYNC_FLUSH);
+                if (length < buffer.capacity()) break;
+                ByteBuffer nbuffer = pool.acquire(buffer.capacity()*2, false);
+                System.arraycopy(buffer.array(), buffer.arrayOffset(),
+                                 nbuffer.array(), nbuffer.arrayOffset(), length);
+                pool.release(buffer);
+                buffer = nbuffer;
+            }
+        } finally {
+            deflater.reset();
+            _deflaters[_level+1].offer(deflater);
+        }
+
+        // the sync flush ends with an empty stored block, which the RFC has us strip; if
+        // compression didn't pay for itself, we send the original message instead
+        length -= TAIL.length;
+        if (length >= size) {
+            pool.release(buffer);
+            nextOutgoingFrame(frame, callback);
+            return;
+        }
+
+        buffer.position(0);
+        buffer.limit(length);
+        final ByteBuffer fbuffer = buffer;
+        final WriteCallback fcallback = callback;
+        WebSocketFrame deflated = new WebSocketFrame(frame.getOpCode());
+        deflated.setRsv1(true);
+        deflated.setPayload(buffer);
+        nextOutgoingFrame(deflated, new WriteCallback() {
+            public void writeSuccess () {
+                pool.release(fbuffer);
+                if (fcallback != null) fcallback.writeSuccess();
+            }
+            public void writeFailed (Throwable cause) {
+                if (fcallback != null) fcallback.writeFailed(cause);
+            }
+        });
+    }
+
+    @Override public String toString () {
+        return getClass().getSimpleName() + "[level=" + _level + ", deflate=" + _deflate + "]";
+    }
+
+    protected void releaseInflater () {
+        _inflater.reset();
+        _inflaters.offer(_inflater);
+        _inflater = null;
+    }
+
+    protected static Deflater deflater (int level) {
+        Deflater deflater = _deflaters[level+1].poll();
+        return (deflater == null) ? new Deflater(level, true) : deflater;
+    }
+
+    /** Our negotiated configuration. Jetty renders all extension parameters as {@code
+     * name=value}, but the RFC requires that some parameters be valueless, so we render empty
+     * valued parameters without a value. */
+    protected static class Config extends ExtensionConfig {
+        public Config () {
+            super(NAME);
+        }
+
+        @Override public String getParameterizedName () {
+            StringBuilder buf = new StringBuilder(getName());
+            for (Map.Entry<String,String> entry : getParameters().entrySet()) {
+                buf.append(';').append(entry.getKey());
+                if (entry.getValue().length() > 0) buf.append('=').append(entry.getValue());
+            }
+            return buf.toString();
+        }
+    }
+
+    /** The compression level with which we deflate outgoing messages. */
+    protected int _level;
+
+    /** Whether we compress outgoing messages. */
+    protected boolean _deflate = true;
+
+    /** The inflater for the incoming message currently being received, if it is compressed. */
+    protected Inflater _inflater;
+
+    /** The number of bytes inflated so far for the incoming message currently being received. */
+    protected int _inflated;
+
+    /** Deflaters that are not currently in use, indexed by compression level (plus one, to
+     * accommodate {@link Deflater#DEFAULT_COMPRESSION}). */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected static final Queue<Deflater>[] _deflaters = new Queue[11];
+    static {
+        for (int ii = 0; ii < _deflaters.length; ii++) {
+            _deflaters[ii] = new ConcurrentLinkedQueue<Deflater>();
+        }
+    }
+
+    /** Inflaters that are not currently in use. */
+    protected static final Queue<Inflater> _inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    /** A private parameter via which {@link #filterOffers} communicates our compression level. */
+    protected static final String LEVEL_PARAM = "x-nexus-level";
+
+    protected static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    protected static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    protected static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    protected static final int MAX_WINDOW_BITS = 15;
+
+    /** Messages smaller than this are not worth compressing. */
+    protected static final int MIN_DEFLATE_BYTES = 64;
+
+    /** The empty stored block which terminates each compressed message. */
+    protected static final byte[] TAIL = { 0, 0, (byte)0xFF, (byte)0xFF };
+
+    /** Jetty's (pre-RFC) compression extensions, which we do not negotiate. */
+    protected static final List<String> RSV1_EXTENSIONS = Arrays.asList(
+        "permessage-compress", "deflate-frame", "x-webkit-deflate-frame");
+}
@@ -0,0 +1,80 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks outbound message statistics for a group of web sockets: how many messages were sent,
+ * how many frames they were sent in, and how long messages waited between being queued and
+ * being written to the network.
+ */
+public class SendStats
+{
+    /** Returns the number of messages written. */
+    public long messages () {
+        return _messages.get();
+    }
+
+    /** Returns the number of frames written (which is less than the number of messages when
+     * messages are coalesced). */
+    public long frames () {
+        return _frames.get();
+    }
+
+    /** Returns the number of messages dropped (and sockets closed) due to queue overflow. */
+    public long overflows () {
+        return _overflows.get();
+    }
+
+    /** Returns the mean time between a message being queued and written, in nanoseconds. */
+    public long meanLatencyNanos () {
+        long messages = _messages.get();
+        return (messages == 0) ? 0 : _latency.get() / messages;
+    }
+
+    /** Returns the longest time between a message being queued and written, in nanoseconds. */
+    public long maxLatencyNanos () {
+        return _maxLatency.get();
+    }
+
+    /** Resets all statistics to zero. */
+    public void reset () {
+        _messages.set(0);
+        _frames.set(0);
+        _overflows.set(0);
+        _latency.set(0);
+        _maxLatency.set(0);
+    }
+
+    @Override public String toString () {
+        return "[messages=" + messages() + ", frames=" + frames() + ", overflows=" + overflows() +
+            ", meanLatency=" + meanLatencyNanos()/1000 + "us" +
+            ", maxLatency=" + maxLatencyNanos()/1000 + "us]";
+    }
+
+    /**
+     * Notes that a frame containing {@code messages} messages was written.
+     * @param totalLatency the sum of the latencies of the messages in the frame.
+     * @param maxLatency the latency of the longest waiting message in the frame.
+     */
+    protected void noteFrame (int messages, long totalLatency, long maxLatency) {
+        _messages.addAndGet(messages);
+        _frames.incrementAndGet();
+        _latency.addAndGet(totalLatency);
+        long max;
+        while ((max = _maxLatency.get()) < maxLatency) {
+            if (_maxLatency.compareAndSet(max, maxLatency)) break;
+        }
+    }
+
+    protected void noteOverflow () {
+        _overflows.incrementAndGet();
+    }
+
+    protected final AtomicLong _messages = new AtomicLong(), _frames = new AtomicLong();
+    protected final AtomicLong _overflows = new AtomicLong();
+    protected final AtomicLong _latency = new AtomicLong(), _maxLatency = new AtomicLong();
+}
@@ -0,0 +1,90 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the text and binary protocols: {@link #main} reports the payload sizes of each for
+ * the {@link IOTester} data, and then benchmarks encoding and decoding in each format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BinaryProtocolBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        BinaryProtocolBenchmark bench = new BinaryProtocolBenchmark();
+        bench.setup();
+        System.out.println("Basic types: text " + bench.textSize(true) + " bytes, binary " +
+                           bench.binarySize(true) + " bytes");
+        System.out.println("Values: text " + bench.textSize(false) + " bytes, binary " +
+                           bench.binarySize(false) + " bytes");
+        new Runner(new OptionsBuilder().
+                   include(BinaryProtocolBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup public void setup () {
+        IOTester.writeValues(GWTServerIO.newBinaryOutput(_szer, _binary));
+        ByteBuffer payload = _binary.getPayload();
+        _binaryValues = new byte[payload.remaining()];
+        payload.get(_binaryValues);
+    }
+
+    @Benchmark public String textEncode () {
+        IOTester.writeValues(GWTServerIO.newOutput(_szer, _text));
+        return _text.getPayload();
+    }
+
+    @Benchmark public ByteBuffer binaryEncode () {
+        IOTester.writeValues(GWTServerIO.newBinaryOutput(_szer, _binary));
+        return _binary.getPayload();
+    }
+
+    @Benchmark public Object textDecode () {
+        return GWTServerIO.newInput(_szer, IOTester.VALUES_OUT_PAYLOAD).readValue();
+    }
+
+    @Benchmark public Object binaryDecode () {
+        return GWTServerIO.newBinaryInput(_szer, ByteBuffer.wrap(_binaryValues)).readValue();
+    }
+
+    protected int textSize (boolean basic) {
+        if (basic) IOTester.writeBasicTypes(GWTServerIO.newOutput(_szer, _text));
+        else IOTester.writeValues(GWTServerIO.newOutput(_szer, _text));
+        return _text.getPayload().getBytes(Charset.forName("UTF-8")).length;
+    }
+
+    protected int binarySize (boolean basic) {
+        if (basic) IOTester.writeBasicTypes(GWTServerIO.newBinaryOutput(_szer, _binary));
+        else IOTester.writeValues(GWTServerIO.newBinaryOutput(_szer, _binary));
+        return _binary.getPayload().remaining();
+    }
+
+    protected final Serializer _szer = new TestSerializer();
+    protected final GWTServerIO.PayloadBuffer _text = new GWTServerIO.PayloadBuffer();
+    protected final GWTServerIO.BinaryPayloadBuffer _binary =
+        new GWTServerIO.BinaryPayloadBuffer();
+    protected byte[] _binaryValues;
+}
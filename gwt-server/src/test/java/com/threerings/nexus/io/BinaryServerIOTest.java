@@ -0,0 +1,97 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the binary server output and input (in conjunction with GwtTestIO in gwt-io).
+ */
+public class BinaryServerIOTest
+{
+    @Test
+    public void testBasicTypes () {
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        IOTester.writeBasicTypes(GWTServerIO.newBinaryOutput(new TestSerializer(), buf));
+        // System.out.println(toHex(buf.getPayload())); // for regeneration
+        assertEquals(IOTester.BT_BINARY_PAYLOAD, toHex(buf.getPayload()));
+        IOTester.checkBasicTypes(input(IOTester.BT_BINARY_PAYLOAD), CHECKER);
+    }
+
+    @Test
+    public void testValue () {
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        IOTester.writeValue(GWTServerIO.newBinaryOutput(new TestSerializer(), buf));
+        // System.out.println(toHex(buf.getPayload()));
+        assertEquals(IOTester.VALUE_BINARY_PAYLOAD, toHex(buf.getPayload()));
+        IOTester.checkValue(input(IOTester.VALUE_BINARY_PAYLOAD), CHECKER);
+    }
+
+    @Test
+    public void testValues () {
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        IOTester.writeValues(GWTServerIO.newBinaryOutput(new TestSerializer(), buf));
+        // System.out.println(toHex(buf.getPayload()));
+        assertEquals(IOTester.VALUES_BINARY_PAYLOAD, toHex(buf.getPayload()));
+        IOTester.checkValues(input(IOTester.VALUES_BINARY_PAYLOAD), CHECKER);
+    }
+
+    @Test
+    public void testStringEncoding () throws Exception {
+        String value = "nul\u0000 caf\u00e9 \u20ac \ud83d\ude00";
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        GWTServerIO.newBinaryOutput(new TestSerializer(), buf).writeString(value);
+        ByteBuffer payload = buf.getPayload();
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+
+        // strings are encoded as by DataOutput, which the client also mirrors
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+        Assert.assertTrue(din.readBoolean());
+        Assert.assertEquals(value, din.readUTF());
+        Assert.assertEquals(value, GWTServerIO.newBinaryInput(
+                                new TestSerializer(), payload).readString());
+    }
+
+    @Test
+    public void testBatch () {
+        List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+        payloads.add(ByteBuffer.wrap(IOTester.fromHex(IOTester.VALUE_BINARY_PAYLOAD)));
+        payloads.add(ByteBuffer.wrap(IOTester.fromHex(IOTester.BT_BINARY_PAYLOAD)));
+        ByteBuffer frame = ByteBuffer.allocate(GWTServerIO.batchSize(payloads, true));
+        GWTServerIO.encodeBatch(payloads, true, frame);
+        assertEquals(0, frame.remaining());
+        frame.flip();
+        assertEquals(IOTester.BATCH_BINARY_PAYLOAD, toHex(frame));
+    }
+
+    protected static Streamable.Input input (String hex) {
+        ByteBuffer data = ByteBuffer.wrap(IOTester.fromHex(hex));
+        return GWTServerIO.newBinaryInput(new TestSerializer(), data);
+    }
+
+    protected static String toHex (ByteBuffer payload) {
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return IOTester.toHex(data);
+    }
+
+    protected final IOTester.Checker CHECKER = new IOTester.Checker() {
+        public void assertEquals (Object expected, Object got) {
+            Assert.assertEquals(expected, got);
+        }
+        public void assertEquals (double expected, double got, double epsilon) {
+            Assert.assertEquals(expected, got, epsilon);
+        }
+    };
+}
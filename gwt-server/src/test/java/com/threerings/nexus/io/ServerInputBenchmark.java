@@ -0,0 +1,152 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gwt.user.server.Base64Utils;
+
+import com.threerings.nexus.distrib.DService;
+import com.threerings.nexus.distrib.NexusService;
+
+/**
+ * Compares the payload decoder against the original substring based decoder (preserved below as
+ * {@link LegacyInput}), using the {@link ServerInputTest} payloads. Run via {@link #main}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ServerInputBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(ServerInputBenchmark.class.getSimpleName()).
+                   addProfiler(GCProfiler.class).build()).run();
+    }
+
+    @Benchmark public Object legacyBasicTypes () {
+        return readBasicTypes(new LegacyInput(_szer, IOTester.BT_OUT_PAYLOAD));
+    }
+
+    @Benchmark public Object basicTypes () {
+        return readBasicTypes(GWTServerIO.newInput(_szer, IOTester.BT_OUT_PAYLOAD));
+    }
+
+    @Benchmark public Object legacyValues () {
+        return new LegacyInput(_szer, IOTester.VALUES_OUT_PAYLOAD).readValue();
+    }
+
+    @Benchmark public Object values () {
+        return GWTServerIO.newInput(_szer, IOTester.VALUES_OUT_PAYLOAD).readValue();
+    }
+
+    protected static long readBasicTypes (Streamable.Input in) {
+        // mirrors IOTester.checkBasicTypes, minus the checking
+        long sum = 0;
+        sum += in.readBoolean() ? 1 : 0;
+        sum += in.readBoolean() ? 1 : 0;
+        sum += in.readByte() + in.readByte() + in.readByte();
+        sum += in.readShort() + in.readShort() + in.readShort();
+        sum += in.readChar() + in.readChar() + in.readChar();
+        sum += in.readInt() + in.readInt() + in.readInt();
+        sum += in.readLong() + in.readLong() + in.readLong();
+        sum += (long)(in.readFloat() + in.readFloat() + in.readFloat());
+        sum += (long)(in.readDouble() + in.readDouble() + in.readDouble());
+        if (in.readString() != null) sum++;
+        sum += in.readString().length();
+        return sum;
+    }
+
+    /** The decoder as it was prior to decoding values in place; frozen here to serve as a
+     * baseline. */
+    protected static class LegacyInput extends Streamable.Input {
+        public LegacyInput (Serializer szer, final String data) {
+            _szer = szer;
+            _valiter = new Iterator<String>() {
+                public boolean hasNext () {
+                    return (_nextIdx != -1);
+                }
+                public String next () {
+                    if (_nextIdx == -1) throw new NoSuchElementException();
+                    String value = data.substring(_curIdx, _nextIdx);
+                    _curIdx = _nextIdx+1;
+                    _nextIdx = data.indexOf(ClientOutput.SEPARATOR, _curIdx);
+                    return value;
+                }
+                public void remove () {
+                    throw new UnsupportedOperationException();
+                }
+                protected int _curIdx = 0;
+                protected int _nextIdx = data.indexOf(ClientOutput.SEPARATOR);
+            };
+        }
+
+        @Override public boolean readBoolean () {
+            return _valiter.next().equals("1");
+        }
+        @Override public byte readByte () {
+            return Byte.parseByte(_valiter.next());
+        }
+        @Override public short readShort () {
+            return Short.parseShort(_valiter.next());
+        }
+        @Override public char readChar () {
+            return (char)readInt();
+        }
+        @Override public int readInt () {
+            return Integer.parseInt(_valiter.next());
+        }
+        @Override public long readLong () {
+            return Base64Utils.longFromBase64(_valiter.next());
+        }
+        @Override public float readFloat () {
+            return (float)readDouble();
+        }
+        @Override public double readDouble () {
+            return Double.parseDouble(_valiter.next());
+        }
+        @Override public String readString () {
+            return readBoolean() ? _valiter.next() : null;
+        }
+        @Override public <T extends Streamable> Class<T> readClass () {
+            @SuppressWarnings("unchecked") Class<T> c = (Class<T>)_szer.getClass(readShort());
+            return c;
+        }
+        @Override public <T extends NexusService> DService.Factory<T> readService () {
+            @SuppressWarnings("unchecked") DService.Factory<T> sf =
+                (DService.Factory<T>)_szer.getServiceFactory(readShort());
+            return sf;
+        }
+        @Override protected <T> Streamer<T> readStreamer () {
+            @SuppressWarnings("unchecked") Streamer<T> s =
+                (Streamer<T>)_szer.getStreamer(readShort());
+            return s;
+        }
+
+        protected final Serializer _szer;
+        protected final Iterator<String> _valiter;
+    }
+
+    protected final Serializer _szer = new TestSerializer();
+}
@@ -4,6 +4,10 @@
 
 package com.threerings.nexus.io;
 
+import java.util.NoSuchElementException;
+
+import com.google.gwt.user.server.Base64Utils;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -30,6 +34,49 @@ public class ServerInputTest
             GWTServerIO.newInput(new TestSerializer(), IOTester.VALUES_OUT_PAYLOAD), CHECKER);
     }
 
+    @Test
+    public void testNumberEdges () {
+        Streamable.Input in = GWTServerIO.newInput(
+            new TestSerializer(), "+5|-0|-2147483648|2147483647|-128|32767|");
+        Assert.assertEquals(5, in.readInt());
+        Assert.assertEquals(0, in.readInt());
+        Assert.assertEquals(Integer.MIN_VALUE, in.readInt());
+        Assert.assertEquals(Integer.MAX_VALUE, in.readInt());
+        Assert.assertEquals(Byte.MIN_VALUE, in.readByte());
+        Assert.assertEquals(Short.MAX_VALUE, in.readShort());
+    }
+
+    @Test
+    public void testLongDecoding () {
+        long[] values = { 0L, 1L, -1L, 64L, Long.MIN_VALUE, Long.MAX_VALUE, 0x123456789ABCDEFL };
+        StringBuilder buf = new StringBuilder();
+        for (long value : values) buf.append(Base64Utils.toBase64(value)).append('|');
+        Streamable.Input in = GWTServerIO.newInput(new TestSerializer(), buf);
+        for (long value : values) Assert.assertEquals(value, in.readLong());
+    }
+
+    @Test(expected=NumberFormatException.class)
+    public void testIntOverflow () {
+        GWTServerIO.newInput(new TestSerializer(), "2147483648|").readInt();
+    }
+
+    @Test(expected=NumberFormatException.class)
+    public void testShortOverflow () {
+        GWTServerIO.newInput(new TestSerializer(), "32768|").readShort();
+    }
+
+    @Test(expected=NumberFormatException.class)
+    public void testMalformedInt () {
+        GWTServerIO.newInput(new TestSerializer(), "12a|").readInt();
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void testUnderflow () {
+        Streamable.Input in = GWTServerIO.newInput(new TestSerializer(), "1|");
+        in.readInt();
+        in.readInt();
+    }
+
     protected final IOTester.Checker CHECKER = new IOTester.Checker() {
         public void assertEquals (Object expected, Object got) {
             Assert.assertEquals(expected, got);
@@ -0,0 +1,162 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gwt.user.server.Base64Utils;
+
+import com.threerings.nexus.distrib.DService;
+
+/**
+ * Compares the payload encoder against the original {@code StringBuffer} based encoder (preserved
+ * below as {@link LegacyOutput}). Run via {@link #main}; the GC profiler reports allocation rates
+ * alongside the timings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ServerOutputBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(ServerOutputBenchmark.class.getSimpleName()).
+                   addProfiler(GCProfiler.class).build()).run();
+    }
+
+    @Benchmark public String legacyBasicTypes () {
+        LegacyOutput out = new LegacyOutput(_szer, _legacy);
+        IOTester.writeBasicTypes(out);
+        return out.getPayload();
+    }
+
+    @Benchmark public String basicTypes () {
+        IOTester.writeBasicTypes(GWTServerIO.newOutput(_szer, _buffer));
+        return _buffer.getPayload();
+    }
+
+    @Benchmark public ByteBuffer legacyBasicTypesUTF8 () {
+        return UTF8.encode(legacyBasicTypes());
+    }
+
+    @Benchmark public ByteBuffer basicTypesUTF8 () {
+        IOTester.writeBasicTypes(GWTServerIO.newOutput(_szer, _buffer));
+        return encode(_buffer);
+    }
+
+    @Benchmark public String legacyValues () {
+        LegacyOutput out = new LegacyOutput(_szer, _legacy);
+        IOTester.writeValues(out);
+        return out.getPayload();
+    }
+
+    @Benchmark public String values () {
+        IOTester.writeValues(GWTServerIO.newOutput(_szer, _buffer));
+        return _buffer.getPayload();
+    }
+
+    @Benchmark public ByteBuffer legacyValuesUTF8 () {
+        return UTF8.encode(legacyValues());
+    }
+
+    @Benchmark public ByteBuffer valuesUTF8 () {
+        IOTester.writeValues(GWTServerIO.newOutput(_szer, _buffer));
+        return encode(_buffer);
+    }
+
+    protected ByteBuffer encode (GWTServerIO.PayloadBuffer buffer) {
+        int size = buffer.finishPayload();
+        if (_bytes.capacity() < size) _bytes = ByteBuffer.allocate(size);
+        _bytes.clear();
+        buffer.encodePayload(_bytes);
+        _bytes.flip();
+        return _bytes;
+    }
+
+    /** The encoder as it was prior to the introduction of {@link GWTServerIO.PayloadBuffer}'s
+     * direct appends; frozen here to serve as a baseline. */
+    protected static class LegacyOutput extends Streamable.Output {
+        public LegacyOutput (Serializer szer, StringBuffer buffer) {
+            _szer = szer;
+            _buffer = buffer;
+            _buffer.setLength(0);
+            _buffer.append('[');
+        }
+
+        public String getPayload () {
+            if (_buffer.length() == 1) _buffer.append(']');
+            else _buffer.setCharAt(_buffer.length()-1, ']');
+            return _buffer.toString();
+        }
+
+        @Override public void writeBoolean (boolean value) {
+            _buffer.append(value ? "1" : "0").append(',');
+        }
+        @Override public void writeByte (byte value) {
+            _buffer.append(String.valueOf(value)).append(',');
+        }
+        @Override public void writeShort (short value) {
+            _buffer.append(String.valueOf(value)).append(',');
+        }
+        @Override public void writeChar (char value) {
+            writeInt((int)value);
+        }
+        @Override public void writeInt (int value) {
+            _buffer.append(String.valueOf(value)).append(',');
+        }
+        @Override public void writeLong (long value) {
+            _buffer.append('\'').append(Base64Utils.toBase64(value)).append('\'').append(',');
+        }
+        @Override public void writeFloat (float value) {
+            writeDouble(value);
+        }
+        @Override public void writeDouble (double value) {
+            _buffer.append(String.valueOf(value)).append(',');
+        }
+        @Override public void writeString (String value) {
+            if (value == null) _buffer.append("null");
+            else _buffer.append('\"').append(value).append('\"');
+            _buffer.append(',');
+        }
+        @Override public void writeClass (Class<? extends Streamable> clazz) {
+            writeShort(_szer.getCode(clazz));
+        }
+        @Override public void writeService (DService<?> service) {
+            writeShort(_szer.getServiceCode(service.getServiceClass()));
+        }
+        @Override protected <T> Streamer<T> writeStreamer (T value) {
+            return _szer.<T>writeStreamer(this, value);
+        }
+
+        protected final Serializer _szer;
+        protected final StringBuffer _buffer;
+    }
+
+    protected final Serializer _szer = new TestSerializer();
+    protected final GWTServerIO.PayloadBuffer _buffer = new GWTServerIO.PayloadBuffer();
+    protected final StringBuffer _legacy = new StringBuffer();
+    protected ByteBuffer _bytes = ByteBuffer.allocate(1024);
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+}
@@ -4,6 +4,12 @@
 
 package com.threerings.nexus.io;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.user.server.Base64Utils;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -35,4 +41,42 @@ public class ServerOutputTest
         // System.out.println(buf.getPayload());
         assertEquals(IOTester.VALUES_IN_PAYLOAD, buf.getPayload());
     }
+
+    @Test
+    public void testLongEncoding () {
+        long[] values = { 0L, 1L, -1L, 63L, 64L, Long.MIN_VALUE, Long.MAX_VALUE,
+                          Integer.MIN_VALUE, Integer.MAX_VALUE, 0x123456789ABCDEFL };
+        for (long value : values) {
+            GWTServerIO.PayloadBuffer buf = new GWTServerIO.PayloadBuffer();
+            GWTServerIO.newOutput(new TestSerializer(), buf).writeLong(value);
+            assertEquals("['" + Base64Utils.toBase64(value) + "']", buf.getPayload());
+        }
+    }
+
+    @Test
+    public void testUTF8Encoding () throws Exception {
+        GWTServerIO.PayloadBuffer buf = new GWTServerIO.PayloadBuffer();
+        Streamable.Output out = GWTServerIO.newOutput(new TestSerializer(), buf);
+        out.writeString("ascii");
+        out.writeString("caf\u00e9 \u20ac \ud83d\ude00");
+        out.writeInt(42);
+        int size = buf.finishPayload();
+        byte[] expect = buf.getPayload().getBytes("UTF-8");
+        assertEquals(expect.length, size);
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        buf.encodePayload(bytes);
+        assertEquals(0, bytes.remaining());
+        assertArrayEquals(expect, bytes.array());
+    }
+
+    @Test
+    public void testBatch () throws Exception {
+        List<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+        payloads.add(ByteBuffer.wrap(IOTester.VALUE_IN_PAYLOAD.getBytes("UTF-8")));
+        payloads.add(ByteBuffer.wrap(IOTester.BT_IN_PAYLOAD.getBytes("UTF-8")));
+        ByteBuffer frame = ByteBuffer.allocate(GWTServerIO.batchSize(payloads, false));
+        GWTServerIO.encodeBatch(payloads, false, frame);
+        assertEquals(0, frame.remaining());
+        assertEquals(IOTester.BATCH_IN_PAYLOAD, new String(frame.array(), "UTF-8"));
+    }
 }
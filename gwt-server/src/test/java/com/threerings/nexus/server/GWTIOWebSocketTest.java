@@ -0,0 +1,64 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import com.threerings.nexus.net.Downstream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the outbound queueing of {@link GWTIOWebSocket}.
+ */
+public class GWTIOWebSocketTest
+{
+    @Test
+    public void testSynchronousWrites () {
+        // a socket whose writes complete immediately, during which another message is queued
+        final int[] depths = new int[2];
+        final GWTIOWebSocket sock = new GWTIOWebSocket(null, _szer) {
+            @Override protected void write (ByteBuffer frame, boolean binary, WriteCallback cb) {
+                int depth = Thread.currentThread().getStackTrace().length;
+                if (depths[0] == 0) depths[0] = depth;
+                depths[1] = Math.max(depths[1], depth);
+                if (++_writes < WRITES) send(new Downstream.ObjectCleared(_writes+1));
+                cb.writeSuccess();
+            }
+        };
+        sock._sess = openSession();
+        sock.send(new Downstream.ObjectCleared(1));
+
+        assertEquals(WRITES, _writes);
+        // each write should be issued from the same stack depth, rather than from the callback
+        // of the previous write
+        assertEquals(depths[0], depths[1]);
+        assertFalse(sock._writing);
+        assertEquals(0, sock._queuedBytes);
+    }
+
+    protected static Session openSession () {
+        return (Session)Proxy.newProxyInstance(
+            Session.class.getClassLoader(), new Class<?>[] { Session.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("isOpen")) return true;
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    protected int _writes;
+    protected final GWTLoadDriver.LoadSerializer _szer = new GWTLoadDriver.LoadSerializer();
+
+    protected static final int WRITES = 1000;
+}
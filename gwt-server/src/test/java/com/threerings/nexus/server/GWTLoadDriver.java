@@ -0,0 +1,215 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import react.RFuture;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import com.threerings.nexus.client.GWTClient;
+import com.threerings.nexus.distrib.Action;
+import com.threerings.nexus.distrib.Address;
+import com.threerings.nexus.distrib.Factory_TestService;
+import com.threerings.nexus.distrib.Streamer_TestObject;
+import com.threerings.nexus.distrib.TestObject;
+import com.threerings.nexus.distrib.TestService;
+import com.threerings.nexus.io.GWTIO;
+import com.threerings.nexus.io.GWTServerIO;
+import com.threerings.nexus.io.TestSerializer;
+import com.threerings.nexus.net.Upstream;
+
+/**
+ * Drives a {@link GWTConnectionManager} with many concurrent browser-like sessions (simulated via
+ * Jetty's WebSocket client, speaking the binary protocol), each of which subscribes to an object
+ * whose value is updated at a fixed rate. Reports delivery throughput and latency, the bytes
+ * received by the clients, and the CPU consumed. The manager is tuned via {@code nexus.gwt.*}
+ * system properties, so that configurations can be compared, for example:
+ *
+ * <pre>
+ * java -Dnexus.gwt.compression=false ... GWTLoadDriver 20000 60
+ * java -Dnexus.gwt.compression=true -Dnexus.gwt.compression_level=1 ... GWTLoadDriver 20000 60
+ * </pre>
+ *
+ * <p>Usage: {@code GWTLoadDriver [sessions] [seconds] [updates/sec] [update bytes]}. Both ends of
+ * every connection live in this process, so simulating 20k sessions requires a file descriptor
+ * limit above 40k, and the reported CPU time includes that of the simulated clients. Note that
+ * Jetty's client does not pass incoming frames through its extensions, so received messages are
+ * not inflated, and the reported byte counts are those of the payloads as sent on the wire.</p>
+ */
+public class GWTLoadDriver
+{
+    public static void main (String[] args) throws Exception {
+        int sessions = arg(args, 0, 1000), seconds = arg(args, 1, 30);
+        int rate = arg(args, 2, 10), size = arg(args, 3, 512);
+
+        Properties props = new Properties();
+        props.setProperty("nexus.node", "load");
+        props.setProperty("nexus.hostname", "localhost");
+        props.setProperty("nexus.rpc_timeout", "1000");
+        NexusConfig config = new NexusConfig(props);
+        boolean compress = config.getBoolean("nexus.gwt.compression", false);
+
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        NexusServer server = new NexusServer(config, exec);
+        GWTConnectionManager conmgr = new GWTConnectionManager(
+            server.getSessionManager(), new LoadSerializer(), "localhost", PORT,
+            GWTClient.DEFAULT_WS_PATH, config);
+        conmgr.start();
+        server.register(TestObject.class, new TestObject(
+            Factory_TestService.createDispatcher(new TestService() {
+                public RFuture<Integer> addOne (int value) {
+                    return RFuture.success(value+1);
+                }
+                public void launchMissiles () {}
+            })));
+
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        GWTServerIO.newBinaryOutput(new LoadSerializer(), buf).writeValue(
+            new Upstream.Subscribe(Address.create("localhost", TestObject.class)));
+        ByteBuffer subscribe = buf.getPayload();
+
+        WebSocketClient client = new WebSocketClient();
+        client.getExtensionFactory().register(
+            PerMessageDeflateExtension.NAME, PerMessageDeflateExtension.class);
+        client.start();
+
+        long start = System.currentTimeMillis();
+        URI uri = new URI("ws://localhost:" + PORT + GWTClient.DEFAULT_WS_PATH);
+        List<Future<Session>> connects = new ArrayList<Future<Session>>();
+        for (int ii = 0; ii < sessions; ii++) {
+            ClientUpgradeRequest req = new ClientUpgradeRequest();
+            req.setSubProtocols(GWTIO.BINARY_PROTOCOL);
+            if (compress) req.addExtensions(PerMessageDeflateExtension.NAME);
+            connects.add(client.connect(new LoadSocket(subscribe), uri, req));
+        }
+        List<Session> sockets = new ArrayList<Session>();
+        for (Future<Session> connect : connects) sockets.add(connect.get());
+        while (_subscribed.get() < sessions) Thread.sleep(10);
+        System.out.println("Connected and subscribed " + sessions + " sessions in " +
+                           (System.currentTimeMillis() - start) + "ms.");
+
+        conmgr.sendStats().reset();
+        _frames.set(0);
+        _bytes.set(0);
+        long startCpu = cpuTime();
+        final NexusServer fserver = server;
+        final String value = value(size);
+        final AtomicInteger updates = new AtomicInteger();
+        Timer timer = new Timer("Updater");
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run () {
+                final int update = updates.incrementAndGet();
+                fserver.invoke(TestObject.class, new Action<TestObject>() {
+                    public void invoke (TestObject obj) {
+                        obj.value.update(update + value);
+                    }
+                });
+            }
+        }, 0, 1000/rate);
+        Thread.sleep(seconds*1000L);
+        timer.cancel();
+        Thread.sleep(2000); // let the final updates drain
+        long cpu = cpuTime() - startCpu;
+
+        for (Session sock : sockets) sock.close();
+        client.stop();
+        conmgr.shutdown();
+        server.shutdown();
+        exec.shutdown();
+
+        SendStats stats = conmgr.sendStats();
+        long expected = (long)updates.get() * sessions;
+        System.out.println("Updates: " + updates.get() + " of " + size + " bytes, " +
+                           "delivered " + stats.messages() + " of " + expected +
+                           " messages in " + _frames.get() + " frames");
+        System.out.println("Throughput: " + (stats.messages() / seconds) + " msgs/s, " +
+                           "latency: mean " + stats.meanLatencyNanos()/1000 + "us, " +
+                           "max " + stats.maxLatencyNanos()/1000 + "us");
+        long frames = Math.max(_frames.get(), 1);
+        System.out.println("Bytes: " + _bytes.get() + " received (" + _bytes.get()/frames +
+                           " per frame)");
+        System.out.println("CPU: " + cpu/1000000 + "ms (" + (100*cpu/(seconds*1000000000L)) +
+                           "% of one core)");
+    }
+
+    protected static class LoadSerializer extends TestSerializer {
+        public LoadSerializer () {
+            mapStreamer(new Streamer_TestObject());
+            mapService(new Factory_TestService(), TestService.class);
+        }
+    }
+
+    protected static class LoadSocket implements WebSocketListener {
+        public LoadSocket (ByteBuffer subscribe) {
+            _subscribe = subscribe;
+        }
+
+        @Override public void onWebSocketConnect (Session session) {
+            try {
+                session.getRemote().sendBytes(_subscribe.duplicate());
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+            }
+        }
+        @Override public void onWebSocketBinary (byte[] payload, int offset, int len) {
+            if (!_gotSubscribe) {
+                _gotSubscribe = true;
+                _subscribed.incrementAndGet();
+            }
+            _frames.incrementAndGet();
+            _bytes.addAndGet(len);
+        }
+        @Override public void onWebSocketText (String message) {}
+        @Override public void onWebSocketClose (int statusCode, String reason) {}
+        @Override public void onWebSocketError (Throwable cause) {
+            cause.printStackTrace(System.err);
+        }
+
+        protected final ByteBuffer _subscribe;
+        protected boolean _gotSubscribe;
+    }
+
+    /** Creates an update value of roughly {@code size} bytes, resembling typical game state. */
+    protected static String value (int size) {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; buf.length() < size; ii++) {
+            buf.append("{\"id\":").append(ii).append(",\"x\":").append((ii * 37) % 1000).
+                append(",\"y\":").append((ii * 91) % 1000).append(",\"state\":\"idle\"},");
+        }
+        return buf.substring(0, size);
+    }
+
+    protected static long cpuTime () {
+        return ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    protected static int arg (String[] args, int idx, int defval) {
+        return (args.length > idx) ? Integer.parseInt(args[idx]) : defval;
+    }
+
+    protected static final AtomicInteger _subscribed = new AtomicInteger();
+    protected static final AtomicLong _frames = new AtomicLong();
+    protected static final AtomicLong _bytes = new AtomicLong();
+
+    protected static final int PORT = 8765;
+}
@@ -0,0 +1,182 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import react.RFuture;
+
+import com.threerings.nexus.distrib.Address;
+import com.threerings.nexus.distrib.Factory_TestService;
+import com.threerings.nexus.distrib.TestObject;
+import com.threerings.nexus.distrib.TestService;
+import com.threerings.nexus.io.GWTIO;
+import com.threerings.nexus.io.GWTServerIO;
+import com.threerings.nexus.net.Downstream;
+import com.threerings.nexus.net.Upstream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static com.threerings.nexus.util.Log.log;
+
+/**
+ * Tests the {@link GWTServerConnection} by speaking the WebSocket protocol over a raw socket.
+ */
+public class GWTServerConnectionTest
+{
+    @Before
+    public void startServer () throws IOException {
+        log.setWarnOnly(true);
+        Properties props = new Properties();
+        props.setProperty("nexus.node", "test");
+        props.setProperty("nexus.hostname", "localhost");
+        props.setProperty("nexus.rpc_timeout", "1000");
+        _exec = Executors.newFixedThreadPool(2);
+        _server = new NexusServer(new NexusConfig(props), _exec);
+        _server.register(TestObject.class, new TestObject(
+            Factory_TestService.createDispatcher(new TestService() {
+                public RFuture<Integer> addOne (int value) {
+                    return RFuture.success(value+1);
+                }
+                public void launchMissiles () {}
+            })));
+        _conmgr = new JVMConnectionManager(_server.getSessionManager());
+        _conmgr.listen("localhost", PORT, GWTServerConnection.factory(_szer));
+        _conmgr.start();
+    }
+
+    @After
+    public void stopServer () throws Exception {
+        _conmgr.disconnect();
+        _conmgr.shutdown();
+        _server.shutdown();
+        _exec.shutdown();
+        Thread.sleep(100); // give the reader and writer threads time to go away
+    }
+
+    @Test
+    public void testAcceptKey () {
+        // the example from RFC 6455
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=",
+                     GWTServerConnection.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void testRejectPath () throws IOException {
+        Socket sock = new Socket("localhost", PORT);
+        String resp = handshake(sock, "/notnexus", GWTIO.BINARY_PROTOCOL);
+        assertTrue(resp, resp.startsWith("HTTP/1.1 404"));
+        assertEquals(-1, sock.getInputStream().read()); // the server closes the socket
+        sock.close();
+    }
+
+    @Test
+    public void testSubscribe () throws IOException {
+        Socket sock = new Socket("localhost", PORT);
+        String resp = handshake(sock, "/nexusws", GWTIO.BINARY_PROTOCOL);
+        assertTrue(resp, resp.startsWith("HTTP/1.1 101"));
+        assertTrue(resp, resp.contains("Sec-WebSocket-Accept: " +
+                                       GWTServerConnection.acceptKey(KEY)));
+        assertTrue(resp, resp.contains("Sec-WebSocket-Protocol: " + GWTIO.BINARY_PROTOCOL));
+
+        // send a subscribe request, fragmented across two frames
+        GWTServerIO.BinaryPayloadBuffer buf = new GWTServerIO.BinaryPayloadBuffer();
+        GWTServerIO.newBinaryOutput(_szer, buf).writeValue(
+            new Upstream.Subscribe(Address.create("localhost", TestObject.class)));
+        byte[] subscribe = new byte[buf.getPayload().remaining()];
+        buf.getPayload().get(subscribe);
+        int half = subscribe.length/2;
+        OutputStream out = sock.getOutputStream();
+        out.write(frame(false, 0x2, Arrays.copyOfRange(subscribe, 0, half)));
+        out.write(frame(true, 0x0, Arrays.copyOfRange(subscribe, half, subscribe.length)));
+
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        byte[] payload = readFrame(in, 0x2);
+        Downstream msg = GWTServerIO.newBinaryInput(_szer, ByteBuffer.wrap(payload)).
+            <Downstream>readValue();
+        assertTrue(String.valueOf(msg), msg instanceof Downstream.Subscribe);
+
+        // pings are answered with pongs bearing the same payload
+        out.write(frame(true, 0x9, new byte[] { 1, 2, 3 }));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readFrame(in, 0xA));
+
+        // a close is echoed, after which the server closes the socket
+        out.write(frame(true, 0x8, new byte[] { 0x03, (byte)0xE8 }));
+        assertArrayEquals(new byte[] { 0x03, (byte)0xE8 }, readFrame(in, 0x8));
+        assertEquals(-1, in.read());
+        sock.close();
+    }
+
+    @Test
+    public void testMaxMessageSize () throws IOException {
+        // connections obtain their limit from the connection manager
+        _conmgr.setMaxMessageSize(64);
+        Socket sock = new Socket("localhost", PORT);
+        String resp = handshake(sock, "/nexusws", GWTIO.BINARY_PROTOCOL);
+        assertTrue(resp, resp.startsWith("HTTP/1.1 101"));
+
+        sock.getOutputStream().write(frame(true, 0x2, new byte[100]));
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        assertArrayEquals(new byte[] { 0x03, (byte)0xF1 }, readFrame(in, 0x8)); // 1009
+        assertEquals(-1, in.read());
+        sock.close();
+    }
+
+    protected static String handshake (Socket sock, String path, String protocol)
+        throws IOException {
+        String req = "GET " + path + " HTTP/1.1\r\n" +
+            "Host: localhost:" + PORT + "\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: keep-alive, Upgrade\r\n" +
+            "Sec-WebSocket-Key: " + KEY + "\r\n" +
+            "Sec-WebSocket-Version: 13\r\n" +
+            "Sec-WebSocket-Protocol: " + protocol + "\r\n\r\n";
+        sock.getOutputStream().write(req.getBytes("ISO-8859-1"));
+        // read the response headers byte by byte, so as not to consume any frames
+        StringBuilder resp = new StringBuilder();
+        while (resp.length() < 4 || !resp.substring(resp.length()-4).equals("\r\n\r\n")) {
+            int b = sock.getInputStream().read();
+            if (b < 0) break;
+            resp.append((char)b);
+        }
+        return resp.toString();
+    }
+
+    protected static byte[] frame (boolean fin, int opcode, byte[] payload) {
+        // clients must mask their frames (and payloads here are always short)
+        byte[] mask = { 0x12, 0x34, 0x56, 0x78 };
+        ByteBuffer frame = ByteBuffer.allocate(6 + payload.length);
+        frame.put((byte)((fin ? 0x80 : 0) | opcode)).put((byte)(0x80 | payload.length)).put(mask);
+        for (int ii = 0; ii < payload.length; ii++) frame.put((byte)(payload[ii] ^ mask[ii % 4]));
+        return frame.array();
+    }
+
+    protected static byte[] readFrame (DataInputStream in, int opcode) throws IOException {
+        assertEquals(0x80 | opcode, in.readUnsignedByte());
+        int length = in.readUnsignedByte();
+        assertEquals("Server frames must not be masked", 0, length & 0x80);
+        if (length == 126) length = in.readUnsignedShort();
+        else if (length == 127) length = (int)in.readLong();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    protected final GWTLoadDriver.LoadSerializer _szer = new GWTLoadDriver.LoadSerializer();
+    protected ExecutorService _exec;
+    protected NexusServer _server;
+    protected JVMConnectionManager _conmgr;
+
+    protected static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    protected static final int PORT = 8766;
+}
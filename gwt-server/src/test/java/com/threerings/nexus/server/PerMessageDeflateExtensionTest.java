@@ -0,0 +1,187 @@
+//
+// Nexus GWTServer - server-side support for Nexus GWT/WebSockets services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.websocket.api.MessageTooLargeException;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.IncomingFrames;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link PerMessageDeflateExtension}.
+ */
+public class PerMessageDeflateExtensionTest
+{
+    @Test
+    public void testFilterOffers () {
+        UpgradeRequest req = new UpgradeRequest("ws://localhost/nexusws");
+        req.addExtensions("x-webkit-deflate-frame", "permessage-deflate; client_max_window_bits",
+                          "permessage-deflate", "identity");
+        PerMessageDeflateExtension.filterOffers(req, true, 3);
+        assertEquals(2, req.getExtensions().size());
+        ExtensionConfig offer = req.getExtensions().get(0);
+        assertEquals("permessage-deflate", offer.getName());
+        assertEquals(3, offer.getParameter("x-nexus-level", -1));
+        assertEquals("identity", req.getExtensions().get(1).getName());
+
+        req = new UpgradeRequest("ws://localhost/nexusws");
+        req.addExtensions("permessage-deflate", "identity");
+        PerMessageDeflateExtension.filterOffers(req, false, 3);
+        assertEquals(1, req.getExtensions().size());
+        assertEquals("identity", req.getExtensions().get(0).getName());
+    }
+
+    @Test
+    public void testNegotiation () {
+        PerMessageDeflateExtension ext = create("permessage-deflate; client_max_window_bits");
+        String config = ext.getConfig().getParameterizedName();
+        assertTrue(config.startsWith("permessage-deflate;"));
+        // the RFC requires that these parameters have no value
+        assertTrue(config.contains(";server_no_context_takeover"));
+        assertTrue(config.contains(";client_no_context_takeover"));
+        assertFalse(config.contains("="));
+
+        // we can't honor a reduced window, so we accept it but don't compress
+        ext = create("permessage-deflate; server_max_window_bits=10");
+        assertTrue(ext.getConfig().getParameterizedName().endsWith(";server_max_window_bits=10"));
+        byte[] message = message(1000);
+        ext.outgoingFrame(WebSocketFrame.binary(message), null);
+        assertFalse(_outgoing.get(0).isRsv1());
+        assertArrayEquals(message, bytes(_outgoing.get(0).getPayload()));
+    }
+
+    @Test
+    public void testDeflate () throws Exception {
+        PerMessageDeflateExtension ext = create("permessage-deflate");
+        byte[] message = message(1000);
+        for (int ii = 0; ii < 2; ii++) {
+            ext.outgoingFrame(WebSocketFrame.text().setPayload(message), null);
+            Frame frame = _outgoing.get(ii);
+            assertTrue(frame.isRsv1());
+            assertTrue(frame.isFin());
+            assertEquals(WebSocketFrame.text().getOpCode(), frame.getOpCode());
+            assertTrue(frame.getPayloadLength() < message.length);
+            // without context takeover, each message must inflate independently
+            assertArrayEquals(message, inflate(bytes(frame.getPayload())));
+        }
+
+        // small messages are sent as is
+        byte[] small = message(10);
+        ext.outgoingFrame(WebSocketFrame.binary(small), null);
+        assertFalse(_outgoing.get(2).isRsv1());
+        assertArrayEquals(small, bytes(_outgoing.get(2).getPayload()));
+    }
+
+    @Test
+    public void testInflate () {
+        PerMessageDeflateExtension ext = create("permessage-deflate");
+        byte[] message = message(5000);
+        ext.incomingFrame(WebSocketFrame.binary(deflate(message)).setRsv1(true));
+        assertFalse(_incoming.get(0).isRsv1());
+        assertArrayEquals(message, bytes(_incoming.get(0).getPayload()));
+
+        // a compressed message fragmented across frames
+        byte[] data = deflate(message);
+        int half = data.length/2;
+        ext.incomingFrame(WebSocketFrame.binary(Arrays.copyOfRange(data, 0, half)).
+                          setRsv1(true).setFin(false));
+        WebSocketFrame cont = new WebSocketFrame((byte)0);
+        cont.setContinuation(true);
+        cont.setPayload(Arrays.copyOfRange(data, half, data.length));
+        ext.incomingFrame(cont);
+        byte[] inflated = concat(bytes(_incoming.get(1).getPayload()),
+                                 bytes(_incoming.get(2).getPayload()));
+        assertArrayEquals(message, inflated);
+
+        // uncompressed messages pass through untouched
+        ext.incomingFrame(WebSocketFrame.binary(message));
+        assertArrayEquals(message, bytes(_incoming.get(3).getPayload()));
+    }
+
+    @Test(expected=MessageTooLargeException.class)
+    public void testInflateTooLarge () {
+        PerMessageDeflateExtension ext = create("permessage-deflate");
+        byte[] message = new byte[(int)ext.getPolicy().getMaxMessageSize()+1];
+        ext.incomingFrame(WebSocketFrame.binary(deflate(message)).setRsv1(true));
+    }
+
+    protected PerMessageDeflateExtension create (String offer) {
+        PerMessageDeflateExtension ext = new PerMessageDeflateExtension();
+        ext.setConfig(ExtensionConfig.parse(offer));
+        ext.setPolicy(WebSocketPolicy.newServerPolicy());
+        ext.setBufferPool(new ArrayByteBufferPool());
+        ext.setNextOutgoingFrames(new OutgoingFrames() {
+            public void outgoingFrame (Frame frame, WriteCallback callback) {
+                _outgoing.add(frame);
+            }
+        });
+        ext.setNextIncomingFrames(new IncomingFrames() {
+            public void incomingError (WebSocketException error) {
+                fail("Unexpected error " + error);
+            }
+            public void incomingFrame (Frame frame) {
+                _incoming.add(frame);
+            }
+        });
+        return ext;
+    }
+
+    protected static byte[] message (int length) {
+        byte[] message = new byte[length];
+        for (int ii = 0; ii < length; ii++) message[ii] = (byte)("nexus".charAt(ii % 5) + ii/100);
+        return message;
+    }
+
+    protected static byte[] bytes (ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.slice().get(data);
+        return data;
+    }
+
+    protected static byte[] concat (byte[] a, byte[] b) {
+        byte[] data = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, data, a.length, b.length);
+        return data;
+    }
+
+    // deflates as would a browser: a sync flush, with the trailing empty block removed
+    protected static byte[] deflate (byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        byte[] output = new byte[data.length + 64];
+        int length = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        return Arrays.copyOf(output, length-4);
+    }
+
+    protected static byte[] inflate (byte[] data) throws Exception {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(concat(data, new byte[] { 0, 0, (byte)0xFF, (byte)0xFF }));
+        byte[] output = new byte[64*1024];
+        int length = inflater.inflate(output);
+        inflater.end();
+        return Arrays.copyOf(output, length);
+    }
+
+    protected List<Frame> _outgoing = new ArrayList<Frame>();
+    protected List<Frame> _incoming = new ArrayList<Frame>();
+}
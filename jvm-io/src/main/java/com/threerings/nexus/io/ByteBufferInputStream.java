@@ -4,12 +4,15 @@
 
 package com.threerings.nexus.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /**
- * Provides an {@link InputStream} interface to a {@link ByteBuffer}.
+ * Provides an {@link InputStream} interface to a {@link ByteBuffer}. The stream may span multiple
+ * buffers (for example, the fragments of a large message): when the current buffer is exhausted,
+ * {@link #nextBuffer} is called to obtain the next one.
  */
 public class ByteBufferInputStream extends InputStream
 {
@@ -17,18 +20,59 @@ public class ByteBufferInputStream extends InputStream
      * Configures the buffer from which data should be read.
      */
     public void setBuffer (ByteBuffer buffer) {
+        setBuffer(buffer, null);
+    }
+
+    /**
+     * Configures the buffer from which data should be read, and the lease that guards the
+     * buffer's backing array. If a lease is supplied, slices read via {@link #readSlice} will
+     * view the buffer's data (holding a reference on the lease) rather than copying it.
+     */
+    public void setBuffer (ByteBuffer buffer, ByteSlice.Lease lease) {
         _buffer = buffer;
+        _lease = lease;
+    }
+
+    /**
+     * Reads a slice of {@code length} bytes from this stream. If possible, the slice will view the
+     * data in our buffer, otherwise the data will be copied.
+     */
+    public ByteSlice readSlice (int length) throws IOException {
+        if (_lease != null && _buffer.hasArray() && _buffer.remaining() >= length) {
+            int pos = _buffer.position();
+            ByteSlice slice = new ByteSlice(
+                _buffer.array(), _buffer.arrayOffset() + pos, length, _lease);
+            _buffer.position(pos + length);
+            return slice;
+        }
+
+        byte[] data = new byte[length];
+        for (int off = 0; off < length; ) {
+            int read = read(data, off, length - off);
+            if (read < 0) throw new EOFException();
+            off += read;
+        }
+        return ByteSlice.wrap(data);
     }
 
     @Override
     public int read () throws IOException {
         // note: we don't rely on "-1 signals EOF" behavior, so we just let read() fail if one
         // attempts to read past the end of the buffer
+        if (!_buffer.hasRemaining()) {
+            advance();
+        }
         return _buffer.get() & 0xFF;
     }
 
     @Override
     public int read (byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!_buffer.hasRemaining() && !advance()) {
+            return -1;
+        }
         int count = Math.min(_buffer.remaining(), len);
         _buffer.get(b, off, count);
         return count;
@@ -44,5 +88,39 @@ public class ByteBufferInputStream extends InputStream
         return _buffer.remaining();
     }
 
+    /**
+     * Called when the current buffer is exhausted to obtain the buffer from which reading should
+     * continue. The default implementation returns null, indicating that no data remains. If the
+     * returned buffer is guarded by a lease, the implementation may supply it via {@link
+     * #setLease}, otherwise slices will be copied out of the returned buffer.
+     */
+    protected ByteBuffer nextBuffer () throws IOException {
+        return null;
+    }
+
+    /**
+     * Switches to the next non-empty buffer, if one is available.
+     * @return false if no further data is available.
+     */
+    protected boolean advance () throws IOException {
+        _lease = null;
+        ByteBuffer next;
+        while ((next = nextBuffer()) != null) {
+            _buffer = next;
+            if (next.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Configures the lease that guards the backing array of our current buffer.
+     */
+    protected void setLease (ByteSlice.Lease lease) {
+        _lease = lease;
+    }
+
     protected ByteBuffer _buffer;
+    protected ByteSlice.Lease _lease;
 }
@@ -10,7 +10,14 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 
 /**
- * Handles the reading of network data into frames of explicit length.
+ * Handles the reading of network data into frames of explicit length. A frame may be a fragment
+ * of a larger message (see {@link FramingOutputStream#FRAGMENT_FLAG}), in which case {@link
+ * #isFragment} will return true after it is read, and the message continues in the next frame.
+ *
+ * <p>Frames are views into a buffer that is reused for subsequent frames. Byte slices decoded from
+ * a frame may instead view its data in place, in which case they hold a reference on the reader's
+ * current {@link #lease}; if any such reference is outstanding when the reader moves on, the
+ * buffer is handed off to the slices and the reader continues with a fresh buffer.</p>
  */
 public class FrameReader
 {
@@ -32,7 +39,16 @@ public class FrameReader
             // the end of our existing data, and set the limit to the capacity
             _buffer.limit(_have);
             _buffer.position(_length);
-            _buffer.compact();
+            if (_lease.isRetained()) {
+                // slices still view the old frame, so we can't overwrite it; leave the old buffer
+                // to them and move our remaining data into a new buffer
+                ByteBuffer newbuf = ByteBuffer.allocate(_buffer.capacity());
+                newbuf.put(_buffer);
+                _buffer = newbuf;
+                _lease = new ByteSlice.Lease();
+            } else {
+                _buffer.compact();
+            }
             _have -= _length;
 
             // we may have picked up the next frame in a previous read, so try decoding the length
@@ -75,6 +91,7 @@ public class FrameReader
             ByteBuffer newbuf = ByteBuffer.allocate(_buffer.capacity() << 1);
             newbuf.put((ByteBuffer)_buffer.flip());
             _buffer = newbuf;
+            _lease = new ByteSlice.Lease();
 
             // don't let things grow without bounds
         } while (_buffer.capacity() < MAX_BUFFER_CAPACITY);
@@ -83,6 +100,22 @@ public class FrameReader
         return checkForCompleteFrame();
     }
 
+    /**
+     * Returns true if the frame most recently returned by {@link #readFrame} is a fragment of a
+     * larger message, which continues in the next frame.
+     */
+    public boolean isFragment () {
+        return _fragment;
+    }
+
+    /**
+     * Returns the lease that guards the buffer viewed by the frame most recently returned by
+     * {@link #readFrame}. Slices that view that frame must hold a reference on this lease.
+     */
+    public ByteSlice.Lease lease () {
+        return _lease;
+    }
+
     /**
      * Decodes and returns the length of the current frame from the buffer, if possible. Returns -1
      * otherwise.
@@ -90,7 +123,7 @@ public class FrameReader
     protected final int decodeLength () {
         // if we don't have enough bytes to determine our frame size, stop here and let the caller
         // know that we're not ready
-        return (_have < HEADER_SIZE) ? -1 : _buffer.getInt(0);
+        return (_have < HEADER_SIZE) ? -1 : (_buffer.getInt(0) & ~FramingOutputStream.FRAGMENT_FLAG);
     }
 
     /**
@@ -102,6 +135,9 @@ public class FrameReader
             return null;
         }
 
+        // note whether this frame is a fragment of a larger message
+        _fragment = (_buffer.getInt(0) & FramingOutputStream.FRAGMENT_FLAG) != 0;
+
         // prepare the buffer such that this frame can be read
         _buffer.position(HEADER_SIZE);
         _buffer.limit(_length);
@@ -111,9 +147,15 @@ public class FrameReader
     /** The buffer in which we maintain our frame data. */
     protected ByteBuffer _buffer = ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY);
 
+    /** Tracks references to our buffer held by byte slices. */
+    protected ByteSlice.Lease _lease = new ByteSlice.Lease();
+
     /** The length of the current frame being read. */
     protected int _length = -1;
 
+    /** Whether the most recently returned frame is a fragment. */
+    protected boolean _fragment;
+
     /** The number of bytes total that we have in our buffer (these bytes may comprise more than
      * one frame). */
     protected int _have = 0;
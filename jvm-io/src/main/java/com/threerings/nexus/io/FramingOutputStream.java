@@ -7,6 +7,8 @@ package com.threerings.nexus.io;
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The framing output stream accumulates output into a byte array just like the byte array output
@@ -16,13 +18,59 @@ import java.nio.ByteBuffer;
  * the data is written need not be buffered because the framed output is written in a single call
  * to {@link #write}.
  *
+ * <p>A framing output stream may optionally be configured with a maximum frame size, in which case
+ * a message that grows beyond that size is delivered as a series of fragment frames (each of
+ * which is flagged via {@link #FRAGMENT_FLAG} in its length header) followed by a final, normal
+ * frame. Fragments are delivered to a {@link FragmentSink} as soon as they fill up, so that
+ * neither side of the connection need ever hold the entire message in one buffer.</p>
+ *
+ * <p>Large {@link ByteSlice}s written via {@link #writeSlice} are not copied into our buffer, but
+ * are instead gathered: a frame is returned by {@link #frameAndReturnBuffers} as a sequence of
+ * buffers, some of which view our internal buffer and some of which (the read-only ones) view the
+ * data of gathered slices. Only slices that wrap an immutable array are gathered; slices decoded
+ * from a received frame view a buffer that is reused once they are released, so they are copied
+ * (as are small slices).</p>
+ *
  * <p><em>Note:</em> The framing output stream does not synchronize writes to its internal buffer.
  * It is intended to only be accessed from a single thread.</p>
  */
 public class FramingOutputStream extends OutputStream
 {
+    /** Receives the fragments of frames that exceed the maximum frame size. */
+    public interface FragmentSink {
+        /**
+         * Called with each fragment of an oversized frame, in order. The supplied buffers are only
+         * valid for the duration of this call, and must be copied if they are to be retained; the
+         * exception is read-only buffers, which contain (immutable) gathered slice data.
+         */
+        void onFragment (ByteBuffer[] fragment);
+    }
+
+    /** A bit set in the frame length header to indicate that the frame is a fragment of a larger
+     * message which continues in the next frame. */
+    public static final int FRAGMENT_FLAG = 0x80000000;
+
+    /** The maximum frame size used by the Nexus client and server connections. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Creates a framing output stream that will accumulate frames of arbitrary size.
+     */
     public FramingOutputStream () {
+        this(Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a framing output stream that will deliver frames larger than {@code maxFrameSize}
+     * (which includes the frame header) to {@code sink} as a series of fragments.
+     */
+    public FramingOutputStream (int maxFrameSize, FragmentSink sink) {
+        if (maxFrameSize <= HEADER_PAD.length) {
+            throw new IllegalArgumentException("Invalid max frame size " + maxFrameSize);
+        }
         _buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        _maxFrameSize = maxFrameSize;
+        _sink = sink;
     }
 
     /**
@@ -31,24 +79,74 @@ public class FramingOutputStream extends OutputStream
     public void prepareFrame () {
         _buffer.clear();
         _buffer.put(HEADER_PAD);
+        _gathered.clear();
+        _gatheredBytes = 0;
     }
 
     /**
      * Writes the frame length to the beginning of our buffer (which must have been prepared via a
-     * call to {@link #prepareFrame}) and returns it for writing to the appropriate channel.
+     * call to {@link #prepareFrame}) and returns it for writing to the appropriate channel. If
+     * slices were gathered into this frame, they are copied into a newly allocated buffer; use
+     * {@link #frameAndReturnBuffers} to avoid that copy.
      */
     public ByteBuffer frameAndReturnBuffer () {
-        // flip the buffer which will limit it to its current position
-        _buffer.flip();
-        // then write the frame length
-        _buffer.putInt(_buffer.limit());
-        // and rewind back to the start of the buffer so that all the data is available
-        _buffer.rewind();
-        return _buffer;
+        ByteBuffer[] buffers = frame(0);
+        if (buffers.length == 1) {
+            return buffers[0];
+        }
+        ByteBuffer frame = ByteBuffer.allocate(_buffer.limit() + _gatheredBytes);
+        for (ByteBuffer buffer : buffers) {
+            frame.put(buffer);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Writes the frame length to the beginning of our buffer (which must have been prepared via a
+     * call to {@link #prepareFrame}) and returns the frame as a sequence of buffers, suitable for
+     * a gathering write to the appropriate channel. The returned array and the (non-read-only)
+     * buffers therein are only valid until the next call to {@link #prepareFrame}.
+     */
+    public ByteBuffer[] frameAndReturnBuffers () {
+        return frame(0);
+    }
+
+    /**
+     * Writes the supplied slice to this stream. If the slice is large enough to make it
+     * worthwhile, and its data is immutable, its data is not copied, but rather gathered into the
+     * frame as a separate buffer.
+     */
+    public void writeSlice (ByteSlice slice) {
+        // a leased slice views a receive buffer, which will be overwritten once the slice is
+        // released (likely before the frame is written), so we must copy it; this also avoids
+        // keeping a large receive buffer alive on behalf of a small slice
+        if (slice._length < MIN_GATHER_SIZE || slice._lease != null) {
+            write(slice._data, slice._offset, slice._length);
+            return;
+        }
+
+        int off = slice._offset, len = slice._length;
+        while (len > 0) {
+            int room = _maxFrameSize - frameSize();
+            if (room <= 0) {
+                flushFragment();
+                continue;
+            }
+            int count = Math.min(room, len);
+            _gathered.add(new Gathered(_buffer.position(), ByteBuffer.wrap(
+                slice._data, off, count).asReadOnlyBuffer()));
+            _gatheredBytes += count;
+            off += count;
+            len -= count;
+        }
     }
 
     @Override
     public void write (int b) {
+        if (frameSize() >= _maxFrameSize) {
+            flushFragment();
+        }
         try {
             _buffer.put((byte)b);
         } catch (BufferOverflowException boe) {
@@ -67,14 +165,88 @@ public class FramingOutputStream extends OutputStream
             return;
         }
 
-        try {
-            _buffer.put(b, off, len);
-        } catch (BufferOverflowException boe) {
-            expand(len);
-            _buffer.put(b, off, len);
+        while (len > 0) {
+            int room = _maxFrameSize - frameSize();
+            if (room <= 0) {
+                flushFragment();
+                continue;
+            }
+            int count = Math.min(room, len);
+            try {
+                _buffer.put(b, off, count);
+            } catch (BufferOverflowException boe) {
+                expand(count);
+                _buffer.put(b, off, count);
+            }
+            off += count;
+            len -= count;
         }
     }
 
+    /**
+     * Returns the size of the frame accumulated thus far, including its header.
+     */
+    protected final int frameSize () {
+        return _buffer.position() + _gatheredBytes;
+    }
+
+    /**
+     * Writes the supplied flags and the frame length to the beginning of our buffer and returns
+     * the frame as a sequence of buffers, the first of which contains the frame header.
+     */
+    protected ByteBuffer[] frame (int flags) {
+        int size = frameSize();
+        // flip the buffer which will limit it to its current position
+        _buffer.flip();
+        // then write the frame length
+        _buffer.putInt(size | flags);
+        // and rewind back to the start of the buffer so that all the data is available
+        _buffer.rewind();
+
+        // if we gathered no slices, our buffer contains the entire frame
+        if (_gathered.isEmpty()) {
+            _single[0] = _buffer;
+            return _single;
+        }
+
+        // otherwise interleave views of our buffer with the gathered slice data
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(2*_gathered.size()+1);
+        int start = 0;
+        for (Gathered g : _gathered) {
+            if (g.position > start) {
+                buffers.add(view(start, g.position));
+            }
+            buffers.add(g.data);
+            start = g.position;
+        }
+        if (_buffer.limit() > start) {
+            buffers.add(view(start, _buffer.limit()));
+        }
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     * Returns a view of the specified region of our buffer.
+     */
+    protected ByteBuffer view (int start, int end) {
+        ByteBuffer view = _buffer.duplicate();
+        view.limit(end);
+        view.position(start);
+        return view;
+    }
+
+    /**
+     * Delivers the data accumulated thus far to our sink as a fragment, and prepares our buffer
+     * to accumulate the remainder of the frame.
+     */
+    protected void flushFragment () {
+        if (_sink == null) {
+            throw new IllegalStateException("Frame exceeds maximum size and no fragment sink");
+        }
+        _sink.onFragment(frame(FRAGMENT_FLAG));
+        prepareFrame();
+    }
+
     /**
      * Expands our buffer to accomodate the specified capacity.
      */
@@ -90,12 +262,43 @@ public class FramingOutputStream extends OutputStream
         }
     }
 
+    /** Records a slice gathered into the current frame. */
+    protected static class Gathered {
+        /** The position in our buffer at which the slice data belongs. */
+        public final int position;
+        /** A read-only buffer that views the slice data. */
+        public final ByteBuffer data;
+
+        public Gathered (int position, ByteBuffer data) {
+            this.position = position;
+            this.data = data;
+        }
+    }
+
     /** The buffer in which we store our frame data. */
     protected ByteBuffer _buffer;
 
+    /** The slices gathered into the current frame, in order. */
+    protected final List<Gathered> _gathered = new ArrayList<Gathered>();
+
+    /** The total number of bytes in {@link #_gathered}. */
+    protected int _gatheredBytes;
+
+    /** Used to return single-buffer frames without allocation. */
+    protected final ByteBuffer[] _single = new ByteBuffer[1];
+
+    /** The size (including the header) beyond which frames are delivered as fragments. */
+    protected final int _maxFrameSize;
+
+    /** The sink that receives our fragments, or null. */
+    protected final FragmentSink _sink;
+
     /** The default initial size of the internal buffer. */
     protected static final int INITIAL_BUFFER_SIZE = 32;
 
+    /** Slices smaller than this are simply copied into our buffer rather than gathered. */
+    protected static final int MIN_GATHER_SIZE = 256;
+
     /** Used to pad the beginning of our buffer so that we can later write the frame length. */
     protected static final byte[] HEADER_PAD = new byte[4];
 }
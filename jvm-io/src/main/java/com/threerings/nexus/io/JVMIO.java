@@ -34,10 +34,13 @@ public class JVMIO
 {
     /**
      * Returns a {@link Streamable#Input} that obtains its underlying data from the supplied input
-     * stream.
+     * stream. If the stream is a {@link ByteBufferInputStream}, byte slices will be read as views
+     * into its buffer where possible.
      */
     public static Streamable.Input newInput (InputStream in) {
         final DataInputStream din = new DataInputStream(in);
+        final ByteBufferInputStream bin =
+            (in instanceof ByteBufferInputStream) ? (ByteBufferInputStream)in : null;
         return new Streamable.Input() {
             @Override public boolean readBoolean () {
                 try {
@@ -103,6 +106,18 @@ public class JVMIO
                 }
             }
 
+            @Override public ByteSlice readByteSlice () {
+                try {
+                    int length = din.readInt();
+                    if (bin != null) return bin.readSlice(length);
+                    byte[] data = new byte[length];
+                    din.readFully(data);
+                    return ByteSlice.wrap(data);
+                } catch (IOException ioe) {
+                    throw new StreamException(ioe);
+                }
+            }
+
             @Override public String readString () {
                 try {
                     return din.readBoolean() ? din.readUTF() : null;
@@ -187,10 +202,18 @@ public class JVMIO
 
     /**
      * Returns a {@link Streamable#Output} that writes encoded data to the supplied output stream.
+     * If the stream is a {@link FramingOutputStream}, byte slices will be gathered into the frame
+     * rather than copied.
      */
     public static Streamable.Output newOutput (OutputStream out) {
         final DataOutputStream dout = new DataOutputStream(out);
-        return new Streamable.Output() {
+        final FramingOutputStream fout =
+            (out instanceof FramingOutputStream) ? (FramingOutputStream)out : null;
+        return new Output() {
+            @Override public int definitionsWritten () {
+                return _nextStreamerCode + _nextServiceCode;
+            }
+
             @Override public void writeBoolean (boolean value) {
                 try {
                     dout.writeBoolean(value);
@@ -255,6 +278,16 @@ public class JVMIO
                 }
             }
 
+            @Override public void writeByteSlice (ByteSlice slice) {
+                try {
+                    dout.writeInt(slice._length);
+                    if (fout != null) fout.writeSlice(slice);
+                    else dout.write(slice._data, slice._offset, slice._length);
+                } catch (IOException ioe) {
+                    throw new StreamException(ioe);
+                }
+            }
+
             @Override public void writeString (String value) {
                 try {
                     if (value == null) {
@@ -363,8 +396,25 @@ public class JVMIO
         };
     }
 
+    /**
+     * Returns the number of class and service definitions written to date by {@code out}, which
+     * must have been created by {@link #newOutput}. The first time a class (or service) is
+     * written to an output, its definition is written along with it, and subsequent messages
+     * assume that the reader has seen that definition. Thus if this count changes while writing a
+     * message, the message must be delivered, in order, even if it is later superseded.
+     */
+    public static int definitionsWritten (Streamable.Output out) {
+        return ((Output)out).definitionsWritten();
+    }
+
     private JVMIO () {} // no constructy
 
+    /** The outputs created by {@link #newOutput}. */
+    protected static abstract class Output extends Streamable.Output {
+        /** See {@link JVMIO#definitionsWritten}. */
+        public abstract int definitionsWritten ();
+    }
+
     protected static String makeAuxName (String cname, String prefix) {
         int didx = cname.lastIndexOf(".");
         // the below works whether didx is -1 or a valid index
@@ -415,6 +465,10 @@ public class JVMIO
         mapStreamer(19, new Streamers.Streamer_List(), ArrayList.class);
         mapStreamer(20, new Streamers.Streamer_Set(), HashSet.class);
         mapStreamer(21, new Streamers.Streamer_Map(), HashMap.class);
+        // map the streamers for other special types
+        mapStreamer(22, new Streamers.Streamer_ByteSlice(), ByteSlice.class);
+        mapStreamer(23, new Streamers.Streamer_RefScope(), Streamers.RefScope.class);
+        mapStreamer(24, new Streamers.Streamer_BackRef(), Streamers.BackRef.class);
     }
 
     protected static final Map<Short,Streamer<?>> STREAMERS = Maps.newHashMap();
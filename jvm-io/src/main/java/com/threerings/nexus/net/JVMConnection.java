@@ -11,6 +11,7 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SocketChannel;
 
 import java.util.concurrent.BlockingQueue;
@@ -23,6 +24,7 @@ import com.threerings.nexus.io.ByteBufferInputStream;
 import com.threerings.nexus.io.FrameReader;
 import com.threerings.nexus.io.FramingOutputStream;
 import com.threerings.nexus.io.JVMIO;
+import com.threerings.nexus.io.StreamException;
 import com.threerings.nexus.io.Streamable;
 import com.threerings.nexus.util.Log;
 
@@ -171,8 +173,9 @@ public class JVMConnection extends Connection
                         continue;
                     }
 
-                    // decode the message from the frame data and pass it on
-                    _bin.setBuffer(frame);
+                    // decode the message from the frame data and pass it on; if the frame is a
+                    // fragment, the rest of the message is read on demand as it is decoded
+                    _bin.setBuffer(frame, _reader.lease());
                     onReceive(_sin.<Downstream>readValue());
                     // TODO: if decoding fails, proceed to the next frame and keep going?
                 }
@@ -196,7 +199,17 @@ public class JVMConnection extends Connection
 
         protected ByteChannel _channel;
         protected FrameReader _reader = new FrameReader();
-        protected ByteBufferInputStream _bin = new ByteBufferInputStream();
+        protected ByteBufferInputStream _bin = new ByteBufferInputStream() {
+            @Override protected ByteBuffer nextBuffer () throws IOException {
+                // if the frame we just consumed was a fragment, the message continues in the
+                // next frame, so block until it arrives
+                if (!_reader.isFragment()) return null;
+                ByteBuffer frame;
+                while ((frame = _reader.readFrame(_channel)) == null) {}
+                setLease(_reader.lease());
+                return frame;
+            }
+        };
         protected Streamable.Input _sin = JVMIO.newInput(_bin);
     }
 
@@ -226,12 +239,7 @@ public class JVMConnection extends Connection
                     _sout.writeValue(msg);
 
                     // frame and write the data to the output stream
-                    ByteBuffer buffer = _fout.frameAndReturnBuffer();
-                    int wrote = _channel.write(buffer);
-                    if (wrote != buffer.limit()) {
-                        _log.warning("Failed to write complete message!", "msg", msg,
-                                     "size", buffer.limit(), "wrote", wrote);
-                    }
+                    write(_fout.frameAndReturnBuffers());
 
                 } catch (Throwable t) {
                     _log.warning("Error writing network data", "msg", msg, t);
@@ -244,8 +252,32 @@ public class JVMConnection extends Connection
             closeChannel(_channel);
         }
 
+        protected void write (ByteBuffer[] buffers) {
+            try {
+                if (_channel instanceof GatheringByteChannel) {
+                    // our channel is blocking, so this will write everything in one go
+                    ((GatheringByteChannel)_channel).write(buffers);
+                } else {
+                    for (ByteBuffer buffer : buffers) {
+                        _channel.write(buffer);
+                    }
+                }
+                ByteBuffer last = buffers[buffers.length-1];
+                if (last.hasRemaining()) {
+                    _log.warning("Failed to write complete frame!", "remaining", last.remaining());
+                }
+            } catch (IOException ioe) {
+                throw new StreamException(ioe);
+            }
+        }
+
         protected ByteChannel _channel;
-        protected FramingOutputStream _fout = new FramingOutputStream();
+        protected FramingOutputStream _fout = new FramingOutputStream(
+            FramingOutputStream.DEFAULT_MAX_FRAME_SIZE, new FramingOutputStream.FragmentSink() {
+                public void onFragment (ByteBuffer[] fragment) {
+                    write(fragment);
+                }
+            });
         protected Streamable.Output _sout = JVMIO.newOutput(_fout);
     }
 
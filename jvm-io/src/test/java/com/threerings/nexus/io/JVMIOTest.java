@@ -6,8 +6,14 @@ package com.threerings.nexus.io;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -146,11 +152,194 @@ public class JVMIOTest
         });
     }
 
+    @Test
+    public void testLargeSequence () {
+        final List<Integer> ints = new ArrayList<Integer>();
+        for (int ii = 0; ii < 3*Short.MAX_VALUE + 17; ii++) ints.add(ii);
+        final Map<String,Integer> map = new HashMap<String,Integer>();
+        for (int ii = 0; ii < 2*Short.MAX_VALUE; ii++) map.put("k" + ii, ii);
+        testStreaming(new StreamTester() {
+            public void writeTest (Streamable.Output out) {
+                out.writeValue(ints);
+                out.writeValue(map);
+            }
+            public void readTest (Streamable.Input in) {
+                assertEquals(ints, in.<List<Integer>>readValue());
+                assertEquals(map, in.<Map<String,Integer>>readValue());
+            }
+        });
+    }
+
+    @Test
+    public void testFragmentedFrames () throws IOException {
+        final List<Widget> widgets = new ArrayList<Widget>();
+        for (int ii = 0; ii < 5000; ii++) widgets.addAll(Widget.WS);
+
+        // write two messages, the first of which is fragmented, into a single "channel"
+        final ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        final int maxFrame = 1024;
+        final int[] fragments = { 0 };
+        FramingOutputStream fout = new FramingOutputStream(
+            maxFrame, new FramingOutputStream.FragmentSink() {
+                public void onFragment (ByteBuffer[] fragment) {
+                    assertEquals(1, fragment.length);
+                    assertTrue(fragment[0].remaining() <= maxFrame);
+                    fragments[0]++;
+                    write(channel, fragment);
+                }
+            });
+        Streamable.Output sout = JVMIO.newOutput(fout);
+        fout.prepareFrame();
+        sout.writeValue(widgets);
+        write(channel, fout.frameAndReturnBuffers());
+        fout.prepareFrame();
+        sout.writeValue("Done!");
+        write(channel, fout.frameAndReturnBuffers());
+        assertTrue(fragments[0] > 1);
+
+        // now read them back out, reassembling the fragments as we go
+        final ReadableByteChannel source = Channels.newChannel(
+            new ByteArrayInputStream(channel.toByteArray()));
+        final FrameReader reader = new FrameReader();
+        ByteBufferInputStream bin = new ByteBufferInputStream() {
+            @Override protected ByteBuffer nextBuffer () throws IOException {
+                return reader.isFragment() ? reader.readFrame(source) : null;
+            }
+        };
+        Streamable.Input sin = JVMIO.newInput(bin);
+        bin.setBuffer(reader.readFrame(source));
+        assertTrue(reader.isFragment());
+        assertEquals(widgets, sin.<List<Widget>>readValue());
+        bin.setBuffer(reader.readFrame(source));
+        assertFalse(reader.isFragment());
+        assertEquals("Done!", sin.<String>readValue());
+    }
+
+    @Test
+    public void testByteSlice () {
+        final byte[] data = new byte[1000];
+        for (int ii = 0; ii < data.length; ii++) data[ii] = (byte)ii;
+        final ByteSlice slice = ByteSlice.wrap(data, 100, 500);
+        testStreaming(new StreamTester() {
+            public void writeTest (Streamable.Output out) {
+                out.writeValue(slice);
+                out.writeByteSlice(ByteSlice.wrap(new byte[0]));
+            }
+            public void readTest (Streamable.Input in) {
+                ByteSlice read = in.readValue();
+                assertEquals(slice, read);
+                assertEquals(data[100], read.get(0));
+                assertEquals(0, in.readByteSlice().length());
+            }
+        });
+    }
+
+    @Test
+    public void testZeroCopyByteSlice () throws IOException {
+        byte[] data1 = new byte[4000], data2 = new byte[4000];
+        for (int ii = 0; ii < data1.length; ii++) {
+            data1[ii] = (byte)ii;
+            data2[ii] = (byte)(ii * 7);
+        }
+        ByteSlice slice1 = ByteSlice.wrap(data1), slice2 = ByteSlice.wrap(data2);
+
+        // slices should be gathered into the frame rather than copied into the stream's buffer
+        ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        FramingOutputStream fout = new FramingOutputStream();
+        Streamable.Output sout = JVMIO.newOutput(fout);
+        fout.prepareFrame();
+        sout.writeValue(slice1);
+        sout.writeValue("after");
+        ByteBuffer[] buffers = fout.frameAndReturnBuffers();
+        assertEquals(3, buffers.length);
+        assertTrue(buffers[1].isReadOnly());
+        assertEquals(data1.length, buffers[1].remaining());
+        write(channel, buffers);
+        fout.prepareFrame();
+        sout.writeValue(slice2);
+        write(channel, fout.frameAndReturnBuffers());
+
+        // on the way back in, slices should view the frame data
+        ReadableByteChannel source = Channels.newChannel(
+            new ByteArrayInputStream(channel.toByteArray()));
+        FrameReader reader = new FrameReader();
+        ByteBufferInputStream bin = new ByteBufferInputStream();
+        Streamable.Input sin = JVMIO.newInput(bin);
+        ByteBuffer frame = reader.readFrame(source);
+        bin.setBuffer(frame, reader.lease());
+        ByteSlice read1 = sin.readValue();
+        assertSame(frame.array(), read1._data);
+        assertEquals(slice1, read1);
+        assertEquals("after", sin.<String>readValue());
+
+        // our retained slice must survive the reading of subsequent frames
+        frame = reader.readFrame(source);
+        bin.setBuffer(frame, reader.lease());
+        ByteSlice read2 = sin.readValue();
+        assertNotSame(read1._data, read2._data);
+        assertEquals(slice1, read1);
+        assertEquals(slice2, read2);
+        read1.release();
+        read2.release();
+        assertFalse(reader.lease().isRetained());
+    }
+
+    @Test
+    public void testDeduplication () {
+        // create a map whose many values share a few widgets, which share a wangle
+        Widget.Wangle wangle = new Widget.Wangle(42);
+        List<Widget> teams = new ArrayList<Widget>();
+        for (Widget.Color color : Widget.Color.values()) {
+            teams.add(new Widget(color, color.name().toLowerCase(), wangle));
+        }
+        final Map<String,Widget> map = new HashMap<String,Widget>();
+        for (int ii = 0; ii < 1000; ii++) map.put("player" + ii, teams.get(ii % teams.size()));
+
+        int plainSize = streamedSize(new StreamTester() {
+            public void writeTest (Streamable.Output out) {
+                out.writeValue(map);
+                out.writeValue("after");
+            }
+            public void readTest (Streamable.Input in) {
+                assertEquals(map, in.readValue());
+                assertEquals("after", in.readValue());
+            }
+        });
+        int dedupSize = streamedSize(new StreamTester() {
+            public void writeTest (Streamable.Output out) {
+                out.writeDeduplicatedValue(map);
+                out.writeValue("after");
+            }
+            public void readTest (Streamable.Input in) {
+                Map<String,Widget> read = in.readValue();
+                assertEquals(map, read);
+                // the shared references should be shared on the other side as well
+                assertSame(read.get("player0"), read.get("player3"));
+                assertSame(read.get("player0")._wangle, read.get("player1")._wangle);
+                assertEquals("after", in.readValue());
+            }
+        });
+        assertTrue(plainSize + " vs " + dedupSize, dedupSize < plainSize * 2 / 3);
+    }
+
+    protected static void write (ByteArrayOutputStream out, ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            out.write(data, 0, data.length);
+        }
+    }
+
     protected void testStreaming (StreamTester tester) {
+        streamedSize(tester);
+    }
+
+    protected int streamedSize (StreamTester tester) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         Streamable.Output sout = JVMIO.newOutput(out);
         tester.writeTest(sout);
         tester.readTest(JVMIO.newInput(new ByteArrayInputStream(out.toByteArray())));
+        return out.size();
     }
 
     protected interface StreamTester {
@@ -23,10 +23,31 @@ import static com.threerings.nexus.util.Log.log;
 
 /**
  * Handles listening for Nexus connections and reading and writing over the sockets. Interacts with
- * a {@link SessionManager} to source and sink messages.
+ * a {@link SessionManager} to source and sink messages. By default, sockets speak the Nexus
+ * binary protocol, but a listening socket may be supplied with a {@link ConnectionFactory} that
+ * creates connections which speak some other protocol (WebSockets, for example).
  */
 public class JVMConnectionManager
 {
+    /**
+     * Creates the connections for sockets accepted on a listening socket.
+     */
+    public interface ConnectionFactory {
+        /** Creates a connection that will handle I/O for the supplied newly accepted socket. */
+        JVMServerConnection createConnection (JVMConnectionManager cmgr, SocketChannel chan);
+    }
+
+    /** The default maximum size (in bytes) of a message received from a client. */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 512 * 1024;
+
+    /** A factory that creates connections which speak the Nexus binary protocol. */
+    public static final ConnectionFactory DEFAULT_FACTORY = new ConnectionFactory() {
+        public JVMServerConnection createConnection (JVMConnectionManager cmgr,
+                                                     SocketChannel chan) {
+            return new JVMServerConnection(cmgr, chan);
+        }
+    };
+
     /**
      * Creates a connection manager that will listen for connections on the specified host/port
      * combination and establish sessions with the supplied session manager.
@@ -36,6 +57,23 @@ public class JVMConnectionManager
         _selector = Selector.open();
     }
 
+    /**
+     * Configures the maximum size (in bytes) of a message received from a client. A client that
+     * sends a larger message (in fragments, each of which is limited in size) is disconnected.
+     * Defaults to {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public void setMaxMessageSize (int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("Max message size must be positive");
+        _maxMessageSize = maxSize;
+    }
+
+    /**
+     * Returns the maximum size (in bytes) of a message received from a client.
+     */
+    public int maxMessageSize () {
+        return _maxMessageSize;
+    }
+
     /**
      * Binds a listening socket on the specified host and port.
      * @param bindHost the address on which to listen, or null to listen on 0.0.0.0.
@@ -43,6 +81,18 @@ public class JVMConnectionManager
      * @throws IOException if a failure occurs binding the socket.
      */
     public void listen (String bindHost, int bindPort) throws IOException {
+        listen(bindHost, bindPort, DEFAULT_FACTORY);
+    }
+
+    /**
+     * Binds a listening socket on the specified host and port, the connections to which will be
+     * handled by connections created by {@code factory}.
+     * @param bindHost the address on which to listen, or null to listen on 0.0.0.0.
+     * @param bindPort the port on which to listen.
+     * @throws IOException if a failure occurs binding the socket.
+     */
+    public void listen (String bindHost, int bindPort, final ConnectionFactory factory)
+        throws IOException {
         final ServerSocketChannel ssocket = ServerSocketChannel.open();
         ssocket.configureBlocking(false);
         InetSocketAddress addr = Strings.isNullOrEmpty(bindHost) ?
@@ -52,7 +102,7 @@ public class JVMConnectionManager
         SelectionKey key = ssocket.register(_selector, SelectionKey.OP_ACCEPT);
         key.attach(new IOHandler() {
             public void handleIO () {
-                handleAccept(ssocket);
+                handleAccept(ssocket, factory);
             }
         });
         _ssocks.add(ssocket);
@@ -136,7 +186,7 @@ public class JVMConnectionManager
     /**
      * Called when one of our listening sockets has a connection ready to be accepted.
      */
-    protected void handleAccept (ServerSocketChannel ssock) {
+    protected void handleAccept (ServerSocketChannel ssock, ConnectionFactory factory) {
         SocketChannel chan = null;
         try {
             chan = ssock.accept();
@@ -147,12 +197,9 @@ public class JVMConnectionManager
             }
             chan.configureBlocking(false);
             SelectionKey key = chan.register(_selector, SelectionKey.OP_READ);
-            JVMServerConnection conn = new JVMServerConnection(this, chan);
-            String ipaddr = chan.socket().getInetAddress().toString();
-            SessionManager.Input sess = _smgr.createSession(ipaddr, conn);
-            conn.setSession(sess);
+            JVMServerConnection conn = factory.createConnection(this, chan);
             key.attach(conn);
-            log.info("Started new session " + sess);
+            conn.accepted(_smgr, chan.socket().getInetAddress().toString());
 
         } catch (IOException ioe) {
             log.warning("Failure accepting connected socket", "ssock", ssock, ioe);
@@ -258,6 +305,9 @@ public class JVMConnectionManager
     /** Our list of listening sockets. */
     protected List<ServerSocketChannel> _ssocks = Lists.newArrayList();
 
+    /** The maximum size (in bytes) of a message received from a client. */
+    protected volatile int _maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
     /** A queue of connections that have outgoing messages. */
     protected BlockingQueue<JVMServerConnection> _outq =
         new LinkedBlockingQueue<JVMServerConnection>();
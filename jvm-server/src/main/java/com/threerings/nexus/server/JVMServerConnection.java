@@ -9,9 +9,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.threerings.nexus.distrib.DistribUtil;
 import com.threerings.nexus.io.ByteBufferInputStream;
 import com.threerings.nexus.io.FrameReader;
 import com.threerings.nexus.io.FramingOutputStream;
@@ -24,6 +29,15 @@ import static com.threerings.nexus.util.Log.log;
 
 /**
  * Handles a connection to a single client.
+ *
+ * <p>When a client is slow to read its messages, attribute changes queued for it may be
+ * conflated: a change to the same state (the same object, attribute and, for maps, key; see
+ * {@link DistribUtil#conflationKey}) as a change that is queued but not yet being written
+ * replaces the queued change in place, so that a lagging client catches up directly to the
+ * current state rather than working through a backlog of stale changes. Frames that introduce
+ * a class to the client (which later frames assume it has seen) are never replaced, nor are
+ * changes queued before an event that cannot be conflated (such as a compound event) that
+ * targets the same object.</p>
  */
 public class JVMServerConnection
     implements JVMConnectionManager.IOHandler, SessionManager.Output
@@ -37,18 +51,36 @@ public class JVMServerConnection
         _input = input;
     }
 
+    /**
+     * Called by the connection manager when this connection's socket has been accepted.
+     * Establishes this connection's session, but connections that must first complete a
+     * handshake with the client may postpone that.
+     */
+    public void accepted (SessionManager smgr, String ipaddr) {
+        setSession(smgr.createSession(ipaddr, this));
+        log.info("Started new session " + _input);
+    }
+
     /**
      * Called by the connection manager I/O writer thread to instruct this connection to write its
      * pending outgoing messages.
      */
     public void writeMessages () {
         try {
-            ByteBuffer frame;
+            Frame frame;
             while ((frame = _outq.peek()) != null) {
                 // if we've been closed, stop trying to write
                 if (!_chan.isOpen()) return;
-                _chan.write(frame);
-                if (frame.remaining() > 0) {
+                if (frame == CLOSE_FRAME) {
+                    clearQueue();
+                    onClose(null);
+                    return;
+                }
+                // once we start writing a frame, it can no longer be replaced
+                if (frame.key != null) startWriting(frame);
+                ByteBuffer[] buffers = frame.buffers;
+                _chan.write(buffers);
+                if (buffers[buffers.length-1].hasRemaining()) {
                     // partial write, requeue ourselves and finish the job later
                     _cmgr.requeueWriter(this);
                     return;
@@ -64,9 +96,9 @@ public class JVMServerConnection
         } catch (IOException ioe) {
             // because we may still be lingering in the connection manager's writable queue, clear
             // out our outgoing queue so that any final calls to writeMessages NOOP
-            _outq.clear();
+            clearQueue();
             // now let the usual suspects know that we failed
-            _input.onSendError(ioe);
+            if (_input != null) _input.onSendError(ioe);
             onClose(ioe);
         }
     }
@@ -75,21 +107,37 @@ public class JVMServerConnection
     public synchronized void send (Downstream msg) {
         // we may be called from many threads, this method is serialized to avoid conflicting
         // accesses to the output streams
+        Object key = conflationKey(msg);
+        int defs = JVMIO.definitionsWritten(_sout);
+        _fragmented = false;
         _fout.prepareFrame();
         _sout.writeValue(msg);
-        ByteBuffer buffer = _fout.frameAndReturnBuffer();
-
-        // as we do not control the supplied buffer, and we may not be able to write it fully to
-        // the outgoing socket, we have to copy it; we could also take this opportunity to copy it
-        // into a direct buffer, which may improve I/O performance; someday perhaps we'll measure
-        // performance with and without such an optimization
-        ByteBuffer frame = ByteBuffer.allocate(buffer.limit()-buffer.position());
-        frame.put(buffer);
-        frame.flip();
-
-        // add this frame to our output queue and tell the connection manager that we're writable
-        _outq.offer(frame);
-        _cmgr.queueWriter(this);
+        ByteBuffer[] buffers = _fout.frameAndReturnBuffers();
+        if (JVMIO.definitionsWritten(_sout) != defs) {
+            // this message introduces classes to the client, so the frames queued before it must
+            // not be replaced by frames that assume those classes, nor may it be replaced
+            clearConflated();
+            key = null;
+        } else if (key != null && _fragmented) {
+            // the leading fragments of this message are already queued, so it cannot replace a
+            // queued frame, nor may a later frame replace one queued before it
+            _conflated.remove(key);
+            key = null;
+        } else if (key == null && msg instanceof Downstream.DispatchEvent) {
+            // this event may change state that queued frames also change (a compound event
+            // bundles such changes, say), so a later change must not replace a frame queued
+            // before it
+            clearConflated(((Downstream.DispatchEvent)msg).event.targetId);
+        }
+        enqueue(buffers, key);
+    }
+
+    /**
+     * Returns the number of queued messages that have been replaced by newer messages with the
+     * same conflation key.
+     */
+    public long conflatedCount () {
+        return _conflatedCount;
     }
 
     // from interface SessionManager.Output
@@ -107,11 +155,34 @@ public class JVMServerConnection
             // keep reading and processing frames while we have them
             ByteBuffer frame;
             while ((frame = _reader.readFrame(_chan)) != null) {
+                // if this is a fragment of a larger message, hang onto it until the rest arrives
+                if (_reader.isFragment()) {
+                    // don't let a client make us buffer a message of unbounded size
+                    _fragmentBytes += frame.remaining();
+                    int maxSize = _cmgr.maxMessageSize();
+                    if (_fragmentBytes > maxSize) {
+                        log.warning("Dropping client that sent oversized message", "chan", _chan,
+                                    "size", _fragmentBytes, "max", maxSize);
+                        _fragments.clear();
+                        _fragmentBytes = 0;
+                        throw new IOException("Message exceeds maximum size of " + maxSize);
+                    }
+                    _fragments.offer(copy(frame));
+                    continue;
+                }
                 try {
-                    _bin.setBuffer(frame);
+                    if (_fragments.isEmpty()) {
+                        _bin.setBuffer(frame, _reader.lease());
+                    } else {
+                        _fragments.offer(frame);
+                        _bin.setBuffer(_fragments.poll());
+                    }
                     _input.onMessage(_sin.<Upstream>readValue());
                 } catch (Throwable t) {
                     log.warning("Failure decoding incoming message", "chan", _chan, t);
+                } finally {
+                    _fragments.clear();
+                    _fragmentBytes = 0;
                 }
             }
 
@@ -125,6 +196,96 @@ public class JVMServerConnection
         }
     }
 
+    /**
+     * Adds the supplied frame (or frame fragment) to our output queue and tells the connection
+     * manager that we're writable.
+     */
+    protected void enqueue (ByteBuffer[] buffers) {
+        enqueue(buffers, null);
+    }
+
+    /**
+     * Adds the supplied frame to our output queue, replacing the queued frame with the same
+     * conflation key, if any. See {@link #enqueueOwned(ByteBuffer[],Object)}.
+     */
+    protected void enqueue (ByteBuffer[] buffers, Object key) {
+        // as we do not control the supplied buffers, and we may not be able to write them fully
+        // to the outgoing socket, we have to copy them; we could also take this opportunity to
+        // copy them into direct buffers, which may improve I/O performance; someday perhaps we'll
+        // measure performance with and without such an optimization; read-only buffers contain
+        // gathered slice data, which is immutable (the output stream copies slices that view
+        // receive buffers), so those we can queue as is
+        ByteBuffer[] frame = new ByteBuffer[buffers.length];
+        for (int ii = 0; ii < buffers.length; ii++) {
+            frame[ii] = buffers[ii].isReadOnly() ? buffers[ii] : copy(buffers[ii]);
+        }
+        enqueueOwned(frame, key);
+    }
+
+    /**
+     * Adds the supplied frame to our output queue without copying it. The caller must not modify
+     * the frame's buffers after this call.
+     */
+    protected void enqueueOwned (ByteBuffer[] frame) {
+        enqueueOwned(frame, null);
+    }
+
+    /**
+     * Adds the supplied frame to our output queue without copying it. If {@code key} is non-null
+     * and a frame with the same key is queued and not yet being written, the supplied frame
+     * replaces that frame (in its place in the queue) rather than being added. The caller must
+     * not modify the frame's buffers after this call.
+     */
+    protected void enqueueOwned (ByteBuffer[] frame, Object key) {
+        if (key == null) _outq.offer(new Frame(frame, null));
+        else synchronized (this) {
+            Frame queued = _conflated.get(key);
+            if (queued != null) {
+                queued.buffers = frame;
+                _conflatedCount++;
+                return; // the writer has already been told about the queued frame
+            }
+            queued = new Frame(frame, key);
+            _conflated.put(key, queued);
+            _outq.offer(queued);
+        }
+        _cmgr.queueWriter(this);
+    }
+
+    /**
+     * Closes our socket once all frames queued prior to this call have been written.
+     */
+    protected void closeWhenFlushed () {
+        _outq.offer(CLOSE_FRAME);
+        _cmgr.queueWriter(this);
+    }
+
+    /**
+     * Notes that we're about to write the supplied conflatable frame, after which a later frame
+     * with its key must be queued anew.
+     */
+    protected synchronized void startWriting (Frame frame) {
+        if (_conflated.get(frame.key) == frame) _conflated.remove(frame.key);
+    }
+
+    protected synchronized void clearConflated () {
+        _conflated.clear();
+    }
+
+    /**
+     * Clears the conflatable frames that change the state of the specified object.
+     */
+    protected synchronized void clearConflated (int targetId) {
+        for (Iterator<Object> iter = _conflated.keySet().iterator(); iter.hasNext(); ) {
+            if (DistribUtil.conflationTarget(iter.next()) == targetId) iter.remove();
+        }
+    }
+
+    protected synchronized void clearQueue () {
+        _outq.clear();
+        _conflated.clear();
+    }
+
     protected void onClose (IOException cause) {
         if (!_chan.isOpen()) return; // if we're already closed, then ignore this
         try {
@@ -135,16 +296,67 @@ public class JVMServerConnection
         }
     }
 
+    /**
+     * Returns the key identifying the state changed by the supplied message, if a later message
+     * with the same key supersedes it, or null.
+     */
+    protected static Object conflationKey (Downstream msg) {
+        return (msg instanceof Downstream.DispatchEvent) ?
+            DistribUtil.conflationKey(((Downstream.DispatchEvent)msg).event) : null;
+    }
+
+    protected static ByteBuffer copy (ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+
     protected final JVMConnectionManager _cmgr;
     protected final SocketChannel _chan;
     protected SessionManager.Input _input;
 
     // these are used for message I/O
-    protected final ByteBufferInputStream _bin = new ByteBufferInputStream();
+    protected final ByteBufferInputStream _bin = new ByteBufferInputStream() {
+        @Override protected ByteBuffer nextBuffer () {
+            return _fragments.poll();
+        }
+    };
     protected final Streamable.Input _sin = JVMIO.newInput(_bin);
-    protected final FramingOutputStream _fout = new FramingOutputStream();
+    protected final FramingOutputStream _fout = new FramingOutputStream(
+        FramingOutputStream.DEFAULT_MAX_FRAME_SIZE, new FramingOutputStream.FragmentSink() {
+            public void onFragment (ByteBuffer[] fragment) {
+                _fragmented = true;
+                enqueue(fragment);
+            }
+        });
     protected final Streamable.Output _sout = JVMIO.newOutput(_fout);
 
     protected final FrameReader _reader = new FrameReader();
-    protected final Queue<ByteBuffer> _outq = new ConcurrentLinkedQueue<ByteBuffer>();
+    /** The fragments of a partially received message (or of the message being decoded). */
+    protected final Queue<ByteBuffer> _fragments = new ArrayDeque<ByteBuffer>();
+    /** The total size (in bytes) of the fragments in {@link #_fragments}. */
+    protected long _fragmentBytes;
+    /** Whether the message being sent was split into fragments. */
+    protected boolean _fragmented;
+
+    /** A frame queued for writing. The buffers of a frame with a conflation key are replaced by
+     * those of a newer frame with the same key, until we start writing it. */
+    protected static class Frame {
+        public final Object key;
+        public ByteBuffer[] buffers;
+
+        public Frame (ByteBuffer[] buffers, Object key) {
+            this.buffers = buffers;
+            this.key = key;
+        }
+    }
+
+    protected final Queue<Frame> _outq = new ConcurrentLinkedQueue<Frame>();
+    /** The queued frames that may yet be replaced, by conflation key. Guarded by this. */
+    protected final Map<Object,Frame> _conflated = new HashMap<Object,Frame>();
+    protected volatile long _conflatedCount;
+
+    /** A sentinel queued by {@link #closeWhenFlushed}. */
+    protected static final Frame CLOSE_FRAME = new Frame(new ByteBuffer[0], null);
 }
@@ -0,0 +1,279 @@
+//
+// Nexus JVMServer - server-side support for Nexus java.nio-based services
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import react.RPromise;
+
+import com.threerings.nexus.distrib.CompoundEvent;
+import com.threerings.nexus.distrib.DistribUtil;
+import com.threerings.nexus.distrib.EventSink;
+import com.threerings.nexus.distrib.NexusEvent;
+import com.threerings.nexus.distrib.NexusObject;
+import com.threerings.nexus.distrib.TestObject;
+import com.threerings.nexus.io.ByteBufferInputStream;
+import com.threerings.nexus.io.ByteSlice;
+import com.threerings.nexus.io.FrameReader;
+import com.threerings.nexus.io.FramingOutputStream;
+import com.threerings.nexus.io.JVMIO;
+import com.threerings.nexus.io.Streamable;
+import com.threerings.nexus.net.Downstream;
+import com.threerings.nexus.net.Upstream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link JVMServerConnection}.
+ */
+public class JVMServerConnectionTest
+{
+    @Test
+    public void testConflation () throws IOException {
+        ServerSocketChannel ssock = ServerSocketChannel.open();
+        ssock.socket().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(ssock.socket().getLocalSocketAddress());
+        SocketChannel chan = ssock.accept();
+        try {
+            // we don't start the connection manager, so nothing is written until we say so
+            final JVMServerConnection conn = new JVMServerConnection(
+                new JVMConnectionManager(null), chan);
+            TestObject test = new TestObject(TestUtil.createTestServiceAttr());
+            DistribUtil.init(test, 1, new EventSink() {
+                public String getHost () {
+                    return "localhost";
+                }
+                public void postEvent (NexusObject source, NexusEvent event) {
+                    conn.send(new Downstream.DispatchEvent(event));
+                }
+                public <R> void postCall (NexusObject source, short attrIndex, short methodId,
+                                          Object[] args, RPromise<R> result) {
+                    fail();
+                }
+            });
+
+            // the first change (and the first cleared) introduce their classes to the client, so
+            // cannot be replaced; changes queued behind an unwritten change replace it in place
+            test.value.update("zero");
+            conn.send(new Downstream.ObjectCleared(2));
+            test.value.update("one");
+            conn.send(new Downstream.ObjectCleared(3));
+            test.value.update("two");
+            test.value.update("three");
+            assertEquals(2, conn.conflatedCount());
+            conn.writeMessages();
+            List<Downstream> msgs = read(client, 4);
+            assertTrue(msgs.get(0).toString(), msgs.get(0).toString().contains("value=zero"));
+            assertTrue(msgs.get(1) instanceof Downstream.ObjectCleared);
+            assertTrue(msgs.get(2).toString(), msgs.get(2).toString().contains("value=three"));
+            assertTrue(msgs.get(3) instanceof Downstream.ObjectCleared);
+
+            // a change queued after the previous change was written is queued anew
+            test.value.update("four");
+            conn.writeMessages();
+            assertTrue(read(client, 1).get(0).toString().contains("value=four"));
+            assertEquals(2, conn.conflatedCount());
+
+        } finally {
+            client.close();
+            chan.close();
+            ssock.close();
+        }
+    }
+
+    @Test
+    public void testConflationAroundCompound () throws IOException {
+        ServerSocketChannel ssock = ServerSocketChannel.open();
+        ssock.socket().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(ssock.socket().getLocalSocketAddress());
+        SocketChannel chan = ssock.accept();
+        try {
+            // we don't start the connection manager, so nothing is written until we say so
+            final JVMServerConnection conn = new JVMServerConnection(
+                new JVMConnectionManager(null), chan);
+            final List<NexusEvent> bundled = new ArrayList<NexusEvent>();
+            final boolean[] bundling = new boolean[1];
+            final TestObject test = new TestObject(TestUtil.createTestServiceAttr());
+            DistribUtil.init(test, 1, new EventSink() {
+                public String getHost () {
+                    return "localhost";
+                }
+                public void postEvent (NexusObject source, NexusEvent event) {
+                    if (bundling[0]) bundled.add(event);
+                    else conn.send(new Downstream.DispatchEvent(event));
+                }
+                public <R> void postCall (NexusObject source, short attrIndex, short methodId,
+                                          Object[] args, RPromise<R> result) {
+                    fail();
+                }
+            });
+            class Compound {
+                void send (String value) {
+                    bundling[0] = true;
+                    test.value.update(value);
+                    bundling[0] = false;
+                    conn.send(new Downstream.DispatchEvent(
+                                  new CompoundEvent(1, new ArrayList<NexusEvent>(bundled))));
+                    bundled.clear();
+                }
+            }
+            Compound compound = new Compound();
+
+            // introduce the change and compound classes to the client, then interleave compound
+            // changes with single changes, none of which may be replaced
+            test.value.update("zero");
+            compound.send("one");
+            test.value.update("two");
+            compound.send("three");
+            test.value.update("four");
+            assertEquals(0, conn.conflatedCount());
+            conn.writeMessages();
+            List<Downstream> msgs = read(client, 5);
+            String[] values = { "zero", "one", "two", "three", "four" };
+            for (int ii = 0; ii < values.length; ii++) {
+                String msg = msgs.get(ii).toString();
+                assertTrue(msg, msg.contains("value=" + values[ii]));
+            }
+
+        } finally {
+            client.close();
+            chan.close();
+            ssock.close();
+        }
+    }
+
+    @Test
+    public void testOversizedMessage () throws IOException {
+        ServerSocketChannel ssock = ServerSocketChannel.open();
+        ssock.socket().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(ssock.socket().getLocalSocketAddress());
+        SocketChannel chan = ssock.accept();
+        try {
+            JVMConnectionManager cmgr = new JVMConnectionManager(null);
+            cmgr.setMaxMessageSize(1024);
+            JVMServerConnection conn = new JVMServerConnection(cmgr, chan);
+            final List<Throwable> errors = new ArrayList<Throwable>();
+            conn.setSession(new SessionManager.Input() {
+                public void onMessage (Upstream msg) { fail(); }
+                public void onSendError (Throwable error) { fail(); }
+                public void onReceiveError (Throwable error) { errors.add(error); }
+                public void onDisconnect () { fail(); }
+            });
+            chan.configureBlocking(false);
+
+            // send fragments forever (well, until we've exceeded the limit), never completing
+            // the message
+            for (int ii = 0; ii < 5; ii++) {
+                ByteBuffer frame = ByteBuffer.allocate(260);
+                frame.putInt(260 | FramingOutputStream.FRAGMENT_FLAG);
+                frame.position(260);
+                frame.flip();
+                while (frame.hasRemaining()) client.write(frame);
+            }
+            for (int ii = 0; ii < 100 && chan.isOpen(); ii++) {
+                conn.handleIO();
+                if (chan.isOpen()) try { Thread.sleep(10); } catch (InterruptedException ie) {}
+            }
+            assertFalse(chan.isOpen());
+            assertEquals(1, errors.size());
+            assertEquals(0, conn._fragments.size());
+
+        } finally {
+            client.close();
+            chan.close();
+            ssock.close();
+        }
+    }
+
+    @Test
+    public void testRelaySlice () throws IOException {
+        ServerSocketChannel ssock = ServerSocketChannel.open();
+        ssock.socket().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(ssock.socket().getLocalSocketAddress());
+        SocketChannel chan = ssock.accept();
+        try {
+            // we don't start the connection manager, so nothing is written until we say so
+            final JVMServerConnection conn = new JVMServerConnection(
+                new JVMConnectionManager(null), chan);
+            conn.setSession(new SessionManager.Input() {
+                public void onMessage (Upstream msg) {
+                    // relay the slice back to the client, and then we're done with it
+                    Upstream.ServiceCall call = (Upstream.ServiceCall)msg;
+                    ByteSlice slice = (ByteSlice)call.args.get(0);
+                    conn.send(new Downstream.ServiceResponse(call.callId, slice));
+                    slice.release();
+                }
+                public void onSendError (Throwable error) { fail(); }
+                public void onReceiveError (Throwable error) { fail(); }
+                public void onDisconnect () { fail(); }
+            });
+            chan.configureBlocking(false);
+
+            FramingOutputStream fout = new FramingOutputStream();
+            Streamable.Output out = JVMIO.newOutput(fout);
+            ByteSlice first = slice(2000, 1), second = slice(2000, 7);
+            sendCall(client, chan, conn, fout, out, 1, first);
+            // the next frame arrives (and reuses the receive buffer) before the relay is written
+            sendCall(client, chan, conn, fout, out, 2, second);
+            conn.writeMessages();
+            List<Downstream> msgs = read(client, 2);
+            assertEquals(first, ((Downstream.ServiceResponse)msgs.get(0)).result);
+            assertEquals(second, ((Downstream.ServiceResponse)msgs.get(1)).result);
+
+        } finally {
+            client.close();
+            chan.close();
+            ssock.close();
+        }
+    }
+
+    protected void sendCall (SocketChannel client, SocketChannel chan, JVMServerConnection conn,
+                             FramingOutputStream fout, Streamable.Output out, int callId,
+                             ByteSlice arg) throws IOException {
+        fout.prepareFrame();
+        out.writeValue(new Upstream.ServiceCall(
+                           callId, 1, (short)0, (short)1, Arrays.<Object>asList(arg)));
+        ByteBuffer frame = fout.frameAndReturnBuffer();
+        while (frame.hasRemaining()) client.write(frame);
+        // wait for the server to receive and process the entire frame
+        for (int ii = 0; ii < 100 && conn._outq.size() < callId; ii++) {
+            conn.handleIO();
+            if (conn._outq.size() < callId) {
+                try { Thread.sleep(10); } catch (InterruptedException ie) {}
+            }
+        }
+        assertEquals(callId, conn._outq.size());
+    }
+
+    protected static ByteSlice slice (int length, int seed) {
+        byte[] data = new byte[length];
+        for (int ii = 0; ii < length; ii++) data[ii] = (byte)(ii * seed);
+        return ByteSlice.wrap(data);
+    }
+
+    protected List<Downstream> read (SocketChannel client, int count) throws IOException {
+        List<Downstream> msgs = new ArrayList<Downstream>();
+        while (msgs.size() < count) {
+            ByteBuffer frame = _reader.readFrame(client);
+            if (frame == null) continue;
+            _bin.setBuffer(frame);
+            msgs.add(_in.<Downstream>readValue());
+        }
+        return msgs;
+    }
+
+    // the client reads with a single input, which remembers the classes introduced to it
+    protected final FrameReader _reader = new FrameReader();
+    protected final ByteBufferInputStream _bin = new ByteBufferInputStream();
+    protected final Streamable.Input _in = JVMIO.newInput(_bin);
+}
@@ -7,7 +7,9 @@ package com.threerings.nexus.distrib;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import react.RFuture;
 import react.RMap;
 
 /**
@@ -34,8 +36,52 @@ public interface Nexus
 
         /** Invokes a request in this entity context. */
         <R> R request (Request<? super E,R> request);
+
+        /** Invokes a request in this entity context. See {@link Nexus#requestR(Class,Request)}.
+         * @return a future which will be completed on the calling entity's context. */
+        <R> RFuture<R> requestR (Request<? super E,R> request);
+    }
+
+    /**
+     * The scheduling priorities of execution contexts, in decreasing order of precedence. When
+     * contexts of differing priority have pending actions, those of higher priority are executed
+     * first; contexts of the same priority take turns. See {@link #setPriority}.
+     */
+    enum Priority {
+        /** For system and administrative entities, which should remain responsive under load. */
+        SYSTEM,
+        /** The default priority. */
+        NORMAL,
+        /** For entities that may be flooded with work, which should not delay other entities. */
+        BULK
     }
 
+    /**
+     * Configures the scheduling priority of the execution contexts of entities of type {@code
+     * eclass}. This applies to contexts created by subsequent registrations (including those of
+     * entities created by a {@link KeyedFactory}), so it should be called before entities of this
+     * type are registered. Note that priorities are only honored when the server's executor is an
+     * {@code EntityScheduler}.
+     */
+    void setPriority (Class<?> eclass, Priority priority);
+
+    /**
+     * Configures the per-turn budget of the execution contexts of entities of type {@code
+     * eclass}: a context that has executed {@code maxOps} actions, or spent {@code maxMicros}
+     * executing actions, yields its thread to other contexts before continuing. Like {@link
+     * #setPriority}, this applies to contexts created by subsequent registrations.
+     */
+    void setTurnBudget (Class<?> eclass, int maxOps, long maxMicros);
+
+    /**
+     * Configures the rate at which objects of type {@code oclass} publish changes to their ticked
+     * attributes (see {@link DValue#setTicked}) to subscribers: at most {@code perSecond} times
+     * per second. Applies to all (existing and future) objects of exactly this class. Classes for
+     * which no rate is configured use the {@code nexus.publish_rate} server configuration (or ten
+     * times per second).
+     */
+    void setPublishRate (Class<? extends NexusObject> oclass, int perSecond);
+
     /**
      * Registers an anonymous object with the Nexus in its own execution context.
      *
@@ -117,6 +163,21 @@ public interface Nexus
      */
     <K extends Keyed> void registerKeyedFactory (Class<? super K> kclass, KeyedFactory<K> factory);
 
+    /**
+     * Configures the passivation of keyed entities of type {@code kclass} which were created by
+     * its {@link KeyedFactory}: an entity on which no action or request has been invoked for
+     * {@code idleMillis} is passivated, as are the least recently used entities in excess of
+     * {@code maxResident}. Passivation invokes {@link Passivating#passivate} on the entity (if it
+     * implements that interface), in the entity's context, and then clears its registration. The
+     * next action or request dispatched to the entity will create it anew via the factory.
+     * Entities that are {@link NexusObject}s with subscribers are not passivated. Entities are
+     * checked for passivation periodically, per the {@code nexus.passivation_interval} (in
+     * millis) server configuration.
+     *
+     * @param maxResident the maximum number of entities to retain, or zero for no maximum.
+     */
+    <K extends Keyed> void setPassivation (Class<K> kclass, long idleMillis, int maxResident);
+
     /**
      * Registers a global map, whose contents will be mirrored to all nodes in the Nexus. Maps are
      * expensive (computationally and with regard to network bandwidth) and should be used
@@ -220,23 +281,60 @@ public interface Nexus
     /**
      * Executes a request in the context of the specified singleton entity (either object or
      * non-object entity) and returns the result. The caller will remain blocked until the response
-     * is received from the target context.
+     * is received from the target context, or the request times out (after the default timeout
+     * configured on the concrete implementation being used).
      *
      * @throws EntityNotFoundException if no singleton instance is registered for {@code sclass}.
+     * @throws RequestTimeoutException if the request does not complete before it times out.
      * @throws NexusException if an exception occurs while processing the request. The triggering
      * exception wil be available via {@link Exception#getCause}.
      */
     <T extends Singleton,R> R request (Class<T> sclass, Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #request(Class,Request)}, timing out after {@code timeout}.
+     * A request that has not been started when it times out is never started.
+     */
+    <T extends Singleton,R> R request (Class<T> sclass, Request<? super T,R> request,
+                                       long timeout, TimeUnit unit);
+
     /**
      * Executes a request in the context of the specified singleton entity (either object or
      * non-object entity) and returns a future that can be used to obtain the result when the
-     * caller is ready to block.
+     * caller is ready to block. The future fails with a {@link RequestTimeoutException} if the
+     * request does not complete before the default timeout.
      *
      * @throws EntityNotFoundException if no singleton instance is registered for {@code sclass}
      */
     <T extends Singleton,R> Future<R> requestF (Class<T> sclass, Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #requestF(Class,Request)}, timing out after {@code timeout}.
+     * A request that has not been started when it times out is never started.
+     */
+    <T extends Singleton,R> Future<R> requestF (Class<T> sclass, Request<? super T,R> request,
+                                                long timeout, TimeUnit unit);
+
+    /**
+     * Executes a request in the context of the specified singleton entity (either object or
+     * non-object entity) and returns a future that is completed with its result, without blocking
+     * the caller. When called from an entity's context (by an action or request), the future is
+     * completed (and its listeners notified) on that context, so that they may safely access the
+     * calling entity, and may chain further requests without ever blocking a thread. The future
+     * fails with a {@link RequestTimeoutException} if the request does not complete before the
+     * default timeout.
+     *
+     * @throws EntityNotFoundException if no singleton instance is registered for {@code sclass}
+     */
+    <T extends Singleton,R> RFuture<R> requestR (Class<T> sclass, Request<? super T,R> request);
+
+    /**
+     * Executes a request as {@link #requestR(Class,Request)}, timing out after {@code timeout}.
+     * A request that has not been started when it times out is never started.
+     */
+    <T extends Singleton,R> RFuture<R> requestR (Class<T> sclass, Request<? super T,R> request,
+                                                 long timeout, TimeUnit unit);
+
     /**
      * Executes a request in the context (server+thread) of the specified keyed (object or
      * non-object) entity and returns the result. The caller will remain blocked until the response
@@ -246,22 +344,59 @@ public interface Nexus
      * node.
      *
      * @throws EntityNotFoundException if {@code kclass} + {@code key} refer to an unknown entity.
+     * @throws RequestTimeoutException if the request does not complete before it times out.
      * @throws NexusException if an exception occurs while processing the request. The triggering
      * exception wil be available via {@link Exception#getCause}.
      */
     <T extends Keyed,R> R request (Class<T> kclass, Comparable<?> key, Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #request(Class,Comparable,Request)}, timing out after {@code
+     * timeout}. A request that has not been started when it times out is never started.
+     */
+    <T extends Keyed,R> R request (Class<T> kclass, Comparable<?> key, Request<? super T,R> request,
+                                   long timeout, TimeUnit unit);
+
     /**
      * Executes a request in the context (server+thread) of the specified keyed (object or
      * non-object) entity and returns a future that can be used to obtain the result when the
      * caller is ready to block. The supplied request may be streamed to another server node if the
-     * context for the specified keyed entity is hosted outside the local server node.
+     * context for the specified keyed entity is hosted outside the local server node. The future
+     * fails with a {@link RequestTimeoutException} if the request does not complete before the
+     * default timeout.
      *
      * @throws EntityNotFoundException if {@code kclass} + {@code key} refer to an unknown entity.
      */
     <T extends Keyed,R> Future<R> requestF (Class<T> kclass, Comparable<?> key,
                                             Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #requestF(Class,Comparable,Request)}, timing out after {@code
+     * timeout}. A request that has not been started when it times out is never started.
+     */
+    <T extends Keyed,R> Future<R> requestF (Class<T> kclass, Comparable<?> key,
+                                            Request<? super T,R> request,
+                                            long timeout, TimeUnit unit);
+
+    /**
+     * Executes a request in the context (server+thread) of the specified keyed (object or
+     * non-object) entity and returns a future that is completed with its result, without blocking
+     * the caller. The future is completed on the calling entity's context, as described in {@link
+     * #requestR(Class,Request)}.
+     *
+     * @throws EntityNotFoundException if {@code kclass} + {@code key} refer to an unknown entity.
+     */
+    <T extends Keyed,R> RFuture<R> requestR (Class<T> kclass, Comparable<?> key,
+                                             Request<? super T,R> request);
+
+    /**
+     * Executes a request as {@link #requestR(Class,Comparable,Request)}, timing out after {@code
+     * timeout}. A request that has not been started when it times out is never started.
+     */
+    <T extends Keyed,R> RFuture<R> requestR (Class<T> kclass, Comparable<?> key,
+                                             Request<? super T,R> request,
+                                             long timeout, TimeUnit unit);
+
     //
     // these methods are primarily for use in a multi-server Nexus system
 
@@ -322,11 +457,20 @@ public interface Nexus
      * ommitted from the map. Any requests that result in failure are also omitted from the map
      * (and the failure will be logged). If you need to know about individual failures, use {@link
      * #gatherF} which preserves and reports failure. The final result is made available once all
-     * located entities have completed execution of the request.</p>
+     * located entities have completed execution of the request, or the default timeout expires
+     * (the requests that have not completed by then are omitted from the map).</p>
      */
     <T extends Keyed,R> Map<Comparable<?>,R> gather (
         Class<T> kclass, Set<? extends Comparable<?>> keys, Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #gather(Class,Set,Request)}, timing out after {@code timeout}.
+     * The requests that have not been started when they time out are never started.
+     */
+    <T extends Keyed,R> Map<Comparable<?>,R> gather (
+        Class<T> kclass, Set<? extends Comparable<?>> keys, Request<? super T,R> request,
+        long timeout, TimeUnit unit);
+
     /**
      * Executes a request on a all entities of type {@code kclass} with keys in {@code keys} and
      * gathers the results into a map, indexed by entity key. The request will be run separately in
@@ -338,11 +482,20 @@ public interface Nexus
      * <p>Any entities that are not currently hosted by any server in the network will simply be
      * ommitted from the map. The future for each request will become available as that request is
      * processed, with the caveat that results for remote entities will arrive in batches as the
-     * server hosting those entities returns all results at once.</p>
+     * server hosting those entities returns all results at once. Each future fails with a {@link
+     * RequestTimeoutException} if its request does not complete before the default timeout.</p>
      */
     <T extends Keyed,R> Map<Comparable<?>,Future<R>> gatherF (
         Class<T> kclass, Set<? extends Comparable<?>> keys, Request<? super T,R> request);
 
+    /**
+     * Executes a request as {@link #gatherF(Class,Set,Request)}, timing out after {@code
+     * timeout}. The requests that have not been started when they time out are never started.
+     */
+    <T extends Keyed,R> Map<Comparable<?>,Future<R>> gatherF (
+        Class<T> kclass, Set<? extends Comparable<?>> keys, Request<? super T,R> request,
+        long timeout, TimeUnit unit);
+
     /**
      * Invokes an action on the instance of a singleton hosted on the specified server.
      *
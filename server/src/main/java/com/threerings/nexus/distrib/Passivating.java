@@ -0,0 +1,20 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.distrib;
+
+/**
+ * Implemented by keyed entities that wish to be notified before they are passivated. See {@link
+ * Nexus#setPassivation}.
+ */
+public interface Passivating
+{
+    /**
+     * Notifies this entity that it is about to be passivated. This is invoked in the execution
+     * context of the entity, after which its registration is cleared (as by {@link
+     * Nexus#clearKeyed}). The entity will next be created anew by its {@link KeyedFactory}, so it
+     * should save any state that the factory will need to restore it.
+     */
+    void passivate (Nexus nexus);
+}
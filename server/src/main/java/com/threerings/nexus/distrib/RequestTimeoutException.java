@@ -0,0 +1,25 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.distrib;
+
+/**
+ * An exception reported when a {@link Request} does not complete by its deadline. A request that
+ * had not started by its deadline is never started. A request that had started may still run to
+ * completion, but its result is discarded.
+ */
+public class RequestTimeoutException extends NexusException
+{
+    /** Whether the request had started executing when it timed out. */
+    public final boolean started;
+
+    public RequestTimeoutException (String message, boolean started) {
+        super(message);
+        this.started = started;
+    }
+
+    @Override public String getMessage () {
+        return super.getMessage() + (started ? " [started]" : " [not started]");
+    }
+}
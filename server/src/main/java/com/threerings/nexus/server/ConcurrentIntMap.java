@@ -0,0 +1,255 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from (non-zero) {@code int} keys to values, which stores its keys unboxed in
+ * open addressed tables, rather than allocating an {@code Integer} and a node per mapping as does
+ * a {@code ConcurrentHashMap<Integer,V>}. Lookups do not lock. Updates lock one of a number of
+ * segments, each of which owns a table.
+ *
+ * <p>A removed mapping leaves its key in place (with a null value), so that a key occupies the
+ * same slot for the lifetime of a table, and lock-free readers never see a key move. Removed keys
+ * are purged when a table is rehashed.</p>
+ *
+ * <p>See {@link com.threerings.nexus.util.IntMap} for the single-threaded equivalent.</p>
+ */
+public class ConcurrentIntMap<V>
+{
+    /** Creates an empty map with the default number of segments. */
+    public ConcurrentIntMap () {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /** Creates an empty map which allows roughly {@code concurrency} concurrent updaters. */
+    public ConcurrentIntMap (int concurrency) {
+        int bits = 0;
+        while ((1 << bits) < concurrency) bits++;
+        _segments = new Segment[1 << bits];
+        for (int ii = 0; ii < _segments.length; ii++) _segments[ii] = new Segment(bits);
+    }
+
+    /** Returns the number of mappings in this map. */
+    public int size () {
+        int size = 0;
+        for (Segment seg : _segments) size += seg.size;
+        return size;
+    }
+
+    /** Returns true if this map contains no mappings. */
+    public boolean isEmpty () {
+        for (Segment seg : _segments) if (seg.size > 0) return false;
+        return true;
+    }
+
+    /** Returns true if this map contains a mapping for {@code key}. */
+    public boolean containsKey (int key) {
+        return get(key) != null;
+    }
+
+    /** Returns the value mapped to {@code key}, or null. */
+    public V get (int key) {
+        int hash = hash(key);
+        @SuppressWarnings("unchecked") V value = (V)segmentFor(hash).get(key, hash);
+        return value;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}.
+     * @return the value previously mapped to {@code key}, or null.
+     * @throws IllegalArgumentException if {@code key} is zero.
+     * @throws NullPointerException if {@code value} is null.
+     */
+    public V put (int key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * Maps {@code key} to {@code value} if {@code key} is not already mapped.
+     * @return the value already mapped to {@code key}, or null if {@code value} was mapped.
+     */
+    public V putIfAbsent (int key, V value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * Removes the mapping for {@code key}.
+     * @return the value that was mapped to {@code key}, or null.
+     */
+    public V remove (int key) {
+        int hash = hash(key);
+        @SuppressWarnings("unchecked") V ovalue = (V)segmentFor(hash).remove(key, hash);
+        return ovalue;
+    }
+
+    /** Removes all mappings from this map. */
+    public void clear () {
+        for (Segment seg : _segments) seg.clear();
+    }
+
+    /** Returns a snapshot of the keys in this map, in no particular order. The snapshot reflects
+     * the updates made to each segment as of the time that segment was traversed. */
+    public int[] keys () {
+        int[] keys = new int[size()];
+        int kk = 0;
+        for (Segment seg : _segments) {
+            Table table = seg.table;
+            for (int ii = 0, ll = table.keys.length(); ii < ll; ii++) {
+                if (table.values.get(ii) == null) continue;
+                if (kk == keys.length) keys = Arrays.copyOf(keys, kk*2+1);
+                keys[kk++] = table.keys.get(ii);
+            }
+        }
+        return (kk == keys.length) ? keys : Arrays.copyOf(keys, kk);
+    }
+
+    /** Returns a snapshot of the values in this map, in no particular order. See {@link #keys}. */
+    public List<V> values () {
+        List<V> values = new ArrayList<V>(size());
+        for (Segment seg : _segments) {
+            Table table = seg.table;
+            for (int ii = 0, ll = table.keys.length(); ii < ll; ii++) {
+                @SuppressWarnings("unchecked") V value = (V)table.values.get(ii);
+                if (value != null) values.add(value);
+            }
+        }
+        return values;
+    }
+
+    protected V put (int key, V value, boolean onlyIfAbsent) {
+        if (key == 0) throw new IllegalArgumentException("ConcurrentIntMap keys must be non-zero");
+        if (value == null) throw new NullPointerException("Null values not allowed");
+        int hash = hash(key);
+        @SuppressWarnings("unchecked") V ovalue =
+            (V)segmentFor(hash).put(key, hash, value, onlyIfAbsent);
+        return ovalue;
+    }
+
+    protected Segment segmentFor (int hash) {
+        return _segments[hash & (_segments.length-1)];
+    }
+
+    protected static class Table {
+        public final AtomicIntegerArray keys;
+        public final AtomicReferenceArray<Object> values;
+
+        public Table (int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<Object>(capacity);
+        }
+    }
+
+    protected static class Segment {
+        /** The current table, which is replaced (never modified) when rehashed. */
+        public volatile Table table = new Table(MIN_CAPACITY);
+
+        /** The number of mappings in this segment. */
+        public volatile int size;
+
+        public Segment (int shift) {
+            _shift = shift;
+        }
+
+        public Object get (int key, int hash) {
+            Table table = this.table;
+            int mask = table.keys.length() - 1;
+            for (int idx = (hash >>> _shift) & mask; ; idx = (idx + 1) & mask) {
+                int skey = table.keys.get(idx);
+                if (skey == key) return table.values.get(idx);
+                if (skey == 0) return null;
+            }
+        }
+
+        public synchronized Object put (int key, int hash, Object value, boolean onlyIfAbsent) {
+            Table table = this.table;
+            int idx = indexOf(table, key, hash);
+            Object ovalue = table.values.get(idx);
+            if (ovalue != null) {
+                if (!onlyIfAbsent) table.values.set(idx, value);
+                return ovalue;
+            }
+            if (table.keys.get(idx) == 0) {
+                if (_used+1 > table.keys.length() * LOAD_FACTOR) {
+                    table = rehash(size+1);
+                    idx = indexOf(table, key, hash);
+                }
+                table.keys.set(idx, key);
+                _used++;
+            }
+            // readers treat a key with a null value as absent, so set the value after the key
+            table.values.set(idx, value);
+            size++;
+            return null;
+        }
+
+        public synchronized Object remove (int key, int hash) {
+            Table table = this.table;
+            int idx = indexOf(table, key, hash);
+            // leave the key in place, so that it keeps its slot if it's mapped again
+            Object ovalue = table.values.get(idx);
+            if (ovalue != null) {
+                table.values.set(idx, null);
+                size--;
+            }
+            return ovalue;
+        }
+
+        public synchronized void clear () {
+            table = new Table(MIN_CAPACITY);
+            size = 0;
+            _used = 0;
+        }
+
+        protected int indexOf (Table table, int key, int hash) {
+            int mask = table.keys.length() - 1;
+            int idx = (hash >>> _shift) & mask;
+            for (int skey; (skey = table.keys.get(idx)) != key && skey != 0; ) {
+                idx = (idx + 1) & mask;
+            }
+            return idx;
+        }
+
+        /** Copies our live mappings into a new table with room for {@code live} mappings at
+         * half the maximum load, then publishes and returns it. */
+        protected Table rehash (int live) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < live*2) capacity <<= 1;
+            Table otable = table, ntable = new Table(capacity);
+            for (int ii = 0, ll = otable.keys.length(); ii < ll; ii++) {
+                Object value = otable.values.get(ii);
+                if (value == null) continue;
+                int key = otable.keys.get(ii), idx = indexOf(ntable, key, hash(key));
+                ntable.keys.set(idx, key);
+                ntable.values.set(idx, value);
+            }
+            _used = size;
+            return table = ntable;
+        }
+
+        /** The number of bits by which hashes are shifted to obtain a table index. */
+        protected final int _shift;
+
+        /** The number of slots in our table that contain a key (some of which may be removed). */
+        protected int _used;
+    }
+
+    /** Spreads the high bits of a key into its low bits. Ids are mostly sequential, so this
+     * needn't be any fancier. */
+    protected static int hash (int key) {
+        return key ^ (key >>> 16);
+    }
+
+    protected final Segment[] _segments;
+
+    protected static final int DEFAULT_SEGMENTS = 16;
+    protected static final int MIN_CAPACITY = 16;
+    protected static final float LOAD_FACTOR = 0.75f;
+}
@@ -0,0 +1,62 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.Arrays;
+
+/**
+ * A concurrent set of (non-zero) {@code int}s, stored unboxed. See {@link ConcurrentIntMap}.
+ */
+public class ConcurrentIntSet
+{
+    /** Returns the number of elements in this set. */
+    public int size () {
+        return _map.size();
+    }
+
+    /** Returns true if this set contains no elements. */
+    public boolean isEmpty () {
+        return _map.isEmpty();
+    }
+
+    /** Returns true if this set contains {@code value}. */
+    public boolean contains (int value) {
+        return _map.containsKey(value);
+    }
+
+    /**
+     * Adds {@code value} to this set.
+     * @return true if it was not already present.
+     * @throws IllegalArgumentException if {@code value} is zero.
+     */
+    public boolean add (int value) {
+        return _map.putIfAbsent(value, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Removes {@code value} from this set.
+     * @return true if it was present.
+     */
+    public boolean remove (int value) {
+        return _map.remove(value) != null;
+    }
+
+    /** Removes all elements from this set. */
+    public void clear () {
+        _map.clear();
+    }
+
+    /** Returns a snapshot of the elements of this set, in no particular order. See {@link
+     * ConcurrentIntMap#keys}. */
+    public int[] toArray () {
+        return _map.keys();
+    }
+
+    @Override public String toString () {
+        return Arrays.toString(_map.keys());
+    }
+
+    protected final ConcurrentIntMap<Boolean> _map = new ConcurrentIntMap<Boolean>();
+}
@@ -4,9 +4,14 @@
 
 package com.threerings.nexus.server;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.threerings.nexus.distrib.Nexus;
 
 import static com.threerings.nexus.util.Log.log;
 
@@ -16,17 +21,56 @@ import static com.threerings.nexus.util.Log.log;
  * context) for all entities registered with a particular context. In general, there is a one
  * entity to one context relationship, meaning that everything is run in parallel. However, if an
  * object is registered as a child of another entity, that object will share the entity's context.
+ *
+ * <p>Operations may be posted from any number of threads without locking. A context that has
+ * pending operations occupies a single task on its executor, which executes operations until the
+ * queue is empty, or until it has executed its batch size or time budget worth of operations, at
+ * which point it yields its thread by resubmitting itself to the executor.</p>
  */
 public class EntityContext
 {
     /** Contains a reference to the currently executing entity context. */
     public static final ThreadLocal<EntityContext> current = new ThreadLocal<EntityContext>();
 
+    /** The default maximum number of operations executed before yielding the thread. */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /** The default maximum time (in nanoseconds) spent executing operations before yielding the
+     * thread. */
+    public static final long DEFAULT_BUDGET_NANOS = 500*1000L;
+
     /**
      * Creates an entity context that will use the supplied executor for executions.
      */
     public EntityContext (Executor exec) {
+        this(exec, DEFAULT_BATCH_SIZE, DEFAULT_BUDGET_NANOS);
+    }
+
+    /**
+     * Creates an entity context that will use the supplied executor for executions, and which
+     * will yield its thread after executing {@code batchSize} operations, or after executing
+     * operations for {@code budgetNanos}, whichever comes first.
+     */
+    public EntityContext (Executor exec, int batchSize, long budgetNanos) {
+        this(exec, batchSize, budgetNanos, Nexus.Priority.NORMAL);
+    }
+
+    /**
+     * Creates an entity context as {@link #EntityContext(Executor,int,long)}, which will be
+     * executed at {@code priority} (when its executor is an {@link EntityScheduler}).
+     */
+    public EntityContext (Executor exec, int batchSize, long budgetNanos,
+                          Nexus.Priority priority) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least one");
         _exec = exec;
+        _batchSize = batchSize;
+        _budgetNanos = budgetNanos;
+        _priority = priority;
+    }
+
+    /** Returns the priority at which this context is executed. */
+    public Nexus.Priority priority () {
+        return _priority;
     }
 
     /**
@@ -35,37 +79,142 @@ public class EntityContext
      * executed, it will additionally be queued up on the supplied executor, so that its pending
      * operations will be executed.
      */
-    public synchronized void postOp (final Runnable op) {
-        _ops.offer(new Runnable() {
-            public void run () {
+    public void postOp (Runnable op) {
+        postOp(op, false);
+    }
+
+    /**
+     * Queues the supplied operation for execution on this context. If {@code urgent} and this
+     * context is not already scheduled, it is scheduled at {@link Nexus.Priority#SYSTEM} priority
+     * (rather than its normal priority). Operations are always executed in the order posted.
+     */
+    public void postOp (Runnable op, boolean urgent) {
+        // an op posted by an executing op to its own context must follow the work that the
+        // executing op has deferred until its completion
+        if (current.get() == this && !_afterOps.isEmpty()) runAfterOps();
+        _ops.offer(op);
+        if (_scheduled.compareAndSet(false, true)) {
+            if (urgent) _drainer._urgent = true;
+            _exec.execute(_drainer);
+        }
+    }
+
+    /**
+     * Removes {@code op} from this context's queue, if it is still pending.
+     * @return true if the operation was removed (and will thus not be executed).
+     */
+    public boolean removeOp (Runnable op) {
+        return _ops.remove(op);
+    }
+
+    /**
+     * Queues {@code task} to be run when the operation currently executing on this context
+     * completes, before any other operation is executed (or posted to this context by the
+     * executing operation). Tasks are run in the order queued. Must only be called by an operation
+     * executing on this context.
+     */
+    public void afterOp (Runnable task) {
+        _afterOps.add(task);
+    }
+
+    /**
+     * Executes pending operations until our queue is empty or our batch is exhausted. Called with
+     * {@link #_scheduled} set, which guarantees that only one thread is draining at a time.
+     */
+    protected void drain () {
+        _drainer._urgent = false;
+        current.set(this);
+        try {
+            long deadline = System.nanoTime() + _budgetNanos;
+            for (int ii = 0; ii < _batchSize; ii++) {
+                Runnable op = _ops.poll();
+                if (op == null) break;
                 try {
-                    current.set(EntityContext.this);
                     op.run();
                 } catch (Throwable t) {
                     log.warning("Entity operation failed: " + op, t);
-                } finally {
-                    current.set(null);
-                    scheduleNext();
                 }
+                if (!_afterOps.isEmpty()) runAfterOps();
+                if (System.nanoTime() - deadline >= 0) break;
             }
-        });
-        if (_active == null) {
-            scheduleNext();
+        } finally {
+            current.set(null);
         }
+
+        // if we yielded with operations remaining, we remain scheduled and go to the back of the
+        // executor's queue
+        if (!_ops.isEmpty()) {
+            _exec.execute(_drainer);
+            return;
+        }
+        // otherwise we unschedule ourselves, but an operation may have been posted after we
+        // found our queue empty and before we cleared our flag (and its poster will have seen
+        // the flag set and not scheduled us), so we must check once more
+        _scheduled.set(false);
+        if (!_ops.isEmpty() && _scheduled.compareAndSet(false, true)) _exec.execute(_drainer);
     }
 
-    protected synchronized void scheduleNext () {
-        if ((_active = _ops.poll()) != null) {
-            _exec.execute(_active);
+    protected void runAfterOps () {
+        // tasks may post ops or queue further tasks, so we clear the queue before running them
+        while (!_afterOps.isEmpty()) {
+            Runnable[] tasks = _afterOps.toArray(new Runnable[_afterOps.size()]);
+            _afterOps.clear();
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.warning("Entity post-operation task failed: " + task, t);
+                }
+            }
         }
     }
 
     /** The executor to which we delegate our execution. */
     protected final Executor _exec;
 
-    /** The currently active operation, or null. */
-    protected Runnable _active;
+    /** The maximum number of operations we execute before yielding our thread. */
+    protected final int _batchSize;
+
+    /** The maximum time (in nanos) we spend executing operations before yielding our thread. */
+    protected final long _budgetNanos;
+
+    /** The priority at which we are executed. */
+    protected final Nexus.Priority _priority;
+
+    /** Whether we are queued on, or executing on, our executor. */
+    protected final AtomicBoolean _scheduled = new AtomicBoolean();
 
     /** The queue of operations pending on this context. */
-    protected final Queue<Runnable> _ops = new ArrayDeque<Runnable>();
+    protected final Queue<Runnable> _ops = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Tasks to be run when the executing operation completes. Only accessed by the draining
+     * thread. */
+    protected final List<Runnable> _afterOps = new ArrayList<Runnable>();
+
+    /** The binding to whose object the executing operation is posting events, which are being
+     * accumulated by the {@link ObjectManager}. Only accessed by the draining thread. */
+    protected ObjectManager.Binding<?> _accumulating;
+
+    /** The task which we submit to our executor to drain our queue. */
+    protected final Drainer _drainer = new Drainer();
+
+    /** Drains our queue, and (when we're executed by an {@link EntityScheduler}) keeps track of
+     * the worker on which we last ran, and reports our priority. */
+    protected class Drainer implements Runnable, EntityScheduler.Affine {
+        public void run () {
+            drain();
+        }
+        public int priority () {
+            return (_urgent ? Nexus.Priority.SYSTEM : _priority).ordinal();
+        }
+        public int affinity () {
+            return _affinity;
+        }
+        public void setAffinity (int worker) {
+            _affinity = worker;
+        }
+        protected volatile int _affinity = -1;
+        // set when we are scheduled on behalf of an urgent op; cleared once we're running
+        protected boolean _urgent;
+    }
 }
@@ -0,0 +1,297 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.threerings.nexus.distrib.Nexus;
+
+import static com.threerings.nexus.util.Log.log;
+
+/**
+ * An executor for {@link EntityContext}s which keeps each context on the same worker thread from
+ * one execution to the next, so that an entity's state tends to remain in the caches of a single
+ * core. Each worker has its own run queue; a context is queued on the worker that last executed
+ * it, and moves to a different worker only when that worker runs out of work and steals it from
+ * a busy worker's queue. May be supplied to {@link NexusServer} in place of a thread pool:
+ *
+ * <pre>{@code
+ * NexusServer server = new NexusServer(config, new EntityScheduler(cores));
+ * }</pre>
+ *
+ * <p>Each worker's run queue has a lane for each {@link Nexus.Priority}. A worker takes its next
+ * task from its highest priority non-empty lane (and thieves likewise steal high priority tasks
+ * first), except that every {@link #STARVATION_INTERVAL}th task is taken from the lowest priority
+ * non-empty lane, so that a flood of high priority work cannot starve the other lanes entirely.
+ * Within a lane, contexts take turns: a context that exhausts its turn budget goes to the back of
+ * its lane.</p>
+ *
+ * <p>Tasks other than entity contexts are queued in the {@link Nexus.Priority#NORMAL} lane of the
+ * submitting worker (when submitted from a worker thread), or round-robin across the workers.</p>
+ */
+public class EntityScheduler extends AbstractExecutorService
+{
+    /**
+     * Implemented by tasks that wish to be executed on the same worker each time they are queued,
+     * and at a particular priority.
+     */
+    public interface Affine {
+        /** Returns the index of the worker that last executed this task, or -1. */
+        int affinity ();
+        /** Records the index of the worker that is executing this task. */
+        void setAffinity (int worker);
+        /** Returns the ordinal of the {@link Nexus.Priority} at which to execute this task. */
+        int priority ();
+    }
+
+    /** A worker takes every this-many-th task from its lowest priority lane. */
+    public static final int STARVATION_INTERVAL = 32;
+
+    /**
+     * Creates a scheduler with {@code workers} worker threads, which are started immediately.
+     */
+    public EntityScheduler (int workers) {
+        if (workers < 1) throw new IllegalArgumentException("Must have at least one worker");
+        _workers = new Worker[workers];
+        for (int ii = 0; ii < workers; ii++) _workers[ii] = new Worker(ii);
+        _terminated = new CountDownLatch(workers);
+        resetStats();
+        for (Worker worker : _workers) worker.start();
+    }
+
+    /** Returns the number of worker threads. */
+    public int workerCount () {
+        return _workers.length;
+    }
+
+    /** Returns the number of tasks executed by the specified worker since the stats were last
+     * reset. */
+    public long tasks (int worker) {
+        Worker w = _workers[worker];
+        return w._tasks - w._baseTasks;
+    }
+
+    /** Returns the number of tasks the specified worker has stolen from other workers since the
+     * stats were last reset. */
+    public long steals (int worker) {
+        Worker w = _workers[worker];
+        return w._steals - w._baseSteals;
+    }
+
+    /** Returns the total number of tasks stolen since the stats were last reset. */
+    public long steals () {
+        long steals = 0;
+        for (int ii = 0; ii < _workers.length; ii++) steals += steals(ii);
+        return steals;
+    }
+
+    /** Returns the fraction of time (0 to 1) that the specified worker has spent executing tasks
+     * since the stats were last reset. */
+    public double utilization (int worker) {
+        Worker w = _workers[worker];
+        long elapsed = System.nanoTime() - _statsStamp, busy = w._busyNanos - w._baseBusyNanos;
+        return (elapsed <= 0) ? 0 : Math.min(1, busy / (double)elapsed);
+    }
+
+    /** Resets the task, steal and utilization statistics. */
+    public void resetStats () {
+        for (Worker w : _workers) {
+            w._baseTasks = w._tasks;
+            w._baseSteals = w._steals;
+            w._baseBusyNanos = w._busyNanos;
+        }
+        _statsStamp = System.nanoTime();
+    }
+
+    // from interface Executor
+    public void execute (Runnable task) {
+        Thread thread = Thread.currentThread();
+        boolean onWorker = (thread instanceof Worker && ((Worker)thread)._owner == this);
+        // once we're shut down, we accept only continuations of already queued work (such as a
+        // context yielding its thread), as our workers run until all such work is complete
+        if (_shutdown && !onWorker) throw new RejectedExecutionException("Scheduler is shut down");
+
+        int widx = -1, lane = NORMAL_LANE;
+        if (task instanceof Affine) {
+            Affine atask = (Affine)task;
+            widx = atask.affinity();
+            lane = atask.priority();
+        }
+        // (other workers may have exited after shutdown, so we then keep such work for ourselves)
+        if (widx < 0 || widx >= _workers.length || _shutdown) {
+            widx = onWorker ? ((Worker)thread)._index :
+                (_nextWorker.getAndIncrement() & Integer.MAX_VALUE) % _workers.length;
+        }
+        Worker worker = _workers[widx];
+        ConcurrentLinkedDeque<Runnable> queue = worker._queues[lane];
+        queue.offerLast(task);
+
+        // wake the worker if it is idle; if it's busy and has a backlog, wake an idle worker to
+        // steal from it; if it has no backlog, the task will most likely run on its worker
+        // momentarily (idle workers periodically look for work to steal, should it not)
+        if (worker._idle) LockSupport.unpark(worker);
+        else if (_idlers.get() > 0 && queue.peekFirst() != task) {
+            for (Worker w : _workers) {
+                if (w._idle) {
+                    LockSupport.unpark(w);
+                    break;
+                }
+            }
+        }
+    }
+
+    // from interface ExecutorService
+    public void shutdown () {
+        _shutdown = true;
+        for (Worker w : _workers) LockSupport.unpark(w);
+    }
+
+    // from interface ExecutorService
+    public List<Runnable> shutdownNow () {
+        shutdown();
+        List<Runnable> pending = new ArrayList<Runnable>();
+        for (Worker w : _workers) {
+            for (ConcurrentLinkedDeque<Runnable> queue : w._queues) {
+                for (Runnable task; (task = queue.pollFirst()) != null; ) pending.add(task);
+            }
+        }
+        return pending;
+    }
+
+    // from interface ExecutorService
+    public boolean isShutdown () {
+        return _shutdown;
+    }
+
+    // from interface ExecutorService
+    public boolean isTerminated () {
+        return _terminated.getCount() == 0;
+    }
+
+    // from interface ExecutorService
+    public boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+        return _terminated.await(timeout, unit);
+    }
+
+    /** Removes a task from the back of a busy worker's queue, or returns null. */
+    protected Runnable steal (Worker thief) {
+        int count = _workers.length;
+        int start = ThreadLocalRandom.current().nextInt(count);
+        for (int ii = 0; ii < count; ii++) {
+            Worker victim = _workers[(start + ii) % count];
+            // an idle worker has been (or is being) woken to run its own queue
+            if (victim == thief || victim._idle) continue;
+            for (ConcurrentLinkedDeque<Runnable> queue : victim._queues) {
+                Runnable task = queue.pollLast();
+                if (task != null) return task;
+            }
+        }
+        return null;
+    }
+
+    protected class Worker extends Thread {
+        public Worker (int index) {
+            super("EntityScheduler-" + index);
+            _index = index;
+        }
+
+        @Override public void run () {
+            try {
+                while (true) {
+                    Runnable task = poll();
+                    if (task == null && (task = steal(this)) != null) _steals++;
+                    if (task == null) task = idle();
+                    if (task == null) break; // we're shut down, and there's no work left
+                    runTask(task);
+                }
+            } finally {
+                _terminated.countDown();
+            }
+        }
+
+        protected Runnable idle () {
+            long parkNanos = MIN_IDLE_PARK_NANOS;
+            while (true) {
+                // note that we're idle before our final check for work, so that anyone who
+                // queues work after our check will see that we're idle and wake us
+                _idle = true;
+                _idlers.incrementAndGet();
+                try {
+                    Runnable task = poll();
+                    if (task == null && (task = steal(this)) != null) _steals++;
+                    if (task != null || _shutdown) return task;
+                    // back off the frequency with which we look for work to steal
+                    LockSupport.parkNanos(this, parkNanos);
+                    parkNanos = Math.min(parkNanos*2, MAX_IDLE_PARK_NANOS);
+                } finally {
+                    _idle = false;
+                    _idlers.decrementAndGet();
+                }
+            }
+        }
+
+        /** Removes the next task from our own queue, or returns null. */
+        protected Runnable poll () {
+            boolean lowestFirst = (++_polls % STARVATION_INTERVAL == 0);
+            for (int ii = 0; ii < LANES; ii++) {
+                Runnable task = _queues[lowestFirst ? LANES-1-ii : ii].pollFirst();
+                if (task != null) return task;
+            }
+            return null;
+        }
+
+        protected void runTask (Runnable task) {
+            if (task instanceof Affine) ((Affine)task).setAffinity(_index);
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warning("Scheduled task failed", "task", task, t);
+            }
+            _busyNanos += System.nanoTime() - start;
+            _tasks++;
+        }
+
+        protected final EntityScheduler _owner = EntityScheduler.this;
+        protected final int _index;
+        protected final ConcurrentLinkedDeque<Runnable>[] _queues = newQueues();
+        protected int _polls;
+        protected volatile boolean _idle;
+
+        // these are written only by this worker, and read (racily) to report stats
+        protected volatile long _tasks, _steals, _busyNanos;
+        protected long _baseTasks, _baseSteals, _baseBusyNanos;
+    }
+
+    protected final Worker[] _workers;
+    protected final AtomicInteger _nextWorker = new AtomicInteger();
+    protected final AtomicInteger _idlers = new AtomicInteger();
+    protected final CountDownLatch _terminated;
+    protected volatile boolean _shutdown;
+    protected volatile long _statsStamp;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected static ConcurrentLinkedDeque<Runnable>[] newQueues () {
+        ConcurrentLinkedDeque<Runnable>[] queues = new ConcurrentLinkedDeque[LANES];
+        for (int ii = 0; ii < LANES; ii++) queues[ii] = new ConcurrentLinkedDeque<Runnable>();
+        return queues;
+    }
+
+    protected static final int LANES = Nexus.Priority.values().length;
+    protected static final int NORMAL_LANE = Nexus.Priority.NORMAL.ordinal();
+
+    /** The range of intervals at which idle workers look for work to steal. */
+    protected static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    protected static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(64);
+}
@@ -25,11 +25,57 @@ public class NexusConfig
      * properties instance.
      */
     public NexusConfig (Properties props) {
+        _props = props;
         nodeName = require(props, "nexus.node");
         publicHostname = require(props, "nexus.hostname");
         rpcTimeout = Long.parseLong(require(props, "nexus.rpc_timeout"));
     }
 
+    /**
+     * Returns the value of the optional property {@code key}, or {@code defval} if it is not set.
+     * As with required properties, a system property of the same name is used if the property is
+     * not set in our properties.
+     */
+    public String get (String key, String defval) {
+        String value = _props.getProperty(key, System.getProperty(key));
+        return (value == null || value.length() == 0) ? defval : value;
+    }
+
+    /**
+     * Returns the value of the optional integer property {@code key}, or {@code defval} if it is
+     * not set.
+     */
+    public int getInt (String key, int defval) {
+        String value = get(key, null);
+        try {
+            return (value == null) ? defval : Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Invalid integer property '" + key + "': " + value);
+        }
+    }
+
+    /**
+     * Returns the value of the optional long property {@code key}, or {@code defval} if it is not
+     * set.
+     */
+    public long getLong (String key, long defval) {
+        String value = get(key, null);
+        try {
+            return (value == null) ? defval : Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Invalid long property '" + key + "': " + value);
+        }
+    }
+
+    /**
+     * Returns the value of the optional boolean property {@code key}, or {@code defval} if it is
+     * not set.
+     */
+    public boolean getBoolean (String key, boolean defval) {
+        String value = get(key, null);
+        return (value == null) ? defval : Boolean.parseBoolean(value);
+    }
+
     protected String require (Properties props, String key) {
         String value = props.getProperty(key, System.getProperty(key));
         if (value == null || value.length() == 0) {
@@ -37,4 +83,6 @@ public class NexusConfig
         }
         return value;
     }
+
+    protected final Properties _props;
 }
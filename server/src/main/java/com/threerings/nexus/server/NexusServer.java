@@ -6,19 +6,19 @@ package com.threerings.nexus.server;
 
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.Maps;
 
+import react.RFuture;
 import react.RMap;
 
 import com.threerings.nexus.distrib.Action;
 import com.threerings.nexus.distrib.Keyed;
 import com.threerings.nexus.distrib.KeyedFactory;
 import com.threerings.nexus.distrib.Nexus;
-import com.threerings.nexus.distrib.NexusException;
 import com.threerings.nexus.distrib.NexusObject;
 import com.threerings.nexus.distrib.Request;
 import com.threerings.nexus.distrib.ServerNotFoundException;
@@ -53,7 +53,23 @@ public class NexusServer implements Nexus
      * Shuts down this server and cleans up any resources it is using.
      */
     public void shutdown () {
-        // nothing for now; TODO: should we shutdown the executor?
+        _omgr.shutdown();
+        // TODO: should we shutdown the executor?
+    }
+
+    @Override // from interface Nexus
+    public void setPriority (Class<?> eclass, Priority priority) {
+        _omgr.setPriority(eclass, priority);
+    }
+
+    @Override // from interface Nexus
+    public void setTurnBudget (Class<?> eclass, int maxOps, long maxMicros) {
+        _omgr.setTurnBudget(eclass, maxOps, maxMicros);
+    }
+
+    @Override // from interface Nexus
+    public void setPublishRate (Class<? extends NexusObject> oclass, int perSecond) {
+        _omgr.setPublishRate(oclass, perSecond);
     }
 
     @Override // from interface Nexus
@@ -94,6 +110,12 @@ public class NexusServer implements Nexus
         _omgr.registerKeyedFactory(kclass, kf);
     }
 
+    @Override // from interface Nexus
+    public <K extends Keyed> void setPassivation (Class<K> kclass, long idleMillis,
+                                                  int maxResident) {
+        _omgr.setPassivation(kclass, idleMillis, maxResident);
+    }
+
     @Override // from interface Nexus
     public <K,V> RMap<K,V> registerMap (String id) {
         return _omgr.registerMap(id);
@@ -157,12 +179,38 @@ public class NexusServer implements Nexus
         return get(request, requestF(sclass, request));
     }
 
+    @Override // from interface Nexus
+    public <S extends Singleton,R> R request (Class<S> sclass, Request<? super S,R> request,
+                                              long timeout, TimeUnit unit) {
+        return get(request, requestF(sclass, request, timeout, unit));
+    }
+
     @Override // from interface Nexus
     public <S extends Singleton,R> Future<R> requestF (Class<S> sclass,
                                                        Request<? super S,R> request) {
         return _omgr.invoke(sclass, request);
     }
 
+    @Override // from interface Nexus
+    public <S extends Singleton,R> Future<R> requestF (Class<S> sclass,
+                                                       Request<? super S,R> request,
+                                                       long timeout, TimeUnit unit) {
+        return _omgr.invoke(sclass, request, _omgr.deadline(timeout, unit));
+    }
+
+    @Override // from interface Nexus
+    public <S extends Singleton,R> RFuture<R> requestR (Class<S> sclass,
+                                                       Request<? super S,R> request) {
+        return _omgr.invokeR(sclass, request, _omgr.defaultDeadline());
+    }
+
+    @Override // from interface Nexus
+    public <S extends Singleton,R> RFuture<R> requestR (Class<S> sclass,
+                                                       Request<? super S,R> request,
+                                                       long timeout, TimeUnit unit) {
+        return _omgr.invokeR(sclass, request, _omgr.deadline(timeout, unit));
+    }
+
     @Override // from interface Nexus
     public <K extends Keyed,R> R request (Class<K> kclass, Comparable<?> key,
                                          Request<? super K,R> request) {
@@ -170,6 +218,14 @@ public class NexusServer implements Nexus
         return get(request, requestF(kclass, key, request));
     }
 
+    @Override // from interface Nexus
+    public <K extends Keyed,R> R request (Class<K> kclass, Comparable<?> key,
+                                         Request<? super K,R> request,
+                                         long timeout, TimeUnit unit) {
+        // TODO: determine whether the entity is local or remote
+        return get(request, requestF(kclass, key, request, timeout, unit));
+    }
+
     @Override // from interface Nexus
     public <K extends Keyed,R> Future<R> requestF (Class<K> kclass, Comparable<?> key,
                                                    Request<? super K,R> request) {
@@ -177,6 +233,29 @@ public class NexusServer implements Nexus
         return _omgr.invoke(kclass, key, request);
     }
 
+    @Override // from interface Nexus
+    public <K extends Keyed,R> Future<R> requestF (Class<K> kclass, Comparable<?> key,
+                                                   Request<? super K,R> request,
+                                                   long timeout, TimeUnit unit) {
+        // TODO: determine whether the entity is local or remote
+        return _omgr.invoke(kclass, key, request, _omgr.deadline(timeout, unit));
+    }
+
+    @Override // from interface Nexus
+    public <K extends Keyed,R> RFuture<R> requestR (Class<K> kclass, Comparable<?> key,
+                                                   Request<? super K,R> request) {
+        // TODO: determine whether the entity is local or remote
+        return _omgr.invokeR(kclass, key, request, _omgr.defaultDeadline());
+    }
+
+    @Override // from interface Nexus
+    public <K extends Keyed,R> RFuture<R> requestR (Class<K> kclass, Comparable<?> key,
+                                                   Request<? super K,R> request,
+                                                   long timeout, TimeUnit unit) {
+        // TODO: determine whether the entity is local or remote
+        return _omgr.invokeR(kclass, key, request, _omgr.deadline(timeout, unit));
+    }
+
     @Override
     public <K extends Keyed> int nextId (Class<K> kclass) {
         // TODO: get our real server id from the peer manager
@@ -196,36 +275,37 @@ public class NexusServer implements Nexus
                                           Action<? super K> action) {
         // TODO: partition keys based on the server that hosts the entities in question; then send
         // one message to each server with the action and the key subset to execute thereon
-        for (Comparable<?> key : keys) _omgr.invoke(kclass, key, action);
+        _omgr.invoke(kclass, keys, action);
     }
 
     @Override // from interface Nexus
     public <K extends Keyed,R> Map<Comparable<?>,R> gather (
         Class<K> kclass, Set<? extends Comparable<?>> keys, Request<? super K,R> request) {
-        Map<Comparable<?>,Future<R>> resultFs = gatherF(kclass, keys, request);
-        Map<Comparable<?>,R> results = Maps.newHashMap();
-        for (Map.Entry<Comparable<?>,Future<R>> entry : resultFs.entrySet()) {
-            try {
-                results.put(entry.getKey(), get(request, entry.getValue()));
-            } catch (Exception e) {
-                log.warning("Gather failure", "kclass", kclass.getName(), "key", entry.getKey(), e);
-            }
-        }
-        return results;
+        return gather(kclass, keys, request, _config.rpcTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override // from interface Nexus
+    public <K extends Keyed,R> Map<Comparable<?>,R> gather (
+        Class<K> kclass, Set<? extends Comparable<?>> keys, Request<? super K,R> request,
+        long timeout, TimeUnit unit) {
+        // TODO: partition keys based on the server that hosts the entities in question; then send
+        // out batched requests to invoke our request on the entities hosted by each server
+        return get(request, _omgr.gather(kclass, keys, request, _omgr.deadline(timeout, unit)));
     }
 
     @Override // from interface Nexus
     public <K extends Keyed,R> Map<Comparable<?>,Future<R>> gatherF (
         Class<K> kclass, Set<? extends Comparable<?>> keys, Request<? super K,R> request) {
+        return gatherF(kclass, keys, request, _config.rpcTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override // from interface Nexus
+    public <K extends Keyed,R> Map<Comparable<?>,Future<R>> gatherF (
+        Class<K> kclass, Set<? extends Comparable<?>> keys, Request<? super K,R> request,
+        long timeout, TimeUnit unit) {
         // TODO: partition keys based on the server that hosts the entities in question; then send
         // out batched requests to invoke our request on the entities hosted by each server
-        Map<Comparable<?>,Future<R>> results = Maps.newHashMap();
-        for (Comparable<?> key : keys) {
-            if (_omgr.hostsKeyed(kclass, key)) {
-                results.put(key, _omgr.invoke(kclass, key, request));
-            }
-        }
-        return results;
+        return _omgr.gatherF(kclass, keys, request, _omgr.deadline(timeout, unit));
     }
 
     @Override // from interface Nexus
@@ -282,17 +362,33 @@ public class NexusServer implements Nexus
         return results;
     }
 
+    /**
+     * Returns the number of requests that have timed out. See {@link
+     * ObjectManager#timedOutRequests}.
+     */
+    public long timedOutRequests () {
+        return _omgr.timedOutRequests();
+    }
+
+    /**
+     * Returns the number of requests that timed out before they were started. See {@link
+     * ObjectManager#unstartedTimeouts}.
+     */
+    public long unstartedTimeouts () {
+        return _omgr.unstartedTimeouts();
+    }
+
+    /**
+     * Returns the number of keyed entities that have been passivated. See {@link
+     * #setPassivation}.
+     */
+    public long passivatedEntities () {
+        return _omgr.passivatedEntities();
+    }
+
     protected <R> R get (Request<?,?> request, Future<R> future) {
-        try {
-            // TODO: should we configure a default timeout?
-            return future.get();
-        } catch (ExecutionException ee) {
-            Throwable cause = ee.getCause();
-            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
-            else throw new NexusException("Request failure " + request, cause);
-        } catch (InterruptedException ie) {
-            throw new NexusException("Interrupted while waiting for request " + request);
-        }
+        // our futures time out at their deadline (which defaults to our configured rpcTimeout)
+        return ObjectManager.get(request, future);
     }
 
     protected final NexusConfig _config;
@@ -6,6 +6,7 @@ package com.threerings.nexus.server;
 
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Preconditions;
 
@@ -17,6 +18,8 @@ import com.threerings.nexus.distrib.Singleton;
 /**
  * Handles the invocation of actions on entities after a delay or periodically. This uses a Java
  * {@link Timer} thread under the hood, and thus must be {@link #shutdown} when no longer needed.
+ * Timer actions are urgent: an entity's context is scheduled at {@link Nexus.Priority#SYSTEM}
+ * priority to execute them (unless it was already scheduled for other actions).
  */
 public class NexusTimer
 {
@@ -42,7 +45,17 @@ public class NexusTimer
      * Creates a timer that will work with the supplied Nexus.
      */
     public NexusTimer (Nexus nexus) {
+        this(nexus, false);
+    }
+
+    /**
+     * Creates a timer that will work with the supplied Nexus.
+     * @param daemon whether the timer's thread should be a daemon thread, which does not prevent
+     * the JVM from exiting if this timer is never shut down.
+     */
+    public NexusTimer (Nexus nexus, boolean daemon) {
         _nexus = nexus;
+        _timer = new Timer("Nexus Deferred Action Timer", daemon);
     }
 
     /**
@@ -60,9 +73,10 @@ public class NexusTimer
      */
     public <T extends Singleton> Deferred invokeAfter (final Class<T> eclass, long delay,
                                                        final Action<? super T> action) {
+        final Tick<T> tick = new Tick<T>(action);
         return schedule(new Runnable() {
             public void run () {
-                _nexus.invoke(eclass, action);
+                _nexus.invoke(eclass, tick);
             }
         }, delay);
     }
@@ -75,9 +89,10 @@ public class NexusTimer
      */
     public <T extends Keyed> Deferred invokeAfter (final Class<T> eclass, final Comparable<?> key,
                                                    long delay, final Action<? super T> action) {
+        final Tick<T> tick = new Tick<T>(action);
         return schedule(new Runnable() {
             public void run () {
-                _nexus.invoke(eclass, key, action);
+                _nexus.invoke(eclass, key, tick);
             }
         }, delay);
     }
@@ -92,6 +107,7 @@ public class NexusTimer
                 Preconditions.checkState(task != null, "Deferred action already canceled.");
                 task.cancel();
                 task = null;
+                noteCanceled();
             }
             @Override public Deferred repeatEvery (long period) {
                 Preconditions.checkState(task != null, "Deferred action has been canceled.");
@@ -110,9 +126,42 @@ public class NexusTimer
         };
     }
 
+    /**
+     * Notes that a deferred action was canceled. A canceled task remains in our timer's queue
+     * until its scheduled time, so when many actions are canceled well before they're due (as
+     * are request deadlines), we periodically purge them.
+     */
+    protected void noteCanceled () {
+        if (_canceled.incrementAndGet() % PURGE_INTERVAL == 0) _timer.purge();
+    }
+
+    /** Marks an action as having been invoked by a timer. Ticks are unwrapped by the {@link
+     * ObjectManager}, and thus never leave this server. */
+    protected static class Tick<T> extends Action<T> {
+        public final Action<? super T> action;
+
+        public Tick (Action<? super T> action) {
+            this.action = action;
+        }
+
+        @Override public void invoke (T entity) {
+            action.invoke(entity);
+        }
+
+        @Override public void onDropped (Nexus nexus, Class<?> eclass, Comparable<?> key) {
+            action.onDropped(nexus, eclass, key);
+        }
+    }
+
     /** The nexus on which we invoke actions. */
     protected final Nexus _nexus;
 
-    /** The daemon timer used to schedule all intervals. */
-    protected final Timer _timer = new Timer("Nexus Deferred Action Timer");
+    /** The timer used to schedule all intervals. */
+    protected final Timer _timer;
+
+    /** The number of deferred actions that have been canceled. */
+    protected final AtomicInteger _canceled = new AtomicInteger();
+
+    /** The number of canceled actions after which we purge our timer's queue. */
+    protected static final int PURGE_INTERVAL = 1024;
 }
@@ -0,0 +1,71 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threerings.nexus.distrib.NexusException;
+
+/**
+ * Allocates ids for {@link com.threerings.nexus.distrib.NexusObject}s without locking. An id
+ * combines a slot (in the low {@link #SLOT_BITS} bits) with a generation (in the remaining bits,
+ * excluding the sign bit). Fresh slots are claimed from an atomic counter; when an id is released,
+ * its slot is queued for reuse with the next generation. Released slots are reused in the order in
+ * which they were released, and a slot must be reused {@link #GENERATIONS} times before an id
+ * repeats, so a stale id held by a client (or in a queued event) is very unlikely to refer to a
+ * different object than the one it originally named.
+ */
+public class ObjectIdAllocator
+{
+    /** The number of bits of an id that identify its slot. */
+    public static final int SLOT_BITS = 24;
+
+    /** The number of generations through which a slot cycles before its ids repeat. */
+    public static final int GENERATIONS = 1 << (31 - SLOT_BITS);
+
+    /**
+     * Returns a currently unused id, which is always positive.
+     *
+     * @throws NexusException if {@link #SLOT_BITS} worth of ids are all in use.
+     */
+    public int allocate () {
+        Integer id = _free.poll();
+        if (id != null) return id;
+        // slot zero is never used, so that no id is zero
+        int slot = _nextSlot.incrementAndGet();
+        if (slot > SLOT_MASK) {
+            _nextSlot.decrementAndGet();
+            // an id may have been released since we checked
+            if ((id = _free.poll()) != null) return id;
+            throw new NexusException("Exhausted object ids");
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the supplied id (previously obtained from {@link #allocate}) to the allocator.
+     */
+    public void release (int id) {
+        int gen = ((id >>> SLOT_BITS) + 1) % GENERATIONS;
+        _free.offer((gen << SLOT_BITS) | (id & SLOT_MASK));
+    }
+
+    /** Returns the slot of the supplied id. */
+    public static int slot (int id) {
+        return id & SLOT_MASK;
+    }
+
+    /** Returns the generation of the supplied id. */
+    public static int generation (int id) {
+        return id >>> SLOT_BITS;
+    }
+
+    protected final AtomicInteger _nextSlot = new AtomicInteger();
+    protected final Queue<Integer> _free = new ConcurrentLinkedQueue<Integer>();
+
+    protected static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+}
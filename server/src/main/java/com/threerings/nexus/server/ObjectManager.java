@@ -4,19 +4,29 @@
 
 package com.threerings.nexus.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.Maps;
 
+import react.RFuture;
 import react.RMap;
 import react.RPromise;
 import react.Slot;
@@ -24,6 +34,7 @@ import react.Try;
 
 import com.threerings.nexus.distrib.Action;
 import com.threerings.nexus.distrib.Address;
+import com.threerings.nexus.distrib.CompoundEvent;
 import com.threerings.nexus.distrib.DistribUtil;
 import com.threerings.nexus.distrib.EntityNotFoundException;
 import com.threerings.nexus.distrib.EventSink;
@@ -33,7 +44,9 @@ import com.threerings.nexus.distrib.Nexus;
 import com.threerings.nexus.distrib.NexusEvent;
 import com.threerings.nexus.distrib.NexusException;
 import com.threerings.nexus.distrib.NexusObject;
+import com.threerings.nexus.distrib.Passivating;
 import com.threerings.nexus.distrib.Request;
+import com.threerings.nexus.distrib.RequestTimeoutException;
 import com.threerings.nexus.distrib.Singleton;
 import static com.threerings.nexus.util.Log.log;
 
@@ -58,13 +71,79 @@ public class ObjectManager
         _config = config;
         _nexus = nexus;
         _exec = exec;
+        _defaultSched = new Scheduling(
+            Nexus.Priority.NORMAL,
+            config.getInt("nexus.context_batch", EntityContext.DEFAULT_BATCH_SIZE),
+            TimeUnit.MICROSECONDS.toNanos(
+                config.getLong("nexus.context_budget_us",
+                               TimeUnit.NANOSECONDS.toMicros(EntityContext.DEFAULT_BUDGET_NANOS))));
+        _defaultPublishRate = config.getInt("nexus.publish_rate", DEFAULT_PUBLISH_RATE);
+        _passivationInterval = config.getLong(
+            "nexus.passivation_interval", DEFAULT_PASSIVATION_INTERVAL);
+    }
+
+    /**
+     * Shuts down the timer used to publish ticked attributes and passivate idle entities, if it
+     * was started.
+     */
+    public synchronized void shutdown () {
+        if (_timer != null) _timer.shutdown();
+    }
+
+    /**
+     * Configures the rate at which objects of type {@code oclass} publish their ticked
+     * attributes. See {@link Nexus#setPublishRate}.
+     */
+    public void setPublishRate (Class<? extends NexusObject> oclass, int perSecond) {
+        if (perSecond < 1) throw new IllegalArgumentException("Publish rate must be positive");
+        _publishRates.put(oclass, perSecond);
+    }
+
+    /**
+     * Configures the passivation of idle keyed entities of type {@code kclass}. See {@link
+     * Nexus#setPassivation}.
+     */
+    public <K extends Keyed> void setPassivation (Class<K> kclass, long idleMillis,
+                                                  int maxResident) {
+        if (idleMillis < 1) throw new IllegalArgumentException("Idle time must be positive");
+        if (maxResident < 0) throw new IllegalArgumentException("Max resident must be >= 0");
+        _passivations.put(kclass, new Passivation(
+            TimeUnit.MILLISECONDS.toNanos(idleMillis), maxResident));
+        synchronized (this) {
+            if (_passivator == null) {
+                _passivator = timer().schedule(new Runnable() {
+                    public void run () {
+                        passivateIdle();
+                    }
+                }, _passivationInterval).repeatEvery(_passivationInterval);
+            }
+        }
+    }
+
+    /**
+     * Configures the priority of contexts subsequently created for entities of type {@code
+     * eclass}. See {@link Nexus#setPriority}.
+     */
+    public void setPriority (Class<?> eclass, Nexus.Priority priority) {
+        Scheduling sched = scheduling(eclass);
+        _scheds.put(eclass, new Scheduling(priority, sched.batchSize, sched.budgetNanos));
+    }
+
+    /**
+     * Configures the turn budget of contexts subsequently created for entities of type {@code
+     * eclass}. See {@link Nexus#setTurnBudget}.
+     */
+    public void setTurnBudget (Class<?> eclass, int maxOps, long maxMicros) {
+        Scheduling sched = scheduling(eclass);
+        _scheds.put(eclass, new Scheduling(sched.priority, maxOps,
+                                           TimeUnit.MICROSECONDS.toNanos(maxMicros)));
     }
 
     /**
      * Registers the supplied object in its own context.
      */
     public <N extends NexusObject> Nexus.Context<N> register (N object) {
-        return register(object, new EntityContext(_exec));
+        return register(object, newContext(object.getClass()));
     }
 
     /**
@@ -78,7 +157,7 @@ public class ObjectManager
      * Registers the supplied singleton entity in its own context.
      */
     public <S extends Singleton> Nexus.Context<S> register (Class<? super S> sclass, S entity) {
-        return register(sclass, entity, new EntityContext(_exec));
+        return register(sclass, entity, newContext(sclass));
     }
 
     /**
@@ -95,7 +174,7 @@ public class ObjectManager
      * @throws NexusException if an entity is already mapped with the entity's key.
      */
     public <K extends Keyed> Nexus.Context<K> registerKeyed (Class<? super K> kclass, K entity) {
-        return register(kclass, entity.getKey(), entity, new EntityContext(_exec));
+        return register(kclass, entity.getKey(), entity, newContext(kclass));
     }
 
     /**
@@ -125,7 +204,7 @@ public class ObjectManager
         GlobalMap<K,V> map = new GlobalMap<K,V>(id, this);
         // oddly, we have to tell Java that "forgetting" K and V here is safe, and we have to do
         // some serious backbending to accomplish it to boot; damned half-assed existentials
-        Binding<?> bind = simpleBinding(map, new EntityContext(_exec));
+        Binding<?> bind = simpleBinding(map, newContext(GlobalMap.class));
         @SuppressWarnings("unchecked") Binding<GlobalMap<?,?>> casted =
             (Binding<GlobalMap<?,?>>)bind;
         if (_maps.putIfAbsent(id, casted) != null) {
@@ -189,16 +268,14 @@ public class ObjectManager
         // queue up an action on this object's context that will remove this object's binding; this
         // will allow any pending events for this object to be processed before the binding is
         // cleared
+        final Binding<?> fbind = bind;
         bind.context.postOp(new Runnable() {
             public void run () {
                 _objects.remove(id);
-                synchronized (_subscribers) {
-                    // remove the subscriber set and notify them that the object was cleared
-                    Set<Subscriber> subs = _subscribers.remove(id);
-                    if (subs != null) {
-                        for (Subscriber sub : subs) sub.onCleared(id);
-                    }
-                }
+                // now that the object is gone, its id may be reused
+                _ids.release(id);
+                // remove the subscribers and notify them that the object was cleared
+                for (Subscriber sub : fbind.clearSubscribers()) sub.onCleared(id);
             }
         });
     }
@@ -268,19 +345,247 @@ public class ObjectManager
     }
 
     /**
-     * Invokes the supplied request on the specified singleton entity.
+     * Invokes the supplied action on each of the specified keyed entities, which must be local to
+     * this server. Rather than posting an operation for each entity, the entities are grouped by
+     * context (entities registered as children of another entity share its context), and a single
+     * operation is posted to each context, which invokes the action on each of its entities in
+     * turn. The action is dropped (see {@link Action#onDropped}) for keys with no entity.
+     */
+    public <K extends Keyed> void invoke (Class<K> kclass, Set<? extends Comparable<?>> keys,
+                                          final Action<? super K> action) {
+        if (_safetyChecks && !(action instanceof Action.Local<?>)) defangAction(action);
+        Map<EntityContext,List<Binding<K>>> groups = Maps.newLinkedHashMap();
+        for (Comparable<?> key : keys) {
+            try {
+                Binding<K> bind = require(kclass, key, "No keyed entity registered for");
+                bind.touch();
+                group(groups, bind);
+            } catch (EntityNotFoundException enfe) {
+                action.onDropped(_nexus, kclass, key);
+            }
+        }
+        for (Map.Entry<EntityContext,List<Binding<K>>> entry : groups.entrySet()) {
+            final List<Binding<K>> binds = entry.getValue();
+            entry.getKey().postOp(new Runnable() {
+                public void run () {
+                    for (Binding<K> bind : binds) {
+                        try {
+                            if (bind._passivatedKey != null) bind.redispatch(action);
+                            else action.invoke(bind.entity());
+                        } catch (Throwable t) {
+                            log.warning("Entity action failed", "action", action, t);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Invokes the supplied request on each of the specified keyed entities that are hosted by
+     * this server, and returns a future for each request, by key. The requests are grouped by
+     * context as described in {@link #invoke(Class,Set,Action)}.
+     */
+    public <K extends Keyed,R> Map<Comparable<?>,Future<R>> gatherF (
+        Class<K> kclass, Set<? extends Comparable<?>> keys, final Request<? super K,R> request,
+        long deadline) {
+        if (_safetyChecks && !(request instanceof Request.Local<?,?>)) defangAction(request);
+        Map<Comparable<?>,Future<R>> results = Maps.newHashMap();
+        Map<EntityContext,List<RequestTask<R>>> groups = Maps.newLinkedHashMap();
+        for (Comparable<?> key : keys) {
+            Binding<K> bind = hostedBinding(kclass, key);
+            if (bind == null) continue;
+            bind.touch();
+            RequestTask<R> task = bind.requestTask(request, deadline);
+            results.put(key, task);
+            List<RequestTask<R>> tasks = groups.get(bind.context);
+            if (tasks == null) groups.put(bind.context, tasks = new ArrayList<RequestTask<R>>());
+            tasks.add(task);
+        }
+        for (Map.Entry<EntityContext,List<RequestTask<R>>> entry : groups.entrySet()) {
+            final List<RequestTask<R>> tasks = entry.getValue();
+            entry.getKey().postOp(new Runnable() {
+                public void run () {
+                    for (RequestTask<R> task : tasks) task.run();
+                }
+            });
+        }
+        return results;
+    }
+
+    /**
+     * Invokes the supplied request on each of the specified keyed entities that are hosted by
+     * this server, and returns a single future for all of their results, by key. The requests are
+     * grouped by context as described in {@link #invoke(Class,Set,Action)}. The future completes
+     * when all of the requests have completed. Requests that fail are logged and omitted from the
+     * results. If the requests have not all completed by {@code deadline}, the future yields the
+     * results obtained by then, and the requests that have not been started are never started.
+     * Likewise, if the future is canceled, the requests that have not been started are never
+     * started.
+     */
+    public <K extends Keyed,R> Future<Map<Comparable<?>,R>> gather (
+        Class<K> kclass, Set<? extends Comparable<?>> keys, final Request<? super K,R> request,
+        final long deadline) {
+        if (_safetyChecks && !(request instanceof Request.Local<?,?>)) defangAction(request);
+        Map<EntityContext,List<Binding<K>>> groups = Maps.newLinkedHashMap();
+        for (Comparable<?> key : keys) {
+            Binding<K> bind = hostedBinding(kclass, key);
+            if (bind == null) continue;
+            bind.touch();
+            group(groups, bind);
+        }
+        final Gathering<R> gathering = new Gathering<R>(groups.size(), deadline);
+        for (Map.Entry<EntityContext,List<Binding<K>>> entry : groups.entrySet()) {
+            final List<Binding<K>> binds = entry.getValue();
+            Runnable op = new Runnable() {
+                public void run () {
+                    // the requests on entities passivated since we were posted are redispatched
+                    // to their replacements, so our context is done once those requests are too
+                    final AtomicInteger outstanding = new AtomicInteger(1);
+                    try {
+                        for (int ii = 0, ll = binds.size(); ii < ll; ii++) {
+                            // if the caller has given up on us, don't start the rest
+                            if (gathering.isCancelled()) break;
+                            // if we've reached our deadline, it's too late to start the rest
+                            if (System.nanoTime() - deadline >= 0) {
+                                _timedOutRequests.addAndGet(ll-ii);
+                                _unstartedTimeouts.addAndGet(ll-ii);
+                                break;
+                            }
+                            final Binding<K> bind = binds.get(ii);
+                            outstanding.incrementAndGet();
+                            bind.requestTask(request, deadline, new Slot<Try<R>>() {
+                                public void onEmit (Try<R> outcome) {
+                                    if (outcome.isSuccess()) gathering.succeed(
+                                        (bind._passivatedKey != null) ? bind._passivatedKey :
+                                        bind.entity().getKey(), outcome.get());
+                                    else log.warning("Gather failure", "request", request,
+                                                     "entity", bind, outcome.getFailure());
+                                    if (outstanding.decrementAndGet() == 0) {
+                                        gathering.contextDone();
+                                    }
+                                }
+                            }).run();
+                        }
+                    } finally {
+                        if (outstanding.decrementAndGet() == 0) gathering.contextDone();
+                    }
+                }
+            };
+            gathering.posted(entry.getKey(), op);
+            entry.getKey().postOp(op);
+        }
+        return gathering;
+    }
+
+    /**
+     * Invokes the supplied request on the specified singleton entity, with the default deadline.
      */
     public <S extends Singleton,R> Future<R> invoke (Class<S> sclass, Request<? super S,R> request) {
-        return require(sclass, "No singleton registered for").requestF(request);
+        return invoke(sclass, request, defaultDeadline());
     }
 
     /**
-     * Invokes the supplied request on the specified keyed entity. The entity must be local to this
-     * server or an exception will be raised.
+     * Invokes the supplied request on the specified singleton entity. See {@link
+     * Binding#requestF(Request,long)} regarding {@code deadline}.
+     */
+    public <S extends Singleton,R> Future<R> invoke (Class<S> sclass, Request<? super S,R> request,
+                                                     long deadline) {
+        return require(sclass, "No singleton registered for").requestF(request, deadline);
+    }
+
+    /**
+     * Invokes the supplied request on the specified keyed entity, with the default deadline. The
+     * entity must be local to this server or an exception will be raised.
      */
     public <K extends Keyed,R> Future<R> invoke (Class<K> kclass, Comparable<?> key,
                                                  Request<? super K,R> request) {
-        return require(kclass, key, "No keyed entity registered for").requestF(request);
+        return invoke(kclass, key, request, defaultDeadline());
+    }
+
+    /**
+     * Invokes the supplied request on the specified keyed entity. The entity must be local to this
+     * server or an exception will be raised. See {@link Binding#requestF(Request,long)} regarding
+     * {@code deadline}.
+     */
+    public <K extends Keyed,R> Future<R> invoke (Class<K> kclass, Comparable<?> key,
+                                                 Request<? super K,R> request, long deadline) {
+        return require(kclass, key, "No keyed entity registered for").requestF(request, deadline);
+    }
+
+    /**
+     * Invokes the supplied request on the specified singleton entity, completing the returned
+     * future on the calling context. See {@link Binding#requestR}.
+     */
+    public <S extends Singleton,R> RFuture<R> invokeR (Class<S> sclass,
+                                                      Request<? super S,R> request,
+                                                      long deadline) {
+        return require(sclass, "No singleton registered for").requestR(request, deadline);
+    }
+
+    /**
+     * Invokes the supplied request on the specified keyed entity, completing the returned future
+     * on the calling context. The entity must be local to this server or an exception will be
+     * raised. See {@link Binding#requestR}.
+     */
+    public <K extends Keyed,R> RFuture<R> invokeR (Class<K> kclass, Comparable<?> key,
+                                                  Request<? super K,R> request, long deadline) {
+        return require(kclass, key, "No keyed entity registered for").requestR(request, deadline);
+    }
+
+    /**
+     * Returns the deadline (in {@link System#nanoTime} terms) of a request issued now with the
+     * specified timeout.
+     */
+    public long deadline (long timeout, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(timeout);
+    }
+
+    /**
+     * Returns the deadline of a request issued now with the default timeout ({@link
+     * NexusConfig#rpcTimeout}).
+     */
+    public long defaultDeadline () {
+        return deadline(_config.rpcTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of requests that have timed out, including those that timed out before
+     * they were started.
+     */
+    public long timedOutRequests () {
+        return _timedOutRequests.get();
+    }
+
+    /**
+     * Returns the number of requests that timed out before they were started, and were thus
+     * never started.
+     */
+    public long unstartedTimeouts () {
+        return _unstartedTimeouts.get();
+    }
+
+    /**
+     * Returns the number of keyed entities that have been passivated.
+     */
+    public long passivatedEntities () {
+        return _passivated.get();
+    }
+
+    /**
+     * Waits for the result of the supplied request, and returns it.
+     * @throws NexusException if the request failed or timed out.
+     */
+    public static <R> R get (Request<?,?> request, Future<R> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            else throw new NexusException("Request failure " + request, cause);
+        } catch (InterruptedException ie) {
+            throw new NexusException("Interrupted while waiting for request " + request);
+        }
     }
 
     /**
@@ -332,19 +637,16 @@ public class ObjectManager
     public void addSubscriber (NexusObject target, Subscriber sub) {
         int id = target.getId();
         if (id == 0) throw new NexusException("Cannot subscribe to unregistered object " + target);
-        getSubscriberSet(id).add(sub);
+        requireObject(id, "Cannot subscribe to unknown object ").addSubscriber(sub);
     }
 
     /**
      * Requests that the supplied subscriber be removed from the object with the specified id.
      */
     public boolean clearSubscriber (int id, Subscriber sub) {
-        Set<Subscriber> subs;
-        synchronized (_subscribers) {
-            subs = _subscribers.get(id);
-        }
-        if (subs == null) return false; // the object was probably already destroyed
-        if (subs.remove(sub)) return true;
+        Binding<?> bind = _objects.get(id);
+        if (bind == null) return false; // the object was probably already destroyed
+        if (bind.removeSubscriber(sub)) return true;
         log.warning("Requested to remove unknown subscriber", "id", id, "sub", sub);
         return false;
     }
@@ -354,11 +656,9 @@ public class ObjectManager
      * @param source the session from which the event originated, or null.
      */
     public void dispatchEvent (final NexusEvent event, final Session source) {
-        final Set<Subscriber> subs;
-        synchronized (_subscribers) {
-            subs = _subscribers.get(event.targetId);
-        }
-        invoke(event.targetId, new Action.Local<NexusObject>() {
+        final Binding<NexusObject> bind =
+            requireObject(event.targetId, "No object registered with id ");
+        bind.invoke(new Action.Local<NexusObject>() {
             @Override public void invoke (NexusObject object) {
                 SessionLocal.setCurrent(source);
                 try {
@@ -374,10 +674,15 @@ public class ObjectManager
                 // object's thread; by ensuring that both things are done on the object's thread,
                 // we avoid opening a window in which events could be sent to a client that was in
                 // the process of subscribing to an object but had not yet received its response)
-                if (subs != null) {
-                    for (Subscriber sub : subs) {
-                        sub.forwardEvent(event);
-                    }
+                Subscriber[] subs = bind.subscribers();
+                if (subs.length == 0) return;
+                // subscribers needn't hear about changes superseded within the same compound event
+                NexusEvent fevent = (event instanceof CompoundEvent) ?
+                    ((CompoundEvent)event).coalesce() : event;
+                // changes to ticked attributes are sent when the object next publishes
+                if ((fevent = bind.deferTicked(fevent)) == null) return;
+                for (Subscriber sub : subs) {
+                    sub.forwardEvent(fevent);
                 }
             }
             @Override public String toString() {
@@ -427,9 +732,35 @@ public class ObjectManager
     }
 
     // from interface EventSink
-    public void postEvent (NexusObject source, final NexusEvent event) {
-        // TODO: fancy aggregation using thread-local accumulators
-        postEvent(event);
+    public void postEvent (NexusObject source, NexusEvent event) {
+        // events posted by an operation executing on the object's context are accumulated, and
+        // dispatched as a single (compound) event when the operation completes, or when it posts
+        // an event to another object, so that all events are dispatched in the order posted
+        EntityContext ctx = EntityContext.current.get();
+        if (ctx == null) {
+            postEvent(event);
+            return;
+        }
+        final Binding<?> bind = _objects.get(event.targetId);
+        Binding<?> accum = ctx._accumulating;
+        if (accum != null && accum != bind) accum.flushEvents();
+        if (bind == null || bind.context != ctx) {
+            postEvent(event);
+            return;
+        }
+        if (bind._pending == null) {
+            bind._pending = new ArrayList<NexusEvent>();
+            ctx._accumulating = bind;
+            ctx.afterOp(new Runnable() {
+                public void run () {
+                    if (bind._pending != null) bind.flushEvents();
+                }
+                @Override public String toString () {
+                    return "flushEvents:" + bind._pending;
+                }
+            });
+        }
+        bind._pending.add(event);
     }
 
     protected <S extends Singleton> Binding<S> register (Class<? super S> sclass, S entity,
@@ -469,7 +800,7 @@ public class ObjectManager
     }
 
     protected <N extends NexusObject> Binding<N> register (N object, EntityContext ctx) {
-        int id = getNextObjectId();
+        int id = _ids.allocate();
         DistribUtil.init(object, id, this);
         Binding<N> bind = simpleBinding(object, ctx);
         _objects.put(id, bind);
@@ -496,7 +827,7 @@ public class ObjectManager
         if (fact == null) throw new EntityNotFoundException(errmsg, kclass, key);
 
         // otherwise we'll auto-create the entity
-        final EntityContext ctx = new EntityContext(_exec);
+        final EntityContext ctx = newContext(kclass);
         bind = deferredBinding(new Thunk<K>() {
             public K execute () {
                 try {
@@ -518,6 +849,19 @@ public class ObjectManager
         return (exist == null) ? bind : exist;
     }
 
+    /** Returns the binding for the specified keyed entity, if it is hosted here, or null. */
+    protected <K extends Keyed> Binding<K> hostedBinding (Class<K> kclass, Comparable<?> key) {
+        ConcurrentMap<Comparable<?>,Binding<K>> emap = getKeyedMap(kclass);
+        return emap.get(key);
+    }
+
+    /** Adds {@code bind} to the group of bindings for its context. */
+    protected static <K> void group (Map<EntityContext,List<Binding<K>>> groups, Binding<K> bind) {
+        List<Binding<K>> binds = groups.get(bind.context);
+        if (binds == null) groups.put(bind.context, binds = new ArrayList<Binding<K>>());
+        binds.add(bind);
+    }
+
     protected Binding<NexusObject> requireObject (int id, String errmsg) {
         @SuppressWarnings("unchecked") Binding<NexusObject> bind =
             (Binding<NexusObject>)_objects.get(id);
@@ -603,23 +947,28 @@ public class ObjectManager
         return casted;
     }
 
-    protected Set<Subscriber> getSubscriberSet (int targetId) {
-        synchronized (_subscribers) {
-            Set<Subscriber> subs = _subscribers.get(targetId);
-            if (subs == null) {
-                subs = new ConcurrentSkipListSet<Subscriber>(SUBSCRIBER_COMP);
-                _subscribers.put(targetId, subs);
-            }
-            return subs;
-        }
+    /** Returns the period (in millis) at which objects of the supplied class publish their
+     * ticked attributes. */
+    protected long publishPeriod (Class<?> oclass) {
+        Integer rate = _publishRates.get(oclass);
+        return 1000L / ((rate == null) ? _defaultPublishRate : rate);
+    }
+
+    /** Returns the timer used for ticked publication, request deadlines and passivation. This is
+     * created on demand, as a daemon, so that a server which is not shut down can still exit. */
+    protected synchronized NexusTimer timer () {
+        if (_timer == null) _timer = new NexusTimer(_nexus, true);
+        return _timer;
+    }
+
+    protected Scheduling scheduling (Class<?> eclass) {
+        Scheduling sched = _scheds.get(eclass);
+        return (sched == null) ? _defaultSched : sched;
     }
 
-    protected final synchronized int getNextObjectId () {
-        // look for the next unused oid; if we had two billion objects, this would loop infinitely,
-        // but the world will come to an end long before we have two billion objects
-        do _nextId = (_nextId == Integer.MAX_VALUE) ? 1 : (_nextId + 1);
-        while (_objects.containsKey(_nextId));
-        return _nextId;
+    protected EntityContext newContext (Class<?> eclass) {
+        Scheduling sched = scheduling(eclass);
+        return new EntityContext(_exec, sched.batchSize, sched.budgetNanos, sched.priority);
     }
 
     protected <E> Binding<E> simpleBinding (final E entity, EntityContext ctx) {
@@ -634,6 +983,12 @@ public class ObjectManager
                 if (_entity == null) _entity = thunk.execute();
                 return _entity;
             }
+            @Override public boolean created () {
+                return true;
+            }
+            @Override public E resolvedEntity () {
+                return _entity;
+            }
             // we don't have to worry about thread safety here because we know that entity() is
             // only ever called on this binding's execution context
             protected E _entity;
@@ -643,42 +998,627 @@ public class ObjectManager
     /** Used to auto-create entities. */
     protected interface Thunk<T> { T execute (); }
 
+    /**
+     * Passivates the factory-created keyed entities which have been idle longer than their class's
+     * idle time, and the least recently used such entities in excess of their class's maximum.
+     */
+    protected void passivateIdle () {
+        long now = System.nanoTime();
+        for (Map.Entry<Class<?>,Passivation> entry : _passivations.entrySet()) {
+            @SuppressWarnings("unchecked") Class<Keyed> kclass = (Class<Keyed>)entry.getKey();
+            Passivation policy = entry.getValue();
+            // snapshot the last access times, which may change while we sort
+            List<Resident> residents = new ArrayList<Resident>();
+            for (Map.Entry<Comparable<?>,Binding<Keyed>> bentry :
+                     getKeyedMap(kclass).entrySet()) {
+                if (bentry.getValue().created()) {
+                    residents.add(new Resident(bentry.getKey(), bentry.getValue()));
+                }
+            }
+            Collections.sort(residents); // least recently used first
+            int excess = (policy.maxResident == 0) ? 0 : residents.size() - policy.maxResident;
+            for (Resident res : residents) {
+                // once we pass the excess, the remaining entities are all more recently used
+                if (excess-- <= 0 && now - res.lastAccess < policy.idleNanos) break;
+                passivate(kclass, res);
+            }
+        }
+    }
+
+    /**
+     * Passivates the specified keyed entity on its context, unless it has been accessed since it
+     * was selected for passivation, or it is an object with subscribers.
+     */
+    protected void passivate (final Class<Keyed> kclass, final Resident res) {
+        final Binding<Keyed> bind = res.bind;
+        bind.context.postOp(new Runnable() {
+            public void run () {
+                ConcurrentMap<Comparable<?>,Binding<Keyed>> emap = getKeyedMap(kclass);
+                if (bind._lastAccess != res.lastAccess || emap.get(res.key) != bind) return;
+                Keyed entity = bind.resolvedEntity();
+                if (entity == null) {
+                    // the entity was never created, so there's nothing to passivate (and no point
+                    // in creating it now); we need only clear its binding
+                    bind._passivatedClass = kclass;
+                    bind._passivatedKey = res.key;
+                    emap.remove(res.key, bind);
+                    return;
+                }
+                if (entity instanceof NexusObject) {
+                    Binding<?> obind = _objects.get(((NexusObject)entity).getId());
+                    if (obind != null && obind.subscribers().length > 0) return;
+                }
+                if (entity instanceof Passivating) {
+                    try {
+                        ((Passivating)entity).passivate(_nexus);
+                    } catch (Throwable t) {
+                        // the entity may not have saved its state, so we leave it be
+                        log.warning("Entity passivation failed", "class", kclass,
+                                    "key", res.key, t);
+                        return;
+                    }
+                }
+                // any actions and requests already posted to our binding will be redirected to
+                // the entity's replacement
+                bind._passivatedClass = kclass;
+                bind._passivatedKey = res.key;
+                clearKeyed(kclass, entity);
+                _passivated.incrementAndGet();
+            }
+            @Override public String toString () {
+                return "passivate:" + kclass.getName() + ":" + res.key;
+            }
+        });
+    }
+
+    /** The passivation policy for a class of keyed entities. */
+    protected static class Passivation {
+        public final long idleNanos;
+        public final int maxResident;
+
+        public Passivation (long idleNanos, int maxResident) {
+            this.idleNanos = idleNanos;
+            this.maxResident = maxResident;
+        }
+    }
+
+    /** A candidate for passivation, ordered by the time it was last accessed. */
+    protected static class Resident implements Comparable<Resident> {
+        public final Comparable<?> key;
+        public final Binding<Keyed> bind;
+        public final long lastAccess;
+
+        public Resident (Comparable<?> key, Binding<Keyed> bind) {
+            this.key = key;
+            this.bind = bind;
+            this.lastAccess = bind._lastAccess;
+        }
+
+        // from interface Comparable
+        public int compareTo (Resident other) {
+            long delta = lastAccess - other.lastAccess; // nanoTime stamps may wrap
+            return (delta < 0) ? -1 : ((delta == 0) ? 0 : 1);
+        }
+    }
+
+    /** Collects the results of a {@link #gather}. */
+    protected static class Gathering<R> implements Future<Map<Comparable<?>,R>> {
+        public Gathering (int contexts, long deadline) {
+            _pending = new CountDownLatch(contexts);
+            _deadline = deadline;
+        }
+
+        /** Records the result of the request on the entity with the specified key. */
+        public void succeed (Comparable<?> key, R result) {
+            synchronized (_results) {
+                _results.put(key, result);
+            }
+        }
+
+        /** Notes that {@code op}, which executes some of our requests, was posted to {@code
+         * context}. Must be called before we are returned to the caller. */
+        public void posted (EntityContext context, Runnable op) {
+            _ops.put(context, op);
+        }
+
+        /** Notes that one of the contexts on which our requests were executed is done. */
+        public void contextDone () {
+            _pending.countDown();
+        }
+
+        // from interface Future
+        public boolean cancel (boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) return false;
+                _cancelled = true;
+            }
+            // the requests on contexts that have not yet reached our op are never started (and
+            // those on contexts that have started it stop at the next request)
+            for (Map.Entry<EntityContext,Runnable> entry : _ops.entrySet()) {
+                if (entry.getKey().removeOp(entry.getValue())) contextDone();
+            }
+            return true;
+        }
+
+        // from interface Future
+        public boolean isCancelled () {
+            return _cancelled;
+        }
+
+        // from interface Future
+        public boolean isDone () {
+            return _cancelled || _pending.getCount() == 0 || System.nanoTime() - _deadline >= 0;
+        }
+
+        // from interface Future
+        public Map<Comparable<?>,R> get () throws InterruptedException {
+            _pending.await(_deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return results();
+        }
+
+        // from interface Future
+        public Map<Comparable<?>,R> get (long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+            long wait = unit.toNanos(timeout);
+            if (wait >= _deadline - System.nanoTime()) return get();
+            if (!_pending.await(wait, TimeUnit.NANOSECONDS)) throw new TimeoutException();
+            return results();
+        }
+
+        protected Map<Comparable<?>,R> results () {
+            if (_cancelled) throw new CancellationException();
+            synchronized (_results) {
+                return Maps.newHashMap(_results);
+            }
+        }
+
+        protected final Map<Comparable<?>,R> _results = Maps.newHashMap();
+        /** The op that executes our requests on each context. */
+        protected final Map<EntityContext,Runnable> _ops = Maps.newHashMap();
+        protected final CountDownLatch _pending;
+        protected final long _deadline;
+        protected volatile boolean _cancelled;
+    }
+
+    /** A request posted to an entity context, which times out at its deadline. */
+    protected class RequestTask<R> extends FutureTask<R> {
+        public RequestTask (Callable<R> call, Request<?,R> request, Binding<?> bind,
+                            long deadline) {
+            super(call);
+            _request = request;
+            _bind = bind;
+            _context = bind.context;
+            _deadline = deadline;
+        }
+
+        @Override public void run () {
+            // if we've not been started by our deadline, it's too late to start now
+            if (System.nanoTime() - _deadline >= 0) expire();
+            // if our entity was passivated after we were posted, we go to its replacement
+            else if (_bind._passivatedKey != null) _bind.redispatch(this);
+            else {
+                noteStarted();
+                super.run();
+            }
+        }
+
+        @Override public R get () throws InterruptedException, ExecutionException {
+            return awaitDeadline();
+        }
+
+        @Override public R get (long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            long wait = unit.toNanos(timeout);
+            return (wait < _deadline - System.nanoTime()) ?
+                super.get(wait, TimeUnit.NANOSECONDS) : awaitDeadline();
+        }
+
+        @Override public String toString () {
+            return "RequestTask(" + _request + ")";
+        }
+
+        protected R awaitDeadline () throws InterruptedException, ExecutionException {
+            try {
+                return super.get(_deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException te) {
+                expire();
+                // we'll now report our timeout, unless we completed just before expiring
+                return super.get();
+            }
+        }
+
+        /** Returns the outcome of this request, which must have completed. */
+        protected Try<R> outcome () {
+            try {
+                return Try.success(super.get());
+            } catch (ExecutionException ee) {
+                return Try.<R>failure(ee.getCause());
+            } catch (Exception e) {
+                return Try.<R>failure(e);
+            }
+        }
+
+        @Override protected void done () {
+            cancelExpiry();
+            if (_origin != null) _origin.complete(outcome());
+        }
+
+        /** Completes this request with the supplied outcome, unless it has already completed. */
+        protected void complete (Try<R> outcome) {
+            if (outcome.isSuccess()) set(outcome.get());
+            else setException(outcome.getFailure());
+        }
+
+        protected void noteStarted () {
+            _started = true;
+            if (_origin != null) _origin.noteStarted();
+        }
+
+        /**
+         * Notes the timer action that will expire this request at its deadline, which is canceled
+         * once this request completes (immediately, if it has already completed).
+         */
+        protected synchronized void setExpiry (NexusTimer.Deferred expiry) {
+            if (isDone()) expiry.cancel();
+            else _expiry = expiry;
+        }
+
+        protected synchronized void cancelExpiry () {
+            if (_expiry != null) {
+                _expiry.cancel();
+                _expiry = null;
+            }
+        }
+
+        /** Fails this request with a timeout, unless it has already completed. */
+        protected void expire () {
+            // a redispatched request times out the request from which it was redispatched
+            if (_origin != null) {
+                _origin.expire();
+                return;
+            }
+            if (isDone()) return;
+            boolean started = _started;
+            // if we've not started, we won't start, so we needn't occupy our context's queue
+            if (!started) _context.removeOp(this);
+            RequestTimeoutException timeout = new RequestTimeoutException(
+                "Request timed out " + _request, started);
+            setException(timeout);
+            // we may have completed (or expired) before we could set our exception, in which case
+            // we don't count this timeout
+            try {
+                super.get();
+            } catch (ExecutionException ee) {
+                if (ee.getCause() == timeout) {
+                    _timedOutRequests.incrementAndGet();
+                    if (!started) _unstartedTimeouts.incrementAndGet();
+                }
+            } catch (Exception e) {
+                // we're done, so we'll not be interrupted, and our result is not our concern
+            }
+        }
+
+        protected final Request<?,R> _request;
+        protected final Binding<?> _bind;
+        protected final EntityContext _context;
+        protected final long _deadline;
+        protected volatile boolean _started;
+
+        /** The request which was redispatched to this request (as its entity was passivated),
+         * and which this request completes, or null. */
+        protected RequestTask<R> _origin;
+
+        /** The timer action that expires this request, if one is scheduled. */
+        protected NexusTimer.Deferred _expiry;
+    }
+
+    /** The scheduling configuration of an entity context. */
+    protected static class Scheduling {
+        public final Nexus.Priority priority;
+        public final int batchSize;
+        public final long budgetNanos;
+
+        public Scheduling (Nexus.Priority priority, int batchSize, long budgetNanos) {
+            this.priority = priority;
+            this.batchSize = batchSize;
+            this.budgetNanos = budgetNanos;
+        }
+    }
+
     /** Maintains bindings of entities to contexts. */
     protected abstract class Binding<E> implements Nexus.Context<E> {
         @Override // from interface Nexus.Context
-        public void invoke (final Action<? super E> action) {
+        public void invoke (Action<? super E> action) {
+            // timer ticks are scheduled ahead of bulk work
+            boolean urgent = (action instanceof NexusTimer.Tick<?>);
+            if (urgent) {
+                @SuppressWarnings("unchecked") NexusTimer.Tick<E> tick = (NexusTimer.Tick<E>)action;
+                action = tick.action;
+            }
             if (_safetyChecks && !(action instanceof Action.Local<?>)) defangAction(action);
+            final Action<? super E> faction = action;
+            touch();
             context.postOp(new Runnable() {
                 public void run () {
-                    action.invoke(entity());
+                    if (_passivatedKey != null) redispatch(faction);
+                    else faction.invoke(entity());
                 }
-            });
+            }, urgent);
         }
 
         @Override // from interface Nexus.Context
-        public <R> Future<R> requestF (final Request<? super E,R> request) {
+        public <R> Future<R> requestF (Request<? super E,R> request) {
+            return requestF(request, defaultDeadline());
+        }
+
+        /**
+         * Invokes a request in this binding's context. If the request has not completed by {@code
+         * deadline} (in {@link System#nanoTime} terms), it fails with a {@link
+         * RequestTimeoutException} (as soon as the caller waits for it past the deadline, or the
+         * context reaches it in its queue), and if it has not yet started, it is never started.
+         */
+        public <R> Future<R> requestF (final Request<? super E,R> request, long deadline) {
             if (_safetyChecks && !(request instanceof Request.Local<?,?>)) defangAction(request);
+            touch();
             // post the request execution as a future task
-            FutureTask<R> task = new FutureTask<R>(new Callable<R>() {
-                public R call () {
-                    return request.invoke(entity());
-                }
-            });
+            RequestTask<R> task = requestTask(request, deadline);
             context.postOp(task);
             return task;
         }
 
         @Override // from interface Nexus.Context
         public <R> R request (Request<? super E,R> request) {
-            return null;
+            return get(request, requestF(request));
+        }
+
+        @Override // from interface Nexus.Context
+        public <R> RFuture<R> requestR (Request<? super E,R> request) {
+            return requestR(request, defaultDeadline());
+        }
+
+        /**
+         * Invokes a request in this binding's context, as {@link #requestF(Request,long)}. The
+         * returned future is completed by an operation posted to the context that called this
+         * method, so its listeners may safely access the calling entity. If this is not called
+         * from an entity context, the future is completed on the thread that completes the request.
+         */
+        public <R> RFuture<R> requestR (final Request<? super E,R> request, long deadline) {
+            if (_safetyChecks && !(request instanceof Request.Local<?,?>)) defangAction(request);
+            touch();
+            final EntityContext caller = EntityContext.current.get();
+            final RPromise<R> result = RPromise.create();
+            final RequestTask<R> task = requestTask(request, deadline, new Slot<Try<R>>() {
+                public void onEmit (final Try<R> outcome) {
+                    if (caller == null) result.completer().onEmit(outcome);
+                    else caller.postOp(new Runnable() {
+                        public void run () {
+                            result.completer().onEmit(outcome);
+                        }
+                    });
+                }
+            });
+            context.postOp(task);
+            // no one will wait for our task, so we must expire it ourselves if it is late
+            long delay = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1;
+            task.setExpiry(timer().schedule(new Runnable() {
+                public void run () {
+                    task.expire();
+                }
+            }, Math.max(delay, 0)));
+            return result;
+        }
+
+        /** Returns the subscribers to this binding's object. The caller must not modify the
+         * returned array, which is replaced (not modified) when subscribers are added or
+         * removed, and may thus be iterated without synchronization. */
+        public Subscriber[] subscribers () {
+            return _subscribers;
+        }
+
+        /** Adds a subscriber to this binding's object, unless it is already subscribed. */
+        public synchronized void addSubscriber (Subscriber sub) {
+            Subscriber[] subs = _subscribers;
+            for (Subscriber osub : subs) if (osub == sub) return;
+            Subscriber[] nsubs = Arrays.copyOf(subs, subs.length+1);
+            nsubs[subs.length] = sub;
+            _subscribers = nsubs;
+        }
+
+        /** Removes a subscriber from this binding's object.
+         * @return true if the subscriber was removed, false if it was not subscribed. */
+        public synchronized boolean removeSubscriber (Subscriber sub) {
+            Subscriber[] subs = _subscribers;
+            for (int ii = 0; ii < subs.length; ii++) {
+                if (subs[ii] != sub) continue;
+                Subscriber[] nsubs = NO_SUBSCRIBERS;
+                if (subs.length > 1) {
+                    nsubs = new Subscriber[subs.length-1];
+                    System.arraycopy(subs, 0, nsubs, 0, ii);
+                    System.arraycopy(subs, ii+1, nsubs, ii, nsubs.length-ii);
+                }
+                _subscribers = nsubs;
+                return true;
+            }
+            return false;
+        }
+
+        /** Dispatches the events accumulated for this binding's object by the executing op. */
+        public void flushEvents () {
+            List<NexusEvent> events = _pending;
+            _pending = null;
+            context._accumulating = null;
+            postEvent(events.size() == 1 ? events.get(0) :
+                      new CompoundEvent(events.get(0).targetId, events));
+        }
+
+        /**
+         * Stashes any changes to ticked attributes in the supplied event (which is destined for
+         * subscribers), to be sent when this binding's object next publishes, and schedules that
+         * publication if need be. Must be called on this binding's context.
+         * @return the event less the ticked changes, or null if nothing remains.
+         */
+        public NexusEvent deferTicked (NexusEvent event) {
+            if (event instanceof CompoundEvent) {
+                List<NexusEvent> events = ((CompoundEvent)event).events, kept = null;
+                for (int ii = 0, ll = events.size(); ii < ll; ii++) {
+                    NexusEvent sevent = events.get(ii);
+                    if (DistribUtil.isTicked(sevent)) {
+                        if (kept == null) kept = new ArrayList<NexusEvent>(events.subList(0, ii));
+                        stashTicked(sevent);
+                    } else if (kept != null) kept.add(sevent);
+                }
+                if (kept == null) return event;
+                if (kept.isEmpty()) return null;
+                return (kept.size() == 1) ? kept.get(0) : new CompoundEvent(event.targetId, kept);
+            } else if (DistribUtil.isTicked(event)) {
+                stashTicked(event);
+                return null;
+            }
+            return event;
+        }
+
+        /** Sends the latest changes to this binding's object's ticked attributes to subscribers. */
+        public void publishTicked () {
+            _publishPending = false;
+            _lastPublish = System.currentTimeMillis();
+            if (_ticked == null || _ticked.isEmpty()) return;
+            List<NexusEvent> events = new ArrayList<NexusEvent>(_ticked.values());
+            _ticked.clear();
+            NexusEvent event = (events.size() == 1) ? events.get(0) :
+                new CompoundEvent(events.get(0).targetId, events);
+            for (Subscriber sub : subscribers()) {
+                sub.forwardEvent(event);
+            }
+        }
+
+        /** Removes all subscribers from this binding's object.
+         * @return the removed subscribers. */
+        public synchronized Subscriber[] clearSubscribers () {
+            Subscriber[] subs = _subscribers;
+            _subscribers = NO_SUBSCRIBERS;
+            return subs;
         }
 
         public final EntityContext context;
         public abstract E entity ();
 
+        /** Returns true if this binding's entity is (or is to be) created by a {@link
+         * KeyedFactory}. */
+        public boolean created () {
+            return false;
+        }
+
+        /** Returns this binding's entity, or null if it is created on demand and has not yet
+         * been created. Must be called on this binding's context. */
+        public E resolvedEntity () {
+            return entity();
+        }
+
+        /** Notes that an action or request was invoked on this binding's entity. */
+        public void touch () {
+            _lastAccess = System.nanoTime();
+        }
+
+        /** Creates a task that invokes {@code request} on this binding's entity (or, if the
+         * entity is passivated before the task runs, on its replacement). */
+        public <R> RequestTask<R> requestTask (Request<? super E,R> request, long deadline) {
+            return requestTask(request, deadline, null);
+        }
+
+        /** Creates a task that invokes {@code request} on this binding's entity (or, if the
+         * entity is passivated before the task runs, on its replacement), and which notifies
+         * {@code onDone} of its outcome (if non-null) when it completes. */
+        public <R> RequestTask<R> requestTask (final Request<? super E,R> request, long deadline,
+                                               final Slot<Try<R>> onDone) {
+            return new RequestTask<R>(new Callable<R>() {
+                public R call () {
+                    return request.invoke(entity());
+                }
+            }, request, this, deadline) {
+                @Override protected void done () {
+                    super.done();
+                    if (onDone != null) onDone.onEmit(outcome());
+                }
+            };
+        }
+
+        /** Dispatches an action, which was posted to this binding after its entity was
+         * passivated, to the entity (which will be created anew). */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void redispatch (Action<? super E> action) {
+            ObjectManager.this.invoke((Class)_passivatedClass, _passivatedKey, (Action)action);
+        }
+
+        /** Dispatches a request, which was posted to this binding after its entity was
+         * passivated, to the entity (which will be created anew), and completes {@code task} with
+         * its outcome. */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public <R> void redispatch (RequestTask<R> task) {
+            Binding<E> bind;
+            try {
+                bind = (Binding<E>)require((Class)_passivatedClass, _passivatedKey,
+                                           "No keyed entity registered for");
+            } catch (EntityNotFoundException enfe) {
+                task.complete(Try.<R>failure(enfe));
+                return;
+            }
+            bind.touch();
+            RequestTask<R> retask = bind.requestTask((Request<? super E,R>)task._request,
+                                                     task._deadline);
+            retask._origin = task;
+            bind.context.postOp(retask);
+        }
+
         private Binding (EntityContext ctx) {
             this.context = ctx;
         }
+
+        /** The time (in {@link System#nanoTime} terms) at which an action or request was last
+         * invoked on this binding's entity. */
+        protected volatile long _lastAccess = System.nanoTime();
+
+        /** The class and key of this binding's entity, once it has been passivated. These are
+         * only read and written on this binding's context. */
+        protected Class<?> _passivatedClass;
+        protected Comparable<?> _passivatedKey;
+
+        /** The subscribers to this binding's object (if it is a {@link NexusObject}), which are
+         * only read and written by the subscriber methods. */
+        protected volatile Subscriber[] _subscribers = NO_SUBSCRIBERS;
+
+        protected void stashTicked (NexusEvent event) {
+            if (_ticked == null) _ticked = new LinkedHashMap<Object,NexusEvent>();
+            _ticked.put(DistribUtil.coalesceKey(event), event);
+            if (_publishPending) return;
+
+            // publish once a full period has elapsed since our last publication
+            _publishPending = true;
+            long delay = Math.max(0, _lastPublish + publishPeriod(entity().getClass()) -
+                                  System.currentTimeMillis());
+            final NexusTimer.Tick<E> tick = new NexusTimer.Tick<E>(new Action.Local<E>() {
+                @Override public void invoke (E entity) {
+                    publishTicked();
+                }
+                @Override public String toString () {
+                    return "publishTicked";
+                }
+            });
+            timer().schedule(new Runnable() {
+                public void run () {
+                    invoke(tick);
+                }
+            }, delay);
+        }
+
+        /** The events posted to this binding's object by the op executing on its context, which
+         * are only read and written by that op's thread. */
+        protected List<NexusEvent> _pending;
+
+        /** The latest unpublished changes to this binding's object's ticked attributes, by
+         * coalescing key, and the state of its publication; only accessed on its context. */
+        protected Map<Object,NexusEvent> _ticked;
+        protected boolean _publishPending;
+        protected long _lastPublish;
     }
 
     protected static class IdGen {
@@ -702,11 +1642,38 @@ public class ObjectManager
     /** The executor we use to execute actions and requests. */
     protected final Executor _exec;
 
-    /** Used to assign ids to newly registered objects. See {@link #getNextObjectId}. */
-    protected int _nextId = 0;
+    /** The rate (per second) at which objects publish ticked attributes, by class, and the
+     * default. */
+    protected final ConcurrentMap<Class<?>,Integer> _publishRates = Maps.newConcurrentMap();
+    protected final int _defaultPublishRate;
+
+    /** The passivation policies of keyed entities, by class, and the interval (in millis) at
+     * which we check for entities to passivate. */
+    protected final ConcurrentMap<Class<?>,Passivation> _passivations = Maps.newConcurrentMap();
+    protected final long _passivationInterval;
+
+    /** The number of keyed entities that have been passivated. */
+    protected final AtomicLong _passivated = new AtomicLong();
+
+    /** The number of requests that have timed out, and that timed out before being started. */
+    protected final AtomicLong _timedOutRequests = new AtomicLong();
+    protected final AtomicLong _unstartedTimeouts = new AtomicLong();
+
+    /** The timer used to schedule publication of ticked attributes, created on demand. */
+    protected NexusTimer _timer;
+
+    /** Our periodic check for idle entities, started when a passivation policy is configured. */
+    protected NexusTimer.Deferred _passivator;
+
+    /** The scheduling configuration of contexts, by entity class, and the default. */
+    protected final ConcurrentMap<Class<?>,Scheduling> _scheds = Maps.newConcurrentMap();
+    protected final Scheduling _defaultSched;
+
+    /** Used to assign ids to newly registered objects. */
+    protected final ObjectIdAllocator _ids = new ObjectIdAllocator();
 
     /** A mapping of all nexus objects hosted on this server. */
-    protected final ConcurrentMap<Integer,Binding<?>> _objects = Maps.newConcurrentMap();
+    protected final ConcurrentIntMap<Binding<?>> _objects = new ConcurrentIntMap<Binding<?>>();
 
     /** A mapping of all singleton entities hosted on this server. */
     protected final ConcurrentMap<Class<?>,Binding<?>> _singletons = Maps.newConcurrentMap();
@@ -724,21 +1691,15 @@ public class ObjectManager
     /** A mapping of distributed maps known to this server. */
     protected final ConcurrentMap<String,Binding<GlobalMap<?,?>>> _maps = Maps.newConcurrentMap();
 
-    /** A mapping from object id to subscriber set. The outer mapping will only be modified under
-     * synchronization, but the inner-set allows concurrent modifications. */
-    protected final Map<Integer,Set<Subscriber>> _subscribers = Maps.newHashMap();
-
     /** Indicates whether runtime safety checks should be made. They are expensive and thus should
      * only be enabled during development. */
     protected final boolean _safetyChecks = Boolean.getBoolean("nexus.safety_checks");
 
-    /** A comparator on subscribers which orders by hashcode. */
-    protected static final Comparator<Subscriber> SUBSCRIBER_COMP = new Comparator<Subscriber>() {
-        public int compare (Subscriber s1, Subscriber s2) {
-            int h1 = s1.hashCode(), h2 = s2.hashCode();
-            if (h1 < h2) return -1;
-            else if (h1 > h2) return 1;
-            else return 0;
-        }
-    };
+    protected static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    /** The default rate (per second) at which objects publish their ticked attributes. */
+    protected static final int DEFAULT_PUBLISH_RATE = 10;
+
+    /** The default interval (in millis) at which we check for keyed entities to passivate. */
+    protected static final long DEFAULT_PASSIVATION_INTERVAL = 1000L;
 }
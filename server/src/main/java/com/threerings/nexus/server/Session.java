@@ -5,8 +5,6 @@
 package com.threerings.nexus.server;
 
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import react.Signal;
 import react.SignalView;
@@ -70,7 +68,7 @@ public class Session
             }
 
             // clear any object subscriptions we currently hold
-            for (Integer id : _subscriptions) {
+            for (int id : _subscriptions.toArray()) {
                 _omgr.clearSubscriber(id, _subscriber);
             }
             _subscriptions.clear();
@@ -208,7 +206,7 @@ public class Session
     protected final Signal<Throwable> _onDisconnect = Signal.create();
 
     /** Tracks our extant object subscriptions. */
-    protected final Set<Integer> _subscriptions = new ConcurrentSkipListSet<Integer>();
+    protected final ConcurrentIntSet _subscriptions = new ConcurrentIntSet();
 
     /** Tracks session-local attributes. */
     protected final Map<Class<?>, Object> _locals = Maps.newHashMap();
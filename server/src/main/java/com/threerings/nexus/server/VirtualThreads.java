@@ -0,0 +1,80 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Provides an executor that runs entity contexts on virtual threads (available in Java 21 and
+ * newer). Each time a context has pending actions, they are executed on a new virtual thread
+ * (which is cheap to create), and the context continues to execute its actions one at a time, in
+ * order. Actions and requests that block (on {@link NexusServer#request}, say, or a database)
+ * thereby block only a virtual thread, rather than one of a limited pool of platform threads,
+ * which avoids starving (or deadlocking) the server's other contexts. For example:
+ *
+ * <pre>{@code
+ * ExecutorService exec = VirtualThreads.isSupported() ?
+ *     VirtualThreads.newExecutor() : Executors.newFixedThreadPool(threads);
+ * NexusServer server = new NexusServer(config, exec);
+ * }</pre>
+ *
+ * <p>Nexus is built for older JVMs, so we obtain virtual threads reflectively.</p>
+ */
+public class VirtualThreads
+{
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     */
+    public static boolean isSupported () {
+        return _newThreadPerTask != null;
+    }
+
+    /**
+     * Creates an executor that executes each task on a new virtual thread. The threads are named
+     * {@code nexus-N}.
+     *
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads.
+     */
+    public static ExecutorService newExecutor () {
+        if (!isSupported()) throw new UnsupportedOperationException(
+            "Virtual threads require Java 21 or newer (running " +
+            System.getProperty("java.version") + ")");
+        try {
+            Object builder = _ofVirtual.invoke(null);
+            builder = _name.invoke(builder, "nexus-", 0L);
+            ThreadFactory factory = (ThreadFactory)_factory.invoke(builder);
+            return (ExecutorService)_newThreadPerTask.invoke(null, factory);
+        } catch (IllegalAccessException iae) {
+            throw new UnsupportedOperationException("Unable to create virtual threads", iae);
+        } catch (InvocationTargetException ite) {
+            throw new UnsupportedOperationException(
+                "Unable to create virtual threads", ite.getCause());
+        }
+    }
+
+    protected static Method _ofVirtual, _name, _factory, _newThreadPerTask;
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method name = builder.getMethod("name", String.class, long.class);
+            Method factory = builder.getMethod("factory");
+            Method newThreadPerTask = Executors.class.getMethod(
+                "newThreadPerTaskExecutor", ThreadFactory.class);
+            _ofVirtual = ofVirtual;
+            _name = name;
+            _factory = factory;
+            _newThreadPerTask = newThreadPerTask;
+        } catch (ClassNotFoundException cnfe) {
+            // no virtual threads in this JVM
+        } catch (NoSuchMethodException nsme) {
+            // no virtual threads in this JVM
+        }
+    }
+}
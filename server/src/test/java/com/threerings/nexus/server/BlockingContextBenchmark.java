@@ -0,0 +1,86 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the throughput (in ops/sec) of entity contexts executed by a fixed pool of platform
+ * threads and by {@link VirtualThreads}, when each op blocks (as if on a database query) for
+ * {@code blockMicros}. The {@code virtual} configuration must be run on Java 21 or newer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class BlockingContextBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(BlockingContextBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Param({"pool", "virtual"}) public String exec;
+    @Param({"100", "1000"}) public int blockMicros;
+
+    @Setup public void setup () {
+        _exec = exec.equals("virtual") ? VirtualThreads.newExecutor() :
+            Executors.newFixedThreadPool(POOL_THREADS);
+        _contexts = new EntityContext[CONTEXTS];
+        for (int ii = 0; ii < CONTEXTS; ii++) _contexts[ii] = new EntityContext(_exec);
+    }
+
+    @TearDown public void tearDown () {
+        _exec.shutdown();
+    }
+
+    @Benchmark @OperationsPerInvocation(CONTEXTS*OPS_PER_CONTEXT)
+    public void post () throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(CONTEXTS*OPS_PER_CONTEXT);
+        final long blockNanos = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+        Runnable op = new Runnable() {
+            public void run () {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(blockNanos);
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+                done.countDown();
+            }
+        };
+        for (int oo = 0; oo < OPS_PER_CONTEXT; oo++) {
+            for (EntityContext ctx : _contexts) ctx.postOp(op);
+        }
+        done.await();
+    }
+
+    protected ExecutorService _exec;
+    protected EntityContext[] _contexts;
+
+    protected static final int CONTEXTS = 1000, OPS_PER_CONTEXT = 4;
+    protected static final int POOL_THREADS = 32;
+}
@@ -0,0 +1,83 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ConcurrentIntMap} and {@link ConcurrentIntSet}.
+ */
+public class ConcurrentIntMapTest
+{
+    @Test
+    public void testAgainstHashMap () {
+        Random rando = new Random(42);
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>();
+        Map<Integer,Integer> expect = new HashMap<Integer,Integer>();
+        for (int ii = 0; ii < 100000; ii++) {
+            // draw keys from a small range (and occasionally a large one) to exercise collisions
+            int key = (rando.nextInt(10) == 0) ? rando.nextInt() : 1 + rando.nextInt(2000);
+            if (key == 0) continue;
+            switch (rando.nextInt(4)) {
+            case 0: assertEquals(expect.remove(key), map.remove(key)); break;
+            case 1:
+                Integer exist = expect.get(key);
+                if (exist == null) expect.put(key, ii);
+                assertEquals(exist, map.putIfAbsent(key, ii));
+                break;
+            default: assertEquals(expect.put(key, ii), map.put(key, ii)); break;
+            }
+            assertEquals(expect.get(key), map.get(key));
+        }
+        assertEquals(expect.size(), map.size());
+        assertEquals(expect.size(), map.keys().length);
+        for (int key : map.keys()) assertEquals(expect.get(key), map.get(key));
+        map.clear();
+        assertTrue(map.isEmpty());
+
+        ConcurrentIntSet set = new ConcurrentIntSet();
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.contains(5));
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentReaders () throws InterruptedException {
+        final ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>();
+        final int stable = 1000, churn = 100000;
+        for (int ii = 1; ii <= stable; ii++) map.put(ii, ii);
+        final AtomicBoolean done = new AtomicBoolean(), failed = new AtomicBoolean();
+        Thread reader = new Thread() {
+            public void run () {
+                // the stable mappings must remain visible throughout the writer's rehashing
+                while (!done.get()) {
+                    for (int ii = 1; ii <= stable; ii++) {
+                        Integer value = map.get(ii);
+                        if (value == null || value != ii) failed.set(true);
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int ii = 0; ii < churn; ii++) {
+            int key = stable + 1 + ii;
+            map.put(key, key);
+            if (ii >= 10) map.remove(key - 10);
+        }
+        done.set(true);
+        reader.join();
+        assertFalse(failed.get());
+        assertEquals(stable + 10, map.size());
+    }
+}
@@ -0,0 +1,129 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link EntityContext} (in ops/sec) when posting to a single context
+ * and when posting round-robin across many contexts. The {@code sync} implementation is the
+ * original synchronized, one-executor-task-per-op context, retained here for comparison. The
+ * {@code affine} implementation is the current context executed by an {@link EntityScheduler}
+ * rather than a thread pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class EntityContextBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(EntityContextBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Param({"1", "10000"}) public int contexts;
+    @Param({"mpsc", "affine", "sync"}) public String impl;
+
+    @Setup public void setup () {
+        int threads = Runtime.getRuntime().availableProcessors();
+        _exec = impl.equals("affine") ? new EntityScheduler(threads) :
+            Executors.newFixedThreadPool(threads);
+        _posters = new Poster[contexts];
+        for (int ii = 0; ii < contexts; ii++) {
+            if (impl.equals("sync")) {
+                final SyncContext ctx = new SyncContext(_exec);
+                _posters[ii] = new Poster() {
+                    public void postOp (Runnable op) { ctx.postOp(op); }
+                };
+            } else {
+                final EntityContext ctx = new EntityContext(_exec);
+                _posters[ii] = new Poster() {
+                    public void postOp (Runnable op) { ctx.postOp(op); }
+                };
+            }
+        }
+    }
+
+    @TearDown public void tearDown () {
+        _exec.shutdown();
+    }
+
+    @Benchmark @OperationsPerInvocation(OPS)
+    public void post () throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(OPS);
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable op = new Runnable() {
+            public void run () {
+                if (remaining.decrementAndGet() == 0) done.countDown();
+            }
+        };
+        for (int ii = 0; ii < OPS; ii++) _posters[ii % contexts].postOp(op);
+        done.await();
+    }
+
+    protected interface Poster {
+        void postOp (Runnable op);
+    }
+
+    /** The original implementation of {@link EntityContext}. */
+    protected static class SyncContext {
+        public SyncContext (Executor exec) {
+            _exec = exec;
+        }
+
+        public synchronized void postOp (final Runnable op) {
+            _ops.offer(new Runnable() {
+                public void run () {
+                    try {
+                        op.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (_active == null) scheduleNext();
+        }
+
+        protected synchronized void scheduleNext () {
+            if ((_active = _ops.poll()) != null) _exec.execute(_active);
+        }
+
+        protected final Executor _exec;
+        protected Runnable _active;
+        protected final Queue<Runnable> _ops = new ArrayDeque<Runnable>();
+    }
+
+    protected ExecutorService _exec;
+    protected Poster[] _posters;
+
+    protected static final int OPS = 100000;
+}
@@ -0,0 +1,101 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link EntityContext}.
+ */
+public class EntityContextTest
+{
+    @Test
+    public void testOrderingAndExclusion () throws InterruptedException {
+        final int posters = 4, count = 20000;
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        final EntityContext ctx = new EntityContext(exec, 16, EntityContext.DEFAULT_BUDGET_NANOS);
+        final int[] last = new int[posters];
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(posters*count);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int pp = 0; pp < posters; pp++) {
+            final int poster = pp;
+            threads.add(new Thread() {
+                public void run () {
+                    for (int ii = 1; ii <= count; ii++) {
+                        final int seq = ii;
+                        ctx.postOp(new Runnable() {
+                            public void run () {
+                                // ops must run one at a time, in the order posted by each poster,
+                                // with the context set as current
+                                if (running.incrementAndGet() != 1 ||
+                                    last[poster] != seq-1 || EntityContext.current.get() != ctx) {
+                                    failed.set(true);
+                                }
+                                last[poster] = seq;
+                                running.decrementAndGet();
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        exec.shutdown();
+    }
+
+    @Test
+    public void testBatching () {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor exec = new Executor() {
+            public void execute (Runnable task) {
+                tasks.add(task);
+            }
+        };
+        EntityContext ctx = new EntityContext(exec, 2, EntityContext.DEFAULT_BUDGET_NANOS);
+        final List<Integer> ran = new ArrayList<Integer>();
+        for (int ii = 0; ii < 5; ii++) {
+            final int op = ii;
+            ctx.postOp(new Runnable() {
+                public void run () { ran.add(op); }
+            });
+        }
+        // all five ops are queued via a single task, which yields after each batch of two
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(2, ran.size());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        tasks.remove(0).run();
+        assertEquals(5, ran.size());
+        assertEquals(0, tasks.size());
+        assertNull(EntityContext.current.get());
+
+        // an op posted to an idle context schedules a new task
+        ctx.postOp(new Runnable() {
+            public void run () { ran.add(5); }
+        });
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(6, ran.size());
+        for (int ii = 0; ii < ran.size(); ii++) assertEquals(ii, (int)ran.get(ii));
+    }
+}
@@ -0,0 +1,139 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threerings.nexus.distrib.Nexus;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link EntityScheduler}.
+ */
+public class EntitySchedulerTest
+{
+    @Test
+    public void testAffinity () throws InterruptedException {
+        EntityScheduler sched = new EntityScheduler(4);
+        EntityContext ctx = new EntityContext(sched);
+        final Thread[] last = new Thread[1];
+        final AtomicInteger moves = new AtomicInteger();
+        for (int ii = 0; ii < 100; ii++) {
+            // wait for each op to complete, so that the context is requeued for each op
+            final CountDownLatch ran = new CountDownLatch(1);
+            ctx.postOp(new Runnable() {
+                public void run () {
+                    if (last[0] != null && last[0] != Thread.currentThread()) {
+                        moves.incrementAndGet();
+                    }
+                    last[0] = Thread.currentThread();
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+        }
+        // the context moves to a different worker only when stolen (which an idle worker that
+        // happens to be looking for work may occasionally do)
+        assertTrue(moves.get() <= sched.steals());
+        assertTrue(moves + " moves", moves.get() < 20);
+        shutdown(sched);
+    }
+
+    @Test
+    public void testStealing () throws InterruptedException {
+        EntityScheduler sched = new EntityScheduler(2);
+        final CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+        EntityContext blocker = new EntityContext(sched);
+        blocker.postOp(new Runnable() {
+            public void run () {
+                blocked.countDown();
+                try { release.await(); } catch (InterruptedException ie) {}
+            }
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        // tasks are queued round-robin, so one of these lands behind the blocked context, and
+        // the idle worker must steal it
+        final CountDownLatch ran = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            public void run () { ran.countDown(); }
+        };
+        sched.execute(task);
+        sched.execute(task);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertTrue(sched.steals() > 0);
+        release.countDown();
+        shutdown(sched);
+        assertTrue(sched.tasks(0) + sched.tasks(1) >= 3);
+        assertTrue(sched.utilization(0) + sched.utilization(1) > 0);
+    }
+
+    @Test
+    public void testPriorities () throws InterruptedException {
+        EntityScheduler sched = new EntityScheduler(1);
+        final CountDownLatch release = blockWorker(sched);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        EntityContext bulk = context(sched, 2, Nexus.Priority.BULK);
+        EntityContext normal = context(sched, 2, Nexus.Priority.NORMAL);
+        EntityContext system = context(sched, 2, Nexus.Priority.SYSTEM);
+        EntityContext ticked = context(sched, 2, Nexus.Priority.BULK);
+        // the flooded bulk context yields after each two ops, taking turns with the other
+        for (int ii = 0; ii < 4; ii++) bulk.postOp(note(ran, "b" + ii));
+        normal.postOp(note(ran, "n"));
+        ticked.postOp(note(ran, "t0"), true); // an urgent op schedules its context at SYSTEM
+        ticked.postOp(note(ran, "t1"));
+        system.postOp(note(ran, "s"));
+        release.countDown();
+        shutdown(sched);
+        assertEquals(Arrays.asList("t0", "t1", "s", "n", "b0", "b1", "b2", "b3"), ran);
+
+        sched = new EntityScheduler(1);
+        ran.clear();
+        bulk = context(sched, 2, Nexus.Priority.BULK);
+        EntityContext bulk2 = context(sched, 2, Nexus.Priority.BULK);
+        final CountDownLatch release2 = blockWorker(sched);
+        for (int ii = 0; ii < 4; ii++) bulk.postOp(note(ran, "a" + ii));
+        bulk2.postOp(note(ran, "b"));
+        release2.countDown();
+        shutdown(sched);
+        assertEquals(Arrays.asList("a0", "a1", "b", "a2", "a3"), ran);
+    }
+
+    protected CountDownLatch blockWorker (EntityScheduler sched) throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+        sched.execute(new Runnable() {
+            public void run () {
+                blocked.countDown();
+                try { release.await(); } catch (InterruptedException ie) {}
+            }
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        return release;
+    }
+
+    protected EntityContext context (EntityScheduler sched, int batch, Nexus.Priority prio) {
+        return new EntityContext(sched, batch, EntityContext.DEFAULT_BUDGET_NANOS, prio);
+    }
+
+    protected Runnable note (final List<String> ran, final String op) {
+        return new Runnable() {
+            public void run () { ran.add(op); }
+        };
+    }
+
+    protected void shutdown (EntityScheduler sched) throws InterruptedException {
+        sched.shutdown();
+        assertTrue(sched.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(sched.isTerminated());
+    }
+}
@@ -0,0 +1,129 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import com.threerings.nexus.util.IntMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the lookup throughput (in lookups/sec) of the id-keyed tables used by the server and
+ * client, keyed on a million sequential ids, in their boxed ({@code ConcurrentHashMap}, {@code
+ * HashMap}) and primitive ({@link ConcurrentIntMap}, {@link IntMap}) forms. {@link #main} also
+ * reports the heap consumed per entry by each form, and by the session subscription sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Xmx2g")
+public class IntMapBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        for (String impl : IMPLS) {
+            System.out.printf("%-22s %5.1f bytes/entry%n", impl, heapPerEntry(impl));
+        }
+        System.out.printf("%-22s %5.1f bytes/entry%n", "ConcurrentSkipListSet",
+                          heapPerEntry("ConcurrentSkipListSet"));
+        System.out.printf("%-22s %5.1f bytes/entry%n", "ConcurrentIntSet",
+                          heapPerEntry("ConcurrentIntSet"));
+        new Runner(new OptionsBuilder().
+                   include(IntMapBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Param({"ConcurrentHashMap", "ConcurrentIntMap", "HashMap", "IntMap"}) public String impl;
+
+    @Setup public void setup () {
+        _table = create(impl);
+    }
+
+    @Benchmark public Object get () {
+        // a cheap LCG, so that we don't measure the cost of random number generation
+        _counter = _counter * 1103515245 + 12345;
+        return _table.get(1 + (_counter >>> 1) % ENTRIES);
+    }
+
+    protected interface Table {
+        Object get (int key);
+    }
+
+    protected static Table create (String impl) {
+        final Object value = new Object();
+        if (impl.equals("ConcurrentHashMap") || impl.equals("HashMap")) {
+            final Map<Integer,Object> map = impl.equals("HashMap") ?
+                new HashMap<Integer,Object>() : new ConcurrentHashMap<Integer,Object>();
+            for (int ii = 1; ii <= ENTRIES; ii++) map.put(ii, value);
+            return new Table() {
+                public Object get (int key) { return map.get(key); }
+            };
+        } else if (impl.equals("ConcurrentIntMap")) {
+            final ConcurrentIntMap<Object> map = new ConcurrentIntMap<Object>();
+            for (int ii = 1; ii <= ENTRIES; ii++) map.put(ii, value);
+            return new Table() {
+                public Object get (int key) { return map.get(key); }
+            };
+        } else if (impl.equals("IntMap")) {
+            final IntMap<Object> map = new IntMap<Object>();
+            for (int ii = 1; ii <= ENTRIES; ii++) map.put(ii, value);
+            return new Table() {
+                public Object get (int key) { return map.get(key); }
+            };
+        } else if (impl.equals("ConcurrentSkipListSet")) {
+            final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<Integer>();
+            for (int ii = 1; ii <= ENTRIES; ii++) set.add(ii);
+            return new Table() {
+                public Object get (int key) { return set.contains(key); }
+            };
+        } else if (impl.equals("ConcurrentIntSet")) {
+            final ConcurrentIntSet set = new ConcurrentIntSet();
+            for (int ii = 1; ii <= ENTRIES; ii++) set.add(ii);
+            return new Table() {
+                public Object get (int key) { return set.contains(key); }
+            };
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+    protected static double heapPerEntry (String impl) {
+        long before = usedHeap();
+        Table table = create(impl);
+        long after = usedHeap();
+        table.get(1); // keep the table reachable until we've measured it
+        return (after - before) / (double)ENTRIES;
+    }
+
+    protected static long usedHeap () {
+        Runtime rt = Runtime.getRuntime();
+        for (int ii = 0; ii < 3; ii++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    protected Table _table;
+    protected int _counter;
+
+    protected static final int ENTRIES = 1000000;
+    protected static final String[] IMPLS = {
+        "ConcurrentHashMap", "ConcurrentIntMap", "HashMap", "IntMap" };
+}
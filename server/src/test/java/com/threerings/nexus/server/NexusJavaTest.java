@@ -4,15 +4,41 @@
 
 package com.threerings.nexus.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import react.Function;
+import react.RFuture;
+import react.Slot;
+import react.Try;
 
 import org.junit.*;
 import static org.junit.Assert.*;
 
 import com.threerings.nexus.distrib.Action;
+import com.threerings.nexus.distrib.Keyed;
+import com.threerings.nexus.distrib.KeyedFactory;
+import com.threerings.nexus.distrib.Nexus;
+import com.threerings.nexus.distrib.Passivating;
+import com.threerings.nexus.distrib.Request;
+import com.threerings.nexus.distrib.RequestTimeoutException;
 import com.threerings.nexus.distrib.Singleton;
 
 public class NexusJavaTest
@@ -24,6 +50,7 @@ public class NexusJavaTest
         props.setProperty("nexus.node", "test");
         props.setProperty("nexus.hostname", "localhost");
         props.setProperty("nexus.rpc_timeout", "1000");
+        props.setProperty("nexus.passivation_interval", "20");
         _server = new NexusServer(new NexusConfig(props), _exec);
     }
 
@@ -80,6 +107,387 @@ public class NexusJavaTest
         assertFalse(printed[0]); // ensure that the print call did not execute
     }
 
+    @Test public void testRequestTimeouts () throws Exception {
+        class Wedged implements Singleton {
+            public int requests;
+        }
+        _server.register(Wedged.class, new Wedged());
+
+        // wedge our entity's context with a request that waits until we release it
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> wedged = _server.requestF(
+            Wedged.class, new Request.Local<Wedged,Integer>() {
+            public Integer invoke (Wedged w) {
+                try { release.await(); } catch (InterruptedException ie) {}
+                return ++w.requests;
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        // this request is queued behind the wedged request, and never starts
+        Future<Integer> queued = _server.requestF(
+            Wedged.class, new Request.Local<Wedged,Integer>() {
+            public Integer invoke (Wedged w) {
+                return ++w.requests;
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        try {
+            ObjectManager.get(null, queued);
+            fail("Queued request should have timed out");
+        } catch (RequestTimeoutException rte) {
+            assertFalse(rte.started);
+        }
+        try {
+            ObjectManager.get(null, wedged);
+            fail("Wedged request should have timed out");
+        } catch (RequestTimeoutException rte) {
+            assertTrue(rte.started);
+        }
+        assertEquals(2, _server.timedOutRequests());
+        assertEquals(1, _server.unstartedTimeouts());
+
+        // once the wedged request completes, only it has been run
+        release.countDown();
+        int requests = _server.request(Wedged.class, new Request.Local<Wedged,Integer>() {
+            public Integer invoke (Wedged w) {
+                return w.requests;
+            }
+        });
+        assertEquals(1, requests);
+        assertEquals(2, _server.timedOutRequests());
+    }
+
+    @Test public void testRequestContinuations () throws Exception {
+        class Counter implements Singleton {
+            public int count;
+        }
+        class Caller implements Singleton {
+            public final List<String> results = new ArrayList<String>();
+        }
+        _server.register(Counter.class, new Counter());
+        _server.register(Caller.class, new Caller());
+
+        // the caller chains two requests on the counter, and its listeners run on its own context
+        final Request<Counter,Integer> incr = new Request.Local<Counter,Integer>() {
+            public Integer invoke (Counter c) {
+                return ++c.count;
+            }
+        };
+        final EntityContext[] callerCtx = new EntityContext[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        _server.invoke(Caller.class, new Action.Local<Caller>() {
+            public void invoke (final Caller caller) {
+                callerCtx[0] = EntityContext.current.get();
+                _server.requestR(Caller.class, new Request.Local<Caller,Integer>() {
+                    public Integer invoke (Caller c) {
+                        return 0; // a request to our own context must not deadlock
+                    }
+                }).flatMap(new Function<Integer,RFuture<Integer>>() {
+                    public RFuture<Integer> apply (Integer zero) {
+                        return _server.requestR(Counter.class, incr);
+                    }
+                }).flatMap(new Function<Integer,RFuture<Integer>>() {
+                    public RFuture<Integer> apply (Integer one) {
+                        boolean onCaller = (EntityContext.current.get() == callerCtx[0]);
+                        caller.results.add("one=" + one + ":" + onCaller);
+                        return _server.requestR(Counter.class, incr);
+                    }
+                }).onComplete(new Slot<Try<Integer>>() {
+                    public void onEmit (Try<Integer> two) {
+                        boolean onCaller = (EntityContext.current.get() == callerCtx[0]);
+                        caller.results.add("two=" + two.get() + ":" + onCaller);
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        List<String> results = _server.request(
+            Caller.class, new Request.Local<Caller,List<String>>() {
+            public List<String> invoke (Caller caller) {
+                return new ArrayList<String>(caller.results);
+            }
+        });
+        assertEquals(Arrays.asList("one=1:true", "two=2:true"), results);
+
+        // a request that times out fails its future (on the caller's context)
+        final CountDownLatch release = new CountDownLatch(1), failed = new CountDownLatch(1);
+        _server.requestF(Counter.class, new Request.Local<Counter,Integer>() {
+            public Integer invoke (Counter c) {
+                try { release.await(); } catch (InterruptedException ie) {}
+                return c.count;
+            }
+        });
+        _server.invoke(Caller.class, new Action.Local<Caller>() {
+            public void invoke (final Caller caller) {
+                _server.requestR(Counter.class, incr, 50, TimeUnit.MILLISECONDS).onFailure(
+                    new Slot<Throwable>() {
+                        public void onEmit (Throwable cause) {
+                            boolean onCaller = (EntityContext.current.get() == callerCtx[0]);
+                            if (cause instanceof RequestTimeoutException && onCaller) {
+                                failed.countDown();
+                            }
+                        }
+                    });
+            }
+        });
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test public void testRequestExpiryCanceled () throws Exception {
+        class Counter implements Singleton {
+            public int count;
+        }
+        _server.register(Counter.class, new Counter());
+
+        // an action due before the requests' deadlines keeps the timer thread from discarding
+        // canceled expiries, so that we can count them
+        NexusTimer timer = _server._omgr.timer();
+        NexusTimer.Deferred sentinel = timer.schedule(new Runnable() {
+            public void run () {}
+        }, TimeUnit.MINUTES.toMillis(30));
+
+        // requests that complete well before their deadline cancel their expiry
+        int requests = 10;
+        for (int ii = 0; ii < requests; ii++) {
+            _server.requestR(Counter.class, new Request.Local<Counter,Integer>() {
+                public Integer invoke (Counter c) {
+                    return ++c.count;
+                }
+            }, 1, TimeUnit.HOURS);
+        }
+        // once a later request on the counter's context completes, so have the others (we don't
+        // listen to their futures, as they're completed on the counter's context)
+        Request<Counter,Integer> count = new Request.Local<Counter,Integer>() {
+            public Integer invoke (Counter c) {
+                return c.count;
+            }
+        };
+        assertEquals(requests, (int)_server.request(Counter.class, count));
+        assertEquals(requests, timer._timer.purge());
+        sentinel.cancel();
+    }
+
+    @Test public void testBatchInvokeAndGather () throws Exception {
+        class Member implements Keyed {
+            public final Integer id;
+            public int notified;
+            public Member (int id) { this.id = id; }
+            public Comparable<?> getKey () { return id; }
+        }
+        // members 2 and 3 share member 1's context
+        Nexus.Context<Member> ctx = _server.registerKeyed(Member.class, new Member(1));
+        _server.registerKeyed(Member.class, new Member(2), ctx);
+        _server.registerKeyed(Member.class, new Member(3), ctx);
+        _server.registerKeyed(Member.class, new Member(5));
+        Set<Integer> keys = new HashSet<Integer>(Arrays.asList(1, 2, 3, 4, 5));
+
+        final CountDownLatch dropped = new CountDownLatch(1);
+        _server.invoke(Member.class, keys, new Action.Local<Member>() {
+            public void invoke (Member m) {
+                m.notified++;
+            }
+            @Override public void onDropped (Nexus nexus, Class<?> eclass, Comparable<?> key) {
+                if (key.equals(4)) dropped.countDown();
+            }
+        });
+        assertTrue(dropped.await(1, TimeUnit.SECONDS));
+
+        Request<Member,Integer> notified = new Request.Local<Member,Integer>() {
+            public Integer invoke (Member m) {
+                if (m.id == 3) throw new RuntimeException("Failure is omitted");
+                return m.notified;
+            }
+        };
+        Map<Comparable<?>,Integer> expect = new HashMap<Comparable<?>,Integer>();
+        expect.put(1, 1);
+        expect.put(2, 1);
+        expect.put(5, 1);
+        assertEquals(expect, _server.gather(Member.class, keys, notified));
+
+        Map<Comparable<?>,Future<Integer>> results = _server.gatherF(Member.class, keys, notified);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3, 5)), results.keySet());
+        assertEquals(1, (int)results.get(2).get());
+        try {
+            results.get(3).get();
+            fail("Failed request should report its failure");
+        } catch (ExecutionException ee) {
+            assertEquals("Failure is omitted", ee.getCause().getMessage());
+        }
+    }
+
+    @Test public void testCancelGather () throws Exception {
+        class Member implements Keyed {
+            public final Integer id;
+            public Member (int id) { this.id = id; }
+            public Comparable<?> getKey () { return id; }
+        }
+        // members 1 and 2 share a context, which we keep busy
+        Nexus.Context<Member> ctx = _server.registerKeyed(Member.class, new Member(1));
+        _server.registerKeyed(Member.class, new Member(2), ctx);
+        _server.registerKeyed(Member.class, new Member(3));
+        final CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+        _server.invoke(Member.class, 1, new Action.Local<Member>() {
+            public void invoke (Member m) {
+                blocked.countDown();
+                try { release.await(); } catch (InterruptedException ie) {}
+            }
+        });
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        final Set<Integer> invoked = Collections.synchronizedSet(new HashSet<Integer>());
+        Future<Map<Comparable<?>,Integer>> gathered = _server._omgr.gather(
+            Member.class, new HashSet<Integer>(Arrays.asList(1, 2, 3)),
+            new Request.Local<Member,Integer>() {
+                public Integer invoke (Member m) {
+                    invoked.add(m.id);
+                    return m.id;
+                }
+            }, _server._omgr.defaultDeadline());
+        assertTrue(gathered.cancel(false));
+        assertTrue(gathered.isCancelled());
+        assertTrue(gathered.isDone());
+        assertFalse(gathered.cancel(false));
+        try {
+            gathered.get();
+            fail("Canceled gather should not yield results");
+        } catch (CancellationException ce) {
+            // expected
+        }
+
+        // the requests on the busy context were never started
+        release.countDown();
+        Map<Comparable<?>,Integer> after = _server.gather(
+            Member.class, new HashSet<Integer>(Arrays.asList(1, 2)),
+            new Request.Local<Member,Integer>() {
+                public Integer invoke (Member m) { return m.id; }
+            });
+        assertEquals(2, after.size());
+        assertFalse(invoked.contains(1));
+        assertFalse(invoked.contains(2));
+    }
+
+    @Test public void testPassivation () throws Exception {
+        final ConcurrentMap<Comparable<?>,Integer> saved =
+            new ConcurrentHashMap<Comparable<?>,Integer>();
+        class Session implements Keyed, Passivating {
+            public final Comparable<?> key;
+            public int visits;
+            public Session (Comparable<?> key, Integer visits) {
+                this.key = key;
+                this.visits = (visits == null) ? 0 : visits;
+            }
+            public Comparable<?> getKey () { return key; }
+            public void passivate (Nexus nexus) { saved.put(key, visits); }
+        }
+        final AtomicInteger creations = new AtomicInteger();
+        _server.registerKeyedFactory(Session.class, new KeyedFactory<Session>() {
+            public Session create (Nexus nexus, Comparable<?> key) {
+                creations.incrementAndGet();
+                return new Session(key, saved.get(key));
+            }
+        });
+        _server.setPassivation(Session.class, 200, 2);
+        // manually registered entities are never passivated
+        _server.registerKeyed(Session.class, new Session(0, null));
+
+        Request<Session,Integer> visit = new Request.Local<Session,Integer>() {
+            public Integer invoke (Session s) { return ++s.visits; }
+        };
+        for (int key = 1; key <= 3; key++) {
+            assertEquals(1, (int)_server.request(Session.class, key, visit));
+        }
+        // the least recently used session in excess of the maximum is passivated first
+        awaitHosted(Session.class, 0, 2, 3);
+        assertEquals(Integer.valueOf(1), saved.get(1));
+        // and then the rest, once they're idle
+        awaitHosted(Session.class, 0);
+        assertEquals(3, _server.passivatedEntities());
+
+        // the next request recreates the entity, which restores its state
+        assertEquals(2, (int)_server.request(Session.class, 1, visit));
+        assertTrue(_server.hostedKeys(Session.class).contains(1));
+        assertEquals(4, creations.get());
+
+        // an entity that was resolved but never created is cleared without being created
+        _server._omgr.require(Session.class, 9, "No session");
+        assertTrue(_server.hostedKeys(Session.class).contains(9));
+        awaitHosted(Session.class, 0);
+        assertEquals(4, creations.get());
+        assertEquals(4, _server.passivatedEntities());
+        assertFalse(saved.containsKey(9));
+    }
+
+    @Test public void testRequestOnPassivated () throws Exception {
+        final ConcurrentMap<Comparable<?>,Integer> saved =
+            new ConcurrentHashMap<Comparable<?>,Integer>();
+        class Session implements Keyed, Passivating {
+            public final Comparable<?> key;
+            public int visits;
+            public Session (Comparable<?> key, Integer visits) {
+                this.key = key;
+                this.visits = (visits == null) ? 0 : visits;
+            }
+            public Comparable<?> getKey () { return key; }
+            public void passivate (Nexus nexus) { saved.put(key, visits); }
+        }
+        _server.registerKeyedFactory(Session.class, new KeyedFactory<Session>() {
+            public Session create (Nexus nexus, Comparable<?> key) {
+                return new Session(key, saved.get(key));
+            }
+        });
+        _server.setPassivation(Session.class, 100, 0);
+
+        final Request<Session,Integer> visit = new Request.Local<Session,Integer>() {
+            public Integer invoke (Session s) { return ++s.visits; }
+        };
+        // requests which reach a binding after its entity was passivated (as when a caller
+        // resolved the binding just before passivation) go to the entity's replacement
+        ObjectManager.Binding<Session> bind = _server._omgr.require(Session.class, 1, "No session");
+        assertEquals(1, (int)bind.requestF(visit).get());
+        awaitHosted(Session.class);
+        assertEquals(2, (int)bind.requestF(visit).get());
+
+        // likewise for requests whose futures are completed on the caller's context
+        class Caller implements Singleton {}
+        _server.register(Caller.class, new Caller());
+        final ObjectManager.Binding<Session> stale =
+            _server._omgr.require(Session.class, 1, "No session");
+        awaitHosted(Session.class);
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] visits = new int[1];
+        _server.invoke(Caller.class, new Action.Local<Caller>() {
+            public void invoke (Caller caller) {
+                stale.requestR(visit).onSuccess(new Slot<Integer>() {
+                    public void onEmit (Integer count) {
+                        visits[0] = count;
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(3, visits[0]);
+    }
+
+    @Test public void testTimerIsDaemon () {
+        // the server's timer is started on demand, and must not prevent the JVM from exiting
+        _server._omgr.timer();
+        boolean found = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().equals("Nexus Deferred Action Timer")) continue;
+            assertTrue(thread.isDaemon());
+            found = true;
+        }
+        assertTrue(found);
+    }
+
+    protected void awaitHosted (Class<? extends Keyed> kclass, Integer... keys) {
+        Set<Integer> expect = new HashSet<Integer>(Arrays.asList(keys));
+        for (int ii = 0; ii < 100 && !expect.equals(_server.hostedKeys(kclass)); ii++) delay(10);
+        assertEquals(expect, _server.hostedKeys(kclass));
+    }
+
     protected void delay (long millis) {
         try { Thread.sleep(millis); } catch (InterruptedException ie) {}
     }
@@ -0,0 +1,83 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ObjectIdAllocator}.
+ */
+public class ObjectIdAllocatorTest
+{
+    @Test
+    public void testRecycling () {
+        ObjectIdAllocator ids = new ObjectIdAllocator();
+        assertEquals(1, ids.allocate());
+        assertEquals(2, ids.allocate());
+        assertEquals(3, ids.allocate());
+
+        // released slots are reused in release order, with the next generation
+        ids.release(2);
+        ids.release(1);
+        int two = ids.allocate(), one = ids.allocate();
+        assertEquals(2, ObjectIdAllocator.slot(two));
+        assertEquals(1, ObjectIdAllocator.generation(two));
+        assertEquals(1, ObjectIdAllocator.slot(one));
+        assertEquals(4, ids.allocate());
+
+        // an id repeats only after its slot has cycled through every generation
+        Set<Integer> seen = new HashSet<Integer>();
+        int id = one;
+        for (int ii = 0; ii < ObjectIdAllocator.GENERATIONS; ii++) {
+            assertTrue(id > 0);
+            assertTrue(seen.add(id));
+            ids.release(id);
+            id = ids.allocate();
+        }
+        assertEquals(one, id);
+    }
+
+    @Test
+    public void testConcurrentAllocation () throws InterruptedException {
+        final ObjectIdAllocator ids = new ObjectIdAllocator();
+        final int threads = 4, count = 10000;
+        final List<Set<Integer>> live = new ArrayList<Set<Integer>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int tt = 0; tt < threads; tt++) {
+            final Set<Integer> mine = new HashSet<Integer>();
+            live.add(mine);
+            workers.add(new Thread() {
+                public void run () {
+                    // allocate and release (the latter in batches), keeping half of the ids
+                    List<Integer> churn = new ArrayList<Integer>();
+                    for (int ii = 0; ii < count; ii++) {
+                        int id = ids.allocate();
+                        if (ii % 2 == 0) mine.add(id);
+                        else churn.add(id);
+                        if (churn.size() == 10) {
+                            for (int cid : churn) ids.release(cid);
+                            churn.clear();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+
+        // no id may have been handed out to two threads while it was in use
+        Set<Integer> all = new HashSet<Integer>();
+        for (Set<Integer> mine : live) {
+            for (int id : mine) assertTrue(all.add(id));
+        }
+        assertEquals(threads * count / 2, all.size());
+    }
+}
@@ -0,0 +1,96 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.threerings.nexus.distrib.NexusObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the rate (in registrations/sec) at which objects can be registered with an {@link
+ * ObjectManager}: when registering a million objects into an empty manager, and when churning
+ * (clearing a random object and registering a replacement) with a million objects registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Xmx3g")
+public class ObjectIdBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(ObjectIdBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Empty {
+        public ObjectManager omgr;
+        @Setup(Level.Invocation) public void setup () {
+            omgr = createManager();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Full {
+        public ObjectManager omgr;
+        public NexusObject[] objects = new NexusObject[OBJECTS];
+        @Setup public void setup () {
+            omgr = createManager();
+            for (int ii = 0; ii < OBJECTS; ii++) omgr.register(objects[ii] = new TestObject());
+        }
+    }
+
+    @Benchmark @BenchmarkMode(Mode.SingleShotTime) @OperationsPerInvocation(OBJECTS)
+    @Warmup(iterations=3) @Measurement(iterations=5)
+    public ObjectManager register (Empty state) {
+        for (int ii = 0; ii < OBJECTS; ii++) state.omgr.register(new TestObject());
+        return state.omgr;
+    }
+
+    @Benchmark public void churn (Full state) {
+        // a cheap LCG, so that we don't measure the cost of random number generation
+        _counter = _counter * 1103515245 + 12345;
+        int idx = (_counter >>> 1) % OBJECTS;
+        state.omgr.clear(state.objects[idx]);
+        state.omgr.register(state.objects[idx] = new TestObject());
+    }
+
+    protected static class TestObject extends NexusObject {
+    }
+
+    protected static ObjectManager createManager () {
+        Properties props = new Properties();
+        props.setProperty("nexus.node", "test");
+        props.setProperty("nexus.hostname", "localhost");
+        props.setProperty("nexus.rpc_timeout", "1000");
+        return new ObjectManager(new NexusConfig(props), null, new Executor() {
+            public void execute (Runnable task) { task.run(); }
+        });
+    }
+
+    protected int _counter;
+
+    protected static final int OBJECTS = 1000000;
+}
@@ -0,0 +1,107 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import react.RFuture;
+
+import com.threerings.nexus.distrib.Factory_TestService;
+import com.threerings.nexus.distrib.NexusEvent;
+import com.threerings.nexus.distrib.NexusObject;
+import com.threerings.nexus.distrib.TestObject;
+import com.threerings.nexus.distrib.TestService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the {@link ObjectManager} subscriber registry with many objects, each of which has
+ * many subscribers: the rate at which events are dispatched to (and fanned out to the
+ * subscribers of) random objects, and the rate at which subscriptions can be removed and added.
+ * Contexts are executed on the calling thread, so that we measure only the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Xmx3g")
+public class SubscriberBenchmark
+{
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().
+                   include(SubscriberBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Param({"10000"}) public int objects;
+    @Param({"1000"}) public int subscribers;
+
+    @Setup public void setup () {
+        Properties props = new Properties();
+        props.setProperty("nexus.node", "test");
+        props.setProperty("nexus.hostname", "localhost");
+        props.setProperty("nexus.rpc_timeout", "1000");
+        _omgr = new ObjectManager(new NexusConfig(props), null, new Executor() {
+            public void execute (Runnable task) { task.run(); }
+        });
+
+        _subs = new CountingSubscriber[subscribers];
+        for (int ii = 0; ii < subscribers; ii++) _subs[ii] = new CountingSubscriber();
+        _objects = new TestObject[objects];
+        for (int ii = 0; ii < objects; ii++) {
+            _objects[ii] = new TestObject(Factory_TestService.createDispatcher(new TestService() {
+                public RFuture<Integer> addOne (int value) { return RFuture.success(value+1); }
+                public void launchMissiles () {}
+            }));
+            _omgr.register(_objects[ii]);
+            for (CountingSubscriber sub : _subs) _omgr.addSubscriber(_objects[ii], sub);
+        }
+    }
+
+    @Benchmark public void dispatch () {
+        // each event is forwarded to every subscriber
+        _objects[next(objects)].value.update("v" + _counter);
+    }
+
+    @Benchmark public void resubscribe () {
+        TestObject obj = _objects[next(objects)];
+        CountingSubscriber sub = _subs[next(subscribers)];
+        _omgr.clearSubscriber(obj.getId(), sub);
+        _omgr.addSubscriber(obj, sub);
+    }
+
+    protected int next (int bound) {
+        // a cheap LCG, so that we don't measure the cost of random number generation
+        _counter = _counter * 1103515245 + 12345;
+        return (_counter >>> 1) % bound;
+    }
+
+    protected static class CountingSubscriber implements ObjectManager.Subscriber {
+        public int events;
+        public void onSubscribed (NexusObject object) {}
+        public void forwardEvent (NexusEvent event) { events++; }
+        public void onCleared (int id) {}
+    }
+
+    protected ObjectManager _omgr;
+    protected TestObject[] _objects;
+    protected CountingSubscriber[] _subs;
+    protected int _counter;
+}
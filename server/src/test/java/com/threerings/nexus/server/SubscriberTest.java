@@ -0,0 +1,266 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import react.RFuture;
+import react.Slot;
+
+import com.threerings.nexus.distrib.Action;
+import com.threerings.nexus.distrib.CompoundEvent;
+import com.threerings.nexus.distrib.DMap;
+import com.threerings.nexus.distrib.DValue;
+import com.threerings.nexus.distrib.Factory_TestService;
+import com.threerings.nexus.distrib.NexusEvent;
+import com.threerings.nexus.distrib.NexusObject;
+import com.threerings.nexus.distrib.TestObject;
+import com.threerings.nexus.distrib.TestService;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ObjectManager} subscriber registry.
+ */
+public class SubscriberTest
+{
+    @Test
+    public void testIdentityMembership () {
+        ObjectManager omgr = createManager();
+        TestObject obj = createObject();
+        omgr.register(obj);
+
+        // subscribers with colliding hash codes are nonetheless distinct
+        RecordingSubscriber sub1 = new RecordingSubscriber(), sub2 = new RecordingSubscriber();
+        omgr.addSubscriber(obj, sub1);
+        omgr.addSubscriber(obj, sub2);
+        omgr.addSubscriber(obj, sub1); // duplicates are ignored
+        obj.value.update("one");
+        assertEquals(1, sub1.events.size());
+        assertEquals(1, sub2.events.size());
+
+        assertTrue(omgr.clearSubscriber(obj.getId(), sub1));
+        assertFalse(omgr.clearSubscriber(obj.getId(), sub1));
+        obj.value.update("two");
+        assertEquals(1, sub1.events.size());
+        assertEquals(2, sub2.events.size());
+
+        // clearing the object notifies (and removes) the remaining subscribers
+        omgr.clear(obj);
+        assertEquals(1, sub2.cleared);
+        assertEquals(0, sub1.cleared);
+    }
+
+    @Test
+    public void testCompoundEvents () {
+        ObjectManager omgr = createManager();
+        final TestObject obj = createObject();
+        omgr.register(obj);
+        RecordingSubscriber sub = new RecordingSubscriber();
+        omgr.addSubscriber(obj, sub);
+        final List<String> seen = new ArrayList<String>();
+        obj.value.connect(new Slot<String>() {
+            public void onEmit (String value) { seen.add(value); }
+        });
+
+        // the events posted by a single action are forwarded as one compound event
+        omgr.invoke(obj.getId(), new Action.Local<NexusObject>() {
+            public void invoke (NexusObject o) {
+                obj.value.update("one");
+                obj.value.update("two");
+                obj.value.update("three");
+            }
+        });
+        assertEquals(Arrays.asList("one", "two", "three"), seen);
+        assertEquals(1, sub.events.size());
+        assertTrue(sub.events.get(0) instanceof CompoundEvent);
+        assertEquals(3, ((CompoundEvent)sub.events.get(0)).events.size());
+
+        // an action posted by an action follows the events posted before it
+        seen.clear();
+        sub.events.clear();
+        final ObjectManager fomgr = omgr;
+        omgr.invoke(obj.getId(), new Action.Local<NexusObject>() {
+            public void invoke (NexusObject o) {
+                obj.value.update("four");
+                fomgr.invoke(obj.getId(), new Action.Local<NexusObject>() {
+                    public void invoke (NexusObject o) { seen.add("action"); }
+                });
+                obj.value.update("five");
+            }
+        });
+        assertEquals(Arrays.asList("four", "action", "five"), seen);
+        assertEquals(2, sub.events.size());
+        assertFalse(sub.events.get(0) instanceof CompoundEvent);
+
+        // events posted outside the object's context are dispatched individually
+        obj.value.update("six");
+        assertEquals(3, sub.events.size());
+        assertFalse(sub.events.get(2) instanceof CompoundEvent);
+    }
+
+    @Test
+    public void testCompoundEventOrder () {
+        ObjectManager omgr = createManager();
+        final TestObject a = createObject(), b = createObject(), c = createObject();
+        // a and b share a context, c has its own
+        ObjectManager.Binding<?> abind = (ObjectManager.Binding<?>)omgr.register(a);
+        omgr.register(b, abind.context);
+        omgr.register(c);
+        RecordingSubscriber sub = new RecordingSubscriber();
+        omgr.addSubscriber(a, sub);
+        omgr.addSubscriber(b, sub);
+        omgr.addSubscriber(c, sub);
+
+        // a subscriber to several objects on one context sees their events in the order they
+        // were posted: consecutive events to one object are compounded, but not across events
+        // to other objects
+        omgr.invoke(a.getId(), new Action.Local<NexusObject>() {
+            public void invoke (NexusObject o) {
+                a.value.update("a1");
+                a.value.update("a2");
+                b.value.update("b1");
+                a.value.update("a3");
+                c.value.update("c1");
+                a.value.update("a4");
+            }
+        });
+        List<Integer> targets = new ArrayList<Integer>(), sizes = new ArrayList<Integer>();
+        for (NexusEvent event : sub.events) {
+            // c's event is dispatched on its own context, in no particular order relative to
+            // the others
+            if (event.targetId == c.getId()) continue;
+            targets.add(event.targetId);
+            sizes.add((event instanceof CompoundEvent) ?
+                      ((CompoundEvent)event).events.size() : 1);
+        }
+        assertEquals(Arrays.asList(a.getId(), b.getId(), a.getId(), a.getId()), targets);
+        assertEquals(Arrays.asList(2, 1, 1, 1), sizes);
+        assertEquals(5, sub.events.size());
+    }
+
+    @Test
+    public void testCoalescing () {
+        ObjectManager omgr = createManager();
+        final CoalescingObject obj = new CoalescingObject();
+        omgr.register(obj);
+        RecordingSubscriber sub = new RecordingSubscriber();
+        omgr.addSubscriber(obj, sub);
+        final List<String> seen = new ArrayList<String>();
+        obj.value.connect(new Slot<String>() {
+            public void onEmit (String value) { seen.add(value); }
+        });
+
+        // only the last change to each coalesced value or key is forwarded to subscribers, but
+        // local listeners hear every change
+        omgr.invoke(obj.getId(), new Action.Local<NexusObject>() {
+            public void invoke (NexusObject o) {
+                for (int ii = 0; ii < 30; ii++) obj.value.update("v" + ii);
+                obj.map.put(1, "one");
+                obj.map.put(2, "two");
+                obj.map.put(1, "uno");
+                obj.map.remove(2);
+                obj.plain.update("p1");
+                obj.plain.update("p2");
+            }
+        });
+        assertEquals(30, seen.size());
+        assertEquals("v29", seen.get(29));
+        assertEquals(1, sub.events.size());
+        List<NexusEvent> sent = ((CompoundEvent)sub.events.get(0)).events;
+        // the final value, the final put of 1, the removal of 2 and both uncoalesced updates
+        assertEquals(5, sent.size());
+        assertTrue(sent.get(0).toString(), sent.get(0).toString().contains("value=v29"));
+        assertTrue(sent.get(1).toString(), sent.get(1).toString().contains("value=uno"));
+        assertTrue(sent.get(2).toString(), sent.get(2).toString().contains("RemoveEvent"));
+        assertTrue(sent.get(3).toString(), sent.get(3).toString().contains("value=p1"));
+        assertTrue(sent.get(4).toString(), sent.get(4).toString().contains("value=p2"));
+    }
+
+    @Test
+    public void testTickedPublication () throws InterruptedException {
+        ObjectManager omgr = createManager();
+        omgr.setPublishRate(CoalescingObject.class, 20);
+        final CoalescingObject obj = new CoalescingObject();
+        omgr.register(obj);
+        RecordingSubscriber sub = new RecordingSubscriber();
+        omgr.addSubscriber(obj, sub);
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        obj.ticked.connect(new Slot<String>() {
+            public void onEmit (String value) { seen.add(value); }
+        });
+
+        // an idle object publishes its first change immediately (on the timer thread), and the
+        // rest of a burst of changes once, a publish period later
+        for (int ii = 0; ii < 10; ii++) update(omgr, obj, "b" + ii);
+        assertEquals(10, seen.size());
+        Thread.sleep(150);
+        assertTrue(sub.events.size() + " publications", sub.events.size() <= 2);
+        String last = sub.events.get(sub.events.size()-1).toString();
+        assertTrue(last, last.contains("=b9"));
+
+        // a steady stream of changes is published at (at most) the publish rate
+        sub.events.clear();
+        long start = System.currentTimeMillis();
+        int updates = 0;
+        while (System.currentTimeMillis() - start < 500) {
+            update(omgr, obj, "s" + updates++);
+            Thread.sleep(1);
+        }
+        Thread.sleep(150);
+        assertTrue(sub.events.size() + " publications", sub.events.size() <= 500/50 + 2);
+        assertTrue(sub.events.size() + " publications", sub.events.size() < updates);
+        last = sub.events.get(sub.events.size()-1).toString();
+        assertTrue(last, last.contains("=s" + (updates-1)));
+        omgr.shutdown();
+    }
+
+    protected static void update (ObjectManager omgr, final CoalescingObject obj,
+                                  final String value) {
+        omgr.invoke(obj.getId(), new Action.Local<NexusObject>() {
+            public void invoke (NexusObject o) { obj.ticked.update(value); }
+        });
+    }
+
+    protected static class CoalescingObject extends NexusObject {
+        public final DValue<String> value = DValue.create(this, "").setCoalesced(true);
+        public final DMap<Integer,String> map = DMap.<Integer,String>create(this).setCoalesced(true);
+        public final DValue<String> plain = DValue.create(this, "");
+        public final DValue<String> ticked = DValue.create(this, "").setTicked(true);
+    }
+
+    protected static ObjectManager createManager () {
+        Properties props = new Properties();
+        props.setProperty("nexus.node", "test");
+        props.setProperty("nexus.hostname", "localhost");
+        props.setProperty("nexus.rpc_timeout", "1000");
+        return new ObjectManager(new NexusConfig(props), null, new Executor() {
+            public void execute (Runnable task) { task.run(); }
+        });
+    }
+
+    protected static TestObject createObject () {
+        return new TestObject(Factory_TestService.createDispatcher(new TestService() {
+            public RFuture<Integer> addOne (int value) { return RFuture.success(value+1); }
+            public void launchMissiles () {}
+        }));
+    }
+
+    protected static class RecordingSubscriber implements ObjectManager.Subscriber {
+        public final List<NexusEvent> events =
+            Collections.synchronizedList(new ArrayList<NexusEvent>());
+        public int cleared;
+        public void onSubscribed (NexusObject object) {}
+        public void forwardEvent (NexusEvent event) { events.add(event); }
+        public void onCleared (int id) { cleared++; }
+        @Override public int hashCode () { return 42; }
+    }
+}
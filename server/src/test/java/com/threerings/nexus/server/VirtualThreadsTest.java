@@ -0,0 +1,68 @@
+//
+// Nexus Server - server-side support for Nexus distributed application framework
+// http://github.com/threerings/nexus/blob/master/LICENSE
+
+package com.threerings.nexus.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link VirtualThreads} execution mode.
+ */
+public class VirtualThreadsTest
+{
+    @Test
+    public void testUnsupported () {
+        Assume.assumeTrue(!VirtualThreads.isSupported());
+        try {
+            VirtualThreads.newExecutor();
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBlockingOps () throws InterruptedException {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        ExecutorService exec = VirtualThreads.newExecutor();
+        // many more contexts than cores, all of which block simultaneously, and each of which must
+        // still execute its ops in order, one at a time
+        final int contexts = 1000, ops = 5;
+        final CountDownLatch blocked = new CountDownLatch(contexts), done =
+            new CountDownLatch(contexts*ops);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int cc = 0; cc < contexts; cc++) {
+            final EntityContext ctx = new EntityContext(exec);
+            final int[] last = new int[1];
+            for (int ii = 1; ii <= ops; ii++) {
+                final int seq = ii;
+                ctx.postOp(new Runnable() {
+                    public void run () {
+                        if (last[0] != seq-1 || EntityContext.current.get() != ctx) failed.set(true);
+                        last[0] = seq;
+                        if (seq == 1) {
+                            // wait for every context to block in its first op
+                            blocked.countDown();
+                            try {
+                                blocked.await();
+                            } catch (InterruptedException ie) {
+                                failed.set(true);
+                            }
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        exec.shutdown();
+    }
+}
@@ -21,6 +21,11 @@ public class IOTester
         "1|0|-128|0|127|-32768|0|32767|0|48|65535|-2147483648|0|2147483647|IAAAAAAAAAA|" +
         "A|H__________|1.401298464324817E-45|0.0|3.4028234663852886E38|4.9E-324|0.0|" +
         "1.7976931348623157E308|0|1|The quick brown fox jumped over the lazy dog.|";
+    public static final String BT_BINARY_PAYLOAD =
+        "010080007f800000007fff00000030ffff80000000000000007fffffff8000000000000000000000" +
+        "00000000007fffffffffffffff00000001000000007f7fffff000000000000000100000000000000" +
+        "007fefffffffffffff0001002d54686520717569636b2062726f776e20666f78206a756d70656420" +
+        "6f76657220746865206c617a7920646f672e";
     public static void writeBasicTypes (Streamable.Output out) {
         out.writeBoolean(true);
         out.writeBoolean(false);
@@ -82,7 +87,10 @@ public class IOTester
     }
 
     public static final String VALUE_OUT_PAYLOAD =
-        "41|1|RED|1|foo|43|42|41|1|GREEN|1|bar|43|21|41|1|BLUE|1|baz|43|7|";
+        "45|1|RED|1|foo|47|42|45|1|GREEN|1|bar|47|21|45|1|BLUE|1|baz|47|7|";
+    public static final String VALUE_BINARY_PAYLOAD =
+        "002d010003524544010003666f6f002f0000002a002d010005475245454e010003626172002f0000" +
+        "0015002d010004424c554501000362617a002f00000007";
     public static void writeValue (Streamable.Output out) {
         for (Widget w : Widget.WS) {
             out.writeValue(w);
@@ -90,7 +98,7 @@ public class IOTester
     }
 
     public static final String VALUE_IN_PAYLOAD =
-        "[41,\"RED\",\"foo\",43,42,41,\"GREEN\",\"bar\",43,21,41,\"BLUE\",\"baz\",43,7]";
+        "[45,\"RED\",\"foo\",47,42,45,\"GREEN\",\"bar\",47,21,45,\"BLUE\",\"baz\",47,7]";
     public static void checkValue (Streamable.Input in, Checker checker) {
         for (Widget w : Widget.WS) {
             checker.assertEquals(w, in.<Widget>readValue());
@@ -98,16 +106,47 @@ public class IOTester
     }
 
     public static final String VALUES_OUT_PAYLOAD =
-        "3|41|1|RED|1|foo|43|42|1|GREEN|1|bar|43|21|1|BLUE|1|baz|43|7|";
+        "3|45|1|RED|1|foo|47|42|1|GREEN|1|bar|47|21|1|BLUE|1|baz|47|7|";
+    public static final String VALUES_BINARY_PAYLOAD =
+        "0003002d010003524544010003666f6f002f0000002a010005475245454e010003626172002f0000" +
+        "0015010004424c554501000362617a002f00000007";
     public static void writeValues (Streamable.Output out) {
         out.writeValues(Widget.WS.size(), Widget.WS.iterator());
     }
 
     public static final String VALUES_IN_PAYLOAD =
-        "[3,41,\"RED\",\"foo\",43,42,\"GREEN\",\"bar\",43,21,\"BLUE\",\"baz\",43,7]";
+        "[3,45,\"RED\",\"foo\",47,42,\"GREEN\",\"bar\",47,21,\"BLUE\",\"baz\",47,7]";
     public static void checkValues (Streamable.Input in, Checker checker) {
         List<Widget> into = new ArrayList<Widget>();
         in.<Widget>readValues(into);
         checker.assertEquals(Widget.WS, into);
     }
+
+    /** A frame batching {@link #VALUE_IN_PAYLOAD} and {@link #BT_IN_PAYLOAD}. */
+    public static final String BATCH_IN_PAYLOAD =
+        "[" + VALUE_IN_PAYLOAD + "," + BT_IN_PAYLOAD + "]";
+
+    /** A binary frame batching {@link #VALUE_BINARY_PAYLOAD} and {@link #BT_BINARY_PAYLOAD}. */
+    public static final String BATCH_BINARY_PAYLOAD =
+        "ffff" + "0000003f" + VALUE_BINARY_PAYLOAD + "0000008a" + BT_BINARY_PAYLOAD;
+
+    /** Decodes a hex encoded (binary) payload. */
+    public static byte[] fromHex (String hex) {
+        byte[] data = new byte[hex.length()/2];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte)Integer.parseInt(hex.substring(2*ii, 2*ii+2), 16);
+        }
+        return data;
+    }
+
+    /** Hex encodes a (binary) payload, for comparison with the expected payloads. */
+    public static String toHex (byte[] data) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : data) {
+            buf.append(HEX_DIGITS.charAt((b >> 4) & 0xF)).append(HEX_DIGITS.charAt(b & 0xF));
+        }
+        return buf.toString();
+    }
+
+    protected static final String HEX_DIGITS = "0123456789abcdef";
 }